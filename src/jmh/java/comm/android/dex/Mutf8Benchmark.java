@@ -0,0 +1,122 @@
+package comm.android.dex;
+
+import comm.android.dex.util.ByteInput;
+import comm.android.dx.DxClassesDex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes the string table of {@link DxClassesDex}, as {@link Dex} does when reading strings,
+ * once from the dex buffer and once byte by byte through a {@link ByteInput}. The dex is
+ * either on the heap or mapped from a file; a mapped buffer has no backing array, so ASCII
+ * strings are copied out of it byte by byte.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class Mutf8Benchmark {
+    /** offset of string_ids_size in the dex header */
+    private static final int STRING_IDS_SIZE_OFFSET = 0x38;
+
+    /** "heap" wraps the dex bytes, "mapped" maps a dex file */
+    @Param({"heap", "mapped"})
+    public String buffer;
+
+    private ByteBuffer data;
+    /** offset of the MUTF-8 bytes of each string, after its length */
+    private int[] offsets;
+    /** declared number of characters of each string */
+    private int[] lengths;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] bytes = DxClassesDex.get();
+        if ("mapped".equals(buffer)) {
+            data = map(bytes);
+        } else {
+            data = ByteBuffer.wrap(bytes);
+        }
+        data.order(ByteOrder.LITTLE_ENDIAN);
+
+        int size = data.getInt(STRING_IDS_SIZE_OFFSET);
+        int stringIdsOff = data.getInt(STRING_IDS_SIZE_OFFSET + 4);
+        offsets = new int[size];
+        lengths = new int[size];
+        for (int i = 0; i < size; i++) {
+            data.position(data.getInt(stringIdsOff + i * SizeOf.STRING_ID_ITEM));
+            lengths[i] = Leb128.readUnsignedLeb128(new ByteInput() {
+                @Override
+                public byte readByte() {
+                    return data.get();
+                }
+            });
+            offsets[i] = data.position();
+        }
+    }
+
+    @Benchmark
+    public void decodeByteBuffer(Blackhole blackhole) throws UTFDataFormatException {
+        for (int i = 0; i < offsets.length; i++) {
+            data.position(offsets[i]);
+            blackhole.consume(Mutf8.decode(data, lengths[i]));
+        }
+    }
+
+    @Benchmark
+    public void decodeByteInput(Blackhole blackhole) throws UTFDataFormatException {
+        ByteInput in = new ByteInput() {
+            @Override
+            public byte readByte() {
+                return data.get();
+            }
+        };
+        for (int i = 0; i < offsets.length; i++) {
+            data.position(offsets[i]);
+            blackhole.consume(Mutf8.decode(in, new char[lengths[i]]));
+        }
+    }
+
+    /**
+     * Writes {@code bytes} to a temporary dex file and maps it read-only.
+     */
+    private static ByteBuffer map(byte[] bytes) throws IOException {
+        File file = File.createTempFile("classes", ".dex");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, bytes.length);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package comm.android.dx;
+
+import comm.android.dx.cf.direct.DirectClassFile;
+import comm.android.dx.cf.direct.StdAttributeFactory;
+import comm.android.dx.command.dexer.DxContext;
+import comm.android.dx.dex.DexOptions;
+import comm.android.dx.dex.cf.CfOptions;
+import comm.android.dx.dex.cf.CfTranslator;
+import comm.android.dx.dex.file.DexFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * A real dex file for benchmarks: the classes of dx itself, translated with optimization
+ * from the directory or jar file they were loaded from.
+ */
+public final class DxClassesDex {
+    /** package whose classes make up the dex file */
+    private static final String CLASS_PREFIX = "comm/android/dx/";
+
+    private static byte[] bytes;
+
+    private DxClassesDex() {
+    }
+
+    /**
+     * Returns the dex file, translating it on first use. Callers must not modify the array.
+     */
+    public static synchronized byte[] get() throws IOException {
+        if (bytes == null) {
+            bytes = translate();
+        }
+        return bytes;
+    }
+
+    private static byte[] translate() throws IOException {
+        DxContext context = new DxContext();
+        CfOptions cfOptions = new CfOptions();
+        cfOptions.optimize = true;
+        DexOptions dexOptions = new DexOptions();
+        DexFile dexFile = new DexFile(dexOptions);
+
+        File source;
+        try {
+            source = new File(DexFile.class.getProtectionDomain()
+                    .getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        ClassLoader loader = DexFile.class.getClassLoader();
+        for (String name : classFileNames(source)) {
+            InputStream in = loader.getResourceAsStream(name);
+            byte[] classBytes;
+            try {
+                classBytes = readFully(in);
+            } finally {
+                in.close();
+            }
+            DirectClassFile cf = new DirectClassFile(classBytes, name,
+                    cfOptions.strictNameCheck);
+            cf.setAttributeFactory(StdAttributeFactory.THE_ONE);
+            dexFile.add(CfTranslator.translate(context, cf, classBytes, cfOptions, dexOptions,
+                    dexFile));
+        }
+        return dexFile.toDex(null, false);
+    }
+
+    private static List<String> classFileNames(File source) throws IOException {
+        List<String> names = new ArrayList<String>();
+        if (source.isDirectory()) {
+            addClassFileNames(new File(source, CLASS_PREFIX), CLASS_PREFIX, names);
+            return names;
+        }
+
+        JarFile jar = new JarFile(source);
+        try {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if (name.startsWith(CLASS_PREFIX) && name.endsWith(".class")) {
+                    names.add(name);
+                }
+            }
+        } finally {
+            jar.close();
+        }
+        return names;
+    }
+
+    private static void addClassFileNames(File dir, String prefix, List<String> names) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                addClassFileNames(file, prefix + file.getName() + "/", names);
+            } else if (file.getName().endsWith(".class")) {
+                names.add(prefix + file.getName());
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,116 @@
+package comm.android.dx.io;
+
+import comm.android.dex.ClassData;
+import comm.android.dex.ClassDef;
+import comm.android.dex.Dex;
+import comm.android.dx.DxClassesDex;
+import comm.android.dx.io.instructions.DecodedInstruction;
+import comm.android.dx.io.instructions.FillArrayDataPayloadDecodedInstruction;
+import comm.android.dx.io.instructions.PackedSwitchPayloadDecodedInstruction;
+import comm.android.dx.io.instructions.SparseSwitchPayloadDecodedInstruction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Visits the instructions of method bodies, as the dex merger does to remap indices, once by
+ * decoding each body up front and once through the streaming instruction cursor. The bodies
+ * are those of {@link DxClassesDex}, either all of them or only those with switch or
+ * fill-array-data payloads, which the cursor has to size and skip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CodeReaderBenchmark {
+    /** "all" visits every method body, "payloads" only those with payloads */
+    @Param({"all", "payloads"})
+    public String bodies;
+
+    /** "strings" visits string instructions only, "all" visits every instruction */
+    @Param({"strings", "all"})
+    public String visitors;
+
+    private short[][] code;
+    private CodeReader reader;
+    /** sum of the visited indices, so that no visit is optimized away */
+    private int indexSum;
+
+    @Setup
+    public void setUp() throws IOException {
+        Dex dex = new Dex(DxClassesDex.get());
+        boolean payloadsOnly = "payloads".equals(bodies);
+
+        List<short[]> selected = new ArrayList<short[]>();
+        for (ClassDef classDef : dex.classDefs()) {
+            if (classDef.getClassDataOffset() == 0) {
+                continue;
+            }
+            for (ClassData.Method method : dex.readClassData(classDef).allMethods()) {
+                if (method.getCodeOffset() == 0) {
+                    continue;
+                }
+                short[] instructions = dex.readCode(method).getInstructions();
+                if (!payloadsOnly || hasPayload(instructions)) {
+                    selected.add(instructions);
+                }
+            }
+        }
+        code = selected.toArray(new short[selected.size()][]);
+
+        reader = new CodeReader();
+        CodeReader.Visitor visitor = new CodeReader.Visitor() {
+            @Override
+            public void visit(DecodedInstruction[] all, DecodedInstruction one) {
+                indexSum += one.getIndex();
+            }
+        };
+        if ("all".equals(visitors)) {
+            reader.setAllVisitors(visitor);
+        } else {
+            reader.setStringVisitor(visitor);
+        }
+    }
+
+    @Benchmark
+    public int visitDecoded() {
+        for (short[] instructions : code) {
+            reader.visitAll(DecodedInstruction.decodeAll(instructions));
+        }
+        return indexSum;
+    }
+
+    @Benchmark
+    public int visitStreaming() {
+        for (short[] instructions : code) {
+            reader.visitAll(instructions);
+        }
+        return indexSum;
+    }
+
+    private static boolean hasPayload(short[] instructions) {
+        for (DecodedInstruction instruction : DecodedInstruction.decodeAll(instructions)) {
+            if (instruction instanceof PackedSwitchPayloadDecodedInstruction
+                    || instruction instanceof SparseSwitchPayloadDecodedInstruction
+                    || instruction instanceof FillArrayDataPayloadDecodedInstruction) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,132 @@
+package comm.android.dx.ssa.back;
+
+import comm.android.dx.cf.code.ConcreteMethod;
+import comm.android.dx.cf.code.Ropper;
+import comm.android.dx.cf.direct.DirectClassFile;
+import comm.android.dx.cf.direct.StdAttributeFactory;
+import comm.android.dx.cf.iface.Method;
+import comm.android.dx.cf.iface.MethodList;
+import comm.android.dx.dex.DexOptions;
+import comm.android.dx.rop.code.AccessFlags;
+import comm.android.dx.rop.code.DexTranslationAdvice;
+import comm.android.dx.rop.code.RopMethod;
+import comm.android.dx.rop.cst.CstMethodRef;
+import comm.android.dx.ssa.Optimizer;
+import comm.android.dx.ssa.RegisterMapper;
+import comm.android.dx.ssa.SsaMethod;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs liveness analysis and register allocation, as the optimizer does
+ * when converting out of SSA form, over some of the largest methods of dx
+ * itself. {@code Dops.<clinit>} has about 1600 SSA registers and gets
+ * adjacency arrays, the others get the bit matrix.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class InterferenceGraphBenchmark {
+    /** fully qualified class name and method name of the method to compile */
+    @Param({"comm.android.dx.dex.code.Dops.<clinit>",
+            "comm.android.dx.cf.code.BytecodeArray.parseInstruction",
+            "comm.android.dx.cf.code.RopperMachine.run",
+            "comm.android.dx.merge.DexMerger$IdMerger.mergeSorted"})
+    public String method;
+
+    @Param({"false", "true"})
+    public boolean minimizeRegisters;
+
+    private RopMethod ropMethod;
+    private int paramWidth;
+    private boolean isStatic;
+
+    /** method in SSA form, fresh for each invocation since allocation changes it */
+    private SsaMethod ssaMethod;
+
+    @Setup
+    public void setUp() throws IOException {
+        int split = method.lastIndexOf('.');
+        String className = method.substring(0, split);
+        String methodName = method.substring(split + 1);
+
+        String path = className.replace('.', '/') + ".class";
+        DirectClassFile cf = new DirectClassFile(readResource(path), path, false);
+        cf.setAttributeFactory(StdAttributeFactory.THE_ONE);
+
+        MethodList methods = cf.getMethods();
+        for (int i = 0; i < methods.size(); i++) {
+            Method one = methods.get(i);
+            if (!one.getName().getString().equals(methodName)) {
+                continue;
+            }
+
+            isStatic = AccessFlags.isStatic(one.getAccessFlags());
+            paramWidth = new CstMethodRef(cf.getThisClass(), one.getNat())
+                    .getParameterWordCount(isStatic);
+            ropMethod = Ropper.convert(new ConcreteMethod(one, cf, true, true),
+                    DexTranslationAdvice.THE_ONE, methods, new DexOptions());
+            return;
+        }
+
+        throw new IllegalArgumentException("no such method: " + method);
+    }
+
+    @Setup(Level.Invocation)
+    public void convertToSsa() {
+        ssaMethod = Optimizer.debugNoRegisterAllocation(ropMethod, paramWidth,
+                isStatic, true, DexTranslationAdvice.THE_ONE,
+                Optimizer.Tier.DEFAULT.getSteps());
+    }
+
+    @Benchmark
+    public InterferenceGraph liveness() {
+        return LivenessAnalyzer.constructInterferenceGraph(ssaMethod);
+    }
+
+    @Benchmark
+    public RegisterMapper livenessAndAllocation() {
+        InterferenceGraph interference =
+                LivenessAnalyzer.constructInterferenceGraph(ssaMethod);
+        return new FirstFitLocalCombiningAllocator(ssaMethod, interference,
+                minimizeRegisters).allocateRegisters();
+    }
+
+    private static byte[] readResource(String path) throws IOException {
+        InputStream in = InterferenceGraphBenchmark.class.getClassLoader()
+                .getResourceAsStream(path);
+        if (in == null) {
+            throw new IOException("not on the class path: " + path);
+        }
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
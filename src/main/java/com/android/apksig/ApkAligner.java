@@ -0,0 +1,332 @@
+package com.android.apksig;
+
+import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.internal.apk.v2.V2SchemeVerifier;
+import com.android.apksig.internal.zip.CentralDirectoryRecord;
+import com.android.apksig.internal.zip.EocdRecord;
+import com.android.apksig.internal.zip.LocalFileRecord;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+import com.android.apksig.zip.ZipFormatException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Aligner of the uncompressed entries of APKs, similar to the {@code zipalign} tool.
+ *
+ * <p>The data of each uncompressed (STORED) entry is aligned to a multiple of 4 bytes, and that of
+ * uncompressed native libraries ({@code .so} files) to a multiple of the 4096-byte page size, so
+ * that Android can map it into memory directly. Alignment is achieved through the same extensible
+ * data field in the Local File Header's extra field that {@link ApkSigner} uses, so signing an
+ * aligned APK keeps it aligned.
+ *
+ * <p>The layout of the output APK is computed from the input's ZIP Central Directory before any
+ * data is copied. Entries are then copied in a single sequential pass using
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, so alignment
+ * costs no more than copying the file. The output only depends on the input, and aligning an
+ * aligned APK produces an identical APK.
+ *
+ * <p>Aligning invalidates APK Signature Scheme v2 signatures, so the input's APK Signing Block is
+ * not copied. JAR signatures are not affected. Use {@link Builder} to obtain instances of this
+ * aligner.
+ */
+public class ApkAligner {
+
+    /** Default alignment (in bytes) of the data of uncompressed entries. */
+    public static final int DEFAULT_ALIGNMENT = 4;
+
+    /** Default alignment (in bytes) of the data of uncompressed native libraries. */
+    public static final int DEFAULT_LIBRARY_ALIGNMENT = 4096;
+
+    private final File mInputApkFile;
+    private final File mOutputApkFile;
+    private final int mAlignment;
+    private final int mLibraryAlignment;
+
+    private ApkAligner(
+            File inputApkFile,
+            File outputApkFile,
+            int alignment,
+            int libraryAlignment) {
+        mInputApkFile = inputApkFile;
+        mOutputApkFile = outputApkFile;
+        mAlignment = alignment;
+        mLibraryAlignment = libraryAlignment;
+    }
+
+    /**
+     * Aligns the input APK and outputs the resulting APK. The input APK is not modified.
+     *
+     * @throws IOException if an I/O error is encountered while reading or writing the APKs
+     * @throws ApkFormatException if the input APK is malformed
+     */
+    public void align() throws IOException, ApkFormatException {
+        RandomAccessFile in = new RandomAccessFile(mInputApkFile, "r");
+        try {
+            RandomAccessFile out = new RandomAccessFile(mOutputApkFile, "rw");
+            try {
+                out.setLength(0);
+                align(in.getChannel(), out.getChannel());
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void align(FileChannel in, FileChannel out) throws IOException, ApkFormatException {
+        // Step 1. Find the input APK's ZIP sections. Everything before the APK Signing Block (if
+        // any) or the ZIP Central Directory is the entries section.
+        DataSource inputApk = DataSources.asDataSource(in);
+        ApkUtils.ZipSections inputZipSections;
+        try {
+            inputZipSections = ApkUtils.findZipSections(inputApk);
+        } catch (ZipFormatException e) {
+            throw new ApkFormatException("Malformed APK: not a ZIP archive", e);
+        }
+        long inputLfhSectionSize = inputZipSections.getZipCentralDirectoryOffset();
+        try {
+            inputLfhSectionSize =
+                    V2SchemeVerifier.findApkSigningBlock(inputApk, inputZipSections).getSecond();
+        } catch (V2SchemeVerifier.SignatureNotFoundException e) {
+            // No APK Signing Block. That's OK.
+        }
+        DataSource inputLfhSection = inputApk.slice(0, inputLfhSectionSize);
+        final List<CentralDirectoryRecord> inputCdRecords =
+                ApkSigner.parseZipCentralDirectory(
+                        ApkSigner.getZipCentralDirectory(inputApk, inputZipSections),
+                        inputZipSections);
+
+        // Step 2. Compute the output layout. Data between records is preserved, as ApkSigner does.
+        // Records are tracked by their index in the Central Directory rather than by name, since
+        // names need not be unique.
+        List<Integer> cdRecordIndicesSortedByLfhOffset = new ArrayList<>(inputCdRecords.size());
+        for (int i = 0; i < inputCdRecords.size(); i++) {
+            cdRecordIndicesSortedByLfhOffset.add(i);
+        }
+        Collections.sort(
+                cdRecordIndicesSortedByLfhOffset,
+                new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer index1, Integer index2) {
+                        return CentralDirectoryRecord.BY_LOCAL_FILE_HEADER_OFFSET_COMPARATOR
+                                .compare(inputCdRecords.get(index1), inputCdRecords.get(index2));
+                    }
+                });
+        List<CopyOperation> copyOperations = new ArrayList<>(inputCdRecords.size() * 2);
+        long[] outputLfhOffsets = new long[inputCdRecords.size()];
+        long inputOffset = 0;
+        long outputOffset = 0;
+        for (int cdRecordIndex : cdRecordIndicesSortedByLfhOffset) {
+            CentralDirectoryRecord inputCdRecord = inputCdRecords.get(cdRecordIndex);
+            long inputLfhOffset = inputCdRecord.getLocalFileHeaderOffset();
+            if (inputLfhOffset > inputOffset) {
+                long gapSize = inputLfhOffset - inputOffset;
+                copyOperations.add(new CopyOperation(null, inputOffset, gapSize));
+                outputOffset += gapSize;
+                inputOffset = inputLfhOffset;
+            }
+            LocalFileRecord inputRecord;
+            try {
+                inputRecord =
+                        LocalFileRecord.getRecord(
+                                inputLfhSection, inputCdRecord, inputLfhSectionSize);
+            } catch (ZipFormatException e) {
+                throw new ApkFormatException("Malformed ZIP entry: " + inputCdRecord.getName(), e);
+            }
+            inputOffset += inputRecord.getSize();
+            outputLfhOffsets[cdRecordIndex] = outputOffset;
+
+            int dataAlignmentMultiple = getDataAlignmentMultiple(inputRecord);
+            long outputDataOffset = outputOffset + inputRecord.getDataStartOffsetInRecord();
+            if ((dataAlignmentMultiple <= 1) || ((outputDataOffset % dataAlignmentMultiple) == 0)) {
+                // Already aligned in the output. Copy the record as is.
+                copyOperations.add(
+                        new CopyOperation(
+                                null,
+                                inputRecord.getStartOffsetInArchive(),
+                                inputRecord.getSize()));
+                outputOffset += inputRecord.getSize();
+                continue;
+            }
+            ByteBuffer aligningExtra =
+                    ApkSigner.createExtraFieldToAlignData(
+                            inputRecord.getExtra(),
+                            outputOffset + inputRecord.getExtraFieldStartOffsetInsideRecord(),
+                            dataAlignmentMultiple);
+            ByteBuffer outputHeader =
+                    inputRecord.getHeaderWithModifiedExtra(inputLfhSection, aligningExtra);
+            long remainingRecordSize =
+                    inputRecord.getSize() - inputRecord.getDataStartOffsetInRecord();
+            copyOperations.add(
+                    new CopyOperation(
+                            outputHeader,
+                            inputRecord.getStartOffsetInArchive()
+                                    + inputRecord.getDataStartOffsetInRecord(),
+                            remainingRecordSize));
+            outputOffset += outputHeader.remaining() + remainingRecordSize;
+        }
+        if (inputOffset < inputLfhSectionSize) {
+            copyOperations.add(
+                    new CopyOperation(null, inputOffset, inputLfhSectionSize - inputOffset));
+            outputOffset += inputLfhSectionSize - inputOffset;
+        }
+        long outputCentralDirOffset = outputOffset;
+
+        long outputCentralDirSizeBytes = 0;
+        for (CentralDirectoryRecord record : inputCdRecords) {
+            outputCentralDirSizeBytes += record.getSize();
+        }
+        if (outputCentralDirSizeBytes > Integer.MAX_VALUE) {
+            throw new IOException(
+                    "Output ZIP Central Directory too large: " + outputCentralDirSizeBytes
+                            + " bytes");
+        }
+        ByteBuffer outputCentralDir = ByteBuffer.allocate((int) outputCentralDirSizeBytes);
+        for (int i = 0; i < inputCdRecords.size(); i++) {
+            CentralDirectoryRecord inputCdRecord = inputCdRecords.get(i);
+            long outputLfhOffset = outputLfhOffsets[i];
+            CentralDirectoryRecord outputCdRecord =
+                    (outputLfhOffset == inputCdRecord.getLocalFileHeaderOffset())
+                            ? inputCdRecord
+                            : inputCdRecord.createWithModifiedLocalFileHeaderOffset(
+                                    outputLfhOffset);
+            outputCdRecord.copyTo(outputCentralDir);
+        }
+        outputCentralDir.flip();
+        ByteBuffer outputEocd =
+                EocdRecord.createWithModifiedCentralDirectoryInfo(
+                        inputZipSections.getZipEndOfCentralDirectory(),
+                        inputCdRecords.size(),
+                        outputCentralDir.remaining(),
+                        outputCentralDirOffset);
+
+        // Step 3. Copy. The output is written sequentially, in a single pass.
+        out.position(0);
+        for (CopyOperation copyOperation : copyOperations) {
+            if (copyOperation.header != null) {
+                writeFully(out, copyOperation.header);
+            }
+            transferFully(in, copyOperation.inputOffset, copyOperation.size, out);
+        }
+        writeFully(out, outputCentralDir);
+        writeFully(out, outputEocd);
+    }
+
+    private int getDataAlignmentMultiple(LocalFileRecord entry) {
+        if (entry.isDataCompressed()) {
+            // Compressed entries don't need to be aligned
+            return 1;
+        }
+        return (entry.getName().endsWith(".so")) ? mLibraryAlignment : mAlignment;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    private static void transferFully(FileChannel in, long position, long size, FileChannel out)
+            throws IOException {
+        while (size > 0) {
+            long transferred = in.transferTo(position, size, out);
+            if (transferred <= 0) {
+                throw new IOException(
+                        "Failed to copy " + size + " bytes at offset " + position
+                                + ": unexpected end of input");
+            }
+            position += transferred;
+            size -= transferred;
+        }
+    }
+
+    /**
+     * Copy of a range of the input, optionally preceded by a replacement Local File Header.
+     */
+    private static class CopyOperation {
+        private final ByteBuffer header;
+        private final long inputOffset;
+        private final long size;
+
+        private CopyOperation(ByteBuffer header, long inputOffset, long size) {
+            this.header = header;
+            this.inputOffset = inputOffset;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Builder of {@link ApkAligner} instances.
+     */
+    public static class Builder {
+        private final File mInputApkFile;
+        private final File mOutputApkFile;
+        private int mAlignment = DEFAULT_ALIGNMENT;
+        private int mLibraryAlignment = DEFAULT_LIBRARY_ALIGNMENT;
+
+        /**
+         * Constructs a new {@code Builder} for an {@code ApkAligner} which aligns the provided
+         * input APK into the provided output APK. The output APK is created if it doesn't exist.
+         */
+        public Builder(File inputApk, File outputApk) {
+            if (inputApk == null) {
+                throw new NullPointerException("inputApk == null");
+            }
+            if (outputApk == null) {
+                throw new NullPointerException("outputApk == null");
+            }
+            mInputApkFile = inputApk;
+            mOutputApkFile = outputApk;
+        }
+
+        /**
+         * Sets the alignment (in bytes) of the data of uncompressed entries. The default is
+         * {@link #DEFAULT_ALIGNMENT}.
+         */
+        public Builder setAlignment(int alignment) {
+            checkAlignment(alignment);
+            mAlignment = alignment;
+            return this;
+        }
+
+        /**
+         * Sets the alignment (in bytes) of the data of uncompressed native libraries
+         * ({@code .so} files). The default is {@link #DEFAULT_LIBRARY_ALIGNMENT}, the page size.
+         */
+        public Builder setLibraryAlignment(int alignment) {
+            checkAlignment(alignment);
+            mLibraryAlignment = alignment;
+            return this;
+        }
+
+        private static void checkAlignment(int alignment) {
+            // The alignment multiple is stored as a uint16 in the extra field
+            if ((alignment < 1) || (alignment > 0xffff)) {
+                throw new IllegalArgumentException("alignment: " + alignment);
+            }
+        }
+
+        /**
+         * Returns a new {@code ApkAligner} instance initialized according to the configuration of
+         * this builder.
+         */
+        public ApkAligner build() {
+            return new ApkAligner(
+                    mInputApkFile,
+                    mOutputApkFile,
+                    mAlignment,
+                    mLibraryAlignment);
+        }
+    }
+}
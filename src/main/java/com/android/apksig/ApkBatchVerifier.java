@@ -0,0 +1,355 @@
+package com.android.apksig;
+
+import com.android.apksig.internal.util.VerificationCache;
+import com.android.apksig.util.DigestThreadPool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Verifier of the signatures of many APKs at once.
+ *
+ * <p>The APKs are verified concurrently, and the results are handed out in the order in which
+ * verifications complete. All verifications of a batch verifier share a cache of parsed signing
+ * certificates and public keys as well as per-thread JCA {@code Signature} and
+ * {@code MessageDigest} instances, which makes verifying many APKs signed with the same few keys
+ * cheaper. Each APK is verified as by {@link ApkVerifier}.
+ *
+ * <p>Use {@link Builder} to obtain instances of this verifier.
+ */
+public class ApkBatchVerifier {
+
+    private final Integer mMinSdkVersion;
+    private final int mMaxSdkVersion;
+    private final long mMaxMappedApkSize;
+    private final ExecutorService mExecutor;
+    private final int mThreadCount;
+    private final ExecutorService mDigestExecutor;
+    private final boolean mStopOnFirstDigestMismatch;
+
+    private final VerificationCache mCache = new VerificationCache();
+
+    private ApkBatchVerifier(
+            Integer minSdkVersion,
+            int maxSdkVersion,
+            long maxMappedApkSize,
+            ExecutorService executor,
+            int threadCount,
+            ExecutorService digestExecutor,
+            boolean stopOnFirstDigestMismatch) {
+        mMinSdkVersion = minSdkVersion;
+        mMaxSdkVersion = maxSdkVersion;
+        mMaxMappedApkSize = maxMappedApkSize;
+        mExecutor = executor;
+        mThreadCount = threadCount;
+        mDigestExecutor = digestExecutor;
+        mStopOnFirstDigestMismatch = stopOnFirstDigestMismatch;
+    }
+
+    /**
+     * Starts verifying the provided APK files and returns the stream of their results. The
+     * results are returned in the order in which verifications complete, which need not be the
+     * order of {@code apks}. The returned {@link Results} should be closed if it is abandoned
+     * before all results have been taken.
+     */
+    public Results verify(List<File> apks) {
+        List<File> apkList = new ArrayList<>(apks);
+        ExecutorService ownExecutor = null;
+        ExecutorService executor = mExecutor;
+        if (executor == null) {
+            ownExecutor =
+                    Executors.newFixedThreadPool(
+                            Math.max(1, Math.min(mThreadCount, apkList.size())),
+                            new ThreadFactory() {
+                                @Override
+                                public Thread newThread(Runnable r) {
+                                    Thread thread = new Thread(r, "apksig-verify");
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+            executor = ownExecutor;
+        }
+
+        CompletionService<Entry> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<Entry>> futures = new ArrayList<>(apkList.size());
+        for (final File apk : apkList) {
+            futures.add(completionService.submit(
+                    new Callable<Entry>() {
+                        @Override
+                        public Entry call() {
+                            return verify(apk);
+                        }
+                    }));
+        }
+        Results results = new Results(completionService, futures, ownExecutor);
+        if (apkList.isEmpty()) {
+            results.close();
+        }
+        return results;
+    }
+
+    private Entry verify(File apk) {
+        ApkVerifier.Builder builder =
+                new ApkVerifier.Builder(apk)
+                        .setMaxMappedApkSize(mMaxMappedApkSize)
+                        .setMaxCheckedPlatformVersion(mMaxSdkVersion)
+                        .setDigestExecutor(mDigestExecutor)
+                        .setStopOnFirstDigestMismatch(mStopOnFirstDigestMismatch)
+                        .setVerificationCache(mCache);
+        if (mMinSdkVersion != null) {
+            builder.setMinCheckedPlatformVersion(mMinSdkVersion);
+        }
+        try {
+            return new Entry(apk, builder.build().verify(), null);
+        } catch (Exception e) {
+            return new Entry(apk, null, e);
+        }
+    }
+
+    /**
+     * Outcome of verifying one APK of a batch.
+     */
+    public static class Entry {
+        private final File mApk;
+        private final ApkVerifier.Result mResult;
+        private final Exception mException;
+
+        private Entry(File apk, ApkVerifier.Result result, Exception exception) {
+            mApk = apk;
+            mResult = result;
+            mException = exception;
+        }
+
+        /**
+         * Returns the verified APK file.
+         */
+        public File getApk() {
+            return mApk;
+        }
+
+        /**
+         * Returns the result of verification or {@code null} if verification could not be
+         * performed, in which case {@link #getException()} returns the reason.
+         */
+        public ApkVerifier.Result getResult() {
+            return mResult;
+        }
+
+        /**
+         * Returns the exception which prevented verification, such as an I/O error or a
+         * malformed APK, or {@code null} if verification was performed.
+         */
+        public Exception getException() {
+            return mException;
+        }
+
+        /**
+         * Returns {@code true} if the APK was verified and its signatures verify.
+         */
+        public boolean isVerified() {
+            return (mResult != null) && (mResult.isVerified());
+        }
+    }
+
+    /**
+     * Stream of the results of a batch, in order of completion. {@link #next()} blocks until the
+     * next verification completes.
+     */
+    public static class Results implements Iterator<Entry>, Closeable {
+        private final CompletionService<Entry> mCompletionService;
+        private final List<Future<Entry>> mFutures;
+        private final int mCount;
+        private final ExecutorService mOwnExecutor;
+        private int mTaken;
+
+        private Results(
+                CompletionService<Entry> completionService,
+                List<Future<Entry>> futures,
+                ExecutorService ownExecutor) {
+            mCompletionService = completionService;
+            mFutures = futures;
+            mCount = futures.size();
+            mOwnExecutor = ownExecutor;
+        }
+
+        /**
+         * Returns {@code true} if there are results which have not been taken yet.
+         */
+        @Override
+        public boolean hasNext() {
+            return mTaken < mCount;
+        }
+
+        /**
+         * Returns the next completed result, waiting for a verification to complete if
+         * necessary.
+         *
+         * @throws IllegalStateException if the calling thread is interrupted while waiting. The
+         *         thread's interrupt status is preserved.
+         */
+        @Override
+        public Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry entry;
+            try {
+                entry = mCompletionService.take().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for verification", e);
+            } catch (ExecutionException e) {
+                // Entries capture exceptions, so only errors end up here
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new RuntimeException("Verification failed", cause);
+            }
+            mTaken++;
+            if (!hasNext()) {
+                close();
+            }
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Stops the verifications of this batch which have not started yet. Verifications which
+         * are running are left to finish: they are not interrupted, because an interrupt closes
+         * the file channel an APK is read through.
+         */
+        @Override
+        public void close() {
+            for (Future<Entry> future : mFutures) {
+                future.cancel(false);
+            }
+            if (mOwnExecutor != null) {
+                mOwnExecutor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Builder of {@link ApkBatchVerifier} instances.
+     */
+    public static class Builder {
+        private Integer mMinSdkVersion;
+        private int mMaxSdkVersion = Integer.MAX_VALUE;
+        private long mMaxMappedApkSize;
+        private ExecutorService mExecutor;
+        private int mThreadCount = Runtime.getRuntime().availableProcessors();
+        private ExecutorService mDigestExecutor = DigestThreadPool.get();
+        private boolean mStopOnFirstDigestMismatch;
+
+        /**
+         * Sets the oldest Android platform version for which the APKs are verified.
+         *
+         * @see ApkVerifier.Builder#setMinCheckedPlatformVersion(int)
+         */
+        public Builder setMinCheckedPlatformVersion(int minSdkVersion) {
+            mMinSdkVersion = minSdkVersion;
+            return this;
+        }
+
+        /**
+         * Sets the newest Android platform version for which the APKs are verified.
+         *
+         * @see ApkVerifier.Builder#setMaxCheckedPlatformVersion(int)
+         */
+        public Builder setMaxCheckedPlatformVersion(int maxSdkVersion) {
+            mMaxSdkVersion = maxSdkVersion;
+            return this;
+        }
+
+        /**
+         * Sets the size (in bytes) up to which APK files are mapped into memory.
+         *
+         * @see ApkVerifier.Builder#setMaxMappedApkSize(long)
+         */
+        public Builder setMaxMappedApkSize(long maxMappedSize) {
+            if (maxMappedSize < 0) {
+                throw new IllegalArgumentException("maxMappedSize: " + maxMappedSize);
+            }
+            mMaxMappedApkSize = maxMappedSize;
+            return this;
+        }
+
+        /**
+         * Sets the number of APKs verified concurrently when no executor is set. The default is
+         * the number of available processors.
+         */
+        public Builder setThreadCount(int threadCount) {
+            if (threadCount < 1) {
+                throw new IllegalArgumentException("threadCount: " + threadCount);
+            }
+            mThreadCount = threadCount;
+            return this;
+        }
+
+        /**
+         * Sets the executor on which APKs are verified. By default, or if {@code executor} is
+         * {@code null}, each batch creates its own pool of {@link #setThreadCount(int)} threads
+         * which is shut down once all results have been taken or the results are closed.
+         */
+        public Builder setExecutor(ExecutorService executor) {
+            mExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Sets the executor on which chunks of each APK's contents are digested in parallel. The
+         * default is the JVM-wide {@link DigestThreadPool#get()}, which all batch verifiers
+         * share. Use {@code null} to digest each APK on the thread which verifies it.
+         *
+         * @see ApkVerifier.Builder#setDigestExecutor(ExecutorService)
+         */
+        public Builder setDigestExecutor(ExecutorService executor) {
+            mDigestExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Sets whether verification of an APK stops at the first content digest algorithm whose
+         * digest does not match.
+         *
+         * @see ApkVerifier.Builder#setStopOnFirstDigestMismatch(boolean)
+         */
+        public Builder setStopOnFirstDigestMismatch(boolean stop) {
+            mStopOnFirstDigestMismatch = stop;
+            return this;
+        }
+
+        /**
+         * Returns an {@link ApkBatchVerifier} initialized according to the configuration of this
+         * builder.
+         */
+        public ApkBatchVerifier build() {
+            return new ApkBatchVerifier(
+                    mMinSdkVersion,
+                    mMaxSdkVersion,
+                    mMaxMappedApkSize,
+                    mExecutor,
+                    mThreadCount,
+                    mDigestExecutor,
+                    mStopOnFirstDigestMismatch);
+        }
+    }
+}
@@ -22,22 +22,31 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.SignatureException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import com.android.apksig.apk.ApkFormatException;
 import com.android.apksig.apk.ApkUtils;
 import com.android.apksig.apk.MinSdkVersionException;
+import com.android.apksig.internal.apk.v1.V1SchemeSigner;
+import com.android.apksig.internal.apk.v1.V1SchemeVerifier;
 import com.android.apksig.internal.apk.v2.V2SchemeVerifier;
 import com.android.apksig.internal.util.ByteBufferDataSource;
 import com.android.apksig.internal.util.Pair;
@@ -49,6 +58,7 @@ import com.android.apksig.util.DataSink;
 import com.android.apksig.util.DataSinks;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
+import com.android.apksig.util.DigestThreadPool;
 import com.android.apksig.zip.ZipFormatException;
 
 /**
@@ -82,22 +92,50 @@ public class ApkSigner {
      */
     private static final String ANDROID_MANIFEST_ZIP_ENTRY_NAME = "AndroidManifest.xml";
 
+    /**
+     * Maximum number of entries in {@link #MIN_SDK_VERSION_CACHE}.
+     */
+    private static final int MIN_SDK_VERSION_CACHE_MAX_ENTRIES = 64;
+
+    /**
+     * Minimum API Levels of recently seen {@code AndroidManifest.xml} entries, keyed by the
+     * SHA-256 digest of the entry's uncompressed contents. Signing many builds of the same app
+     * thus parses its manifest only once.
+     */
+    private static final Map<ByteBuffer, Integer> MIN_SDK_VERSION_CACHE =
+            Collections.synchronizedMap(
+                    new LinkedHashMap<ByteBuffer, Integer>(16, 0.75f, true) {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected boolean removeEldestEntry(
+                                Map.Entry<ByteBuffer, Integer> eldest) {
+                            return size() > MIN_SDK_VERSION_CACHE_MAX_ENTRIES;
+                        }
+                    });
+
     private final List<SignerConfig> mSignerConfigs;
     private final Integer mMinSdkVersion;
     private final boolean mV1SigningEnabled;
     private final boolean mV2SigningEnabled;
     private final boolean mOtherSignersSignaturesPreserved;
     private final String mCreatedBy;
+    private final ExecutorService mDigestExecutor;
+    private final Set<String> mV1IncrementalChangedEntryNames;
+    private final boolean mV1IncrementalInputTrusted;
 
     private final ApkSignerEngine mSignerEngine;
 
     private final File mInputApkFile;
     private final DataSource mInputApkDataSource;
+    private final long mMaxMappedInputApkSize;
 
     private final File mOutputApkFile;
     private final DataSink mOutputApkDataSink;
     private final DataSource mOutputApkDataSource;
 
+    private final File mInPlaceApkFile;
+
     private ApkSigner(
             List<SignerConfig> signerConfigs,
             Integer minSdkVersion,
@@ -105,12 +143,17 @@ public class ApkSigner {
             boolean v2SigningEnabled,
             boolean otherSignersSignaturesPreserved,
             String createdBy,
+            ExecutorService digestExecutor,
+            Set<String> v1IncrementalChangedEntryNames,
+            boolean v1IncrementalInputTrusted,
             ApkSignerEngine signerEngine,
             File inputApkFile,
             DataSource inputApkDataSource,
+            long maxMappedInputApkSize,
             File outputApkFile,
             DataSink outputApkDataSink,
-            DataSource outputApkDataSource) {
+            DataSource outputApkDataSource,
+            File inPlaceApkFile) {
 
         mSignerConfigs = signerConfigs;
         mMinSdkVersion = minSdkVersion;
@@ -118,19 +161,26 @@ public class ApkSigner {
         mV2SigningEnabled = v2SigningEnabled;
         mOtherSignersSignaturesPreserved = otherSignersSignaturesPreserved;
         mCreatedBy = createdBy;
+        mDigestExecutor = digestExecutor;
+        mV1IncrementalChangedEntryNames = v1IncrementalChangedEntryNames;
+        mV1IncrementalInputTrusted = v1IncrementalInputTrusted;
 
         mSignerEngine = signerEngine;
 
         mInputApkFile = inputApkFile;
         mInputApkDataSource = inputApkDataSource;
+        mMaxMappedInputApkSize = maxMappedInputApkSize;
 
         mOutputApkFile = outputApkFile;
         mOutputApkDataSink = outputApkDataSink;
         mOutputApkDataSource = outputApkDataSource;
+
+        mInPlaceApkFile = inPlaceApkFile;
     }
 
     /**
-     * Signs the input APK and outputs the resulting signed APK. The input APK is not modified.
+     * Signs the input APK and outputs the resulting signed APK. The input APK is not modified,
+     * unless it is signed in place (see {@link Builder#setInPlaceApk(File)}).
      *
      * @throws IOException if an I/O error is encountered while reading or writing the APKs
      * @throws ApkFormatException if the input APK is malformed
@@ -145,6 +195,11 @@ public class ApkSigner {
     public void sign()
             throws IOException, ApkFormatException, NoSuchAlgorithmException, InvalidKeyException,
                     SignatureException, IllegalStateException {
+        if (mInPlaceApkFile != null) {
+            signInPlace(mInPlaceApkFile);
+            return;
+        }
+
         Closeable in = null;
         DataSource inputApk;
         try {
@@ -153,7 +208,8 @@ public class ApkSigner {
             } else if (mInputApkFile != null) {
                 RandomAccessFile inputFile = new RandomAccessFile(mInputApkFile, "r");
                 in = inputFile;
-                inputApk = DataSources.asDataSource(inputFile);
+                inputApk =
+                        DataSources.asMappedDataSource(inputFile, mMaxMappedInputApkSize);
             } else {
                 throw new IllegalStateException("Input APK not specified");
             }
@@ -170,7 +226,7 @@ public class ApkSigner {
                     out = outputFile;
                     outputFile.setLength(0);
                     outputApkOut = DataSinks.asDataSink(outputFile);
-                    outputApkIn = DataSources.asDataSource(outputFile);
+                    outputApkIn = DataSources.asDataSource(outputFile.getChannel());
                 } else {
                     throw new IllegalStateException("Output APK not specified");
                 }
@@ -232,31 +288,9 @@ public class ApkSigner {
             signerEngine = mSignerEngine;
         } else {
             // Construct a signer engine from the provided parameters
-            int minSdkVersion;
-            if (mMinSdkVersion != null) {
-                // No need to extract minSdkVersion from the APK's AndroidManifest.xml
-                minSdkVersion = mMinSdkVersion;
-            } else {
-                // Need to extract minSdkVersion from the APK's AndroidManifest.xml
-                minSdkVersion = getMinSdkVersionFromApk(inputCdRecords, inputApkLfhSection);
-            }
-            List<DefaultApkSignerEngine.SignerConfig> engineSignerConfigs =
-                    new ArrayList<>(mSignerConfigs.size());
-            for (SignerConfig signerConfig : mSignerConfigs) {
-                engineSignerConfigs.add(
-                        new DefaultApkSignerEngine.SignerConfig.Builder(
-                                signerConfig.getName(),
-                                signerConfig.getPrivateKey(),
-                                signerConfig.getCertificates())
-                                .build());
-            }
             signerEngine =
-                    new DefaultApkSignerEngine.Builder(engineSignerConfigs, minSdkVersion)
-                    .setV1SigningEnabled(mV1SigningEnabled)
-                    .setV2SigningEnabled(mV2SigningEnabled)
-                    .setOtherSignersSignaturesPreserved(mOtherSignersSignaturesPreserved)
-                    .setCreatedBy(mCreatedBy)
-                    .build();
+                    createSignerEngine(
+                            inputApk, inputZipSections, inputCdRecords, inputApkLfhSection);
         }
 
         // Step 4. Provide the signer engine with the input APK's APK Signing Block (if any)
@@ -486,6 +520,232 @@ public class ApkSigner {
         signerEngine.outputDone();
     }
 
+    private void signInPlace(File apkFile)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException, InvalidKeyException,
+                    SignatureException {
+        boolean signedInPlace;
+        RandomAccessFile apk = new RandomAccessFile(apkFile, "rw");
+        try {
+            signedInPlace = signInPlace(apk);
+        } finally {
+            apk.close();
+        }
+        if (signedInPlace) {
+            return;
+        }
+
+        // The APK's entries need to change. Sign into a temporary file next to the APK and then
+        // replace the APK with it.
+        File absoluteApkFile = apkFile.getAbsoluteFile();
+        File tmpFile =
+                File.createTempFile(
+                        absoluteApkFile.getName(), ".tmp", absoluteApkFile.getParentFile());
+        boolean moved = false;
+        try {
+            RandomAccessFile in = new RandomAccessFile(apkFile, "r");
+            try {
+                RandomAccessFile out = new RandomAccessFile(tmpFile, "rw");
+                try {
+                    out.setLength(0);
+                    sign(DataSources.asDataSource(in),
+                            DataSinks.asDataSink(out),
+                            DataSources.asDataSource(out));
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            Files.move(tmpFile.toPath(), apkFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            moved = true;
+        } finally {
+            if (!moved) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Signs the provided APK in place by replacing its APK Signing Block, ZIP Central Directory
+     * and ZIP End of Central Directory record. The APK's entries are neither copied nor modified,
+     * and thus neither aligned.
+     * Returns {@code false}, without modifying the APK, if signing requires the APK's entries to
+     * change, for example because JAR signing is enabled or the APK contains JAR signature files
+     * which need to be removed.
+     */
+    private boolean signInPlace(RandomAccessFile apkFile)
+            throws IOException, ApkFormatException, NoSuchAlgorithmException, InvalidKeyException,
+                    SignatureException {
+        if (mV1SigningEnabled) {
+            return false;
+        }
+
+        // The APK is read using positional reads rather than mapped into memory because its tail
+        // is rewritten and the file may be truncated.
+        FileChannel apkChannel = apkFile.getChannel();
+        DataSource apk = DataSources.asDataSource(apkChannel);
+        ApkUtils.ZipSections zipSections;
+        try {
+            zipSections = ApkUtils.findZipSections(apk);
+        } catch (ZipFormatException e) {
+            throw new ApkFormatException("Malformed APK: not a ZIP archive", e);
+        }
+        long apkSigningBlockOffset = -1;
+        DataSource apkSigningBlock = null;
+        try {
+            Pair<DataSource, Long> apkSigningBlockAndOffset =
+                    V2SchemeVerifier.findApkSigningBlock(apk, zipSections);
+            apkSigningBlock = apkSigningBlockAndOffset.getFirst();
+            apkSigningBlockOffset = apkSigningBlockAndOffset.getSecond();
+        } catch (V2SchemeVerifier.SignatureNotFoundException e) {
+            // No APK Signing Block. That's OK.
+        }
+        long lfhSectionSize =
+                (apkSigningBlockOffset != -1)
+                        ? apkSigningBlockOffset : zipSections.getZipCentralDirectoryOffset();
+        DataSource lfhSection = apk.slice(0, lfhSectionSize);
+        ByteBuffer cd = getZipCentralDirectory(apk, zipSections);
+        List<CentralDirectoryRecord> cdRecords = parseZipCentralDirectory(cd, zipSections);
+
+        ApkSignerEngine signerEngine =
+                createSignerEngine(apk, zipSections, cdRecords, lfhSection);
+        if (apkSigningBlock != null) {
+            signerEngine.inputApkSigningBlock(apkSigningBlock);
+        }
+
+        // All entries must be output as they are. Their Local File Header records thus stay where
+        // they are and the output APK's entries section is the same as the input's.
+        List<CentralDirectoryRecord> cdRecordsSortedByLfhOffset = new ArrayList<>(cdRecords);
+        Collections.sort(
+                cdRecordsSortedByLfhOffset,
+                CentralDirectoryRecord.BY_LOCAL_FILE_HEADER_OFFSET_COMPARATOR);
+        for (CentralDirectoryRecord cdRecord : cdRecordsSortedByLfhOffset) {
+            String entryName = cdRecord.getName();
+            ApkSignerEngine.InputJarEntryInstructions entryInstructions =
+                    signerEngine.inputJarEntry(entryName);
+            if (entryInstructions.getOutputPolicy()
+                    != ApkSignerEngine.InputJarEntryInstructions.OutputPolicy.OUTPUT) {
+                return false;
+            }
+            LocalFileRecord localFileRecord;
+            try {
+                localFileRecord = LocalFileRecord.getRecord(lfhSection, cdRecord, lfhSectionSize);
+            } catch (ZipFormatException e) {
+                throw new ApkFormatException("Malformed ZIP entry: " + entryName, e);
+            }
+            ApkSignerEngine.InspectJarEntryRequest inspectEntryRequest =
+                    entryInstructions.getInspectJarEntryRequest();
+            if (inspectEntryRequest != null) {
+                fulfillInspectInputJarEntryRequest(
+                        lfhSection, localFileRecord, inspectEntryRequest);
+            }
+            inspectEntryRequest = signerEngine.outputJarEntry(entryName);
+            if (inspectEntryRequest != null) {
+                fulfillInspectInputJarEntryRequest(
+                        lfhSection, localFileRecord, inspectEntryRequest);
+            }
+        }
+        if (signerEngine.outputJarEntries() != null) {
+            return false;
+        }
+
+        long cdSizeBytes = 0;
+        for (CentralDirectoryRecord record : cdRecords) {
+            cdSizeBytes += record.getSize();
+        }
+        if (cdSizeBytes > Integer.MAX_VALUE) {
+            throw new IOException("Output ZIP Central Directory too large: " + cdSizeBytes);
+        }
+        ByteBuffer outputCd = ByteBuffer.allocate((int) cdSizeBytes);
+        for (CentralDirectoryRecord record : cdRecords) {
+            record.copyTo(outputCd);
+        }
+        outputCd.flip();
+        ByteBuffer outputEocd =
+                EocdRecord.createWithModifiedCentralDirectoryInfo(
+                        zipSections.getZipEndOfCentralDirectory(),
+                        cdRecords.size(),
+                        outputCd.remaining(),
+                        lfhSectionSize);
+
+        ApkSignerEngine.OutputApkSigningBlockRequest outputApkSigningBlockRequest =
+                signerEngine.outputZipSections(
+                        lfhSection,
+                        DataSources.asDataSource(outputCd.slice()),
+                        DataSources.asDataSource(outputEocd.slice()));
+        byte[] outputApkSigningBlock =
+                (outputApkSigningBlockRequest != null)
+                        ? outputApkSigningBlockRequest.getApkSigningBlock() : new byte[0];
+        ZipUtils.setZipEocdCentralDirectoryOffset(
+                outputEocd, lfhSectionSize + outputApkSigningBlock.length);
+
+        // Everything has been read. Overwrite the tail of the APK. The APK is left corrupt if
+        // this fails half-way.
+        long position = lfhSectionSize;
+        position += writeFully(apkChannel, ByteBuffer.wrap(outputApkSigningBlock), position);
+        position += writeFully(apkChannel, outputCd, position);
+        position += writeFully(apkChannel, outputEocd, position);
+        apkChannel.truncate(position);
+        if (outputApkSigningBlockRequest != null) {
+            outputApkSigningBlockRequest.done();
+        }
+        signerEngine.outputDone();
+        return true;
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buf, long position)
+            throws IOException {
+        int size = buf.remaining();
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+        return size;
+    }
+
+    /**
+     * Returns a new signer engine configured according to the parameters of this signer.
+     */
+    private ApkSignerEngine createSignerEngine(
+            DataSource inputApk,
+            ApkUtils.ZipSections inputZipSections,
+            List<CentralDirectoryRecord> inputCdRecords,
+            DataSource inputApkLfhSection)
+                    throws IOException, ApkFormatException, NoSuchAlgorithmException,
+                            InvalidKeyException {
+        int minSdkVersion;
+        if (mMinSdkVersion != null) {
+            // No need to extract minSdkVersion from the APK's AndroidManifest.xml
+            minSdkVersion = mMinSdkVersion;
+        } else {
+            // Need to extract minSdkVersion from the APK's AndroidManifest.xml
+            minSdkVersion = getMinSdkVersionFromApk(inputCdRecords, inputApkLfhSection);
+        }
+        List<DefaultApkSignerEngine.SignerConfig> engineSignerConfigs =
+                new ArrayList<>(mSignerConfigs.size());
+        for (SignerConfig signerConfig : mSignerConfigs) {
+            engineSignerConfigs.add(signerConfig.mEngineSignerConfig);
+        }
+        byte[] v1IncrementalManifest = null;
+        if ((mV1SigningEnabled) && (mV1IncrementalChangedEntryNames != null)) {
+            v1IncrementalManifest =
+                    getV1IncrementalManifest(
+                            inputApk,
+                            inputZipSections,
+                            inputCdRecords,
+                            inputApkLfhSection,
+                            minSdkVersion);
+        }
+        return new DefaultApkSignerEngine.Builder(engineSignerConfigs, minSdkVersion)
+                .setV1SigningEnabled(mV1SigningEnabled)
+                .setV2SigningEnabled(mV2SigningEnabled)
+                .setOtherSignersSignaturesPreserved(mOtherSignersSignaturesPreserved)
+                .setCreatedBy(mCreatedBy)
+                .setDigestExecutor(mDigestExecutor)
+                .setV1IncrementalManifest(
+                        v1IncrementalManifest, mV1IncrementalChangedEntryNames)
+                .build();
+    }
+
     private static void fulfillInspectInputJarEntryRequest(
             DataSource lfhSection,
             LocalFileRecord localFileRecord,
@@ -578,7 +838,7 @@ public class ApkSigner {
         return (entry.getName().endsWith(".so")) ? 4096 : 4;
     }
 
-    private static ByteBuffer createExtraFieldToAlignData(
+    static ByteBuffer createExtraFieldToAlignData(
             ByteBuffer original,
             long extraStartOffset,
             int dataAlignmentMultiple) {
@@ -640,7 +900,7 @@ public class ApkSigner {
         return result;
     }
 
-    private static ByteBuffer getZipCentralDirectory(
+    static ByteBuffer getZipCentralDirectory(
             DataSource apk,
             ApkUtils.ZipSections apkSections) throws IOException, ApkFormatException {
         long cdSizeBytes = apkSections.getZipCentralDirectorySizeBytes();
@@ -653,7 +913,7 @@ public class ApkSigner {
         return cd;
     }
 
-    private static List<CentralDirectoryRecord> parseZipCentralDirectory(
+    static List<CentralDirectoryRecord> parseZipCentralDirectory(
             ByteBuffer cd,
             ApkUtils.ZipSections apkSections) throws ApkFormatException {
         long cdOffset = apkSections.getZipCentralDirectoryOffset();
@@ -687,9 +947,66 @@ public class ApkSigner {
         return cdRecords;
     }
 
+    /**
+     * Returns the input APK's JAR manifest whose entry digests may be reused when v1 signing the
+     * output APK, or {@code null} if the digests cannot be trusted. Unless the input APK is
+     * trusted, the manifest is only returned if the input APK's JAR signature protects it and all
+     * of the APK's JAR signers are among the signers of this signer. The data of the input APK's
+     * entries is not checked against the manifest.
+     */
+    private byte[] getV1IncrementalManifest(
+            DataSource inputApk,
+            ApkUtils.ZipSections inputZipSections,
+            List<CentralDirectoryRecord> inputCdRecords,
+            DataSource inputApkLfhSection,
+            int minSdkVersion) throws IOException, ApkFormatException, NoSuchAlgorithmException {
+        CentralDirectoryRecord manifestCdRecord = null;
+        for (CentralDirectoryRecord cdRecord : inputCdRecords) {
+            if (V1SchemeSigner.MANIFEST_ENTRY_NAME.equals(cdRecord.getName())) {
+                manifestCdRecord = cdRecord;
+                break;
+            }
+        }
+        if (manifestCdRecord == null) {
+            return null;
+        }
+
+        if (!mV1IncrementalInputTrusted) {
+            V1SchemeVerifier.Result v1Result =
+                    V1SchemeVerifier.verifyManifest(
+                            inputApk, inputZipSections, minSdkVersion, Integer.MAX_VALUE);
+            if (!v1Result.verified) {
+                return null;
+            }
+            Set<X509Certificate> ourSignerCerts = new HashSet<>(mSignerConfigs.size());
+            for (SignerConfig signerConfig : mSignerConfigs) {
+                ourSignerCerts.add(signerConfig.getCertificates().get(0));
+            }
+            for (V1SchemeVerifier.Result.SignerInfo signer : v1Result.signers) {
+                if ((signer.certChain.isEmpty())
+                        || (!ourSignerCerts.contains(signer.certChain.get(0)))) {
+                    return null;
+                }
+            }
+        }
+
+        try {
+            return LocalFileRecord.getUncompressedData(
+                    inputApkLfhSection, manifestCdRecord, inputApkLfhSection.size());
+        } catch (ZipFormatException e) {
+            throw new ApkFormatException(
+                    "Malformed ZIP entry: " + manifestCdRecord.getName(), e);
+        }
+    }
+
     /**
      * Returns the minimum Android version (API Level) supported by the provided APK. This is based
      * on the {@code android:minSdkVersion} attributes of the APK's {@code AndroidManifest.xml}.
+     *
+     * <p>Results are cached by the SHA-256 digest of the contents of {@code AndroidManifest.xml},
+     * which makes repeated calls for APKs with the same manifest cheaper. The manifest is still
+     * read and decompressed each time, because the CRC32 and size recorded in the ZIP Central
+     * Directory are not checked against the data and must not decide the result.
      */
     static int getMinSdkVersionFromApk(
             List<CentralDirectoryRecord> cdRecords, DataSource lhfSection)
@@ -717,7 +1034,23 @@ public class ApkSigner {
                             + ": malformed ZIP entry: " + androidManifestCdRecord.getName(),
                     e);
         }
-        return ApkUtils.getMinSdkVersionFromBinaryAndroidManifest(ByteBuffer.wrap(androidManifest));
+        ByteBuffer cacheKey;
+        try {
+            cacheKey =
+                    ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(androidManifest));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 MessageDigest not available", e);
+        }
+        Integer cachedMinSdkVersion = MIN_SDK_VERSION_CACHE.get(cacheKey);
+        if (cachedMinSdkVersion != null) {
+            return cachedMinSdkVersion;
+        }
+        // Only successfully determined values are cached
+        int minSdkVersion =
+                ApkUtils.getMinSdkVersionFromBinaryAndroidManifest(
+                        ByteBuffer.wrap(androidManifest));
+        MIN_SDK_VERSION_CACHE.put(cacheKey, minSdkVersion);
+        return minSdkVersion;
     }
 
     /**
@@ -730,6 +1063,12 @@ public class ApkSigner {
         private final PrivateKey mPrivateKey;
         private final List<X509Certificate> mCertificates;
 
+        /**
+         * Engine configuration of this signer, created once so that its pre-encoded public key and
+         * certificates are shared by all APKs signed with this signer.
+         */
+        private final DefaultApkSignerEngine.SignerConfig mEngineSignerConfig;
+
         private SignerConfig(
                 String name,
                 PrivateKey privateKey,
@@ -737,6 +1076,10 @@ public class ApkSigner {
             mName = name;
             mPrivateKey = privateKey;
             mCertificates = Collections.unmodifiableList(new ArrayList<>(certificates));
+            mEngineSignerConfig =
+                    new DefaultApkSignerEngine.SignerConfig.Builder(
+                            mName, mPrivateKey, mCertificates)
+                            .build();
         }
 
         /**
@@ -821,16 +1164,22 @@ public class ApkSigner {
         private boolean mOtherSignersSignaturesPreserved;
         private String mCreatedBy = "1.0 (Android apksig)";
         private Integer mMinSdkVersion;
+        private ExecutorService mDigestExecutor;
+        private Set<String> mV1IncrementalChangedEntryNames;
+        private boolean mV1IncrementalInputTrusted;
 
         private final ApkSignerEngine mSignerEngine;
 
         private File mInputApkFile;
         private DataSource mInputApkDataSource;
+        private long mMaxMappedInputApkSize;
 
         private File mOutputApkFile;
         private DataSink mOutputApkDataSink;
         private DataSource mOutputApkDataSource;
 
+        private File mInPlaceApkFile;
+
         /**
          * Constructs a new {@code Builder} for an {@code ApkSigner} which signs using the provided
          * signer configurations. The resulting signer may be further customized through this
@@ -874,6 +1223,7 @@ public class ApkSigner {
             }
             mInputApkFile = inputApk;
             mInputApkDataSource = null;
+            mInPlaceApkFile = null;
             return this;
         }
 
@@ -888,6 +1238,22 @@ public class ApkSigner {
             }
             mInputApkDataSource = inputApk;
             mInputApkFile = null;
+            mInPlaceApkFile = null;
+            return this;
+        }
+
+        /**
+         * Sets the size (in bytes) up to which an input APK set via {@link #setInputApk(File)} is
+         * mapped into memory instead of being read from the file. Use {@code 0} to never map the
+         * input APK, which is the default. Do not map an input APK which is deleted or replaced
+         * right after signing, because the mapping keeps the file locked on some platforms until
+         * it is garbage collected.
+         */
+        public Builder setMaxMappedInputApkSize(long maxMappedSize) {
+            if (maxMappedSize < 0) {
+                throw new IllegalArgumentException("maxMappedSize: " + maxMappedSize);
+            }
+            mMaxMappedInputApkSize = maxMappedSize;
             return this;
         }
 
@@ -904,6 +1270,7 @@ public class ApkSigner {
             mOutputApkFile = outputApk;
             mOutputApkDataSink = null;
             mOutputApkDataSource = null;
+            mInPlaceApkFile = null;
             return this;
         }
 
@@ -923,6 +1290,43 @@ public class ApkSigner {
             mOutputApkFile = null;
             mOutputApkDataSink = outputApkOut;
             mOutputApkDataSource = outputApkIn;
+            mInPlaceApkFile = null;
+            return this;
+        }
+
+        /**
+         * Sets the APK to be signed in place, replacing any input and output APK set previously.
+         *
+         * <p>When only APK Signature Scheme v2 signing is enabled and the APK's entries are to be
+         * output unchanged, only the APK Signing Block, ZIP Central Directory and ZIP End of
+         * Central Directory record at the end of the file are rewritten. The entries, which make
+         * up most of the APK, are neither copied nor written. This makes re-signing large APKs
+         * much cheaper. Otherwise, for example if JAR signing is enabled, the APK is signed into a
+         * temporary file in the same directory which then replaces the APK.
+         *
+         * <p>Entries are not aligned by either path. Uncompressed entries keep the alignment they
+         * have in the APK, so an APK written by a tool which does not align its entries, such as
+         * {@link java.util.zip.ZipOutputStream}, stays unaligned. Align such APKs with
+         * {@link ApkAligner} before signing them in place.
+         *
+         * <p><em>Note:</em> The APK is left corrupt if in-place signing fails while writing. This
+         * method may only be invoked when this builder is not initialized with an
+         * {@link ApkSignerEngine}.
+         *
+         * @throws IllegalStateException if this builder was initialized with an
+         *         {@link ApkSignerEngine}
+         */
+        public Builder setInPlaceApk(File apk) {
+            checkInitializedWithoutEngine();
+            if (apk == null) {
+                throw new NullPointerException("apk == null");
+            }
+            mInPlaceApkFile = apk;
+            mInputApkFile = null;
+            mInputApkDataSource = null;
+            mOutputApkFile = null;
+            mOutputApkDataSink = null;
+            mOutputApkDataSource = null;
             return this;
         }
 
@@ -1036,6 +1440,74 @@ public class ApkSigner {
             return this;
         }
 
+        /**
+         * Sets the executor on which chunks of the APK's contents are digested in parallel when
+         * producing the APK Signature Scheme v2 signature, for example
+         * {@link DigestThreadPool#get()}. By default, the contents are digested on the calling
+         * thread.
+         *
+         * <p><em>Note:</em> This method may only be invoked when this builder is not initialized
+         * with an {@link ApkSignerEngine}.
+         *
+         * @throws IllegalStateException if this builder was initialized with an
+         *         {@link ApkSignerEngine}
+         */
+        public Builder setDigestExecutor(ExecutorService executor) {
+            checkInitializedWithoutEngine();
+            mDigestExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Enables incremental JAR signing (aka v1 signing) of an input APK which has already been
+         * signed by the signers of this signer. The digests of JAR entries listed in the input
+         * APK's {@code META-INF/MANIFEST.MF} are then reused instead of digesting the entries'
+         * data, except for the entries in {@code changedEntryNames}. This makes re-signing an APK
+         * in which only a few entries, such as {@code classes.dex}, were replaced about as cheap as
+         * digesting the replaced entries. By default, or if {@code changedEntryNames} is
+         * {@code null}, all JAR entries are digested.
+         *
+         * <p>The input APK's manifest is only used if its JAR signature verifies and was produced
+         * by the signers of this signer (see {@link #setV1IncrementalInputTrusted(boolean)}).
+         * Otherwise, the APK is signed as usual. The caller is responsible for listing all entries
+         * whose data changed since the input APK was signed in {@code changedEntryNames}; a stale
+         * digest results in an APK whose JAR signature does not verify.
+         *
+         * <p><em>Note:</em> This method may only be invoked when this builder is not initialized
+         * with an {@link ApkSignerEngine}.
+         *
+         * @param changedEntryNames names of JAR entries which were added or modified since the
+         *        input APK was signed
+         *
+         * @throws IllegalStateException if this builder was initialized with an
+         *         {@link ApkSignerEngine}
+         */
+        public Builder setV1IncrementalSigning(Collection<String> changedEntryNames) {
+            checkInitializedWithoutEngine();
+            mV1IncrementalChangedEntryNames =
+                    (changedEntryNames != null) ? new HashSet<>(changedEntryNames) : null;
+            return this;
+        }
+
+        /**
+         * Sets whether the input APK's {@code META-INF/MANIFEST.MF} is trusted for incremental
+         * JAR signing without verifying the input APK's JAR signature (see
+         * {@link #setV1IncrementalSigning(Collection)}). This skips verifying the JAR signature,
+         * which is cheap compared to digesting the APK, and allows reusing digests from a manifest
+         * which is not signed. By default, the manifest is not trusted.
+         *
+         * <p><em>Note:</em> This method may only be invoked when this builder is not initialized
+         * with an {@link ApkSignerEngine}.
+         *
+         * @throws IllegalStateException if this builder was initialized with an
+         *         {@link ApkSignerEngine}
+         */
+        public Builder setV1IncrementalInputTrusted(boolean trusted) {
+            checkInitializedWithoutEngine();
+            mV1IncrementalInputTrusted = trusted;
+            return this;
+        }
+
         private void checkInitializedWithoutEngine() {
             if (mSignerEngine != null) {
                 throw new IllegalStateException(
@@ -1055,12 +1527,17 @@ public class ApkSigner {
                     mV2SigningEnabled,
                     mOtherSignersSignaturesPreserved,
                     mCreatedBy,
+                    mDigestExecutor,
+                    mV1IncrementalChangedEntryNames,
+                    mV1IncrementalInputTrusted,
                     mSignerEngine,
                     mInputApkFile,
                     mInputApkDataSource,
+                    mMaxMappedInputApkSize,
                     mOutputApkFile,
                     mOutputApkDataSink,
-                    mOutputApkDataSource);
+                    mOutputApkDataSource,
+                    mInPlaceApkFile);
         }
     }
 }
@@ -24,9 +24,11 @@ import com.android.apksig.internal.apk.v2.ContentDigestAlgorithm;
 import com.android.apksig.internal.apk.v2.SignatureAlgorithm;
 import com.android.apksig.internal.apk.v2.V2SchemeVerifier;
 import com.android.apksig.internal.util.AndroidSdkVersion;
+import com.android.apksig.internal.util.VerificationCache;
 import com.android.apksig.internal.zip.CentralDirectoryRecord;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
+import com.android.apksig.util.DigestThreadPool;
 import com.android.apksig.zip.ZipFormatException;
 
 import java.io.Closeable;
@@ -43,6 +45,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 /**
  * APK signature verifier which mimics the behavior of the Android platform.
@@ -62,19 +65,32 @@ public class ApkVerifier {
 
     private final File mApkFile;
     private final DataSource mApkDataSource;
+    private final long mMaxMappedApkSize;
 
     private final Integer mMinSdkVersion;
     private final int mMaxSdkVersion;
 
+    private final ExecutorService mDigestExecutor;
+    private final boolean mStopOnFirstDigestMismatch;
+    private final VerificationCache mVerificationCache;
+
     private ApkVerifier(
             File apkFile,
             DataSource apkDataSource,
+            long maxMappedApkSize,
             Integer minSdkVersion,
-            int maxSdkVersion) {
+            int maxSdkVersion,
+            ExecutorService digestExecutor,
+            boolean stopOnFirstDigestMismatch,
+            VerificationCache verificationCache) {
         mApkFile = apkFile;
         mApkDataSource = apkDataSource;
+        mMaxMappedApkSize = maxMappedApkSize;
         mMinSdkVersion = minSdkVersion;
         mMaxSdkVersion = maxSdkVersion;
+        mDigestExecutor = digestExecutor;
+        mStopOnFirstDigestMismatch = stopOnFirstDigestMismatch;
+        mVerificationCache = verificationCache;
     }
 
     /**
@@ -99,7 +115,7 @@ public class ApkVerifier {
             } else if (mApkFile != null) {
                 RandomAccessFile f = new RandomAccessFile(mApkFile, "r");
                 in = f;
-                apk = DataSources.asDataSource(f, 0, f.length());
+                apk = DataSources.asMappedDataSource(f, mMaxMappedApkSize);
             } else {
                 throw new IllegalStateException("APK not provided");
             }
@@ -176,7 +192,13 @@ public class ApkVerifier {
         if (maxSdkVersion >= AndroidSdkVersion.N) {
             foundApkSigSchemeIds = new HashSet<>(1);
             try {
-                V2SchemeVerifier.Result v2Result = V2SchemeVerifier.verify(apk, zipSections);
+                V2SchemeVerifier.Result v2Result =
+                        V2SchemeVerifier.verify(
+                                apk,
+                                zipSections,
+                                mDigestExecutor,
+                                mStopOnFirstDigestMismatch,
+                                mVerificationCache);
                 foundApkSigSchemeIds.add(APK_SIGNATURE_SCHEME_V2_ID);
                 result.mergeFrom(v2Result);
             } catch (V2SchemeVerifier.SignatureNotFoundException ignored) {}
@@ -1180,10 +1202,15 @@ public class ApkVerifier {
     public static class Builder {
         private final File mApkFile;
         private final DataSource mApkDataSource;
+        private long mMaxMappedApkSize;
 
         private Integer mMinSdkVersion;
         private int mMaxSdkVersion = Integer.MAX_VALUE;
 
+        private ExecutorService mDigestExecutor;
+        private boolean mStopOnFirstDigestMismatch;
+        private VerificationCache mVerificationCache;
+
         /**
          * Constructs a new {@code Builder} for verifying the provided APK file.
          */
@@ -1206,6 +1233,21 @@ public class ApkVerifier {
             mApkFile = null;
         }
 
+        /**
+         * Sets the size (in bytes) up to which an APK file provided to {@link #Builder(File)} is
+         * mapped into memory instead of being read from the file. Use {@code 0} to never map the
+         * APK, which is the default. Do not map an APK which is deleted or replaced right after
+         * verification, because the mapping keeps the file locked on some platforms until it is
+         * garbage collected.
+         */
+        public Builder setMaxMappedApkSize(long maxMappedSize) {
+            if (maxMappedSize < 0) {
+                throw new IllegalArgumentException("maxMappedSize: " + maxMappedSize);
+            }
+            mMaxMappedApkSize = maxMappedSize;
+            return this;
+        }
+
         /**
          * Sets the oldest Android platform version for which the APK is verified. APK verification
          * will confirm that the APK is expected to install successfully on all known Android
@@ -1244,6 +1286,42 @@ public class ApkVerifier {
             return this;
         }
 
+        /**
+         * Sets the executor on which chunks of the APK's contents are digested in parallel when
+         * verifying the integrity of the APK against its APK Signature Scheme v2 signature. Use
+         * {@link DigestThreadPool#get()} to share one bounded pool between all verifiers of the
+         * JVM. By default, or if {@code executor} is {@code null}, the contents are digested on
+         * the calling thread.
+         */
+        public Builder setDigestExecutor(ExecutorService executor) {
+            mDigestExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Sets whether verification stops at the first APK Signature Scheme v2 content digest
+         * algorithm whose digest does not match. The digests are then computed one algorithm at a
+         * time, strongest first, and the algorithms after a mismatch are not computed at all. The
+         * result reports only that mismatch rather than one per algorithm.
+         *
+         * <p>This saves work on APKs which are likely to be corrupt. An intact APK signed with
+         * several content digest algorithms is read once per algorithm instead of once in total,
+         * so this is off by default.
+         */
+        public Builder setStopOnFirstDigestMismatch(boolean stop) {
+            mStopOnFirstDigestMismatch = stop;
+            return this;
+        }
+
+        /**
+         * Sets the cache of certificates, public keys and JCA instances to share with the
+         * verification of other APKs. Used by {@link ApkBatchVerifier}.
+         */
+        Builder setVerificationCache(VerificationCache cache) {
+            mVerificationCache = cache;
+            return this;
+        }
+
         /**
          * Returns an {@link ApkVerifier} initialized according to the configuration of this
          * builder.
@@ -1252,8 +1330,12 @@ public class ApkVerifier {
             return new ApkVerifier(
                     mApkFile,
                     mApkDataSource,
+                    mMaxMappedApkSize,
                     mMinSdkVersion,
-                    mMaxSdkVersion);
+                    mMaxSdkVersion,
+                    mDigestExecutor,
+                    mStopOnFirstDigestMismatch,
+                    mVerificationCache);
         }
     }
 }
@@ -34,15 +34,19 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SignatureException;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Default implementation of {@link ApkSignerEngine}.
@@ -69,6 +73,7 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
     private final List<V1SchemeSigner.SignerConfig> mV1SignerConfigs;
     private final DigestAlgorithm mV1ContentDigestAlgorithm;
     private final List<V2SchemeSigner.SignerConfig> mV2SignerConfigs;
+    private final ExecutorService mDigestExecutor;
 
     private boolean mClosed;
 
@@ -86,6 +91,12 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
     /** Digests of output JAR entries. */
     private final Map<String, byte[]> mOutputJarEntryDigests = new HashMap<>();
 
+    /**
+     * Digests of JAR entries which may be used instead of digesting the entries' data when the
+     * entries are output for the first time.
+     */
+    private final Map<String, byte[]> mReusableOutputJarEntryDigests;
+
     /** Data of JAR entries emitted by this engine as v1 signature. */
     private final Map<String, byte[]> mEmittedSignatureJarEntryData = new HashMap<>();
 
@@ -115,7 +126,10 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
             boolean v1SigningEnabled,
             boolean v2SigningEnabled,
             boolean otherSignersSignaturesPreserved,
-            String createdBy) throws InvalidKeyException {
+            String createdBy,
+            ExecutorService digestExecutor,
+            byte[] v1IncrementalManifest,
+            Set<String> v1ChangedEntryNames) throws InvalidKeyException {
         if (signerConfigs.isEmpty()) {
             throw new IllegalArgumentException("At least one signer config must be provided");
         }
@@ -130,6 +144,7 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         mV2SignaturePending = v2SigningEnabled;
         mOtherSignersSignaturesPreserved = otherSignersSignaturesPreserved;
         mCreatedBy = createdBy;
+        mDigestExecutor = digestExecutor;
         mV1SignerConfigs =
                 (v1SigningEnabled)
                         ? new ArrayList<>(signerConfigs.size()) : Collections.emptyList();
@@ -188,10 +203,20 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
                 v2SignerConfig.certificates = certificates;
                 v2SignerConfig.signatureAlgorithms =
                         V2SchemeSigner.getSuggestedSignatureAlgorithms(publicKey, minSdkVersion);
+                v2SignerConfig.encodedPublicKey = signerConfig.mV2EncodedPublicKey;
+                v2SignerConfig.encodedCertificates = signerConfig.mV2EncodedCertificates;
                 mV2SignerConfigs.add(v2SignerConfig);
             }
         }
         mV1ContentDigestAlgorithm = v1ContentDigestAlgorithm;
+        if ((v1SigningEnabled) && (v1IncrementalManifest != null)) {
+            mReusableOutputJarEntryDigests =
+                    V1SchemeSigner.getEntryDigestsFromManifest(
+                            v1IncrementalManifest, v1ContentDigestAlgorithm);
+            mReusableOutputJarEntryDigests.keySet().removeAll(v1ChangedEntryNames);
+        } else {
+            mReusableOutputJarEntryDigests = new HashMap<>();
+        }
         mSignatureExpectedOutputJarEntryNames =
                 (v1SigningEnabled)
                         ? V1SchemeSigner.getOutputEntryNames(mV1SignerConfigs)
@@ -259,6 +284,14 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
             // preserved. In that scenario we can't modify MANIFEST.MF and add/remove JAR entries
             // covered by v1 signature.
             invalidateV1Signature();
+            byte[] reusableDigest = mReusableOutputJarEntryDigests.remove(entryName);
+            if (reusableDigest != null) {
+                // The entry is output unchanged and its digest is already known. A digest is only
+                // reused once because the entry's data may differ if it is output again.
+                mOutputJarEntryDigestRequests.remove(entryName);
+                mOutputJarEntryDigests.put(entryName, reusableDigest);
+                return null;
+            }
             GetJarEntryDataDigestRequest dataDigestRequest =
                     new GetJarEntryDataDigestRequest(
                             entryName,
@@ -463,7 +496,8 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
 
         byte[] apkSigningBlock =
                 V2SchemeSigner.generateApkSigningBlock(
-                        zipEntries, zipCentralDirectory, zipEocd, mV2SignerConfigs);
+                        zipEntries, zipCentralDirectory, zipEocd, mV2SignerConfigs,
+                        mDigestExecutor);
 
         mAddV2SignatureRequest = new OutputApkSigningBlockRequestImpl(apkSigningBlock);
         return mAddV2SignatureRequest;
@@ -789,6 +823,15 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         private final PrivateKey mPrivateKey;
         private final List<X509Certificate> mCertificates;
 
+        /**
+         * APK Signature Scheme v2 encoded forms of the public key and certificates, computed once
+         * so that signing many APKs with this signer does not re-encode them every time. These
+         * are {@code null} if encoding failed, in which case signing re-encodes and reports the
+         * error.
+         */
+        private final byte[] mV2EncodedPublicKey;
+        private final List<byte[]> mV2EncodedCertificates;
+
         private SignerConfig(
                 String name,
                 PrivateKey privateKey,
@@ -796,6 +839,26 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
             mName = name;
             mPrivateKey = privateKey;
             mCertificates = Collections.unmodifiableList(new ArrayList<>(certificates));
+
+            byte[] encodedPublicKey = null;
+            List<byte[]> encodedCertificates = null;
+            if (!mCertificates.isEmpty()) {
+                try {
+                    encodedPublicKey =
+                            V2SchemeSigner.encodePublicKey(mCertificates.get(0).getPublicKey());
+                } catch (InvalidKeyException | NoSuchAlgorithmException ignored) {
+                    // Encoded again, and the failure reported, when signing
+                }
+                try {
+                    encodedCertificates =
+                            Collections.unmodifiableList(
+                                    V2SchemeSigner.encodeCertificates(mCertificates));
+                } catch (CertificateEncodingException ignored) {
+                    // Encoded again, and the failure reported, when signing
+                }
+            }
+            mV2EncodedPublicKey = encodedPublicKey;
+            mV2EncodedCertificates = encodedCertificates;
         }
 
         /**
@@ -873,6 +936,9 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
         private boolean mV2SigningEnabled = true;
         private boolean mOtherSignersSignaturesPreserved;
         private String mCreatedBy = "1.0 (Android apksig)";
+        private ExecutorService mDigestExecutor;
+        private byte[] mV1IncrementalManifest;
+        private Set<String> mV1ChangedEntryNames = Collections.emptySet();
 
         /**
          * Constructs a new {@code Builder}.
@@ -905,7 +971,52 @@ public class DefaultApkSignerEngine implements ApkSignerEngine {
                     mV1SigningEnabled,
                     mV2SigningEnabled,
                     mOtherSignersSignaturesPreserved,
-                    mCreatedBy);
+                    mCreatedBy,
+                    mDigestExecutor,
+                    mV1IncrementalManifest,
+                    mV1ChangedEntryNames);
+        }
+
+        /**
+         * Sets the JAR manifest ({@code META-INF/MANIFEST.MF}) whose JAR entry digests are reused
+         * for v1 signing instead of digesting the data of the entries. This speeds up re-signing an
+         * APK of which only a few entries changed, such as its {@code classes.dex} files.
+         *
+         * <p>A digest listed in the manifest is used for the first output JAR entry of that name,
+         * unless the name is in {@code changedEntryNames}. Only digests computed using the digest
+         * algorithm which this engine would use for v1 signing are reused. The rest of the entries
+         * are digested as usual.
+         *
+         * <p><em>Note:</em> the engine does not check the reused digests. The caller must make sure
+         * that the manifest is trustworthy, for example by verifying its JAR signature, and that
+         * every entry not in {@code changedEntryNames} is output with the same data as in the APK
+         * the manifest comes from.
+         *
+         * @param manifest contents of the JAR manifest or {@code null} to digest all entries
+         * @param changedEntryNames names of entries whose data may differ from what the manifest
+         *        describes
+         */
+        public Builder setV1IncrementalManifest(
+                byte[] manifest, Collection<String> changedEntryNames) {
+            mV1IncrementalManifest = (manifest != null) ? manifest.clone() : null;
+            mV1ChangedEntryNames =
+                    (changedEntryNames != null)
+                            ? new HashSet<>(changedEntryNames)
+                            : Collections.<String>emptySet();
+            return this;
+        }
+
+        /**
+         * Sets the executor on which chunks of the APK's contents are digested in parallel when
+         * producing the APK Signature Scheme v2 signature, for example
+         * {@link com.android.apksig.util.DigestThreadPool#get()}.
+         *
+         * <p>By default, or if {@code executor} is {@code null}, the contents are digested on the
+         * calling thread.
+         */
+        public Builder setDigestExecutor(ExecutorService executor) {
+            mDigestExecutor = executor;
+            return this;
         }
 
         /**
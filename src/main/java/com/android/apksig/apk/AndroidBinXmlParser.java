@@ -72,6 +72,8 @@ class AndroidBinXmlParser {
     private int mDepth;
     private int mCurrentEvent = EVENT_START_DOCUMENT;
 
+    private long mCurrentElementNameId;
+    private long mCurrentElementNsId;
     private String mCurrentElementName;
     private String mCurrentElementNamespace;
     private int mCurrentElementAttributeCount;
@@ -122,11 +124,19 @@ class AndroidBinXmlParser {
     /**
      * Returns the local name of the current element or {@code null} if the current event does not
      * pertain to an element.
+     *
+     * <p>Names are decoded from the string pool on first request, so that callers only interested
+     * in some of the elements do not pay for decoding the names of the rest.
+     *
+     * @throws XmlParserException if the name cannot be decoded
      */
-    public String getName() {
+    public String getName() throws XmlParserException {
         if ((mCurrentEvent != EVENT_START_ELEMENT) && (mCurrentEvent != EVENT_END_ELEMENT)) {
             return null;
         }
+        if (mCurrentElementName == null) {
+            mCurrentElementName = mStringPool.getString(mCurrentElementNameId);
+        }
         return mCurrentElementName;
     }
 
@@ -134,11 +144,18 @@ class AndroidBinXmlParser {
      * Returns the namespace of the current element or {@code null} if the current event does not
      * pertain to an element. Returns an empty string if the element is not associated with a
      * namespace.
+     *
+     * @throws XmlParserException if the namespace cannot be decoded
      */
-    public String getNamespace() {
+    public String getNamespace() throws XmlParserException {
         if ((mCurrentEvent != EVENT_START_ELEMENT) && (mCurrentEvent != EVENT_END_ELEMENT)) {
             return null;
         }
+        if (mCurrentElementNamespace == null) {
+            mCurrentElementNamespace =
+                    (mCurrentElementNsId == NO_NAMESPACE)
+                            ? "" : mStringPool.getString(mCurrentElementNsId);
+        }
         return mCurrentElementNamespace;
     }
 
@@ -295,9 +312,10 @@ class AndroidBinXmlParser {
                                     + ", max: " + contents.remaining());
                     }
 
-                    mCurrentElementName = mStringPool.getString(nameId);
-                    mCurrentElementNamespace =
-                            (nsId == NO_NAMESPACE) ? "" : mStringPool.getString(nsId);
+                    mCurrentElementNameId = nameId;
+                    mCurrentElementNsId = nsId;
+                    mCurrentElementName = null;
+                    mCurrentElementNamespace = null;
                     mCurrentElementAttributeCount = attrCount;
                     mCurrentElementAttributes = null;
                     mCurrentElementAttrSizeBytes = attrSizeBytes;
@@ -321,11 +339,10 @@ class AndroidBinXmlParser {
                                 "End element chunk too short. Need at least 8 bytes. Available: "
                                         + contents.remaining() + " bytes");
                     }
-                    long nsId = getUnsignedInt32(contents);
-                    long nameId = getUnsignedInt32(contents);
-                    mCurrentElementName = mStringPool.getString(nameId);
-                    mCurrentElementNamespace =
-                            (nsId == NO_NAMESPACE) ? "" : mStringPool.getString(nsId);
+                    mCurrentElementNsId = getUnsignedInt32(contents);
+                    mCurrentElementNameId = getUnsignedInt32(contents);
+                    mCurrentElementName = null;
+                    mCurrentElementNamespace = null;
                     mCurrentEvent = EVENT_END_ELEMENT;
                     mCurrentElementAttributes = null;
                     mCurrentElementAttributesContents = null;
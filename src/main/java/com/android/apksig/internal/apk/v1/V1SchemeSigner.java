@@ -32,6 +32,7 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -43,6 +44,7 @@ import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 
 import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.internal.jar.ManifestParser;
 import com.android.apksig.internal.jar.ManifestWriter;
 import com.android.apksig.internal.jar.SignatureFileWriter;
 import com.android.apksig.internal.util.Pair;
@@ -216,6 +218,44 @@ public abstract class V1SchemeSigner {
         return true;
     }
 
+    /**
+     * Returns the digests of JAR entries listed in the provided JAR manifest, keyed by entry name.
+     * Only digests computed using the provided digest algorithm are returned. Entries listed more
+     * than once, or whose digest is not valid Base64, are omitted.
+     *
+     * <p>The digests are only as trustworthy as the manifest they were read from.
+     */
+    public static Map<String, byte[]> getEntryDigestsFromManifest(
+            byte[] manifest, DigestAlgorithm digestAlgorithm) {
+        String entryDigestAttributeName = getEntryDigestAttributeName(digestAlgorithm);
+        ManifestParser parser = new ManifestParser(manifest);
+        // Skip the main section
+        parser.readSection();
+        Map<String, byte[]> result = new HashMap<>();
+        Set<String> unusableEntryNames = new HashSet<>();
+        ManifestParser.Section section;
+        while ((section = parser.readSection()) != null) {
+            String entryName = section.getName();
+            if (entryName == null) {
+                continue;
+            }
+            String digestBase64 = section.getAttributeValue(entryDigestAttributeName);
+            byte[] digest = null;
+            if (digestBase64 != null) {
+                try {
+                    digest = Base64.getDecoder().decode(digestBase64);
+                } catch (IllegalArgumentException e) {
+                    // Treated the same as a missing digest
+                }
+            }
+            if ((digest == null) || (result.put(entryName, digest) != null)) {
+                unusableEntryNames.add(entryName);
+            }
+        }
+        result.keySet().removeAll(unusableEntryNames);
+        return result;
+    }
+
     /**
      * Signs the provided APK using JAR signing (aka v1 signature scheme) and returns the list of
      * JAR entries which need to be added to the APK as part of the signature.
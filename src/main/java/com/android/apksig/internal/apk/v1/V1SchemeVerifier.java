@@ -108,11 +108,56 @@ public abstract class V1SchemeVerifier {
                 foundApkSigSchemeIds,
                 minSdkVersion,
                 maxSdkVersion,
+                false,
                 result);
 
         return result;
     }
 
+    /**
+     * Verifies the provided APK's JAR signatures only as far as the JAR manifest and returns the
+     * result of verification. The data of JAR entries is not read. {@link Result#verified} is
+     * {@code true} only if all signature files verify against signature block files, and every
+     * individual section of the JAR manifest is protected by the signature files of all signers.
+     * The digests listed in the manifest can then be trusted as much as the signers, although they
+     * need not match the data of the APK's entries.
+     *
+     * @throws ApkFormatException if the APK is malformed
+     * @throws IOException if an I/O error occurs when reading the APK
+     * @throws NoSuchAlgorithmException if the APK's JAR signatures cannot be verified because a
+     *         required cryptographic algorithm implementation is missing
+     */
+    public static Result verifyManifest(
+            DataSource apk,
+            ApkUtils.ZipSections apkSections,
+            int minSdkVersion,
+            int maxSdkVersion) throws IOException, ApkFormatException, NoSuchAlgorithmException {
+        if (minSdkVersion > maxSdkVersion) {
+            throw new IllegalArgumentException(
+                    "minSdkVersion (" + minSdkVersion + ") > maxSdkVersion (" + maxSdkVersion
+                            + ")");
+        }
+
+        Result result = new Result();
+        List<CentralDirectoryRecord> cdRecords = parseZipCentralDirectory(apk, apkSections);
+        Set<String> cdEntryNames = checkForDuplicateEntries(cdRecords, result);
+        if (result.containsErrors()) {
+            return result;
+        }
+        Signers.verify(
+                apk,
+                apkSections.getZipCentralDirectoryOffset(),
+                cdRecords,
+                cdEntryNames,
+                Collections.<Integer, String>emptyMap(),
+                Collections.<Integer>emptySet(),
+                minSdkVersion,
+                maxSdkVersion,
+                true,
+                result);
+        return result;
+    }
+
     /**
      * Returns the set of entry names and reports any duplicate entry names in the {@code result}
      * as errors.
@@ -155,6 +200,7 @@ public abstract class V1SchemeVerifier {
                 Set<Integer> foundApkSigSchemeIds,
                 int minSdkVersion,
                 int maxSdkVersion,
+                boolean manifestOnly,
                 Result result) throws ApkFormatException, IOException, NoSuchAlgorithmException {
 
             // Find JAR manifest and signature block files.
@@ -304,6 +350,25 @@ public abstract class V1SchemeVerifier {
             // * Contents of all JAR manifest sections listed in .SF files verify against .SF files.
             // * All JAR entries listed in JAR manifest are present in the APK.
 
+            if (manifestOnly) {
+                // Only vouch for the manifest if all signers protect every entry listed in it.
+                for (String entryName : entryNameToManifestSection.keySet()) {
+                    for (Signer signer : signers) {
+                        if (!signer.getSigFileEntryNames().contains(entryName)) {
+                            result.addError(Issue.JAR_SIG_ZIP_ENTRY_NOT_SIGNED, entryName);
+                            break;
+                        }
+                    }
+                }
+                for (Signer signer : signers) {
+                    result.signers.add(signer.getResult());
+                }
+                if (!result.containsErrors()) {
+                    result.verified = true;
+                }
+                return;
+            }
+
             // Verify data of JAR entries against JAR manifest and .SF files. On Android, an APK's
             // JAR entry is considered signed by signers associated with an .SF file iff the entry
             // is mentioned in the .SF file and the entry's digest(s) mentioned in the JAR manifest
@@ -18,6 +18,7 @@ package com.android.apksig.internal.apk.v2;
 
 import com.android.apksig.internal.util.MessageDigestSink;
 import com.android.apksig.internal.util.Pair;
+import com.android.apksig.internal.util.VerificationCache;
 import com.android.apksig.internal.zip.ZipUtils;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
@@ -49,6 +50,11 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * APK Signature Scheme v2 signer.
@@ -79,6 +85,11 @@ public abstract class V2SchemeSigner {
 
     private static final int CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES = 1024 * 1024;
 
+    /**
+     * Number of consecutive chunks digested by one thread at a time when digesting in parallel.
+     */
+    private static final int CHUNKS_PER_PARALLEL_BATCH = 4;
+
     private static final byte[] APK_SIGNING_BLOCK_MAGIC =
           new byte[] {
               0x41, 0x50, 0x4b, 0x20, 0x53, 0x69, 0x67, 0x20,
@@ -103,6 +114,17 @@ public abstract class V2SchemeSigner {
          * List of signature algorithms with which to sign.
          */
         public List<SignatureAlgorithm> signatureAlgorithms;
+
+        /**
+         * X.509 encoded form of the public key of the first certificate, or {@code null} to encode
+         * it when signing.
+         */
+        public byte[] encodedPublicKey;
+
+        /**
+         * Encoded forms of {@link #certificates}, or {@code null} to encode them when signing.
+         */
+        public List<byte[]> encodedCertificates;
     }
 
     /** Hidden constructor to prevent instantiation. */
@@ -177,6 +199,26 @@ public abstract class V2SchemeSigner {
             List<SignerConfig> signerConfigs)
                         throws IOException, NoSuchAlgorithmException, InvalidKeyException,
                                 SignatureException {
+        return generateApkSigningBlock(beforeCentralDir, centralDir, eocd, signerConfigs, null);
+    }
+
+    /**
+     * Signs the provided APK using APK Signature Scheme v2 and returns the APK Signing Block
+     * containing the signature, digesting the APK's contents on the provided executor.
+     *
+     * @param digestExecutor executor on which to digest chunks of APK contents in parallel, or
+     *        {@code null} to digest them on the calling thread
+     *
+     * @see #generateApkSigningBlock(DataSource, DataSource, DataSource, List)
+     */
+    public static byte[] generateApkSigningBlock(
+            DataSource beforeCentralDir,
+            DataSource centralDir,
+            DataSource eocd,
+            List<SignerConfig> signerConfigs,
+            ExecutorService digestExecutor)
+                        throws IOException, NoSuchAlgorithmException, InvalidKeyException,
+                                SignatureException {
         if (signerConfigs.isEmpty()) {
             throw new IllegalArgumentException(
                     "No signer configs provided. At least one is required");
@@ -209,7 +251,8 @@ public abstract class V2SchemeSigner {
                             new DataSource[] {
                                     beforeCentralDir,
                                     centralDir,
-                                    DataSources.asDataSource(eocdBuf)});
+                                    DataSources.asDataSource(eocdBuf)},
+                            digestExecutor);
         } catch (IOException e) {
             throw new IOException("Failed to read APK being signed", e);
         } catch (DigestException e) {
@@ -223,6 +266,32 @@ public abstract class V2SchemeSigner {
     static Map<ContentDigestAlgorithm, byte[]> computeContentDigests(
             Set<ContentDigestAlgorithm> digestAlgorithms,
             DataSource[] contents) throws IOException, NoSuchAlgorithmException, DigestException {
+        return computeContentDigests(digestAlgorithms, contents, null);
+    }
+
+    static Map<ContentDigestAlgorithm, byte[]> computeContentDigests(
+            Set<ContentDigestAlgorithm> digestAlgorithms,
+            DataSource[] contents,
+            ExecutorService executor)
+                    throws IOException, NoSuchAlgorithmException, DigestException {
+        return computeContentDigests(digestAlgorithms, contents, executor, null);
+    }
+
+    /**
+     * Computes the APK Signature Scheme v2 content digests of the provided contents.
+     *
+     * @param executor executor on which to digest chunks in parallel, or {@code null} to digest
+     *        all chunks on the calling thread. The calling thread takes part in digesting either
+     *        way, so the executor may be a bounded pool whose own threads call this method.
+     * @param cache cache whose per-thread {@link MessageDigest} instances to digest with, or
+     *        {@code null} to obtain new instances for each call and digesting thread
+     */
+    static Map<ContentDigestAlgorithm, byte[]> computeContentDigests(
+            Set<ContentDigestAlgorithm> digestAlgorithms,
+            DataSource[] contents,
+            ExecutorService executor,
+            VerificationCache cache)
+                    throws IOException, NoSuchAlgorithmException, DigestException {
         // For each digest algorithm the result is computed as follows:
         // 1. Each segment of contents is split into consecutive chunks of 1 MB in size.
         //    The final chunk will be shorter iff the length of segment is not a multiple of 1 MB.
@@ -245,41 +314,105 @@ public abstract class V2SchemeSigner {
 
         ContentDigestAlgorithm[] digestAlgorithmsArray =
                 digestAlgorithms.toArray(new ContentDigestAlgorithm[digestAlgorithms.size()]);
-        MessageDigest[] mds = new MessageDigest[digestAlgorithmsArray.length];
         byte[][] digestsOfChunks = new byte[digestAlgorithmsArray.length][];
-        int[] digestOutputSizes = new int[digestAlgorithmsArray.length];
         for (int i = 0; i < digestAlgorithmsArray.length; i++) {
             ContentDigestAlgorithm digestAlgorithm = digestAlgorithmsArray[i];
             int digestOutputSizeBytes = digestAlgorithm.getChunkDigestOutputSizeBytes();
-            digestOutputSizes[i] = digestOutputSizeBytes;
             byte[] concatenationOfChunkCountAndChunkDigests =
                     new byte[5 + chunkCount * digestOutputSizeBytes];
             concatenationOfChunkCountAndChunkDigests[0] = 0x5a;
             setUnsignedInt32LittleEndian(
                     chunkCount, concatenationOfChunkCountAndChunkDigests, 1);
             digestsOfChunks[i] = concatenationOfChunkCountAndChunkDigests;
-            String jcaAlgorithm = digestAlgorithm.getJcaMessageDigestAlgorithm();
-            mds[i] = MessageDigest.getInstance(jcaAlgorithm);
+        }
+
+        // The digest of each chunk is written into a pre-allocated buffer at exactly the right
+        // position. This avoids unnecessary allocations and copying, enables the final digest to
+        // be more efficient because it's presented with all of its input in one go, and lets
+        // chunks be digested in any order, on any thread. Chunks are digested in parallel only if
+        // the caller provides an executor: whether that pays off depends on a wide range of
+        // factors, such as data source type (e.g., in-memory or fetched from file),
+        // CPU/memory/disk cache bandwidth and latency, and load on the system.
+        int batchCount = (int) getChunkCount(chunkCount, CHUNKS_PER_PARALLEL_BATCH);
+        if ((executor == null) || (batchCount < 2)) {
+            digestChunks(
+                    digestAlgorithmsArray, getMessageDigests(digestAlgorithmsArray, cache),
+                    contents, 0, chunkCount, digestsOfChunks);
+        } else {
+            digestChunksInParallel(
+                    digestAlgorithmsArray, contents, chunkCount, batchCount, digestsOfChunks,
+                    executor, cache);
+        }
+
+        MessageDigest[] mds = getMessageDigests(digestAlgorithmsArray, cache);
+        Map<ContentDigestAlgorithm, byte[]> result = new HashMap<>(digestAlgorithmsArray.length);
+        for (int i = 0; i < digestAlgorithmsArray.length; i++) {
+            ContentDigestAlgorithm digestAlgorithm = digestAlgorithmsArray[i];
+            byte[] concatenationOfChunkCountAndChunkDigests = digestsOfChunks[i];
+            byte[] digest = mds[i].digest(concatenationOfChunkCountAndChunkDigests);
+            result.put(digestAlgorithm, digest);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a {@link MessageDigest} for each of the provided algorithms, taken from the calling
+     * thread's instances in {@code cache} if it is not {@code null}.
+     */
+    private static MessageDigest[] getMessageDigests(
+            ContentDigestAlgorithm[] digestAlgorithms, VerificationCache cache)
+                    throws NoSuchAlgorithmException {
+        MessageDigest[] mds = new MessageDigest[digestAlgorithms.length];
+        for (int i = 0; i < digestAlgorithms.length; i++) {
+            String jcaAlgorithm = digestAlgorithms[i].getJcaMessageDigestAlgorithm();
+            mds[i] =
+                    (cache != null)
+                            ? cache.getMessageDigest(jcaAlgorithm)
+                            : MessageDigest.getInstance(jcaAlgorithm);
+        }
+        return mds;
+    }
+
+    /**
+     * Digests the chunks with indices {@code [startChunk, endChunk)} of the provided contents
+     * using the provided digests, one per algorithm, writing the digest of each chunk into its
+     * slot of {@code digestsOfChunks}.
+     */
+    private static void digestChunks(
+            ContentDigestAlgorithm[] digestAlgorithms,
+            MessageDigest[] mds,
+            DataSource[] contents,
+            int startChunk,
+            int endChunk,
+            byte[][] digestsOfChunks) throws IOException, DigestException {
+        int[] digestOutputSizes = new int[digestAlgorithms.length];
+        for (int i = 0; i < digestAlgorithms.length; i++) {
+            digestOutputSizes[i] = digestAlgorithms[i].getChunkDigestOutputSizeBytes();
         }
 
         MessageDigestSink mdSink = new MessageDigestSink(mds);
         byte[] chunkContentPrefix = new byte[5];
         chunkContentPrefix[0] = (byte) 0xa5;
         int chunkIndex = 0;
-        // Optimization opportunity: digests of chunks can be computed in parallel. However,
-        // determining the number of computations to be performed in parallel is non-trivial. This
-        // depends on a wide range of factors, such as data source type (e.g., in-memory or fetched
-        // from file), CPU/memory/disk cache bandwidth and latency, interconnect architecture of CPU
-        // cores, load on the system from other threads of execution and other processes, size of
-        // input.
-        // For now, we compute these digests sequentially and thus have the luxury of improving
-        // performance by writing the digest of each chunk into a pre-allocated buffer at exactly
-        // the right position. This avoids unnecessary allocations, copying, and enables the final
-        // digest to be more efficient because it's presented with all of its input in one go.
         for (DataSource input : contents) {
+            if (chunkIndex >= endChunk) {
+                break;
+            }
+            long inputSize = input.size();
+            long inputChunkCount = getChunkCount(inputSize, CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES);
+            if (chunkIndex + inputChunkCount <= startChunk) {
+                // None of this segment's chunks are in range
+                chunkIndex += inputChunkCount;
+                continue;
+            }
             long inputOffset = 0;
-            long inputRemaining = input.size();
-            while (inputRemaining > 0) {
+            if (chunkIndex < startChunk) {
+                inputOffset =
+                        ((long) (startChunk - chunkIndex)) * CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES;
+                chunkIndex = startChunk;
+            }
+            long inputRemaining = inputSize - inputOffset;
+            while ((inputRemaining > 0) && (chunkIndex < endChunk)) {
                 int chunkSize =
                         (int) Math.min(inputRemaining, CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES);
                 setUnsignedInt32LittleEndian(chunkSize, chunkContentPrefix, 1);
@@ -291,7 +424,7 @@ public abstract class V2SchemeSigner {
                 } catch (IOException e) {
                     throw new IOException("Failed to read chunk #" + chunkIndex, e);
                 }
-                for (int i = 0; i < digestAlgorithmsArray.length; i++) {
+                for (int i = 0; i < digestAlgorithms.length; i++) {
                     MessageDigest md = mds[i];
                     byte[] concatenationOfChunkCountAndChunkDigests = digestsOfChunks[i];
                     int expectedDigestSizeBytes = digestOutputSizes[i];
@@ -311,16 +444,84 @@ public abstract class V2SchemeSigner {
                 chunkIndex++;
             }
         }
+    }
 
-        Map<ContentDigestAlgorithm, byte[]> result = new HashMap<>(digestAlgorithmsArray.length);
-        for (int i = 0; i < digestAlgorithmsArray.length; i++) {
-            ContentDigestAlgorithm digestAlgorithm = digestAlgorithmsArray[i];
-            byte[] concatenationOfChunkCountAndChunkDigests = digestsOfChunks[i];
-            MessageDigest md = mds[i];
-            byte[] digest = md.digest(concatenationOfChunkCountAndChunkDigests);
-            result.put(digestAlgorithm, digest);
+    /**
+     * Digests all chunks of the provided contents in batches of
+     * {@link #CHUNKS_PER_PARALLEL_BATCH} chunks. Batches are claimed by the calling thread and
+     * by helper tasks submitted to the executor, so progress never depends on the executor
+     * having a free thread. Each thread obtains its {@link MessageDigest} instances once and
+     * reuses them for all batches it claims.
+     */
+    private static void digestChunksInParallel(
+            final ContentDigestAlgorithm[] digestAlgorithms,
+            final DataSource[] contents,
+            final int chunkCount,
+            final int batchCount,
+            final byte[][] digestsOfChunks,
+            ExecutorService executor,
+            final VerificationCache cache)
+                    throws IOException, NoSuchAlgorithmException, DigestException {
+        final AtomicInteger nextBatch = new AtomicInteger();
+        final CountDownLatch batchesDone = new CountDownLatch(batchCount);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                MessageDigest[] mds = null;
+                int batch;
+                while ((batch = nextBatch.getAndIncrement()) < batchCount) {
+                    try {
+                        if (failure.get() == null) {
+                            if (mds == null) {
+                                mds = getMessageDigests(digestAlgorithms, cache);
+                            }
+                            int startChunk = batch * CHUNKS_PER_PARALLEL_BATCH;
+                            int endChunk =
+                                    Math.min(chunkCount, startChunk + CHUNKS_PER_PARALLEL_BATCH);
+                            digestChunks(
+                                    digestAlgorithms, mds, contents, startChunk, endChunk,
+                                    digestsOfChunks);
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        batchesDone.countDown();
+                    }
+                }
+            }
+        };
+
+        int helperCount =
+                Math.min(batchCount, Runtime.getRuntime().availableProcessors()) - 1;
+        for (int i = 0; i < helperCount; i++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                // The calling thread digests the remaining batches
+                break;
+            }
+        }
+        worker.run();
+        try {
+            batchesDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while digesting APK contents", e);
+        }
+
+        Exception e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof NoSuchAlgorithmException) {
+            throw (NoSuchAlgorithmException) e;
+        } else if (e instanceof DigestException) {
+            throw (DigestException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e != null) {
+            throw new RuntimeException("Failed to digest APK contents", e);
         }
-        return result;
     }
 
     private static final long getChunkCount(long inputSize, int chunkSize) {
@@ -412,13 +613,19 @@ public abstract class V2SchemeSigner {
         }
         PublicKey publicKey = signerConfig.certificates.get(0).getPublicKey();
 
-        byte[] encodedPublicKey = encodePublicKey(publicKey);
+        byte[] encodedPublicKey =
+                (signerConfig.encodedPublicKey != null)
+                        ? signerConfig.encodedPublicKey : encodePublicKey(publicKey);
 
         V2SignatureSchemeBlock.SignedData signedData = new V2SignatureSchemeBlock.SignedData();
-        try {
-            signedData.certificates = encodeCertificates(signerConfig.certificates);
-        } catch (CertificateEncodingException e) {
-            throw new SignatureException("Failed to encode certificates", e);
+        if (signerConfig.encodedCertificates != null) {
+            signedData.certificates = signerConfig.encodedCertificates;
+        } else {
+            try {
+                signedData.certificates = encodeCertificates(signerConfig.certificates);
+            } catch (CertificateEncodingException e) {
+                throw new SignatureException("Failed to encode certificates", e);
+            }
         }
 
         List<Pair<Integer, byte[]>> digests =
@@ -525,7 +732,13 @@ public abstract class V2SchemeSigner {
         }
     }
 
-    private static byte[] encodePublicKey(PublicKey publicKey)
+    /**
+     * Returns the X.509 {@code SubjectPublicKeyInfo} encoded form of the provided public key, as
+     * stored in APK Signature Scheme v2 signer blocks.
+     *
+     * @throws InvalidKeyException if the key cannot be encoded
+     */
+    public static byte[] encodePublicKey(PublicKey publicKey)
             throws InvalidKeyException, NoSuchAlgorithmException {
         byte[] encodedPublicKey = null;
         if ("X.509".equals(publicKey.getFormat())) {
@@ -552,7 +765,10 @@ public abstract class V2SchemeSigner {
         return encodedPublicKey;
     }
 
-    private static List<byte[]> encodeCertificates(List<X509Certificate> certificates)
+    /**
+     * Returns the ASN.1 DER encoded forms of the provided certificates, in the same order.
+     */
+    public static List<byte[]> encodeCertificates(List<X509Certificate> certificates)
             throws CertificateEncodingException {
         List<byte[]> result = new ArrayList<>(certificates.size());
         for (X509Certificate certificate : certificates) {
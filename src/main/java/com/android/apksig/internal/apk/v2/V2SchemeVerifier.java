@@ -23,6 +23,7 @@ import com.android.apksig.apk.ApkUtils;
 import com.android.apksig.internal.util.ByteBufferDataSource;
 import com.android.apksig.internal.util.DelegatingX509Certificate;
 import com.android.apksig.internal.util.Pair;
+import com.android.apksig.internal.util.VerificationCache;
 import com.android.apksig.internal.zip.ZipUtils;
 import com.android.apksig.util.DataSource;
 
@@ -48,11 +49,13 @@ import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 /**
  * APK Signature Scheme v2 verifier.
@@ -88,6 +91,35 @@ public abstract class V2SchemeVerifier {
     public static Result verify(DataSource apk, ApkUtils.ZipSections zipSections)
             throws IOException, ApkFormatException, NoSuchAlgorithmException,
                     SignatureNotFoundException {
+        return verify(apk, zipSections, null, false, null);
+    }
+
+    /**
+     * Verifies the provided APK's APK Signature Scheme v2 signatures and returns the result of
+     * verification, like {@link #verify(DataSource, ApkUtils.ZipSections)}.
+     *
+     * @param digestExecutor executor on which to digest chunks of the APK's contents in parallel,
+     *        or {@code null} to digest them on the calling thread
+     * @param stopOnFirstDigestMismatch whether to stop comparing content digests once the digest
+     *        of an algorithm does not match. Mismatches of the remaining algorithms are then not
+     *        reported.
+     * @param cache cache of certificates, public keys and JCA instances shared with the
+     *        verification of other APKs, or {@code null} to parse and look up everything anew
+     *
+     * @throws ApkFormatException if the APK is malformed
+     * @throws NoSuchAlgorithmException if the APK's signatures cannot be verified because a
+     *         required cryptographic algorithm implementation is missing
+     * @throws SignatureNotFoundException if no APK Signature Scheme v2 signatures are found
+     * @throws IOException if an I/O error occurs when reading the APK
+     */
+    public static Result verify(
+            DataSource apk,
+            ApkUtils.ZipSections zipSections,
+            ExecutorService digestExecutor,
+            boolean stopOnFirstDigestMismatch,
+            VerificationCache cache)
+                    throws IOException, ApkFormatException, NoSuchAlgorithmException,
+                            SignatureNotFoundException {
         Result result = new Result();
         SignatureInfo signatureInfo = findSignature(apk, zipSections, result);
 
@@ -102,6 +134,9 @@ public abstract class V2SchemeVerifier {
                 signatureInfo.signatureBlock,
                 centralDir,
                 eocd,
+                digestExecutor,
+                stopOnFirstDigestMismatch,
+                cache,
                 result);
         return result;
     }
@@ -116,14 +151,24 @@ public abstract class V2SchemeVerifier {
             ByteBuffer apkSignatureSchemeV2Block,
             DataSource centralDir,
             ByteBuffer eocd,
+            ExecutorService digestExecutor,
+            boolean stopOnFirstDigestMismatch,
+            VerificationCache cache,
             Result result) throws IOException, ApkFormatException, NoSuchAlgorithmException {
         Set<ContentDigestAlgorithm> contentDigestsToVerify = new HashSet<>(1);
-        parseSigners(apkSignatureSchemeV2Block, contentDigestsToVerify, result);
+        parseSigners(apkSignatureSchemeV2Block, contentDigestsToVerify, cache, result);
         if (result.containsErrors()) {
             return;
         }
         verifyIntegrity(
-                beforeApkSigningBlock, centralDir, eocd, contentDigestsToVerify, result);
+                beforeApkSigningBlock,
+                centralDir,
+                eocd,
+                contentDigestsToVerify,
+                digestExecutor,
+                stopOnFirstDigestMismatch,
+                cache,
+                result);
         if (!result.containsErrors()) {
             result.verified = true;
         }
@@ -140,6 +185,7 @@ public abstract class V2SchemeVerifier {
     private static void parseSigners(
             ByteBuffer apkSignatureSchemeV2Block,
             Set<ContentDigestAlgorithm> contentDigestsToVerify,
+            VerificationCache cache,
             Result result) throws ApkFormatException, NoSuchAlgorithmException {
         ByteBuffer signers;
         try {
@@ -155,7 +201,10 @@ public abstract class V2SchemeVerifier {
 
         CertificateFactory certFactory;
         try {
-            certFactory = CertificateFactory.getInstance("X.509");
+            certFactory =
+                    (cache != null)
+                            ? cache.getCertificateFactory()
+                            : CertificateFactory.getInstance("X.509");
         } catch (CertificateException e) {
             throw new RuntimeException("Failed to obtain X.509 CertificateFactory", e);
         }
@@ -168,7 +217,7 @@ public abstract class V2SchemeVerifier {
             result.signers.add(signerInfo);
             try {
                 ByteBuffer signer = getLengthPrefixedSlice(signers);
-                parseSigner(signer, certFactory, signerInfo, contentDigestsToVerify);
+                parseSigner(signer, certFactory, cache, signerInfo, contentDigestsToVerify);
             } catch (ApkFormatException | BufferUnderflowException e) {
                 signerInfo.addError(Issue.V2_SIG_MALFORMED_SIGNER);
                 return;
@@ -186,6 +235,7 @@ public abstract class V2SchemeVerifier {
     private static void parseSigner(
             ByteBuffer signerBlock,
             CertificateFactory certFactory,
+            VerificationCache cache,
             Result.SignerInfo result,
             Set<ContentDigestAlgorithm> contentDigestsToVerify)
                     throws ApkFormatException, NoSuchAlgorithmException {
@@ -238,17 +288,26 @@ public abstract class V2SchemeVerifier {
             AlgorithmParameterSpec jcaSignatureAlgorithmParams =
                     signatureAlgorithm.getJcaSignatureAlgorithmAndParams().getSecond();
             String keyAlgorithm = signatureAlgorithm.getJcaKeyAlgorithm();
-            PublicKey publicKey;
-            try {
-                publicKey =
-                        KeyFactory.getInstance(keyAlgorithm).generatePublic(
-                                new X509EncodedKeySpec(publicKeyBytes));
-            } catch (Exception e) {
-                result.addError(Issue.V2_SIG_MALFORMED_PUBLIC_KEY, e);
-                return;
+            PublicKey publicKey =
+                    (cache != null) ? cache.getPublicKey(keyAlgorithm, publicKeyBytes) : null;
+            if (publicKey == null) {
+                try {
+                    publicKey =
+                            KeyFactory.getInstance(keyAlgorithm).generatePublic(
+                                    new X509EncodedKeySpec(publicKeyBytes));
+                } catch (Exception e) {
+                    result.addError(Issue.V2_SIG_MALFORMED_PUBLIC_KEY, e);
+                    return;
+                }
+                if (cache != null) {
+                    cache.putPublicKey(keyAlgorithm, publicKeyBytes, publicKey);
+                }
             }
             try {
-                Signature sig = Signature.getInstance(jcaSignatureAlgorithm);
+                Signature sig =
+                        (cache != null)
+                                ? cache.getSignature(jcaSignatureAlgorithm)
+                                : Signature.getInstance(jcaSignatureAlgorithm);
                 sig.initVerify(publicKey);
                 if (jcaSignatureAlgorithmParams != null) {
                     sig.setParameter(jcaSignatureAlgorithmParams);
@@ -280,7 +339,12 @@ public abstract class V2SchemeVerifier {
         while (certificates.hasRemaining()) {
             certificateIndex++;
             byte[] encodedCert = readLengthPrefixedByteArray(certificates);
-            X509Certificate certificate;
+            X509Certificate certificate =
+                    (cache != null) ? cache.getCertificate(encodedCert) : null;
+            if (certificate != null) {
+                result.certs.add(certificate);
+                continue;
+            }
             try {
                 certificate =
                         (X509Certificate)
@@ -299,6 +363,9 @@ public abstract class V2SchemeVerifier {
             // the signature. This is becase some X509Certificate(Factory) implementations re-encode
             // certificates.
             certificate = new GuaranteedEncodedFormX509Certificate(certificate, encodedCert);
+            if (cache != null) {
+                cache.putCertificate(encodedCert, certificate);
+            }
             result.certs.add(certificate);
         }
 
@@ -445,12 +512,19 @@ public abstract class V2SchemeVerifier {
      * Verifies integrity of the APK outside of the APK Signing Block by computing digests of the
      * APK and comparing them against the digests listed in APK Signing Block. The expected digests
      * taken from {@code v2SchemeSignerInfos} of the provided {@code result}.
+     *
+     * <p>All digests are computed in a single pass over the APK, unless
+     * {@code stopOnFirstDigestMismatch} is set. Then they are computed and compared one algorithm
+     * at a time, strongest first, and the algorithms after the first mismatch are skipped.
      */
     private static void verifyIntegrity(
             DataSource beforeApkSigningBlock,
             DataSource centralDir,
             ByteBuffer eocd,
             Set<ContentDigestAlgorithm> contentDigestAlgorithms,
+            ExecutorService digestExecutor,
+            boolean stopOnFirstDigestMismatch,
+            VerificationCache cache,
             Result result) throws IOException, NoSuchAlgorithmException {
         if (contentDigestAlgorithms.isEmpty()) {
             // This should never occur because this method is invoked once at least one signature
@@ -466,16 +540,54 @@ public abstract class V2SchemeVerifier {
         modifiedEocd.put(eocd);
         modifiedEocd.flip();
         ZipUtils.setZipEocdCentralDirectoryOffset(modifiedEocd, beforeApkSigningBlock.size());
+        DataSource[] contents =
+                new DataSource[] {
+                        beforeApkSigningBlock,
+                        centralDir,
+                        new ByteBufferDataSource(modifiedEocd)
+                };
+
+        if ((!stopOnFirstDigestMismatch) || (contentDigestAlgorithms.size() == 1)) {
+            compareContentDigests(
+                    computeContentDigests(
+                            contentDigestAlgorithms, contents, digestExecutor, cache),
+                    result);
+            return;
+        }
+
+        // Strongest algorithms first, which is also the order the platform prefers them in
+        List<ContentDigestAlgorithm> sorted = new ArrayList<>(contentDigestAlgorithms);
+        Collections.sort(sorted, new Comparator<ContentDigestAlgorithm>() {
+            @Override
+            public int compare(ContentDigestAlgorithm alg1, ContentDigestAlgorithm alg2) {
+                return -compareContentDigestAlgorithm(alg1, alg2);
+            }
+        });
+        for (ContentDigestAlgorithm algorithm : sorted) {
+            boolean mismatch =
+                    compareContentDigests(
+                            computeContentDigests(
+                                    Collections.singleton(algorithm),
+                                    contents,
+                                    digestExecutor,
+                                    cache),
+                            result);
+            if (mismatch) {
+                break;
+            }
+        }
+    }
+
+    private static Map<ContentDigestAlgorithm, byte[]> computeContentDigests(
+            Set<ContentDigestAlgorithm> contentDigestAlgorithms,
+            DataSource[] contents,
+            ExecutorService digestExecutor,
+            VerificationCache cache) throws IOException, NoSuchAlgorithmException {
         Map<ContentDigestAlgorithm, byte[]> actualContentDigests;
         try {
             actualContentDigests =
                     V2SchemeSigner.computeContentDigests(
-                            contentDigestAlgorithms,
-                            new DataSource[] {
-                                    beforeApkSigningBlock,
-                                    centralDir,
-                                    new ByteBufferDataSource(modifiedEocd)
-                            });
+                            contentDigestAlgorithms, contents, digestExecutor, cache);
         } catch (DigestException e) {
             throw new RuntimeException("Failed to compute content digests", e);
         }
@@ -485,9 +597,19 @@ public abstract class V2SchemeVerifier {
                             + " . Requested: " + contentDigestAlgorithms
                             + ", computed: " + actualContentDigests.keySet());
         }
+        return actualContentDigests;
+    }
 
-        // Compare digests computed over the rest of APK against the corresponding expected digests
-        // in signer blocks.
+    /**
+     * Compares the provided digests computed over the rest of APK against the corresponding
+     * expected digests in signer blocks. Expected digests of algorithms not in
+     * {@code actualContentDigests} are skipped.
+     *
+     * @return {@code true} if any of the compared digests did not match
+     */
+    private static boolean compareContentDigests(
+            Map<ContentDigestAlgorithm, byte[]> actualContentDigests, Result result) {
+        boolean mismatch = false;
         for (Result.SignerInfo signerInfo : result.signers) {
             for (Result.SignerInfo.ContentDigest expected : signerInfo.contentDigests) {
                 SignatureAlgorithm signatureAlgorithm =
@@ -497,6 +619,9 @@ public abstract class V2SchemeVerifier {
                 }
                 ContentDigestAlgorithm contentDigestAlgorithm =
                         signatureAlgorithm.getContentDigestAlgorithm();
+                if (!actualContentDigests.containsKey(contentDigestAlgorithm)) {
+                    continue;
+                }
                 byte[] expectedDigest = expected.getValue();
                 byte[] actualDigest = actualContentDigests.get(contentDigestAlgorithm);
                 if (!Arrays.equals(expectedDigest, actualDigest)) {
@@ -505,11 +630,13 @@ public abstract class V2SchemeVerifier {
                             contentDigestAlgorithm,
                             toHex(expectedDigest),
                             toHex(actualDigest));
+                    mismatch = true;
                     continue;
                 }
                 signerInfo.verifiedContentDigests.put(contentDigestAlgorithm, actualDigest);
             }
         }
+        return mismatch;
     }
 
     /**
@@ -60,19 +60,19 @@ public class ByteBufferDataSource implements DataSource {
         int chunkPosition = (int) offset;
         int chunkLimit = chunkPosition + size;
         // Creating a slice of ByteBuffer modifies the state of the source ByteBuffer (position
-        // and limit fields, to be more specific). We thus use synchronization around these
-        // state-changing operations to make instances of this class thread-safe.
-        synchronized (mBuffer) {
-            // ByteBuffer.limit(int) and .position(int) check that that the position >= limit
-            // invariant is not broken. Thus, the only way to safely change position and limit
-            // without caring about their current values is to first set position to 0 or set the
-            // limit to capacity.
-            mBuffer.position(0);
+        // and limit fields, to be more specific). We thus slice a private duplicate, which shares
+        // the contents but not the state, to make instances of this class thread-safe without
+        // having concurrent readers contend on a lock.
+        ByteBuffer buf = mBuffer.duplicate();
+        // ByteBuffer.limit(int) and .position(int) check that that the position >= limit
+        // invariant is not broken. Thus, the only way to safely change position and limit
+        // without caring about their current values is to first set position to 0 or set the
+        // limit to capacity.
+        buf.position(0);
 
-            mBuffer.limit(chunkLimit);
-            mBuffer.position(chunkPosition);
-            return mBuffer.slice();
-        }
+        buf.limit(chunkLimit);
+        buf.position(chunkPosition);
+        return buf.slice();
     }
 
     @Override
@@ -0,0 +1,163 @@
+package com.android.apksig.internal.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+
+/**
+ * {@link DataSource} backed by a {@link FileChannel}.
+ *
+ * <p>All reads use the channel's positional {@link FileChannel#read(ByteBuffer, long) read}
+ * method, which does not touch the channel's position. Instances thus hold no mutable state and
+ * may be used by any number of threads concurrently without serializing on a lock, unlike
+ * {@link RandomAccessFileDataSource}.
+ */
+public class FileChannelDataSource implements DataSource {
+
+    private static final int MAX_READ_CHUNK_SIZE = 65536;
+
+    private final FileChannel mChannel;
+    private final long mOffset;
+    private final long mSize;
+
+    /**
+     * Constructs a new {@code FileChannelDataSource} based on the data contained in the whole
+     * file. Changes to the contents of the file, including the size of the file, will be visible
+     * in this data source.
+     */
+    public FileChannelDataSource(FileChannel channel) {
+        mChannel = channel;
+        mOffset = 0;
+        mSize = -1;
+    }
+
+    /**
+     * Constructs a new {@code FileChannelDataSource} based on the data contained in the
+     * specified region of the provided file. Changes to the contents of the file will be visible in
+     * this data source.
+     */
+    public FileChannelDataSource(FileChannel channel, long offset, long size) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset: " + size);
+        }
+        if (size < 0) {
+            throw new IllegalArgumentException("size: " + size);
+        }
+        mChannel = channel;
+        mOffset = offset;
+        mSize = size;
+    }
+
+    @Override
+    public long size() {
+        if (mSize == -1) {
+            try {
+                return mChannel.size();
+            } catch (IOException e) {
+                return 0;
+            }
+        } else {
+            return mSize;
+        }
+    }
+
+    @Override
+    public FileChannelDataSource slice(long offset, long size) {
+        long sourceSize = size();
+        checkChunkValid(offset, size, sourceSize);
+        if ((offset == 0) && (size == sourceSize)) {
+            return this;
+        }
+
+        return new FileChannelDataSource(mChannel, mOffset + offset, size);
+    }
+
+    @Override
+    public void feed(long offset, long size, DataSink sink) throws IOException {
+        long sourceSize = size();
+        checkChunkValid(offset, size, sourceSize);
+        if (size == 0) {
+            return;
+        }
+
+        long chunkOffsetInFile = mOffset + offset;
+        long remaining = size;
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(remaining, MAX_READ_CHUNK_SIZE));
+        while (remaining > 0) {
+            int chunkSize = (int) Math.min(remaining, buf.capacity());
+            buf.clear();
+            buf.limit(chunkSize);
+            readFully(chunkOffsetInFile, buf);
+            buf.flip();
+            sink.consume(buf);
+            chunkOffsetInFile += chunkSize;
+            remaining -= chunkSize;
+        }
+    }
+
+    @Override
+    public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+        long sourceSize = size();
+        checkChunkValid(offset, size, sourceSize);
+        if (size == 0) {
+            return;
+        }
+
+        int prevLimit = dest.limit();
+        try {
+            dest.limit(dest.position() + size);
+            readFully(mOffset + offset, dest);
+        } finally {
+            dest.limit(prevLimit);
+        }
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+        ByteBuffer result = ByteBuffer.allocate(size);
+        copyTo(offset, size, result);
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Fills the remaining space of {@code dest} with the file's contents starting at
+     * {@code offsetInFile}.
+     */
+    private void readFully(long offsetInFile, ByteBuffer dest) throws IOException {
+        while (dest.hasRemaining()) {
+            int chunkSize = mChannel.read(dest, offsetInFile);
+            if (chunkSize < 0) {
+                throw new EOFException("Premature end of file at offset " + offsetInFile);
+            }
+            offsetInFile += chunkSize;
+        }
+    }
+
+    private static void checkChunkValid(long offset, long size, long sourceSize) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset: " + offset);
+        }
+        if (size < 0) {
+            throw new IllegalArgumentException("size: " + size);
+        }
+        if (offset > sourceSize) {
+            throw new IllegalArgumentException(
+                    "offset (" + offset + ") > source size (" + sourceSize + ")");
+        }
+        long endOffset = offset + size;
+        if (endOffset < offset) {
+            throw new IllegalArgumentException(
+                    "offset (" + offset + ") + size (" + size + ") overflow");
+        }
+        if (endOffset > sourceSize) {
+            throw new IllegalArgumentException(
+                    "offset (" + offset + ") + size (" + size
+                            + ") > source size (" + sourceSize  +")");
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.android.apksig.internal.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of parsed signing certificates and public keys, and per-thread pool of JCA
+ * {@link Signature}, {@link MessageDigest} and {@link CertificateFactory} instances, shared by
+ * verifications of many APKs which are signed with the same few keys.
+ *
+ * <p>Certificates and public keys are keyed by their exact encoded form, so a cached object is
+ * only ever returned for byte-for-byte identical input. The byte arrays passed in as keys are
+ * retained and must not be modified afterwards. Each cache holds at most
+ * {@link #MAX_ENTRIES} certificates and as many public keys, after which new objects are no
+ * longer cached.
+ *
+ * <p>Instances are thread-safe.
+ */
+public final class VerificationCache {
+
+    /** Maximum number of certificates, and separately of public keys, cached. */
+    public static final int MAX_ENTRIES = 1024;
+
+    private final ConcurrentHashMap<ByteBuffer, X509Certificate> mCertificates =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Pair<String, ByteBuffer>, PublicKey> mPublicKeys =
+            new ConcurrentHashMap<>();
+
+    private final ThreadLocal<Map<String, Signature>> mSignatures =
+            new ThreadLocal<Map<String, Signature>>() {
+                @Override
+                protected Map<String, Signature> initialValue() {
+                    return new HashMap<>();
+                }
+            };
+    private final ThreadLocal<Map<String, MessageDigest>> mMessageDigests =
+            new ThreadLocal<Map<String, MessageDigest>>() {
+                @Override
+                protected Map<String, MessageDigest> initialValue() {
+                    return new HashMap<>();
+                }
+            };
+    private final ThreadLocal<CertificateFactory> mCertificateFactories =
+            new ThreadLocal<>();
+
+    /**
+     * Returns the cached certificate with the provided encoded form or {@code null} if there is
+     * none.
+     */
+    public X509Certificate getCertificate(byte[] encoded) {
+        return mCertificates.get(ByteBuffer.wrap(encoded));
+    }
+
+    /**
+     * Caches the certificate parsed from the provided encoded form, unless the cache is full.
+     */
+    public void putCertificate(byte[] encoded, X509Certificate certificate) {
+        if (mCertificates.size() < MAX_ENTRIES) {
+            mCertificates.putIfAbsent(ByteBuffer.wrap(encoded), certificate);
+        }
+    }
+
+    /**
+     * Returns the cached public key of the provided JCA key algorithm with the provided X.509
+     * {@code SubjectPublicKeyInfo} encoded form or {@code null} if there is none.
+     */
+    public PublicKey getPublicKey(String keyAlgorithm, byte[] encoded) {
+        return mPublicKeys.get(Pair.of(keyAlgorithm, ByteBuffer.wrap(encoded)));
+    }
+
+    /**
+     * Caches the public key generated from the provided encoded form, unless the cache is full.
+     */
+    public void putPublicKey(String keyAlgorithm, byte[] encoded, PublicKey publicKey) {
+        if (mPublicKeys.size() < MAX_ENTRIES) {
+            mPublicKeys.putIfAbsent(Pair.of(keyAlgorithm, ByteBuffer.wrap(encoded)), publicKey);
+        }
+    }
+
+    /**
+     * Returns the calling thread's {@link Signature} instance for the provided JCA signature
+     * algorithm. The instance is handed out again on the next call from the same thread with the
+     * same algorithm, so it must be initialized before each use and must not be used after that.
+     */
+    public Signature getSignature(String jcaSignatureAlgorithm) throws NoSuchAlgorithmException {
+        Map<String, Signature> signatures = mSignatures.get();
+        Signature signature = signatures.get(jcaSignatureAlgorithm);
+        if (signature == null) {
+            signature = Signature.getInstance(jcaSignatureAlgorithm);
+            signatures.put(jcaSignatureAlgorithm, signature);
+        }
+        return signature;
+    }
+
+    /**
+     * Returns the calling thread's {@link MessageDigest} instance for the provided JCA digest
+     * algorithm, reset to its initial state. The instance is handed out again on the next call
+     * from the same thread with the same algorithm, so it must not be used after that.
+     */
+    public MessageDigest getMessageDigest(String jcaDigestAlgorithm)
+            throws NoSuchAlgorithmException {
+        Map<String, MessageDigest> messageDigests = mMessageDigests.get();
+        MessageDigest md = messageDigests.get(jcaDigestAlgorithm);
+        if (md == null) {
+            md = MessageDigest.getInstance(jcaDigestAlgorithm);
+            messageDigests.put(jcaDigestAlgorithm, md);
+        } else {
+            md.reset();
+        }
+        return md;
+    }
+
+    /**
+     * Returns the calling thread's X.509 {@link CertificateFactory}.
+     */
+    public CertificateFactory getCertificateFactory() throws CertificateException {
+        CertificateFactory certFactory = mCertificateFactories.get();
+        if (certFactory == null) {
+            certFactory = CertificateFactory.getInstance("X.509");
+            mCertificateFactories.set(certFactory);
+        }
+        return certFactory;
+    }
+}
@@ -318,23 +318,32 @@ public class LocalFileRecord {
             DataSource sourceApk,
             ByteBuffer extra,
             DataSink output) throws IOException {
-        long recordStartOffsetInSource = getStartOffsetInArchive();
+        ByteBuffer header = getHeaderWithModifiedExtra(sourceApk, extra);
+        long outputByteCount = header.remaining();
+        output.consume(header);
+        long remainingRecordSize = getSize() - mDataStartOffset;
+        sourceApk.feed(
+                getStartOffsetInArchive() + mDataStartOffset, remainingRecordSize, output);
+        outputByteCount += remainingRecordSize;
+        return outputByteCount;
+    }
+
+    /**
+     * Returns this record's Local File Header with its extra field replaced with the provided one.
+     * The record's data follows the returned header.
+     */
+    public ByteBuffer getHeaderWithModifiedExtra(DataSource sourceApk, ByteBuffer extra)
+            throws IOException {
         int extraStartOffsetInRecord = getExtraFieldStartOffsetInsideRecord();
         int extraSizeBytes = extra.remaining();
         int headerSize = extraStartOffsetInRecord + extraSizeBytes;
         ByteBuffer header = ByteBuffer.allocate(headerSize);
         header.order(ByteOrder.LITTLE_ENDIAN);
-        sourceApk.copyTo(recordStartOffsetInSource, extraStartOffsetInRecord, header);
+        sourceApk.copyTo(getStartOffsetInArchive(), extraStartOffsetInRecord, header);
         header.put(extra.slice());
         header.flip();
         ZipUtils.setUnsignedInt16(header, EXTRA_LENGTH_OFFSET, extraSizeBytes);
-
-        long outputByteCount = header.remaining();
-        output.consume(header);
-        long remainingRecordSize = getSize() - mDataStartOffset;
-        sourceApk.feed(recordStartOffsetInSource + mDataStartOffset, remainingRecordSize, output);
-        outputByteCount += remainingRecordSize;
-        return outputByteCount;
+        return header;
     }
 
     /**
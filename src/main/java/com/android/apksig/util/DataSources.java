@@ -17,10 +17,13 @@
 package com.android.apksig.util;
 
 import com.android.apksig.internal.util.ByteBufferDataSource;
+import com.android.apksig.internal.util.FileChannelDataSource;
 import com.android.apksig.internal.util.RandomAccessFileDataSource;
 
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Utility methods for working with {@link DataSource} abstraction.
@@ -61,4 +64,65 @@ public abstract class DataSources {
         }
         return new RandomAccessFileDataSource(file, offset, size);
     }
+
+    /**
+     * Returns a {@link DataSource} backed by the provided {@link FileChannel}. Changes to the
+     * file, including changes to size of file, will be visible in the data source.
+     *
+     * <p>The data source reads using positional reads only. It does not use or change the
+     * channel's position and can be read from several threads concurrently. Note that the channel
+     * is closed if a thread reading through it is interrupted.
+     */
+    public static DataSource asDataSource(FileChannel channel) {
+        if (channel == null) {
+            throw new NullPointerException();
+        }
+        return new FileChannelDataSource(channel);
+    }
+
+    /**
+     * Returns a {@link DataSource} backed by the provided region of the {@link FileChannel}.
+     * Changes to the file will be visible in the data source.
+     *
+     * <p>The data source reads using positional reads only. It does not use or change the
+     * channel's position and can be read from several threads concurrently. Note that the channel
+     * is closed if a thread reading through it is interrupted.
+     */
+    public static DataSource asDataSource(FileChannel channel, long offset, long size) {
+        if (channel == null) {
+            throw new NullPointerException();
+        }
+        return new FileChannelDataSource(channel, offset, size);
+    }
+
+    /**
+     * Returns a {@link DataSource} of the current contents of the provided
+     * {@link RandomAccessFile}. If the file is no larger than {@code maxMappedSize} bytes, it is
+     * mapped into memory read-only and the data source is backed by the mapping. Otherwise, this
+     * behaves like {@link #asDataSource(FileChannel, long, long)} over the file's channel, so
+     * that concurrent reads do not serialize on a lock. As with that method, interrupting a
+     * thread while it reads from the data source closes the file.
+     *
+     * <p>The size of the data source is fixed at the current size of the file. The mapping stays
+     * valid after the file is closed and is released only once the data source is garbage
+     * collected, so this should not be used for files which are about to be deleted or replaced
+     * on platforms which lock mapped files.
+     *
+     * @param maxMappedSize largest file size (in bytes) to map, or {@code 0} to never map
+     */
+    public static DataSource asMappedDataSource(RandomAccessFile file, long maxMappedSize)
+            throws IOException {
+        if (file == null) {
+            throw new NullPointerException();
+        }
+        if (maxMappedSize < 0) {
+            throw new IllegalArgumentException("maxMappedSize: " + maxMappedSize);
+        }
+        long size = file.length();
+        if ((size == 0) || (size > maxMappedSize) || (size > Integer.MAX_VALUE)) {
+            return new FileChannelDataSource(file.getChannel(), 0, size);
+        }
+        return new ByteBufferDataSource(
+                file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size));
+    }
 }
@@ -0,0 +1,55 @@
+package com.android.apksig.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide bounded thread pool for computing digests of APK contents in parallel.
+ *
+ * <p>Pass this pool to {@code setDigestExecutor} of {@link com.android.apksig.ApkSigner.Builder}
+ * or {@link com.android.apksig.ApkVerifier.Builder} to digest in parallel.
+ * {@link com.android.apksig.ApkBatchVerifier} uses it by default. All signers and
+ * verifiers in a JVM which use this pool share it, so signing or verifying many APKs at once does
+ * not multiply the number of digesting threads. The pool has one thread per available processor.
+ * Its threads are daemon threads and are created on first use.
+ */
+public abstract class DigestThreadPool {
+    private DigestThreadPool() {}
+
+    /**
+     * Returns the shared pool.
+     */
+    public static ExecutorService get() {
+        return Holder.POOL;
+    }
+
+    /**
+     * Returns the number of threads of the shared pool.
+     */
+    public static int getParallelism() {
+        return Holder.PARALLELISM;
+    }
+
+    /** Lazily initialized holder of the pool. */
+    private static class Holder {
+        private static final int PARALLELISM =
+                Math.max(1, Runtime.getRuntime().availableProcessors());
+
+        private static final ExecutorService POOL =
+                Executors.newFixedThreadPool(
+                        PARALLELISM,
+                        new ThreadFactory() {
+                            private final AtomicInteger mNextId = new AtomicInteger(1);
+
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                Thread thread =
+                                        new Thread(r, "apksig-digest-" + mNextId.getAndIncrement());
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+    }
+}
@@ -43,6 +43,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.RandomAccess;
+import java.util.Set;
 import java.util.zip.Adler32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -358,6 +359,17 @@ public final class Dex {
         this.methodFilter = new MethodFilter(this, s);
     }
 
+    /**
+     * Whitelists only those methods annotated with {@code s} which are in
+     * {@code requiredMethods}.
+     *
+     * @see MethodFilter#MethodFilter(Dex, String, Set)
+     */
+    public void setWhitelistedAnnotation(String s, Set<String> requiredMethods)
+            throws DexMerger.MergeException {
+        this.methodFilter = new MethodFilter(this, s, requiredMethods);
+    }
+
     public final class Section implements ByteInput, ByteOutput {
         private final String name;
         private final ByteBuffer data;
@@ -437,7 +449,7 @@ public final class Dex {
             data.limit(data.capacity());
             try {
                 int expectedLength = readUleb128();
-                String result = Mutf8.decode(this, new char[expectedLength]);
+                String result = Mutf8.decode(data, expectedLength);
                 if (result.length() != expectedLength) {
                     throw new DexException("Declared length " + expectedLength
                             + " doesn't match decoded length of " + result.length());
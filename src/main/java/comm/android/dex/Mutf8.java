@@ -18,6 +18,8 @@ package comm.android.dex;
 
 import comm.android.dex.util.ByteInput;
 import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Modified UTF-8 as described in the dex file format spec.
@@ -25,6 +27,9 @@ import java.io.UTFDataFormatException;
  * <p>Derived from libcore's MUTF-8 encoder at java.nio.charset.ModifiedUtf8.
  */
 public final class Mutf8 {
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long LOW_BITS = 0x0101010101010101L;
+
     private Mutf8() {}
 
     /**
@@ -60,6 +65,88 @@ public final class Mutf8 {
         }
     }
 
+    /**
+     * Decodes bytes from the position of {@code in} until a delimiter 0x00 is encountered, and
+     * leaves {@code in} positioned after the delimiter. Returns a new string containing the
+     * decoded characters.
+     *
+     * <p>Leading ASCII is found eight bytes at a time, and a string that is ASCII throughout
+     * is built with a single copy from the backing array. Other strings are decoded byte by
+     * byte from their first non-ASCII character on.
+     *
+     * @param utf16Length the number of characters declared for the string; decoding fails if
+     *     there are more
+     */
+    public static String decode(ByteBuffer in, int utf16Length) throws UTFDataFormatException {
+        int start = in.position();
+        int ascii = asciiPrefixLength(in, start, utf16Length);
+        if (start + ascii < in.limit() && in.get(start + ascii) == 0) {
+            in.position(start + ascii + 1);
+            if (in.hasArray()) {
+                return new String(in.array(), in.arrayOffset() + start, ascii,
+                        StandardCharsets.ISO_8859_1);
+            }
+            char[] out = new char[ascii];
+            for (int i = 0; i < ascii; i++) {
+                out[i] = (char) in.get(start + i);
+            }
+            return new String(out);
+        }
+
+        char[] out = new char[utf16Length];
+        for (int i = 0; i < ascii; i++) {
+            out[i] = (char) in.get(start + i);
+        }
+        in.position(start + ascii);
+        int s = ascii;
+        while (true) {
+            char a = (char) (in.get() & 0xff);
+            if (a == 0) {
+                return new String(out, 0, s);
+            }
+            out[s] = a;
+            if (a < '\u0080') {
+                s++;
+            } else if ((a & 0xe0) == 0xc0) {
+                int b = in.get() & 0xff;
+                if ((b & 0xC0) != 0x80) {
+                    throw new UTFDataFormatException("bad second byte");
+                }
+                out[s++] = (char) (((a & 0x1F) << 6) | (b & 0x3F));
+            } else if ((a & 0xf0) == 0xe0) {
+                int b = in.get() & 0xff;
+                int c = in.get() & 0xff;
+                if (((b & 0xC0) != 0x80) || ((c & 0xC0) != 0x80)) {
+                    throw new UTFDataFormatException("bad second or third byte");
+                }
+                out[s++] = (char) (((a & 0x0F) << 12) | ((b & 0x3F) << 6) | (c & 0x3F));
+            } else {
+                throw new UTFDataFormatException("bad byte");
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes from {@code start} on, but at most {@code max}, that are
+     * ASCII characters other than 0x00.
+     */
+    private static int asciiPrefixLength(ByteBuffer in, int start, int max) {
+        int end = Math.min(in.limit(), start + max);
+        int i = start;
+        // eight bytes at a time: stop at a byte with its high bit set or at a zero byte
+        while (i + 8 <= end) {
+            long word = in.getLong(i);
+            if ((word & HIGH_BITS) != 0 || ((word - LOW_BITS) & ~word & HIGH_BITS) != 0) {
+                break;
+            }
+            i += 8;
+        }
+        while (i < end && in.get(i) > 0) {
+            i++;
+        }
+        return i - start;
+    }
+
     /**
      * Returns the number of bytes the modified UTF8 representation of 's' would take.
      */
@@ -0,0 +1,445 @@
+package comm.android.dex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import trikita.log.Log;
+
+/**
+ * Name lookups across all dex files of an APK.
+ *
+ * <p>Strings, type IDs, field IDs and method IDs of a dex file are sorted, so they are found by
+ * binary search without building anything; see the static methods. Class definitions are not
+ * sorted by name, so the index keeps a sorted table of the classes defined by every dex file,
+ * built once per load. That table can be saved next to the APK and loaded again as long as the
+ * dex files are unchanged, which is checked through their SHA-1 signatures.
+ */
+public final class SymbolIndex {
+
+    private static final String TAG = "SymbolIndex";
+
+    private static final int FILE_MAGIC = 0x44534958; // "DSIX"
+    private static final int FILE_VERSION = 1;
+
+    /** Suffix of index files saved next to an APK. */
+    public static final String FILE_SUFFIX = ".symbols";
+
+    /** A dex file and an index into one of its tables. */
+    public static final class Location {
+        private final int dex;
+        private final String dexName;
+        private final int index;
+
+        Location(int dex, String dexName, int index) {
+            this.dex = dex;
+            this.dexName = dexName;
+            this.index = index;
+        }
+
+        /** Position of the dex file in the map the index was built from. */
+        public int getDex() {
+            return dex;
+        }
+
+        public String getDexName() {
+            return dexName;
+        }
+
+        /** Index into the table that was searched, e.g. the class definitions. */
+        public int getIndex() {
+            return index;
+        }
+
+        @Override public String toString() {
+            return dexName + "#" + index;
+        }
+    }
+
+    private final String[] dexNames;
+    private final Dex[] dexes;
+    /** Descriptors of all defined classes, sorted; a class may be defined in several dexes. */
+    private final String[] classNames;
+    private final int[] classDexes;
+    private final int[] classDefIndexes;
+
+    private SymbolIndex(Dex[] dexes, String[] dexNames, String[] classNames, int[] classDexes,
+            int[] classDefIndexes) {
+        this.dexes = dexes;
+        this.dexNames = dexNames;
+        this.classNames = classNames;
+        this.classDexes = classDexes;
+        this.classDefIndexes = classDefIndexes;
+    }
+
+    /**
+     * Indexes the class definitions of {@code dexes}, keyed by dex name.
+     */
+    public static SymbolIndex build(Map<String, Dex> dexes) {
+        final String[] dexNames = dexes.keySet().toArray(new String[dexes.size()]);
+        final Dex[] dexArray = dexes.values().toArray(new Dex[dexes.size()]);
+
+        int classCount = 0;
+        for (Dex dex : dexArray) {
+            classCount += dex.getTableOfContents().classDefs.size;
+        }
+        final String[] names = new String[classCount];
+        final int[] owners = new int[classCount];
+        final int[] classDefs = new int[classCount];
+        Integer[] order = new Integer[classCount];
+        int n = 0;
+        for (int d = 0; d < dexArray.length; d++) {
+            List<String> typeNames = dexArray[d].typeNames();
+            int classDef = 0;
+            for (ClassDef def : dexArray[d].classDefs()) {
+                names[n] = typeNames.get(def.getTypeIndex());
+                owners[n] = d;
+                classDefs[n] = classDef++;
+                order[n] = n;
+                n++;
+            }
+        }
+
+        // sort by name, then by dex, so that lookups return the dexes in load order
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int result = names[a].compareTo(names[b]);
+                return result != 0 ? result : owners[a] - owners[b];
+            }
+        });
+        String[] sortedNames = new String[classCount];
+        int[] sortedOwners = new int[classCount];
+        int[] sortedClassDefs = new int[classCount];
+        for (int i = 0; i < classCount; i++) {
+            sortedNames[i] = names[order[i]];
+            sortedOwners[i] = owners[order[i]];
+            sortedClassDefs[i] = classDefs[order[i]];
+        }
+        return new SymbolIndex(dexArray, dexNames, sortedNames, sortedOwners, sortedClassDefs);
+    }
+
+    /**
+     * Returns the index file of {@code apk}, {@code <apk>.symbols}.
+     */
+    public static File indexFileFor(File apk) {
+        return new File(apk.getPath() + FILE_SUFFIX);
+    }
+
+    /**
+     * Loads the index saved in {@code file} if it was saved for exactly these dex files, else
+     * builds it and tries to save it there.
+     */
+    public static SymbolIndex loadOrBuild(File file, Map<String, Dex> dexes) {
+        SymbolIndex index = null;
+        if (file.isFile()) {
+            try {
+                index = load(file, dexes);
+                if (index == null) {
+                    Log.d(TAG, "Rebuilding " + file + ": saved for other dex files, or damaged");
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Rebuilding " + file + ": " + e);
+            }
+        }
+        if (index == null) {
+            index = build(dexes);
+            try {
+                index.save(file);
+            } catch (IOException e) {
+                // the index works without being saved
+                Log.w(TAG, "Could not save " + file + ": " + e);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Loads an index saved by {@link #save}. Besides the signatures of the dex files, the
+     * class table is checked to be sorted and to refer to each class definition of the dex
+     * files exactly once, so that a damaged file cannot lead lookups astray.
+     *
+     * @return the index, or null if it was saved for other dex files or does not fit them
+     */
+    public static SymbolIndex load(File file, Map<String, Dex> dexes) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                return null;
+            }
+            int dexCount = in.readInt();
+            if (dexCount != dexes.size()) {
+                return null;
+            }
+            String[] dexNames = new String[dexCount];
+            Dex[] dexArray = new Dex[dexCount];
+            int d = 0;
+            for (Map.Entry<String, Dex> entry : dexes.entrySet()) {
+                dexNames[d] = in.readUTF();
+                byte[] signature = new byte[20];
+                in.readFully(signature);
+                if (!dexNames[d].equals(entry.getKey()) || !Arrays.equals(signature,
+                        entry.getValue().getTableOfContents().signature)) {
+                    return null;
+                }
+                dexArray[d++] = entry.getValue();
+            }
+
+            int classCount = in.readInt();
+            BitSet[] seen = new BitSet[dexCount];
+            long expectedCount = 0;
+            for (d = 0; d < dexCount; d++) {
+                int classDefCount = dexArray[d].getTableOfContents().classDefs.size;
+                seen[d] = new BitSet(classDefCount);
+                expectedCount += classDefCount;
+            }
+            if (classCount != expectedCount) {
+                return null;
+            }
+
+            String[] classNames = new String[classCount];
+            int[] classDexes = new int[classCount];
+            int[] classDefIndexes = new int[classCount];
+            for (int i = 0; i < classCount; i++) {
+                classNames[i] = in.readUTF();
+                classDexes[i] = in.readInt();
+                classDefIndexes[i] = in.readInt();
+
+                int dex = classDexes[i];
+                int classDef = classDefIndexes[i];
+                if (dex < 0 || dex >= dexCount || classDef < 0
+                        || classDef >= dexArray[dex].getTableOfContents().classDefs.size
+                        || seen[dex].get(classDef)) {
+                    return null;
+                }
+                seen[dex].set(classDef);
+
+                // sorted as by build(), which lookups depend on
+                if (i > 0) {
+                    int order = classNames[i - 1].compareTo(classNames[i]);
+                    if (order > 0 || (order == 0 && classDexes[i - 1] > dex)) {
+                        return null;
+                    }
+                }
+            }
+            return new SymbolIndex(dexArray, dexNames, classNames, classDexes, classDefIndexes);
+        }
+    }
+
+    /**
+     * Saves the index to {@code file}, replacing it.
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(dexes.length);
+            for (int d = 0; d < dexes.length; d++) {
+                out.writeUTF(dexNames[d]);
+                out.write(dexes[d].getTableOfContents().signature);
+            }
+            out.writeInt(classNames.length);
+            for (int i = 0; i < classNames.length; i++) {
+                out.writeUTF(classNames[i]);
+                out.writeInt(classDexes[i]);
+                out.writeInt(classDefIndexes[i]);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+    /**
+     * Returns where the class {@code descriptor}, e.g. {@code Ljava/lang/Object;}, is defined.
+     * The indexes of the locations are class definition indexes. A class defined in several
+     * dex files has several locations, in load order.
+     */
+    public List<Location> findClassDefs(String descriptor) {
+        int i = Arrays.binarySearch(classNames, descriptor);
+        if (i < 0) {
+            return Collections.emptyList();
+        }
+        while (i > 0 && classNames[i - 1].equals(descriptor)) {
+            i--;
+        }
+        List<Location> result = new ArrayList<Location>(1);
+        for (; i < classNames.length && classNames[i].equals(descriptor); i++) {
+            result.add(new Location(classDexes[i], dexNames[classDexes[i]], classDefIndexes[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the descriptors of the classes defined in more than one dex file, sorted.
+     */
+    public List<String> getDuplicateClasses() {
+        List<String> result = new ArrayList<String>();
+        for (int i = 1; i < classNames.length; i++) {
+            if (classNames[i].equals(classNames[i - 1])
+                    && (result.isEmpty() || !result.get(result.size() - 1).equals(classNames[i]))) {
+                result.add(classNames[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the dex files which refer to the type {@code descriptor}. The indexes of the
+     * locations are type indexes.
+     */
+    public List<Location> findTypes(String descriptor) {
+        List<Location> result = new ArrayList<Location>();
+        for (int d = 0; d < dexes.length; d++) {
+            int typeIndex = findType(dexes[d], descriptor);
+            if (typeIndex >= 0) {
+                result.add(new Location(d, dexNames[d], typeIndex));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the method IDs named {@code name} of class {@code declaringClass}, of all
+     * overloads, in all dex files. The indexes of the locations are method indexes.
+     */
+    public List<Location> findMethods(String declaringClass, String name) {
+        List<Location> result = new ArrayList<Location>();
+        for (int d = 0; d < dexes.length; d++) {
+            for (int methodIndex : findMethods(dexes[d], declaringClass, name)) {
+                result.add(new Location(d, dexNames[d], methodIndex));
+            }
+        }
+        return result;
+    }
+
+    /** Returns the dex file of a location, see {@link Location#getDex()}. */
+    public Dex getDex(int dex) {
+        return dexes[dex];
+    }
+
+    /**
+     * Returns the class definition of a location returned by {@link #findClassDefs}.
+     */
+    public ClassDef readClassDef(Location location) {
+        Dex dex = dexes[location.getDex()];
+        return dex.open(dex.getTableOfContents().classDefs.off
+                + location.getIndex() * SizeOf.CLASS_DEF_ITEM).readClassDef();
+    }
+
+    /**
+     * Returns the index of {@code value} in the string table of {@code dex}, or -1.
+     */
+    public static int findString(Dex dex, String value) {
+        int index = Collections.binarySearch(dex.strings(), value);
+        return index >= 0 ? index : -1;
+    }
+
+    /**
+     * Returns the type index of {@code descriptor} in {@code dex}, or -1.
+     */
+    public static int findType(Dex dex, String descriptor) {
+        int stringIndex = findString(dex, descriptor);
+        if (stringIndex < 0) {
+            return -1;
+        }
+        int index = Collections.binarySearch(dex.typeIds(), stringIndex);
+        return index >= 0 ? index : -1;
+    }
+
+    /**
+     * Returns the index of the field {@code declaringClass.name} in {@code dex}, or -1.
+     */
+    public static int findField(Dex dex, String declaringClass, String name) {
+        int typeIndex = findType(dex, declaringClass);
+        int nameIndex = findString(dex, name);
+        if (typeIndex < 0 || nameIndex < 0) {
+            return -1;
+        }
+        List<FieldId> fieldIds = dex.fieldIds();
+        int low = 0;
+        int high = fieldIds.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            FieldId fieldId = fieldIds.get(mid);
+            int result = compare(fieldId.getDeclaringClassIndex(), fieldId.getNameIndex(),
+                    typeIndex, nameIndex);
+            if (result < 0) {
+                low = mid + 1;
+            } else if (result > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the indexes of the methods named {@code name} of class {@code declaringClass} in
+     * {@code dex}, one per overload.
+     */
+    public static int[] findMethods(Dex dex, String declaringClass, String name) {
+        int typeIndex = findType(dex, declaringClass);
+        int nameIndex = findString(dex, name);
+        if (typeIndex < 0 || nameIndex < 0) {
+            return new int[0];
+        }
+        // method IDs are sorted by class, name and proto; find the first of the overloads
+        List<MethodId> methodIds = dex.methodIds();
+        int low = 0;
+        int high = methodIds.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            MethodId methodId = methodIds.get(mid);
+            if (compare(methodId.getDeclaringClassIndex(), methodId.getNameIndex(),
+                    typeIndex, nameIndex) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int end = low;
+        while (end < methodIds.size()) {
+            MethodId methodId = methodIds.get(end);
+            if (methodId.getDeclaringClassIndex() != typeIndex
+                    || methodId.getNameIndex() != nameIndex) {
+                break;
+            }
+            end++;
+        }
+        int[] result = new int[end - low];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = low + i;
+        }
+        return result;
+    }
+
+    private static int compare(int declaringClass, int name, int otherDeclaringClass,
+            int otherName) {
+        if (declaringClass != otherDeclaringClass) {
+            return declaringClass < otherDeclaringClass ? -1 : 1;
+        }
+        if (name != otherName) {
+            return name < otherName ? -1 : 1;
+        }
+        return 0;
+    }
+}
@@ -50,7 +50,9 @@ import comm.android.dx.util.Hex;
 import java.util.BitSet;
 
 /**
- * Parser for a constant pool embedded in a class file.
+ * Parser for a constant pool embedded in a class file. The pool can either
+ * be parsed completely up front ({@link #getPool}) or entry by entry as it
+ * is used ({@link #getLazyPool}).
  */
 public final class ConstantPoolParser {
     /** {@code non-null;} the bytes of the constant pool */
@@ -64,11 +66,24 @@ public final class ConstantPoolParser {
 
     /**
      * -1 || &gt;= 10; the end offset of this constant pool in the
-     * {@code byte[]} which it came from or {@code -1} if not
-     * yet parsed
+     * {@code byte[]} which it came from or {@code -1} if the
+     * offsets have not yet been determined
      */
     private int endOffset;
 
+    /** whether all entries have been parsed */
+    private boolean fullyParsed;
+
+    /**
+     * {@code non-null;} tracks the constant value's original string type.
+     * True if constants[i] was a CONSTANT_Utf8, false for any other type
+     * including CONSTANT_string.
+     */
+    private final BitSet wasUtf8;
+
+    /** {@code null-ok;} the lazy view of the pool, once requested */
+    private LazyConstantPool lazyPool;
+
     /** {@code null-ok;} parse observer, if any */
     private ParseObserver observer;
 
@@ -84,6 +99,7 @@ public final class ConstantPoolParser {
         this.pool = new StdConstantPool(size);
         this.offsets = new int[size];
         this.endOffset = -1;
+        this.wasUtf8 = new BitSet(size);
     }
 
     /**
@@ -102,7 +118,9 @@ public final class ConstantPoolParser {
      * @return {@code >= 10;} the end offset
      */
     public int getEndOffset() {
-        parseIfNecessary();
+        if (lazyPool == null) {
+            parseIfNecessary();
+        }
         return endOffset;
     }
 
@@ -116,11 +134,34 @@ public final class ConstantPoolParser {
         return pool;
     }
 
+    /**
+     * Gets a view of the constant pool that only scans the entry offsets
+     * up front and parses each entry, along with the entries it depends
+     * on, the first time it is asked for. Entries the translation never
+     * touches are thus never parsed or interned. The view may be used from
+     * several threads.
+     *
+     * <p>Unlike {@link #getPool}, a malformed entry is only reported when
+     * it is first accessed, and no parse observer output is produced for
+     * the entries.</p>
+     *
+     * @return {@code non-null;} the constant pool
+     */
+    public synchronized LazyConstantPool getLazyPool() {
+        if (lazyPool == null) {
+            if (endOffset < 0) {
+                determineOffsets();
+            }
+            lazyPool = new LazyConstantPool(this);
+        }
+        return lazyPool;
+    }
+
     /**
      * Runs {@link #parse} if it has not yet been run successfully.
      */
-    private void parseIfNecessary() {
-        if (endOffset < 0) {
+    private synchronized void parseIfNecessary() {
+        if (!fullyParsed) {
             parse();
         }
     }
@@ -129,7 +170,9 @@ public final class ConstantPoolParser {
      * Does the actual parsing.
      */
     private void parse() {
-        determineOffsets();
+        if (endOffset < 0) {
+            determineOffsets();
+        }
 
         if (observer != null) {
             observer.parsed(bytes, 8, 2,
@@ -138,18 +181,13 @@ public final class ConstantPoolParser {
             observer.changeIndent(1);
         }
 
-        /*
-         * Track the constant value's original string type. True if constants[i] was
-         * a CONSTANT_Utf8, false for any other type including CONSTANT_string.
-         */
-        BitSet wasUtf8 = new BitSet(offsets.length);
-
         for (int i = 1; i < offsets.length; i++) {
             int offset = offsets[i];
             if ((offset != 0) && (pool.getOrNull(i) == null)) {
                 parse0(i, wasUtf8);
             }
         }
+        fullyParsed = true;
 
         if (observer != null) {
             for (int i = 1; i < offsets.length; i++) {
@@ -177,6 +215,50 @@ public final class ConstantPoolParser {
         }
     }
 
+    /**
+     * Gets the entry at the given index, parsing it if necessary.
+     *
+     * @param idx {@code >= 0, < offsets.length;} which constant
+     * @return {@code null-ok;} the entry, or {@code null} if the index is
+     * in-range but invalid
+     */
+    /*package*/ synchronized Constant getOrParse(int idx) {
+        Constant cst = pool.getOrNull(idx);
+        if (cst == null && offsets[idx] != 0) {
+            cst = parse0(idx, wasUtf8);
+        }
+        return cst;
+    }
+
+    /**
+     * Gets the entries of the whole constant pool, parsing those that
+     * have not been parsed yet.
+     *
+     * @return {@code non-null;} the entries, which may contain nulls
+     */
+    /*package*/ Constant[] getAllEntries() {
+        parseIfNecessary();
+        return pool.getEntries();
+    }
+
+    /**
+     * @return the size of the pool, as given by {@code constant_pool_count}
+     */
+    /*package*/ int getPool0Size() {
+        return offsets.length;
+    }
+
+    /**
+     * Gets the tag byte of an entry without parsing it.
+     *
+     * @param idx {@code >= 0, < offsets.length;} which constant
+     * @return the tag, or {@code 0} if the index is in-range but invalid
+     */
+    /*package*/ int getTag(int idx) {
+        int at = offsets[idx];
+        return (at == 0) ? 0 : bytes.getUnsignedByte(at);
+    }
+
     /**
      * Populates {@link #offsets} and also completely parse utf8 constants.
      */
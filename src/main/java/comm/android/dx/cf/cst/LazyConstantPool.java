@@ -0,0 +1,99 @@
+package comm.android.dx.cf.cst;
+
+import comm.android.dex.util.ExceptionWithContext;
+import comm.android.dx.rop.cst.Constant;
+import comm.android.dx.rop.cst.ConstantPool;
+import comm.android.dx.util.Hex;
+
+/**
+ * Class file constant pool whose entries are parsed on first access.
+ * Instances are obtained from {@link ConstantPoolParser#getLazyPool} and
+ * are immutable from the outside.
+ */
+public final class LazyConstantPool implements ConstantPool {
+    /** {@code non-null;} parser holding the offsets and parsed entries */
+    private final ConstantPoolParser parser;
+
+    /** the size of the pool, see {@link #size} */
+    private final int size;
+
+    /**
+     * Constructs an instance.
+     *
+     * @param parser {@code non-null;} parser whose offsets are determined
+     */
+    /*package*/ LazyConstantPool(ConstantPoolParser parser) {
+        this.parser = parser;
+        this.size = parser.getPool0Size();
+    }
+
+    /** {@inheritDoc} */
+    public int size() {
+        return size;
+    }
+
+    /** {@inheritDoc} */
+    public Constant getOrNull(int n) {
+        if (n < 0 || n >= size) {
+            return throwInvalid(n);
+        }
+
+        return parser.getOrParse(n);
+    }
+
+    /** {@inheritDoc} */
+    public Constant get0Ok(int n) {
+        if (n == 0) {
+            return null;
+        }
+
+        return get(n);
+    }
+
+    /** {@inheritDoc} */
+    public Constant get(int n) {
+        Constant result = getOrNull(n);
+
+        if (result == null) {
+            throwInvalid(n);
+        }
+
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * This parses all entries that have not been accessed yet.
+     */
+    public Constant[] getEntries() {
+        return parser.getAllEntries();
+    }
+
+    /**
+     * Gets the class file tag of an entry without parsing it.
+     *
+     * @param n {@code n >= 0, n < size();} the constant pool index
+     * @return one of the {@link ConstantTags}, or {@code 0} if the index is
+     * in-range but invalid
+     */
+    public int getTag(int n) {
+        if (n < 0 || n >= size) {
+            throwInvalid(n);
+        }
+
+        return parser.getTag(n);
+    }
+
+    /**
+     * Throws the right exception for an invalid cpi.
+     *
+     * @param idx the bad cpi
+     * @return never
+     * @throws ExceptionWithContext always thrown
+     */
+    private static Constant throwInvalid(int idx) {
+        throw new ExceptionWithContext("invalid constant pool index " +
+                                       Hex.u2(idx));
+    }
+}
@@ -18,16 +18,28 @@ package comm.android.dx.cf.direct;
 
 import comm.android.dex.util.FileUtils;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 /**
  * Opens all the class files found in a class path element. Path elements
@@ -36,6 +48,12 @@ import java.util.zip.ZipFile;
  */
 public class ClassPathOpener {
 
+    /**
+     * number of archive entries read ahead of the consumer, per read
+     * thread; bounds the memory held by entries waiting to be consumed
+     */
+    private static final int READ_AHEAD_PER_THREAD = 16;
+
     /** {@code non-null;} pathname to start with */
     private final String pathname;
     /** {@code non-null;} callback interface */
@@ -47,6 +65,12 @@ public class ClassPathOpener {
      */
     private final boolean sort;
     private FileNameFilter filter;
+    /**
+     * {@code >= 1;} number of threads inflating archive entries. With more
+     * than one, entries are still handed to the consumer in order, on the
+     * thread calling {@link #process}.
+     */
+    private final int readThreads;
 
     /**
      * Callback interface for {@code ClassOpener}.
@@ -126,10 +150,31 @@ public class ClassPathOpener {
      */
     public ClassPathOpener(String pathname, boolean sort, FileNameFilter filter,
             Consumer consumer) {
+        this(pathname, sort, filter, consumer, 1);
+    }
+
+    /**
+     * Constructs an instance.
+     *
+     * @param pathname {@code non-null;} path element to process
+     * @param sort if true, sort such that classes appear before their inner
+     * classes and "package-info" occurs before all other classes in that
+     * package.
+     * @param consumer {@code non-null;} callback interface
+     * @param readThreads {@code >= 1;} number of threads inflating archive
+     * entries ahead of the consumer
+     */
+    public ClassPathOpener(String pathname, boolean sort, FileNameFilter filter,
+            Consumer consumer, int readThreads) {
+        if (readThreads < 1) {
+            throw new IllegalArgumentException("readThreads < 1");
+        }
+
         this.pathname = pathname;
         this.sort = sort;
         this.consumer = consumer;
         this.filter = filter;
+        this.readThreads = readThreads;
     }
 
     /**
@@ -246,6 +291,11 @@ public class ClassPathOpener {
         ArrayList<? extends ZipEntry> entriesList
                 = Collections.list(zip.entries());
 
+        if (hasDuplicateNames(entriesList)) {
+            zip.close();
+            return processArchiveStreamed(file);
+        }
+
         if (sort) {
             Collections.sort(entriesList, new Comparator<ZipEntry>() {
                public int compare (ZipEntry a, ZipEntry b) {
@@ -256,6 +306,11 @@ public class ClassPathOpener {
 
         consumer.onProcessArchiveStart(file);
 
+        if (readThreads > 1) {
+            zip.close();
+            return processArchiveParallel(file, entriesList);
+        }
+
         ByteArrayOutputStream baos = new ByteArrayOutputStream(40000);
         byte[] buf = new byte[20000];
         boolean any = false;
@@ -288,4 +343,232 @@ public class ClassPathOpener {
         zip.close();
         return any;
     }
+
+    /**
+     * Processes the contents of an archive that has several entries of the
+     * same name. {@code ZipFile} looks entries up by name, so it cannot read
+     * each of them; they are read in archive order through a
+     * {@code ZipInputStream} instead, all before the first one is handed to
+     * the consumer.
+     *
+     * @param file {@code non-null;} archive file to process
+     * @return whether any processing actually happened
+     * @throws IOException on i/o problem
+     */
+    private boolean processArchiveStreamed(File file) throws IOException {
+        final List<ZipEntry> entries = new ArrayList<ZipEntry>();
+        List<byte[]> contents = new ArrayList<byte[]>();
+
+        ZipInputStream in = new ZipInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(40000);
+            byte[] buf = new byte[20000];
+            ZipEntry one;
+            while ((one = in.getNextEntry()) != null) {
+                if (!filter.accept(one.getName())) {
+                    continue;
+                }
+
+                final byte[] bytes;
+                if (!one.isDirectory()) {
+                    baos.reset();
+                    int read;
+                    while ((read = in.read(buf)) != -1) {
+                        baos.write(buf, 0, read);
+                    }
+                    bytes = baos.toByteArray();
+                } else {
+                    bytes = new byte[0];
+                }
+
+                entries.add(one);
+                contents.add(bytes);
+            }
+        } finally {
+            in.close();
+        }
+
+        List<Integer> order = new ArrayList<Integer>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            order.add(i);
+        }
+        if (sort) {
+            // a stable sort, so entries of the same name keep archive order
+            Collections.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return compareClassNames(entries.get(a).getName(),
+                            entries.get(b).getName());
+                }
+            });
+        }
+
+        consumer.onProcessArchiveStart(file);
+
+        boolean any = false;
+        for (int i : order) {
+            ZipEntry one = entries.get(i);
+            any |= consumer.processFileBytes(one.getName(), one.getTime(),
+                    contents.get(i));
+        }
+        return any;
+    }
+
+    /**
+     * @param entries {@code non-null;} entries of an archive
+     * @return true if two of the entries have the same name
+     */
+    private static boolean hasDuplicateNames(List<? extends ZipEntry> entries) {
+        HashSet<String> names = new HashSet<String>();
+        for (ZipEntry one : entries) {
+            if (!names.add(one.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Processes the contents of an archive, inflating entries on
+     * {@link #readThreads} threads. Each thread reads through its own
+     * {@code ZipFile} handle. At most {@link #READ_AHEAD_PER_THREAD} entries
+     * per thread are read ahead of the consumer, which still sees them one
+     * at a time and in order.
+     *
+     * @param file {@code non-null;} archive file to process
+     * @param entriesList {@code non-null;} entries, in processing order
+     * @return whether any processing actually happened
+     * @throws IOException on i/o problem
+     */
+    private boolean processArchiveParallel(final File file,
+            List<? extends ZipEntry> entriesList) throws IOException {
+        ArrayList<ZipEntry> accepted = new ArrayList<ZipEntry>();
+        for (ZipEntry one : entriesList) {
+            if (filter.accept(one.getName())) {
+                accepted.add(one);
+            }
+        }
+
+        final List<ZipFile> handles =
+                Collections.synchronizedList(new ArrayList<ZipFile>());
+        final ThreadLocal<ZipFile> threadHandle = new ThreadLocal<ZipFile>();
+        ExecutorService readPool = Executors.newFixedThreadPool(readThreads);
+        ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        int readAhead = readThreads * READ_AHEAD_PER_THREAD;
+        int submitted = 0;
+        boolean any = false;
+
+        try {
+            for (int i = 0; i < accepted.size(); i++) {
+                while (submitted < accepted.size()
+                        && submitted < i + readAhead) {
+                    final ZipEntry toRead = accepted.get(submitted++);
+                    pending.add(readPool.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws IOException {
+                            ZipFile zip = threadHandle.get();
+                            if (zip == null) {
+                                zip = new ZipFile(file);
+                                handles.add(zip);
+                                threadHandle.set(zip);
+                            }
+                            return readEntry(zip, toRead);
+                        }
+                    }));
+                }
+
+                ZipEntry one = accepted.get(i);
+                byte[] bytes = getReadResult(pending.remove());
+                any |= consumer.processFileBytes(one.getName(), one.getTime(),
+                        bytes);
+            }
+        } finally {
+            readPool.shutdownNow();
+            try {
+                readPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (handles) {
+                for (ZipFile zip : handles) {
+                    zip.close();
+                }
+            }
+        }
+
+        return any;
+    }
+
+    /**
+     * Reads the contents of an archive entry.
+     *
+     * @param zip {@code non-null;} archive to read from
+     * @param one {@code non-null;} entry to read, possibly from another
+     * handle of the same archive
+     * @return {@code non-null;} the entry's contents
+     * @throws IOException on i/o problem
+     */
+    private static byte[] readEntry(ZipFile zip, ZipEntry one)
+            throws IOException {
+        if (one.isDirectory()) {
+            return new byte[0];
+        }
+
+        // entry names are unique here, see processArchive
+        InputStream in = zip.getInputStream(zip.getEntry(one.getName()));
+        try {
+            long size = one.getSize();
+            if (size >= 0 && size <= Integer.MAX_VALUE) {
+                // Inflate straight into the result when the size is known.
+                byte[] bytes = new byte[(int) size];
+                int off = 0;
+                int read;
+                while (off < bytes.length
+                        && (read = in.read(bytes, off, bytes.length - off)) != -1) {
+                    off += read;
+                }
+                if (off == bytes.length && in.read() == -1) {
+                    return bytes;
+                }
+                throw new IOException("size mismatch reading " + one.getName());
+            }
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(40000);
+            byte[] buf = new byte[20000];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                baos.write(buf, 0, read);
+            }
+            return baos.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Waits for an entry read on another thread, rethrowing its failure.
+     *
+     * @param future {@code non-null;} pending read
+     * @return {@code non-null;} the entry's contents
+     * @throws IOException on i/o problem
+     */
+    private static byte[] getReadResult(Future<byte[]> future)
+            throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while reading archive", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
 }
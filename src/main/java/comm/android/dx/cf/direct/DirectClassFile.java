@@ -105,7 +105,7 @@ public class DirectClassFile implements ClassFile {
      * {@code null-ok;} the constant pool; only ever {@code null}
      * before the constant pool is successfully parsed
      */
-    private StdConstantPool pool;
+    private ConstantPool pool;
 
     /**
      * the class file field {@code access_flags}; will be {@code -1}
@@ -497,9 +497,18 @@ public class DirectClassFile implements ClassFile {
         }
 
         ConstantPoolParser cpParser = new ConstantPoolParser(bytes);
-        cpParser.setObserver(observer);
-        pool = cpParser.getPool();
-        pool.setImmutable();
+        if (observer == null) {
+            /*
+             * Without an observer nothing needs to see every entry, so
+             * only parse the ones the class actually refers to.
+             */
+            pool = cpParser.getLazyPool();
+        } else {
+            cpParser.setObserver(observer);
+            StdConstantPool stdPool = cpParser.getPool();
+            stdPool.setImmutable();
+            pool = stdPool;
+        }
 
         int at = cpParser.getEndOffset();
         int accessFlags = bytes.getUnsignedShort(at); // u2 access_flags;
@@ -596,7 +605,7 @@ public class DirectClassFile implements ClassFile {
         private final int size;
 
         /** {@code non-null;} the constant pool */
-        private final StdConstantPool pool;
+        private final ConstantPool pool;
 
         /**
          * Constructs an instance.
@@ -609,7 +618,7 @@ public class DirectClassFile implements ClassFile {
          * @param observer {@code null-ok;} parse observer to use, if any
          */
         public DcfTypeList(ByteArray bytes, int offset, int size,
-                StdConstantPool pool, ParseObserver observer) {
+                ConstantPool pool, ParseObserver observer) {
             if (size < 0) {
                 throw new IllegalArgumentException("size < 0");
             }
@@ -27,9 +27,13 @@ public class Main {
         "usage:\n" +
         "  dx --dex [--debug] [--verbose] [--positions=<style>] [--no-locals]\n" +
         "  [--no-optimize] [--statistics] [--[no-]optimize-list=<file>] [--no-strict]\n" +
+        "  [--optimize-tier=<tier>] [--optimize-max-insns=<n>]\n" +
+        "  [--optimize-max-millis=<n>]\n" +
         "  [--keep-classes] [--output=<file>] [--dump-to=<file>] [--dump-width=<n>]\n" +
         "  [--dump-method=<name>[*]] [--verbose-dump] [--no-files] [--core-library]\n" +
-        "  [--num-threads=<n>] [--incremental] [--force-jumbo] [--no-warning]\n" +
+        "  [--num-threads=<n>] [--num-method-threads=<n>] [--num-read-threads=<n>]\n" +
+        "  [--incremental]\n" +
+        "  [--force-jumbo] [--no-warning]\n" +
         "  [--multi-dex [--main-dex-list=<file> [--minimal-main-dex]]\n" +
         "  [--input-list=<file>] [--min-sdk-version=<n>]\n" +
         "  [<file>.class | <file>.{zip,jar,apk} | <directory>] ...\n" +
@@ -37,9 +41,19 @@ public class Main {
         "    jar/zip. Output name must end with one of: .dex .jar .zip .apk or be a\n" +
         "    directory.\n" +
         "    Positions options: none, important, lines.\n" +
+        "    Optimize tiers: fast (no SCCP or constant collection), default, max\n" +
+        "    (adds escape analysis).\n" +
+        "    --optimize-max-insns=<n>, --optimize-max-millis=<n>: per-method\n" +
+        "    instruction and time budgets above which a method is optimized at the\n" +
+        "    fast tier; 0 disables a budget. The time budget makes output depend on\n" +
+        "    machine load and is off by default.\n" +
         "    --multi-dex: allows to generate several dex files if needed. This option is\n" +
         "    exclusive with --incremental, causes --num-threads to be ignored and only\n" +
         "    supports folder or archive output.\n" +
+        "    --num-method-threads=<n>: translate the methods of large classes on <n>\n" +
+        "    threads. Output is identical to a single-threaded run.\n" +
+        "    --num-read-threads=<n>: inflate the entries of input archives on <n>\n" +
+        "    threads, ahead of translation. Entries are still processed in order.\n" +
         "    --main-dex-list=<file>: <file> is a list of class file names, classes\n" +
         "    defined by those class files are put in classes.dex.\n" +
         "    --minimal-main-dex: only classes selected by --main-dex-list are to be put\n" +
@@ -50,15 +64,29 @@ public class Main {
         "    --min-sdk-version=<n>: Enable dex file features that require at least sdk\n" +
         "    version <n>.\n" +
         "  dx --annotool --annotation=<class> [--element=<element types>]\n" +
-        "  [--print=<print types>]\n" +
+        "  [--print=<print types>] [--fast] [--num-threads=<n>]\n" +
+        "    --fast: scan only class annotations, on several threads; output is\n" +
+        "    the same. --num-threads=<n> sets the number of threads and implies\n" +
+        "    --fast.\n" +
         "  dx --dump [--debug] [--strict] [--bytes] [--optimize]\n" +
         "  [--basic-blocks | --rop-blocks | --ssa-blocks | --dot] [--ssa-step=<step>]\n" +
-        "  [--width=<n>] [<file>.class | <file>.txt] ...\n" +
+        "  [--width=<n>] [--num-threads=<n>] [--output=<dir>]\n" +
+        "  [<file>.class | <file>.txt | <file>.jar | <directory>] ...\n" +
         "    Dump classfiles, or transformations thereof, in a human-oriented format.\n" +
+        "    --num-threads=<n>: dump classes on <n> threads; output stays in input\n" +
+        "    order.\n" +
+        "    --output=<dir>: write each class to its own file under <dir>, in a\n" +
+        "    directory per package. Fails if two classes have the same name.\n" +
         "  dx --find-usages <file.dex> <declaring type> <member>\n" +
         "    Find references and declarations to a field or method.\n" +
         "    <declaring type> is a class name in internal form, like Ljava/lang/Object;\n" +
         "    <member> is a field or method name, like hashCode.\n" +
+        "  dx --grep [-j <threads>] [-e <regex>]... [-u <declaring type> <member>]...\n" +
+        "  <file>...\n" +
+        "    Find strings matching any <regex>, and references and declarations to\n" +
+        "    fields or methods as --find-usages does, in dex files or in all\n" +
+        "    classes*.dex entries of archives. Dex files are scanned on <threads>\n" +
+        "    threads.\n" +
         "  dx -J<option> ... <arguments, in one of the above forms>\n" +
         "    Pass VM-specific options to the virtual machine that runs dx.\n" +
         "  dx --version\n" +
@@ -103,6 +131,9 @@ public class Main {
                 } else if (arg.equals("--find-usages")) {
                     comm.android.dx.command.findusages.Main.main(without(args, i));
                     break;
+                } else if (arg.equals("--grep")) {
+                    comm.android.dx.command.grep.MultiMain.main(without(args, i));
+                    break;
                 } else if (arg.equals("--version")) {
                     version();
                     break;
@@ -19,11 +19,13 @@ package comm.android.dx.command.annotool;
 import comm.android.dx.cf.attrib.AttRuntimeInvisibleAnnotations;
 import comm.android.dx.cf.attrib.AttRuntimeVisibleAnnotations;
 import comm.android.dx.cf.attrib.BaseAnnotations;
+import comm.android.dx.cf.attrib.RawAttribute;
 import comm.android.dx.cf.direct.ClassPathOpener;
 import comm.android.dx.cf.direct.DirectClassFile;
 import comm.android.dx.cf.direct.StdAttributeFactory;
 import comm.android.dx.cf.iface.Attribute;
 import comm.android.dx.cf.iface.AttributeList;
+import comm.android.dx.cf.iface.ParseObserver;
 import comm.android.dx.rop.annotation.Annotation;
 import comm.android.dx.util.ByteArray;
 import comm.android.dx.cf.attrib.AttRuntimeInvisibleAnnotations;
@@ -37,7 +39,13 @@ import comm.android.dx.util.ByteArray;
 
 import java.io.File;
 import java.lang.annotation.ElementType;
+import java.util.ArrayDeque;
 import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Greps annotations on a set of class files and prints matching elements
@@ -51,6 +59,9 @@ class AnnotationLister {
      */
     private static final String PACKAGE_INFO = "package-info";
 
+    /** in fast mode, number of classes scanned ahead of the oldest one, per thread */
+    private static final int SCAN_AHEAD_PER_THREAD = 4;
+
     /** current match configuration */
     private final Main.Arguments args;
 
@@ -66,6 +77,11 @@ class AnnotationLister {
 
     /** Processes based on configuration specified in constructor. */
     void process() {
+        if (args.fast) {
+            processFast();
+            return;
+        }
+
         for (String path : args.files) {
             ClassPathOpener opener;
 
@@ -105,7 +121,7 @@ class AnnotationLister {
                         }
                     } else if (isMatchingInnerClass(cfClassName)
                             || isMatchingPackage(cfClassName)) {
-                        printMatch(cf);
+                        printMatch(cfClassName);
                     } else {
                         att = attributes.findFirst(
                                 AttRuntimeInvisibleAnnotations.ATTRIBUTE_NAME);
@@ -141,6 +157,159 @@ class AnnotationLister {
         }
     }
 
+    /**
+     * Processes like {@link #process}, but scans the class files on
+     * {@code args.numThreads} threads and parses only what is needed to find
+     * class annotations. Whether a class matches can depend on the classes
+     * before it, so the scan results are applied one at a time in the order
+     * the files are read, and the output is the same as in the default mode.
+     */
+    private void processFast() {
+        final ExecutorService scanPool
+                = Executors.newFixedThreadPool(args.numThreads);
+        final ArrayDeque<Future<ScannedClass>> pendingScans
+                = new ArrayDeque<Future<ScannedClass>>();
+
+        try {
+            for (String path : args.files) {
+                ClassPathOpener opener;
+
+                opener = new ClassPathOpener(path, true,
+                        ClassPathOpener.acceptAll,
+                        new ClassPathOpener.Consumer() {
+                    public boolean processFileBytes(final String name,
+                            long lastModified, final byte[] bytes) {
+                        if (!name.endsWith(".class")) {
+                            return true;
+                        }
+
+                        pendingScans.add(scanPool.submit(
+                                new Callable<ScannedClass>() {
+                            public ScannedClass call() {
+                                return scan(name, bytes);
+                            }
+                        }));
+                        if (pendingScans.size()
+                                >= args.numThreads * SCAN_AHEAD_PER_THREAD) {
+                            applyNextScan(pendingScans);
+                        }
+                        return true;
+                    }
+
+                    public void onException(Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+
+                    public void onProcessArchiveStart(File file) {
+
+                    }
+
+                }, args.numThreads);
+
+                opener.process();
+            }
+
+            while (!pendingScans.isEmpty()) {
+                applyNextScan(pendingScans);
+            }
+        } finally {
+            scanPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Finds the class annotations of a class file. Fields and methods are
+     * skipped over without parsing their attributes.
+     *
+     * @param name {@code non-null;} name of the class file
+     * @param bytes {@code non-null;} contents of the class file
+     * @return {@code non-null;} the class name and its matching annotations
+     */
+    private ScannedClass scan(String name, byte[] bytes) {
+        DirectClassFile cf
+            = new DirectClassFile(new ByteArray(bytes), name, true);
+
+        cf.setAttributeFactory(ClassAnnotationsAttributeFactory.THE_ONE);
+        AttributeList attributes = cf.getAttributes();
+        int matches = 0;
+
+        Attribute att = attributes.findFirst(
+                AttRuntimeInvisibleAnnotations.ATTRIBUTE_NAME);
+
+        for (;att != null; att = attributes.findNext(att)) {
+            matches += countMatches((BaseAnnotations) att);
+        }
+
+        att = attributes.findFirst(
+                AttRuntimeVisibleAnnotations.ATTRIBUTE_NAME);
+
+        for (;att != null; att = attributes.findNext(att)) {
+            matches += countMatches((BaseAnnotations) att);
+        }
+
+        return new ScannedClass(
+                cf.getThisClass().getClassType().getClassName(), matches);
+    }
+
+    /**
+     * Waits for the oldest pending scan and applies its result the way
+     * {@link #process} applies a class it has just parsed.
+     */
+    private void applyNextScan(ArrayDeque<Future<ScannedClass>> pendingScans) {
+        ScannedClass scanned;
+        try {
+            scanned = pendingScans.remove().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while scanning", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+
+        String className = scanned.className;
+
+        if (className.endsWith(PACKAGE_INFO)) {
+            if (args.eTypes.contains(ElementType.PACKAGE)) {
+                for (int i = 0; i < scanned.matches; i++) {
+                    printMatchPackage(packageName(className));
+                }
+            }
+        } else if (isMatchingInnerClass(className)
+                || isMatchingPackage(className)) {
+            printMatch(className);
+        } else if (args.eTypes.contains(ElementType.TYPE)) {
+            for (int i = 0; i < scanned.matches; i++) {
+                printMatch(className);
+            }
+        }
+    }
+
+    /**
+     * Counts the annotations of the type being looked for.
+     *
+     * @param ann {@code non-null;} annotations to look through
+     * @return the number of matching annotations
+     */
+    private int countMatches(BaseAnnotations ann) {
+        int count = 0;
+
+        for (Annotation anAnn : ann.getAnnotations().getAnnotations()) {
+            String annClassName
+                    = anAnn.getType().getClassType().getClassName();
+            if (args.aclass.equals(annClassName)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
     /**
      * Inspects a class annotation.
      *
@@ -158,7 +327,7 @@ class AnnotationLister {
             String annClassName
                     = anAnn.getType().getClassType().getClassName();
             if (args.aclass.equals(annClassName)) {
-                printMatch(cf);
+                printMatch(cf.getThisClass().getClassType().getClassName());
             }
         }
     }
@@ -176,17 +345,8 @@ class AnnotationLister {
             return;
         }
 
-        String packageName = cf.getThisClass().getClassType().getClassName();
-
-        int slashIndex = packageName.lastIndexOf('/');
-
-        if (slashIndex == -1) {
-            packageName = "";
-        } else {
-            packageName
-                    = packageName.substring(0, slashIndex);
-        }
-
+        String packageName = packageName(
+                cf.getThisClass().getClassType().getClassName());
 
         for (Annotation anAnn : ann.getAnnotations().getAnnotations()) {
             String annClassName
@@ -223,21 +383,16 @@ class AnnotationLister {
      * Prints, or schedules for printing, elements related to a matching
      * class.
      *
-     * @param cf {@code non-null;} matching class
+     * @param className {@code non-null;} name of the matching class
      */
-    private void printMatch(DirectClassFile cf) {
+    private void printMatch(String className) {
         for (Main.PrintType pt : args.printTypes) {
             switch (pt) {
                 case CLASS:
-                    String classname;
-                    classname =
-                        cf.getThisClass().getClassType().getClassName();
-                    classname = classname.replace('/','.');
-                    System.out.println(classname);
+                    System.out.println(className.replace('/','.'));
                     break;
                 case INNERCLASS:
-                    matchInnerClassesOf.add(
-                            cf.getThisClass().getClassType().getClassName());
+                    matchInnerClassesOf.add(className);
                     break;
                 case METHOD:
                     //TODO
@@ -276,16 +431,65 @@ class AnnotationLister {
      * @return true if this package should be considered a match
      */
     private boolean isMatchingPackage(String s) {
-        int slashIndex = s.lastIndexOf('/');
+        return matchPackages.contains(packageName(s));
+    }
+
+    /**
+     * Gets the package of a class.
+     *
+     * @param className {@code non-null;} class name
+     * @return {@code non-null;} package name, or {@code ""} for the default
+     * package
+     */
+    private static String packageName(String className) {
+        int slashIndex = className.lastIndexOf('/');
 
-        String packageName;
         if (slashIndex == -1) {
-            packageName = "";
-        } else {
-            packageName
-                    = s.substring(0, slashIndex);
+            return "";
         }
 
-        return matchPackages.contains(packageName);
+        return className.substring(0, slashIndex);
+    }
+
+    /**
+     * Result of scanning one class file in fast mode.
+     */
+    private static final class ScannedClass {
+        /** {@code non-null;} internal name of the class */
+        final String className;
+
+        /** number of class annotations of the type being looked for */
+        final int matches;
+
+        ScannedClass(String className, int matches) {
+            this.className = className;
+            this.matches = matches;
+        }
+    }
+
+    /**
+     * Attribute factory for fast mode. Only the annotation attributes of the
+     * class itself are parsed; everything else, method bodies included, is
+     * left as raw bytes.
+     */
+    private static final class ClassAnnotationsAttributeFactory
+            extends StdAttributeFactory {
+        /** {@code non-null;} shared instance of this class */
+        static final ClassAnnotationsAttributeFactory THE_ONE =
+            new ClassAnnotationsAttributeFactory();
+
+        @Override
+        protected Attribute parse0(DirectClassFile cf, int context,
+                String name, int offset, int length, ParseObserver observer) {
+            if (context == CTX_CLASS
+                    && (name == AttRuntimeInvisibleAnnotations.ATTRIBUTE_NAME
+                    || name == AttRuntimeVisibleAnnotations.ATTRIBUTE_NAME)) {
+                return super.parse0(cf, context, name, offset, length,
+                        observer);
+            }
+
+            return new RawAttribute(name, cf.getBytes(), offset, length,
+                    cf.getConstantPool());
+        }
     }
 }
@@ -53,6 +53,12 @@ public class Main {
         /** from --print */
         EnumSet<PrintType> printTypes = EnumSet.noneOf(PrintType.class);
 
+        /** from --fast, or implied by --num-threads */
+        boolean fast;
+
+        /** from --num-threads, number of threads scanning in fast mode */
+        int numThreads = Runtime.getRuntime().availableProcessors();
+
         /** remaining positional arguments */
         String[] files;
 
@@ -91,6 +97,22 @@ public class Main {
                     } catch (IllegalArgumentException ex) {
                         throw new InvalidArgumentException("invalid --print");
                     }
+                } else if (arg.equals("--fast")) {
+                    fast = true;
+                } else if (arg.startsWith("--num-threads=")) {
+                    String argParam = arg.substring(arg.indexOf('=') + 1);
+
+                    try {
+                        numThreads = Integer.parseInt(argParam);
+                    } catch (NumberFormatException ex) {
+                        throw new InvalidArgumentException(
+                                "invalid --num-threads");
+                    }
+                    if (numThreads < 1) {
+                        throw new InvalidArgumentException(
+                                "--num-threads must be at least 1");
+                    }
+                    fast = true;
                 } else {
                     files = new String[argArray.length - i];
                     System.arraycopy(argArray, i, files, 0, files.length);
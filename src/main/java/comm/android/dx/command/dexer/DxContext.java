@@ -2,10 +2,12 @@ package comm.android.dx.command.dexer;
 
 import comm.android.dx.dex.cf.CodeStatistics;
 import comm.android.dx.dex.cf.OptimizerOptions;
+import comm.android.dx.ssa.PassStatistics;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * State used by a single invocation of {@link Main}.
@@ -13,6 +15,14 @@ import java.io.PrintStream;
 public class DxContext {
     public final CodeStatistics codeStatistics = new CodeStatistics();
     public final OptimizerOptions optimizerOptions = new OptimizerOptions();
+    public final PassStatistics passStatistics = new PassStatistics();
+
+    /**
+     * {@code null-ok;} pool on which the methods of large classes are
+     * translated in parallel, or {@code null} to translate them on the
+     * thread handling the class
+     */
+    public ForkJoinPool methodPool;
     public final PrintStream out;
     public final PrintStream err;
 
@@ -46,6 +46,7 @@ import comm.android.dx.rop.cst.CstString;
 import comm.android.dx.rop.cst.CstType;
 import comm.android.dx.rop.type.Prototype;
 import comm.android.dx.rop.type.Type;
+import comm.android.dx.ssa.Optimizer;
 import comm.android.dex.Dex;
 import comm.android.dx.Version;
 import comm.android.dx.cf.direct.ClassPathOpener;
@@ -86,6 +87,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -299,6 +301,10 @@ public class Main {
             humanOutWriter = new OutputStreamWriter(humanOutRaw);
         }
 
+        if (args.numMethodThreads > 1) {
+            context.methodPool = new ForkJoinPool(args.numMethodThreads);
+        }
+
         try {
             if (args.multiDex) {
                 return runMultiDex();
@@ -307,6 +313,10 @@ public class Main {
             }
         } finally {
             closeOutput(humanOutRaw);
+            if (context.methodPool != null) {
+                context.methodPool.shutdown();
+                context.methodPool = null;
+            }
         }
     }
 
@@ -653,6 +663,7 @@ public class Main {
 
         if (args.optimize && args.statistics) {
             context.codeStatistics.dumpStatistics(context.out);
+            context.passStatistics.dumpStatistics(context.out);
         }
 
         return true;
@@ -689,7 +700,8 @@ public class Main {
     private void processOne(String pathname, FileNameFilter filter) {
         ClassPathOpener opener;
 
-        opener = new ClassPathOpener(pathname, true, filter, new FileBytesConsumer());
+        opener = new ClassPathOpener(pathname, true, filter, new FileBytesConsumer(),
+                args.numReadThreads);
 
         if (opener.process()) {
           updateStatus(true);
@@ -1259,10 +1271,16 @@ public class Main {
 
         private static final String NUM_THREADS_OPTION = "--num-threads";
 
+        private static final String NUM_METHOD_THREADS_OPTION = "--num-method-threads";
+
+        private static final String NUM_READ_THREADS_OPTION = "--num-read-threads";
+
         private static final String INCREMENTAL_OPTION = "--incremental";
 
         private static final String INPUT_LIST_OPTION = "--input-list";
 
+        private static final int DEFAULT_OPTIMIZE_MAX_INSNS = 32768;
+
         public final DxContext context;
 
         /** whether to run in debug mode */
@@ -1344,6 +1362,23 @@ public class Main {
         /** Whether to print statistics to stdout at end of compile cycle */
         public boolean statistics;
 
+        /** how thoroughly to optimize */
+        public Optimizer.Tier optimizeTier = Optimizer.Tier.DEFAULT;
+
+        /**
+         * effective rop insn count above which a method is only optimized
+         * at the fast tier; {@code 0} for no limit. Huge generated methods
+         * (e.g. static initializers of big tables) dominate optimizer time
+         * while gaining little from SCCP or constant collection.
+         */
+        public int optimizeMaxInsns = DEFAULT_OPTIMIZE_MAX_INSNS;
+
+        /**
+         * milliseconds a single method may spend in the optimizer before
+         * it is finished at the fast tier; {@code 0} for no limit
+         */
+        public long optimizeMaxMillis = 0;
+
         /** Options for class file transformation */
         public CfOptions cfOptions;
 
@@ -1353,6 +1388,15 @@ public class Main {
         /** number of threads to run with */
         public int numThreads = 1;
 
+        /**
+         * number of threads translating the methods of a single large class
+         * in parallel, in addition to the class-level {@link #numThreads}
+         */
+        public int numMethodThreads = 1;
+
+        /** number of threads inflating the entries of input archives */
+        public int numReadThreads = 1;
+
         /** generation of multiple dex is allowed */
         public boolean multiDex = false;
 
@@ -1518,6 +1562,22 @@ public class Main {
                     }
                     optimize = true;
                     dontOptimizeListFile = parser.getLastValue();
+                } else if (parser.isArg("--optimize-tier=")) {
+                    String tstr = parser.getLastValue();
+                    if (tstr.equals("fast")) {
+                        optimizeTier = Optimizer.Tier.FAST;
+                    } else if (tstr.equals("default")) {
+                        optimizeTier = Optimizer.Tier.DEFAULT;
+                    } else if (tstr.equals("max")) {
+                        optimizeTier = Optimizer.Tier.MAX;
+                    } else {
+                        context.err.println("unknown optimize tier: " + tstr);
+                        throw new UsageException();
+                    }
+                } else if (parser.isArg("--optimize-max-insns=")) {
+                    optimizeMaxInsns = parseBudget(parser.getLastValue());
+                } else if (parser.isArg("--optimize-max-millis=")) {
+                    optimizeMaxMillis = parseBudget(parser.getLastValue());
                 } else if (parser.isArg("--keep-classes")) {
                     keepClassesInJar = true;
                 } else if (parser.isArg("--output=")) {
@@ -1560,6 +1620,15 @@ public class Main {
                     localInfo = false;
                 } else if (parser.isArg(NUM_THREADS_OPTION + "=")) {
                     numThreads = Integer.parseInt(parser.getLastValue());
+                } else if (parser.isArg(NUM_METHOD_THREADS_OPTION + "=")) {
+                    numMethodThreads = Integer.parseInt(parser.getLastValue());
+                } else if (parser.isArg(NUM_READ_THREADS_OPTION + "=")) {
+                    numReadThreads = Integer.parseInt(parser.getLastValue());
+                    if (numReadThreads < 1) {
+                        context.err.println("improper " + NUM_READ_THREADS_OPTION
+                                + " option: " + parser.getLastValue());
+                        throw new UsageException();
+                    }
                 } else if (parser.isArg(INCREMENTAL_OPTION)) {
                     incremental = true;
                 } else if (parser.isArg("--force-jumbo")) {
@@ -1604,6 +1673,20 @@ public class Main {
         }
 
 
+        private int parseBudget(String arg) {
+            int value;
+            try {
+                value = Integer.parseInt(arg);
+            } catch (NumberFormatException ex) {
+                value = -1;
+            }
+            if (value < 0) {
+                context.err.println("improper optimizer budget: " + arg);
+                throw new UsageException();
+            }
+            return value;
+        }
+
         /**
          * Parses all command-line arguments and updates the state of the {@code Arguments} object
          * accordingly.
@@ -1685,6 +1768,9 @@ public class Main {
             cfOptions.localInfo = localInfo;
             cfOptions.strictNameCheck = strictNameCheck;
             cfOptions.optimize = optimize;
+            cfOptions.optimizeTier = optimizeTier;
+            cfOptions.optimizeBudget =
+                    new Optimizer.Budget(optimizeMaxInsns, optimizeMaxMillis);
             cfOptions.optimizeListFile = optimizeListFile;
             cfOptions.dontOptimizeListFile = dontOptimizeListFile;
             cfOptions.statistics = statistics;
@@ -53,4 +53,13 @@ class Args {
     /** if non-null, an explicit method to dump */
     String method;
 
+    /** number of threads dumping classes; more than one buffers each class */
+    int numThreads = 1;
+
+    /**
+     * if non-null, the directory to dump each class into, as a file named after the class
+     * in a subdirectory per package; classes whose names would lead elsewhere are not dumped
+     */
+    String outputDirectory;
+
 }
@@ -47,6 +47,8 @@ import comm.android.dx.util.ByteArray;
 import comm.android.dx.util.Hex;
 import comm.android.dx.util.IntList;
 
+import java.io.PrintStream;
+
 /**
  * Dumps the pred/succ graph of methods into a format compatible
  * with the popular graph utility "dot".
@@ -55,18 +57,20 @@ public class DotDumper implements ParseObserver {
     private DirectClassFile classFile;
 
     private final byte[] bytes;
+    private final PrintStream out;
     private final String filePath;
     private final boolean strictParse;
     private final boolean optimize;
     private final Args args;
     private final DexOptions dexOptions;
 
-    static void dump(byte[] bytes, String filePath, Args args) {
-        new DotDumper(bytes, filePath, args).run();
+    static void dump(byte[] bytes, PrintStream out, String filePath, Args args) {
+        new DotDumper(bytes, out, filePath, args).run();
     }
 
-    DotDumper(byte[] bytes, String filePath, Args args) {
+    DotDumper(byte[] bytes, PrintStream out, String filePath, Args args) {
         this.bytes = bytes;
+        this.out = out;
         this.filePath = filePath;
         this.strictParse = args.strictParse;
         this.optimize = args.optimize;
@@ -139,9 +143,9 @@ public class DotDumper implements ParseObserver {
                     true, advice);
         }
 
-        System.out.println("digraph "  + name + "{");
+        out.println("digraph "  + name + "{");
 
-        System.out.println("\tfirst -> n"
+        out.println("\tfirst -> n"
                 + Hex.u2(rmeth.getFirstLabel()) + ";");
 
         BasicBlockList blocks = rmeth.getBlocks();
@@ -153,23 +157,23 @@ public class DotDumper implements ParseObserver {
             IntList successors = bb.getSuccessors();
 
             if (successors.size() == 0) {
-                System.out.println("\tn" + Hex.u2(label) + " -> returns;");
+                out.println("\tn" + Hex.u2(label) + " -> returns;");
             } else if (successors.size() == 1) {
-                System.out.println("\tn" + Hex.u2(label) + " -> n"
+                out.println("\tn" + Hex.u2(label) + " -> n"
                         + Hex.u2(successors.get(0)) + ";");
             } else {
-                System.out.print("\tn" + Hex.u2(label) + " -> {");
+                out.print("\tn" + Hex.u2(label) + " -> {");
                 for (int j = 0; j < successors.size(); j++ ) {
                     int successor = successors.get(j);
 
                     if (successor != bb.getPrimarySuccessor()) {
-                        System.out.print(" n" + Hex.u2(successor) + " ");
+                        out.print(" n" + Hex.u2(successor) + " ");
                     }
 
                 }
-                System.out.println("};");
+                out.println("};");
 
-                System.out.println("\tn" + Hex.u2(label) + " -> n"
+                out.println("\tn" + Hex.u2(label) + " -> n"
                         + Hex.u2(bb.getPrimarySuccessor())
                         + " [label=\"primary\"];");
 
@@ -177,6 +181,6 @@ public class DotDumper implements ParseObserver {
             }
         }
 
-        System.out.println("}");
+        out.println("}");
     }
 }
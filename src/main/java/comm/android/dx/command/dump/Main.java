@@ -17,21 +17,54 @@
 package comm.android.dx.command.dump;
 
 import comm.android.dex.util.FileUtils;
+import comm.android.dx.cf.direct.ClassPathOpener;
+import comm.android.dx.cf.direct.DirectClassFile;
+import comm.android.dx.cf.direct.StdAttributeFactory;
 import comm.android.dx.cf.iface.ParseException;
+import comm.android.dx.util.ByteArray;
 import comm.android.dx.util.HexParser;
 import comm.android.dex.util.FileUtils;
 import comm.android.dx.cf.iface.ParseException;
 import comm.android.dx.util.HexParser;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Main class for the class file dumper.
  */
 public class Main {
 
+    /**
+     * number of classes dumped ahead of the one being printed, per thread; bounds the memory
+     * held by buffered dumps
+     */
+    private static final int DUMP_AHEAD_PER_THREAD = 4;
+
     private Args parsedArgs = new Args();
 
+    /** {@code null-ok;} workers, if classes are dumped in parallel or to files */
+    private ExecutorService dumpPool;
+
+    /** output files claimed so far, mapped to the name of the class file dumped into each */
+    private final ConcurrentHashMap<File, String> outputFiles =
+            new ConcurrentHashMap<File, String>();
+
+    /** dumps in input order, not yet printed */
+    private final ArrayDeque<Future<Dump>> pendingDumps = new ArrayDeque<Future<Dump>>();
+
     /**
      * This class is uninstantiable.
      */
@@ -77,6 +110,12 @@ public class Main {
             } else if (arg.startsWith("--method=")) {
                 arg = arg.substring(arg.indexOf('=') + 1);
                 parsedArgs.method = arg;
+            } else if (arg.startsWith("--num-threads=")) {
+                arg = arg.substring(arg.indexOf('=') + 1);
+                parsedArgs.numThreads = Integer.parseInt(arg);
+            } else if (arg.startsWith("--output=")) {
+                arg = arg.substring(arg.indexOf('=') + 1);
+                parsedArgs.outputDirectory = arg;
             } else {
                 System.err.println("unknown option: " + arg);
                 throw new RuntimeException("usage");
@@ -88,51 +127,272 @@ public class Main {
             throw new RuntimeException("usage");
         }
 
-        for (/*at*/; at < args.length; at++) {
-            try {
+        if (parsedArgs.numThreads < 1) {
+            System.err.println("--num-threads must be at least 1");
+            throw new RuntimeException("usage");
+        }
+
+        if (parsedArgs.ssaBlocks && !parsedArgs.dotDump && !parsedArgs.basicBlocks
+                && !parsedArgs.ropBlocks) {
+            // --optimize ignored with --ssa-blocks
+            parsedArgs.optimize = false;
+        }
+
+        if (parsedArgs.numThreads > 1 || parsedArgs.outputDirectory != null) {
+            dumpPool = Executors.newFixedThreadPool(parsedArgs.numThreads);
+        }
+
+        try {
+            for (/*at*/; at < args.length; at++) {
                 String name = args[at];
-                System.out.println("reading " + name + "...");
-                byte[] bytes = FileUtils.readFile(name);
-                if (!name.endsWith(".class")) {
-                    String src;
-                    try {
-                        src = new String(bytes, "utf-8");
-                    } catch (UnsupportedEncodingException ex) {
-                        throw new RuntimeException("shouldn't happen", ex);
-                    }
-                    bytes = HexParser.parse(src);
+                File file = new File(name);
+                if (file.isDirectory() || name.endsWith(".zip") || name.endsWith(".jar")
+                        || name.endsWith(".apk")) {
+                    processPath(name);
+                    continue;
                 }
-                processOne(name, bytes);
-            } catch (ParseException ex) {
-                System.err.println("\ntrouble parsing:");
-                if (parsedArgs.debug) {
-                    ex.printStackTrace();
-                } else {
-                    ex.printContext(System.err);
+                if (dumpPool == null) {
+                    System.out.println("reading " + name + "...");
                 }
+                processOne(name, FileUtils.readFile(name));
+            }
+            while (!pendingDumps.isEmpty()) {
+                printNextDump();
+            }
+        } finally {
+            if (dumpPool != null) {
+                dumpPool.shutdownNow();
             }
         }
     }
 
     /**
-     * Processes one file.
+     * Processes the class files in a directory or archive.
+     *
+     * @param path {@code non-null;} the directory or archive
+     */
+    private void processPath(String path) {
+        ClassPathOpener opener = new ClassPathOpener(path, true,
+                new ClassPathOpener.FileNameFilter() {
+                    @Override
+                    public boolean accept(String name) {
+                        return name.endsWith(".class");
+                    }
+                },
+                new ClassPathOpener.Consumer() {
+                    @Override
+                    public boolean processFileBytes(String name, long lastModified,
+                            byte[] bytes) {
+                        if (dumpPool == null) {
+                            System.out.println("reading " + name + "...");
+                        }
+                        processOne(name, bytes);
+                        return true;
+                    }
+
+                    @Override
+                    public void onException(Exception ex) {
+                        if (ex instanceof RuntimeException) {
+                            throw (RuntimeException) ex;
+                        }
+                        throw new RuntimeException(ex);
+                    }
+
+                    @Override
+                    public void onProcessArchiveStart(File file) {
+                        // This space intentionally left blank.
+                    }
+                });
+        opener.process();
+    }
+
+    /**
+     * Processes one file, either right away or by handing it to a worker.
      *
      * @param name {@code non-null;} name of the file
-     * @param bytes {@code non-null;} contents of the file
+     * @param bytes {@code non-null;} contents of the file, a class file or its hex dump
+     */
+    private void processOne(final String name, final byte[] bytes) {
+        if (dumpPool == null) {
+            try {
+                dump(name, classBytes(name, bytes), System.out);
+            } catch (ParseException ex) {
+                printTrouble(ex);
+            }
+            return;
+        }
+
+        pendingDumps.add(dumpPool.submit(new Callable<Dump>() {
+            @Override
+            public Dump call() throws IOException {
+                return dumpToBuffer(name, bytes);
+            }
+        }));
+        if (pendingDumps.size() >= parsedArgs.numThreads * DUMP_AHEAD_PER_THREAD) {
+            printNextDump();
+        }
+    }
+
+    /**
+     * Dumps one class with the dumper selected by the arguments.
      */
-    private void processOne(String name, byte[] bytes) {
+    private void dump(String name, byte[] bytes, PrintStream out) {
         if (parsedArgs.dotDump) {
-            DotDumper.dump(bytes, name, parsedArgs);
+            DotDumper.dump(bytes, out, name, parsedArgs);
         } else if (parsedArgs.basicBlocks) {
-            BlockDumper.dump(bytes, System.out, name, false, parsedArgs);
+            BlockDumper.dump(bytes, out, name, false, parsedArgs);
         } else if (parsedArgs.ropBlocks) {
-            BlockDumper.dump(bytes, System.out, name, true, parsedArgs);
+            BlockDumper.dump(bytes, out, name, true, parsedArgs);
         } else if (parsedArgs.ssaBlocks) {
-            // --optimize ignored with --ssa-blocks
-            parsedArgs.optimize = false;
-            SsaDumper.dump(bytes, System.out, name, parsedArgs);
+            SsaDumper.dump(bytes, out, name, parsedArgs);
+        } else {
+            ClassDumper.dump(bytes, out, name, parsedArgs);
+        }
+    }
+
+    /**
+     * Dumps one class on a worker, into a buffer or into its file in the output directory.
+     */
+    private Dump dumpToBuffer(String name, byte[] bytes) throws IOException {
+        Dump result = new Dump(name);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer);
+        try {
+            bytes = classBytes(name, bytes);
+            if (parsedArgs.outputDirectory != null) {
+                result.outputFile = outputFileFor(name, bytes);
+            }
+            dump(name, bytes, out);
+        } catch (ParseException ex) {
+            result.trouble = ex;
+        }
+        out.flush();
+
+        if (result.outputFile == null) {
+            result.output = buffer.toByteArray();
+        } else {
+            result.outputFile.getParentFile().mkdirs();
+            BufferedOutputStream fileOut =
+                    new BufferedOutputStream(new FileOutputStream(result.outputFile));
+            try {
+                buffer.writeTo(fileOut);
+            } finally {
+                fileOut.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the bytes of a class file, parsing them first if the file is a hex dump.
+     */
+    private static byte[] classBytes(String name, byte[] bytes) {
+        if (name.endsWith(".class")) {
+            return bytes;
+        }
+        String src;
+        try {
+            src = new String(bytes, "utf-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException("shouldn't happen", ex);
+        }
+        return HexParser.parse(src);
+    }
+
+    /**
+     * Returns the file in the output directory for a class: its binary name, with a
+     * directory per package, and an extension for the kind of dump. Fails if another class
+     * already claimed the file.
+     *
+     * @throws ParseException if the class name does not make a file inside the output
+     * directory
+     */
+    private File outputFileFor(String name, byte[] bytes) throws IOException {
+        DirectClassFile classFile = new DirectClassFile(new ByteArray(bytes), name,
+                parsedArgs.strictParse);
+        classFile.setAttributeFactory(StdAttributeFactory.THE_ONE);
+        String className = classFile.getThisClass().getClassType().getClassName();
+        for (String part : className.split("/", -1)) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")
+                    || part.indexOf(File.separatorChar) >= 0) {
+                throw new ParseException("class name " + className
+                        + " cannot be used as a file name");
+            }
+        }
+        String extension = parsedArgs.dotDump ? ".dot" : ".txt";
+        File directory = new File(parsedArgs.outputDirectory).getCanonicalFile();
+        File file = new File(directory,
+                className.replace('/', File.separatorChar) + extension).getCanonicalFile();
+        if (!file.getPath().startsWith(directory.getPath() + File.separator)) {
+            throw new ParseException("class name " + className
+                    + " leads outside the output directory");
+        }
+
+        String previous = outputFiles.putIfAbsent(file, name);
+        if (previous != null) {
+            throw new RuntimeException("both " + previous + " and " + name
+                    + " define " + className + ", which would be dumped to " + file);
+        }
+        return file;
+    }
+
+    /**
+     * Waits for the oldest pending dump and prints it, so output stays in input order.
+     */
+    private void printNextDump() {
+        Dump dump;
+        try {
+            dump = pendingDumps.remove().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while dumping", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+
+        System.out.println("reading " + dump.name + "...");
+        if (dump.output != null) {
+            System.out.write(dump.output, 0, dump.output.length);
+            System.out.flush();
+        }
+        if (dump.trouble != null) {
+            printTrouble(dump.trouble);
+        }
+    }
+
+    private void printTrouble(ParseException ex) {
+        System.err.println("\ntrouble parsing:");
+        if (parsedArgs.debug) {
+            ex.printStackTrace();
         } else {
-            ClassDumper.dump(bytes, System.out, name, parsedArgs);
+            ex.printContext(System.err);
+        }
+    }
+
+    /**
+     * The result of dumping one class on a worker.
+     */
+    private static final class Dump {
+        /** {@code non-null;} name of the class file */
+        private final String name;
+
+        /** {@code null-ok;} the dump, unless it was written to {@link #outputFile} */
+        private byte[] output;
+
+        /** {@code null-ok;} the file the dump was written to */
+        private File outputFile;
+
+        /** {@code null-ok;} the error that cut the dump short */
+        private ParseException trouble;
+
+        Dump(String name) {
+            this.name = name;
         }
     }
 }
@@ -151,7 +151,8 @@ public final class FindUsages {
      * Returns the fields with {@code memberNameIndex} declared by {@code
      * declaringType}.
      */
-    private Set<Integer> getFieldIds(Dex dex, Set<Integer> memberNameIndexes, int declaringType) {
+    public static Set<Integer> getFieldIds(Dex dex, Set<Integer> memberNameIndexes,
+            int declaringType) {
         Set<Integer> fields = new HashSet<Integer>();
         int fieldIndex = 0;
         for (FieldId fieldId : dex.fieldIds()) {
@@ -168,7 +169,8 @@ public final class FindUsages {
      * Returns the methods with {@code memberNameIndex} declared by {@code
      * declaringType} and its subtypes.
      */
-    private Set<Integer> getMethodIds(Dex dex, Set<Integer> memberNameIndexes, int declaringType) {
+    public static Set<Integer> getMethodIds(Dex dex, Set<Integer> memberNameIndexes,
+            int declaringType) {
         Set<Integer> subtypes = findAssignableTypes(dex, declaringType);
 
         Set<Integer> methods = new HashSet<Integer>();
@@ -186,7 +188,7 @@ public final class FindUsages {
     /**
      * Returns the set of types that can be assigned to {@code typeIndex}.
      */
-    private Set<Integer> findAssignableTypes(Dex dex, int typeIndex) {
+    public static Set<Integer> findAssignableTypes(Dex dex, int typeIndex) {
         Set<Integer> assignableTypes = new HashSet<Integer>();
         assignableTypes.add(typeIndex);
 
@@ -61,6 +61,9 @@ public final class Grep {
             case EncodedValueReader.ENCODED_ARRAY:
                 readArray(reader);
                 break;
+            default:
+                reader.skipValue();
+                break;
             }
         }
     }
@@ -99,7 +102,8 @@ public final class Grep {
             // find the strings in encoded constants
             int staticValuesOffset = classDef.getStaticValuesOffset();
             if (staticValuesOffset != 0) {
-                readArray(new EncodedValueReader(dex.open(staticValuesOffset)));
+                readArray(new EncodedValueReader(dex.open(staticValuesOffset),
+                        EncodedValueReader.ENCODED_ARRAY));
             }
 
             // find the strings in method bodies
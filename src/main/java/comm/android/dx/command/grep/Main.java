@@ -28,7 +28,9 @@ public final class Main {
         String pattern = args[1];
 
         Dex dex = new Dex(new File(dexFile));
-        int count = new Grep(dex, Pattern.compile(pattern), new PrintWriter(System.out)).grep();
+        PrintWriter out = new PrintWriter(System.out);
+        int count = new Grep(dex, Pattern.compile(pattern), out).grep();
+        out.flush();
         System.exit((count > 0) ? 0 : 1);
     }
 }
@@ -0,0 +1,403 @@
+package comm.android.dx.command.grep;
+
+import comm.android.dex.ClassData;
+import comm.android.dex.ClassDef;
+import comm.android.dex.Dex;
+import comm.android.dex.EncodedValueReader;
+import comm.android.dex.MethodId;
+import comm.android.dx.command.findusages.FindUsages;
+import comm.android.dx.io.IndexType;
+import comm.android.dx.io.InstructionCursor;
+import comm.android.dx.io.OpcodeInfo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Runs many {@link Grep} patterns and {@link FindUsages} queries over many dex files in one
+ * pass per dex file. The dex files are scanned in parallel; within a dex file the string table
+ * is matched against all regular expressions at once through a {@link PatternPrefilter}, and
+ * method bodies are walked with an {@link InstructionCursor} instead of being decoded.
+ *
+ * <p>Matches carry the same text as the lines printed by {@code Grep} and {@code FindUsages}.
+ * For each query they are reported in the order those tools print them.
+ */
+public final class MultiGrep {
+    private final List<Pattern> patterns;
+    private final List<UsageQuery> usages;
+    /**
+     * All regular expressions: the grep patterns, then the declaring type and member name of
+     * each usage query.
+     */
+    private final PatternPrefilter prefilter;
+
+    public MultiGrep(List<Pattern> patterns, List<UsageQuery> usages) {
+        this.patterns = new ArrayList<Pattern>(patterns);
+        this.usages = new ArrayList<UsageQuery>(usages);
+
+        List<Pattern> all = new ArrayList<Pattern>(this.patterns);
+        for (UsageQuery usage : this.usages) {
+            all.add(usage.declaredBy);
+            all.add(usage.memberName);
+        }
+        this.prefilter = new PatternPrefilter(all);
+    }
+
+    /**
+     * Scans {@code dexes} on {@code threadCount} threads.
+     *
+     * @return the matches of each dex file, in the iteration order of {@code dexes}
+     */
+    public Map<String, List<Match>> scan(Map<String, Dex> dexes, int threadCount) {
+        Map<String, List<Match>> result = new LinkedHashMap<String, List<Match>>();
+        if (threadCount <= 1 || dexes.size() <= 1) {
+            for (Map.Entry<String, Dex> entry : dexes.entrySet()) {
+                result.put(entry.getKey(), scan(entry.getKey(), entry.getValue()));
+            }
+            return result;
+        }
+
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Math.min(threadCount, dexes.size()));
+        try {
+            Map<String, Future<List<Match>>> tasks =
+                    new LinkedHashMap<String, Future<List<Match>>>();
+            for (final Map.Entry<String, Dex> entry : dexes.entrySet()) {
+                tasks.put(entry.getKey(), executor.submit(new Callable<List<Match>>() {
+                    @Override
+                    public List<Match> call() {
+                        return scan(entry.getKey(), entry.getValue());
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<List<Match>>> task : tasks.entrySet()) {
+                result.put(task.getKey(), task.getValue().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while scanning dex files", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Scans a single dex file on the calling thread.
+     */
+    public List<Match> scan(String dexName, Dex dex) {
+        return new DexScan(dexName, dex).run();
+    }
+
+    /**
+     * The state of scanning one dex file.
+     */
+    private final class DexScan {
+        private final String dexName;
+        private final Dex dex;
+        private final InstructionCursor cursor = new InstructionCursor();
+        private final List<Match> matches = new ArrayList<Match>();
+
+        /** the grep patterns that match a string id */
+        private final Map<Integer, int[]> stringHits = new HashMap<Integer, int[]>();
+        /** the usage queries that name a field id, numbered after the grep patterns */
+        private final Map<Integer, int[]> fieldHits = new HashMap<Integer, int[]>();
+        /** the usage queries that name a method id, numbered after the grep patterns */
+        private final Map<Integer, int[]> methodHits = new HashMap<Integer, int[]>();
+
+        private ClassDef currentClass;
+        private ClassData.Method currentMethod;
+
+        DexScan(String dexName, Dex dex) {
+            this.dexName = dexName;
+            this.dex = dex;
+        }
+
+        List<Match> run() {
+            matchStrings();
+            if (stringHits.isEmpty() && fieldHits.isEmpty() && methodHits.isEmpty()) {
+                return matches;
+            }
+
+            for (ClassDef classDef : dex.classDefs()) {
+                currentClass = classDef;
+                currentMethod = null;
+
+                if (classDef.getClassDataOffset() == 0) {
+                    continue;
+                }
+
+                ClassData classData = dex.readClassData(classDef);
+
+                if (!stringHits.isEmpty()) {
+                    int staticValuesOffset = classDef.getStaticValuesOffset();
+                    if (staticValuesOffset != 0) {
+                        readArray(new EncodedValueReader(dex.open(staticValuesOffset),
+                                EncodedValueReader.ENCODED_ARRAY));
+                    }
+                }
+
+                if (!fieldHits.isEmpty()) {
+                    for (ClassData.Field field : classData.allFields()) {
+                        int fieldIndex = field.getFieldIndex();
+                        for (int usage : hits(fieldHits, fieldIndex)) {
+                            add(usage, location() + " field declared "
+                                    + dex.fieldIds().get(fieldIndex));
+                        }
+                    }
+                }
+
+                for (ClassData.Method method : classData.allMethods()) {
+                    currentMethod = method;
+                    int methodIndex = method.getMethodIndex();
+                    for (int usage : hits(methodHits, methodIndex)) {
+                        add(usage, location() + " method declared "
+                                + dex.methodIds().get(methodIndex));
+                    }
+                    if (method.getCodeOffset() != 0) {
+                        scanCode(dex.readCode(method).getInstructions());
+                    }
+                }
+            }
+
+            currentClass = null;
+            currentMethod = null;
+            return matches;
+        }
+
+        /**
+         * Matches the string table against all regular expressions, and resolves the
+         * usage queries to field and method ids.
+         */
+        private void matchStrings() {
+            int usageCount = usages.size();
+            List<Set<Integer>> typeStringIndexes = new ArrayList<Set<Integer>>(usageCount);
+            List<Set<Integer>> memberNameIndexes = new ArrayList<Set<Integer>>(usageCount);
+            for (int u = 0; u < usageCount; u++) {
+                typeStringIndexes.add(new HashSet<Integer>());
+                memberNameIndexes.add(new HashSet<Integer>());
+            }
+
+            PatternPrefilter.Scanner scanner = prefilter.newScanner();
+            int[] candidates = new int[prefilter.size()];
+            int[] grepHits = new int[patterns.size()];
+            List<String> strings = dex.strings();
+            for (int i = 0, size = strings.size(); i < size; i++) {
+                String string = strings.get(i);
+                int grepCount = 0;
+                for (int c = 0, count = scanner.candidates(string, candidates); c < count; c++) {
+                    int regex = candidates[c];
+                    if (regex < patterns.size()) {
+                        if (patterns.get(regex).matcher(string).find()) {
+                            grepHits[grepCount++] = regex;
+                        }
+                        continue;
+                    }
+                    int usage = (regex - patterns.size()) / 2;
+                    boolean isDeclaredBy = ((regex - patterns.size()) % 2) == 0;
+                    UsageQuery query = usages.get(usage);
+                    if (isDeclaredBy) {
+                        if (query.declaredBy.matcher(string).matches()) {
+                            typeStringIndexes.get(usage).add(i);
+                        }
+                    } else if (query.memberName.matcher(string).matches()) {
+                        memberNameIndexes.get(usage).add(i);
+                    }
+                }
+                if (grepCount > 0) {
+                    stringHits.put(i, sorted(grepHits, grepCount));
+                }
+            }
+
+            for (int u = 0; u < usageCount; u++) {
+                if (typeStringIndexes.get(u).isEmpty() || memberNameIndexes.get(u).isEmpty()) {
+                    continue; // these symbols are not mentioned in this dex
+                }
+                for (int typeStringIndex : typeStringIndexes.get(u)) {
+                    int typeIndex = Collections.binarySearch(dex.typeIds(), typeStringIndex);
+                    if (typeIndex < 0) {
+                        continue; // this type name isn't used as a type in this dex
+                    }
+                    for (int methodId : FindUsages.getMethodIds(
+                            dex, memberNameIndexes.get(u), typeIndex)) {
+                        addHit(methodHits, methodId, patterns.size() + u);
+                    }
+                    for (int fieldId : FindUsages.getFieldIds(
+                            dex, memberNameIndexes.get(u), typeIndex)) {
+                        addHit(fieldHits, fieldId, patterns.size() + u);
+                    }
+                }
+            }
+        }
+
+        private void scanCode(short[] instructions) {
+            cursor.reset(instructions);
+            while (cursor.next()) {
+                IndexType indexType = cursor.getIndexType();
+                if (indexType == IndexType.STRING_REF) {
+                    int stringId = cursor.getIndex();
+                    for (int pattern : hits(stringHits, stringId)) {
+                        add(pattern, location() + " " + dex.strings().get(stringId));
+                    }
+                } else if (indexType == IndexType.FIELD_REF) {
+                    int fieldId = cursor.getIndex();
+                    for (int usage : hits(fieldHits, fieldId)) {
+                        add(usage, location() + ": field reference "
+                                + dex.fieldIds().get(fieldId)
+                                + " (" + OpcodeInfo.getName(cursor.getOpcode()) + ")");
+                    }
+                } else if (indexType == IndexType.METHOD_REF) {
+                    int methodId = cursor.getIndex();
+                    for (int usage : hits(methodHits, methodId)) {
+                        add(usage, location() + ": method reference "
+                                + dex.methodIds().get(methodId)
+                                + " (" + OpcodeInfo.getName(cursor.getOpcode()) + ")");
+                    }
+                }
+            }
+        }
+
+        private void readArray(EncodedValueReader reader) {
+            for (int i = 0, size = reader.readArray(); i < size; i++) {
+                switch (reader.peek()) {
+                case EncodedValueReader.ENCODED_STRING:
+                    int stringId = reader.readString();
+                    for (int pattern : hits(stringHits, stringId)) {
+                        add(pattern, location() + " " + dex.strings().get(stringId));
+                    }
+                    break;
+                case EncodedValueReader.ENCODED_ARRAY:
+                    readArray(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Adds a match of the query at {@code query}, counting grep patterns first and usage
+         * queries after them.
+         */
+        private void add(int query, String text) {
+            matches.add(new Match(query, dexName, text));
+        }
+
+        private String location() {
+            String className = dex.typeNames().get(currentClass.getTypeIndex());
+            if (currentMethod != null) {
+                MethodId methodId = dex.methodIds().get(currentMethod.getMethodIndex());
+                return className + "." + dex.strings().get(methodId.getNameIndex());
+            } else {
+                return className;
+            }
+        }
+    }
+
+    private static final int[] NO_HITS = new int[0];
+
+    private static int[] hits(Map<Integer, int[]> hits, int id) {
+        int[] result = hits.get(id);
+        return (result != null) ? result : NO_HITS;
+    }
+
+    private static void addHit(Map<Integer, int[]> hits, int id, int query) {
+        int[] old = hits.get(id);
+        if (old == null) {
+            hits.put(id, new int[] { query });
+        } else if (old[old.length - 1] != query) {
+            int[] result = new int[old.length + 1];
+            System.arraycopy(old, 0, result, 0, old.length);
+            result[old.length] = query;
+            hits.put(id, result);
+        }
+    }
+
+    private static int[] sorted(int[] values, int count) {
+        int[] result = new int[count];
+        System.arraycopy(values, 0, result, 0, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * A query for the declarations of and references to fields and methods, as made by
+     * {@link FindUsages}. Both patterns must match a whole name.
+     */
+    public static final class UsageQuery {
+        private final Pattern declaredBy;
+        private final Pattern memberName;
+
+        /**
+         * @param declaredBy a type name in internal form, like {@code Ljava/lang/Object;}
+         * @param memberName a field or method name, like {@code hashCode}
+         */
+        public UsageQuery(String declaredBy, String memberName) {
+            this.declaredBy = Pattern.compile(declaredBy);
+            this.memberName = Pattern.compile(memberName);
+        }
+
+        @Override public String toString() {
+            return declaredBy.pattern() + " " + memberName.pattern();
+        }
+    }
+
+    /**
+     * A string, field or method found by a query.
+     */
+    public static final class Match {
+        private final int query;
+        private final String dexName;
+        private final String text;
+
+        private Match(int query, String dexName, String text) {
+            this.query = query;
+            this.dexName = dexName;
+            this.text = text;
+        }
+
+        /**
+         * Returns the index of the query that found this match. Grep patterns are numbered
+         * first, from 0, followed by the usage queries.
+         */
+        public int getQuery() {
+            return query;
+        }
+
+        public String getDexName() {
+            return dexName;
+        }
+
+        /**
+         * Returns the line that {@code Grep} or {@code FindUsages} prints for this match.
+         */
+        public String getText() {
+            return text;
+        }
+
+        @Override public String toString() {
+            return dexName + ": " + text;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package comm.android.dx.command.grep;
+
+import comm.android.dex.Dex;
+import comm.android.dex.util.FileUtils;
+import comm.android.dx.command.UsageException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Command line entry point of {@link MultiGrep}:
+ *
+ * <pre>
+ * [-j &lt;threads&gt;] [-e &lt;regex&gt;]... [-u &lt;declaring type&gt; &lt;member&gt;]... &lt;file&gt;...
+ * </pre>
+ *
+ * Each file is a dex file or an archive, of which all {@code classes*.dex} entries are
+ * scanned. Every match is printed with its query and dex file.
+ */
+public final class MultiMain {
+    private static final Pattern DEX_ENTRY = Pattern.compile("classes(\\d*)\\.dex");
+
+    private MultiMain() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        List<MultiGrep.UsageQuery> usages = new ArrayList<MultiGrep.UsageQuery>();
+
+        int i = 0;
+        for (; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-e") && i + 1 < args.length) {
+                patterns.add(Pattern.compile(args[++i]));
+            } else if (arg.equals("-u") && i + 2 < args.length) {
+                usages.add(new MultiGrep.UsageQuery(args[i + 1], args[i + 2]));
+                i += 2;
+            } else if (arg.equals("-j") && i + 1 < args.length) {
+                threadCount = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--")) {
+                i++;
+                break;
+            } else if (arg.startsWith("-")) {
+                throw new UsageException();
+            } else {
+                break;
+            }
+        }
+        if (i == args.length || (patterns.isEmpty() && usages.isEmpty())) {
+            throw new UsageException();
+        }
+
+        Map<String, Dex> dexes = new LinkedHashMap<String, Dex>();
+        for (; i < args.length; i++) {
+            readDexes(new File(args[i]), dexes);
+        }
+
+        List<String> queries = new ArrayList<String>();
+        for (Pattern pattern : patterns) {
+            queries.add(pattern.pattern());
+        }
+        for (MultiGrep.UsageQuery usage : usages) {
+            queries.add(usage.toString());
+        }
+
+        PrintWriter out = new PrintWriter(System.out);
+        int count = 0;
+        MultiGrep multiGrep = new MultiGrep(patterns, usages);
+        for (List<MultiGrep.Match> matches : multiGrep.scan(dexes, threadCount).values()) {
+            for (MultiGrep.Match match : matches) {
+                out.println(queries.get(match.getQuery()) + "\t" + match);
+                count++;
+            }
+        }
+        out.flush();
+        System.exit((count > 0) ? 0 : 1);
+    }
+
+    /**
+     * Adds the dex file {@code file}, or the dex files in the archive {@code file}, to
+     * {@code dexes}, in the order the runtime loads them.
+     */
+    private static void readDexes(File file, Map<String, Dex> dexes) throws IOException {
+        if (!FileUtils.hasArchiveSuffix(file.getName())) {
+            dexes.put(file.getPath(), new Dex(file));
+            return;
+        }
+
+        ZipFile zipFile = new ZipFile(file);
+        try {
+            List<ZipEntry> entries = new ArrayList<ZipEntry>();
+            for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements();) {
+                ZipEntry entry = e.nextElement();
+                if (DEX_ENTRY.matcher(entry.getName()).matches()) {
+                    entries.add(entry);
+                }
+            }
+            Collections.sort(entries, new Comparator<ZipEntry>() {
+                @Override
+                public int compare(ZipEntry a, ZipEntry b) {
+                    return dexNumber(a) - dexNumber(b);
+                }
+            });
+            for (ZipEntry entry : entries) {
+                InputStream in = zipFile.getInputStream(entry);
+                dexes.put(file.getPath() + ":" + entry.getName(), new Dex(in));
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private static int dexNumber(ZipEntry entry) {
+        Matcher matcher = DEX_ENTRY.matcher(entry.getName());
+        matcher.matches();
+        return matcher.group(1).isEmpty() ? 1 : Integer.parseInt(matcher.group(1));
+    }
+}
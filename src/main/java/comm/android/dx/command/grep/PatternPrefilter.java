@@ -0,0 +1,387 @@
+package comm.android.dx.command.grep;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Narrows down which of many regular expressions can match a string. Each pattern is reduced
+ * to the longest literal that every match of it must contain, and all literals are searched
+ * at once with an Aho-Corasick automaton, so a string is run through a single pass instead of
+ * through every pattern. Only the patterns whose literal was found are candidates and still
+ * need to be matched; patterns without a required literal are always candidates.
+ *
+ * <p>The prefilter is immutable and may be shared between threads, each using its own
+ * {@link Scanner}.
+ */
+final class PatternPrefilter {
+    private final int patternCount;
+    /** patterns that have no required literal */
+    private final int[] unfiltered;
+
+    /** per state, the sorted characters of its outgoing edges */
+    private final char[][] edgeChars;
+    /** per state, the targets of its outgoing edges, parallel to edgeChars */
+    private final int[][] edgeTargets;
+    private final int[] fail;
+    /** per state, the patterns whose literal ends here, including those of the fail chain */
+    private final int[][] outputs;
+
+    PatternPrefilter(List<Pattern> patterns) {
+        patternCount = patterns.size();
+
+        List<char[]> chars = new ArrayList<char[]>();
+        List<int[]> targets = new ArrayList<int[]>();
+        List<int[]> out = new ArrayList<int[]>();
+        chars.add(new char[0]);
+        targets.add(new int[0]);
+        out.add(new int[0]);
+
+        int[] unfiltered = new int[patternCount];
+        int unfilteredCount = 0;
+        for (int p = 0; p < patternCount; p++) {
+            String literal = requiredLiteral(patterns.get(p));
+            if (literal == null) {
+                unfiltered[unfilteredCount++] = p;
+                continue;
+            }
+            int state = 0;
+            for (int i = 0; i < literal.length(); i++) {
+                char c = literal.charAt(i);
+                int edge = Arrays.binarySearch(chars.get(state), c);
+                if (edge >= 0) {
+                    state = targets.get(state)[edge];
+                } else {
+                    int next = chars.size();
+                    chars.add(new char[0]);
+                    targets.add(new int[0]);
+                    out.add(new int[0]);
+                    insertEdge(chars, targets, state, -edge - 1, c, next);
+                    state = next;
+                }
+            }
+            out.set(state, append(out.get(state), p));
+        }
+        this.unfiltered = Arrays.copyOf(unfiltered, unfilteredCount);
+
+        int stateCount = chars.size();
+        edgeChars = chars.toArray(new char[stateCount][]);
+        edgeTargets = targets.toArray(new int[stateCount][]);
+        outputs = out.toArray(new int[stateCount][]);
+        fail = new int[stateCount];
+
+        // breadth first, so the fail target of a state is complete before the state is
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        for (int target : edgeTargets[0]) {
+            queue.add(target);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int e = 0; e < edgeChars[state].length; e++) {
+                int target = edgeTargets[state][e];
+                fail[target] = step(fail[state], edgeChars[state][e]);
+                outputs[target] = concat(outputs[target], outputs[fail[target]]);
+                queue.add(target);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of patterns.
+     */
+    int size() {
+        return patternCount;
+    }
+
+    Scanner newScanner() {
+        return new Scanner();
+    }
+
+    /**
+     * Follows the edge for {@code c} from {@code state}, falling back along fail links.
+     */
+    private int step(int state, char c) {
+        while (true) {
+            int edge = Arrays.binarySearch(edgeChars[state], c);
+            if (edge >= 0) {
+                return edgeTargets[state][edge];
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = fail[state];
+        }
+    }
+
+    /**
+     * Finds candidate patterns for strings. Not thread safe.
+     */
+    final class Scanner {
+        private final int[] stamps = new int[patternCount];
+        private int stamp;
+
+        /**
+         * Writes the indexes of the patterns that may match {@code s} to {@code out}, which
+         * must have room for all patterns, and returns their number. Each index is written at
+         * most once.
+         */
+        int candidates(String s, int[] out) {
+            if (++stamp == 0) {
+                Arrays.fill(stamps, 0);
+                stamp = 1;
+            }
+            int count = 0;
+            for (int p : unfiltered) {
+                stamps[p] = stamp;
+                out[count++] = p;
+            }
+            if (edgeChars[0].length == 0) {
+                return count;
+            }
+            int state = 0;
+            for (int i = 0, length = s.length(); i < length; i++) {
+                state = step(state, s.charAt(i));
+                for (int p : outputs[state]) {
+                    if (stamps[p] != stamp) {
+                        stamps[p] = stamp;
+                        out[count++] = p;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Returns the longest literal that every match of {@code pattern} contains, or null if
+     * none could be derived. The analysis is conservative: alternations, flags and constructs
+     * it does not understand give up, and groups and character classes end a literal.
+     */
+    static String requiredLiteral(Pattern pattern) {
+        if (pattern.flags() != 0) {
+            return null;
+        }
+        String regex = pattern.pattern();
+        if (regex.contains("(?") || regex.contains("\\Q")) {
+            return null;
+        }
+
+        String best = "";
+        StringBuilder run = new StringBuilder();
+        // whether the last atom was appended to run, so that a quantifier applies to it
+        boolean lastInRun = false;
+        int depth = 0;
+
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (depth > 0) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '[') {
+                    i = skipClass(regex, i);
+                } else if (c == '(') {
+                    depth++;
+                } else if (c == ')') {
+                    depth--;
+                }
+                continue;
+            }
+
+            switch (c) {
+            case '|':
+                return null;
+            case '(':
+                depth++;
+                best = longer(best, run);
+                run.setLength(0);
+                lastInRun = false;
+                break;
+            case '[':
+                i = skipClass(regex, i);
+                best = longer(best, run);
+                run.setLength(0);
+                lastInRun = false;
+                break;
+            case '?':
+            case '*':
+            case '{':
+                // the previous atom is optional: keep what came before it
+                if (lastInRun) {
+                    run.setLength(run.length() - 1);
+                }
+                best = longer(best, run);
+                run.setLength(0);
+                lastInRun = false;
+                if (c == '{') {
+                    int close = regex.indexOf('}', i);
+                    if (close < 0) {
+                        return null;
+                    }
+                    i = close;
+                }
+                i = skipQuantifierMode(regex, i);
+                break;
+            case '+':
+                // the previous atom is required, but may be repeated
+                best = longer(best, run);
+                run.setLength(0);
+                lastInRun = false;
+                i = skipQuantifierMode(regex, i);
+                break;
+            case '.':
+            case '^':
+            case '$':
+            case ')':
+                best = longer(best, run);
+                run.setLength(0);
+                lastInRun = false;
+                break;
+            case '\\':
+                if (i + 1 >= regex.length()) {
+                    return null;
+                }
+                char escaped = regex.charAt(++i);
+                if (Character.isLetterOrDigit(escaped)) {
+                    // a character class, boundary or character code; none are taken literally
+                    i = skipEscape(regex, i);
+                    if (i < 0) {
+                        return null;
+                    }
+                    best = longer(best, run);
+                    run.setLength(0);
+                    lastInRun = false;
+                } else {
+                    run.append(escaped);
+                    lastInRun = true;
+                }
+                break;
+            default:
+                run.append(c);
+                lastInRun = true;
+                break;
+            }
+        }
+        if (depth != 0) {
+            return null;
+        }
+        best = longer(best, run);
+        return best.isEmpty() ? null : best;
+    }
+
+    private static String longer(String best, StringBuilder run) {
+        return run.length() > best.length() ? run.toString() : best;
+    }
+
+    /**
+     * Returns the index of the ']' that closes the class opened at {@code open}.
+     */
+    private static int skipClass(String regex, int open) {
+        int i = open + 1;
+        if (i < regex.length() && regex.charAt(i) == '^') {
+            i++;
+        }
+        if (i < regex.length() && regex.charAt(i) == ']') {
+            i++;
+        }
+        int depth = 1;
+        for (; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']' && --depth == 0) {
+                return i;
+            }
+        }
+        return regex.length();
+    }
+
+    /**
+     * Skips a lazy or possessive marker after the quantifier ending at {@code i}.
+     */
+    private static int skipQuantifierMode(String regex, int i) {
+        if (i + 1 < regex.length()) {
+            char next = regex.charAt(i + 1);
+            if (next == '?' || next == '+') {
+                return i + 1;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Returns the index of the last character of the escape whose letter is at {@code i}, or
+     * -1 if it is malformed.
+     */
+    private static int skipEscape(String regex, int i) {
+        char c = regex.charAt(i);
+        switch (c) {
+        case 'p':
+        case 'P':
+        case 'N':
+            if (i + 1 < regex.length() && regex.charAt(i + 1) == '{') {
+                return regex.indexOf('}', i);
+            }
+            return (c == 'N') ? -1 : i + 1;
+        case 'k':
+            return regex.indexOf('>', i);
+        case 'x':
+            if (i + 1 < regex.length() && regex.charAt(i + 1) == '{') {
+                return regex.indexOf('}', i);
+            }
+            return i + 2;
+        case 'u':
+            return i + 4;
+        case 'c':
+            return i + 1;
+        case '0':
+            for (int end = i + 3; i < end && i + 1 < regex.length()
+                    && regex.charAt(i + 1) >= '0' && regex.charAt(i + 1) <= '7'; ) {
+                i++;
+            }
+            return i;
+        default:
+            if (c >= '1' && c <= '9') {
+                // a back reference repeats a group, whose text is unknown here
+                while (i + 1 < regex.length() && Character.isDigit(regex.charAt(i + 1))) {
+                    i++;
+                }
+            }
+            return i;
+        }
+    }
+
+    private static void insertEdge(List<char[]> chars, List<int[]> targets, int state,
+            int at, char c, int target) {
+        char[] oldChars = chars.get(state);
+        int[] oldTargets = targets.get(state);
+        char[] newChars = new char[oldChars.length + 1];
+        int[] newTargets = new int[oldTargets.length + 1];
+        System.arraycopy(oldChars, 0, newChars, 0, at);
+        System.arraycopy(oldTargets, 0, newTargets, 0, at);
+        newChars[at] = c;
+        newTargets[at] = target;
+        System.arraycopy(oldChars, at, newChars, at + 1, oldChars.length - at);
+        System.arraycopy(oldTargets, at, newTargets, at + 1, oldTargets.length - at);
+        chars.set(state, newChars);
+        targets.set(state, newTargets);
+    }
+
+    private static int[] append(int[] array, int value) {
+        int[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = value;
+        return result;
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        if (b.length == 0) {
+            return a;
+        }
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
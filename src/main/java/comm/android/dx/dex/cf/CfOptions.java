@@ -18,6 +18,7 @@ package comm.android.dx.dex.cf;
 
 import comm.android.dx.dex.code.PositionList;
 import comm.android.dx.dex.code.PositionList;
+import comm.android.dx.ssa.Optimizer;
 
 import java.io.PrintStream;
 
@@ -37,6 +38,12 @@ public class CfOptions {
     /** whether to do SSA/register optimization */
     public boolean optimize = false;
 
+    /** {@code non-null;} how thoroughly to optimize */
+    public Optimizer.Tier optimizeTier = Optimizer.Tier.DEFAULT;
+
+    /** {@code non-null;} per-method limits beyond which to optimize fast */
+    public Optimizer.Budget optimizeBudget = Optimizer.Budget.UNLIMITED;
+
     /** filename containing list of methods to optimize */
     public String optimizeListFile = null;
 
@@ -17,6 +17,8 @@
 package comm.android.dx.dex.cf;
 
 import comm.android.dex.util.ExceptionWithContext;
+import comm.android.dx.cf.cst.ConstantTags;
+import comm.android.dx.cf.cst.LazyConstantPool;
 import comm.android.dx.cf.code.ConcreteMethod;
 import comm.android.dx.cf.code.Ropper;
 import comm.android.dx.cf.direct.DirectClassFile;
@@ -83,6 +85,8 @@ import comm.android.dx.rop.cst.*;
 import comm.android.dx.rop.type.TypeList;
 import comm.android.dx.ssa.Optimizer;
 
+import java.util.concurrent.RecursiveAction;
+
 /**
  * Static method that turns {@code byte[]}s containing Java
  * classfiles into {@link ClassDefItem} instances.
@@ -91,6 +95,15 @@ public class CfTranslator {
     /** set to {@code true} to enable development-time debugging code */
     private static final boolean DEBUG = false;
 
+    /**
+     * minimum number of methods in a class for their code to be translated
+     * in parallel; below this the task overhead outweighs the gain
+     */
+    private static final int PARALLEL_METHODS_THRESHOLD = 64;
+
+    /** number of methods a single fork/join task translates sequentially */
+    private static final int METHODS_PER_TASK = 8;
+
     /**
      * This class is uninstantiable.
      */
@@ -165,7 +178,14 @@ public class CfTranslator {
         ConstantPool constantPool = cf.getConstantPool();
         int constantPoolSize = constantPool.size();
 
+        LazyConstantPool lazyPool = (constantPool instanceof LazyConstantPool)
+                ? (LazyConstantPool) constantPool : null;
+
         for (int i = 0; i < constantPoolSize; i++) {
+            if (lazyPool != null && !isMemberRefTag(lazyPool.getTag(i))) {
+                // Don't parse entries that can't be interned below.
+                continue;
+            }
             Constant constant = constantPool.getOrNull(i);
             if (constant instanceof CstMethodRef) {
                 methodIdsSection.intern((CstBaseMethodRef) constant);
@@ -181,6 +201,19 @@ public class CfTranslator {
         return out;
     }
 
+    /**
+     * Returns whether a class file constant pool tag denotes a field or
+     * method reference.
+     *
+     * @param tag the tag
+     * @return {@code true} iff entries with the tag are member references
+     */
+    private static boolean isMemberRefTag(int tag) {
+        return tag == ConstantTags.CONSTANT_Fieldref
+                || tag == ConstantTags.CONSTANT_Methodref
+                || tag == ConstantTags.CONSTANT_InterfaceMethodref;
+    }
+
     /**
      * Processes the fields of the given class.
      *
@@ -262,7 +295,10 @@ public class CfTranslator {
     }
 
     /**
-     * Processes the methods of the given class.
+     * Processes the methods of the given class. The code of large classes
+     * is translated on {@link DxContext#methodPool}, if there is one; the
+     * results are then added to the output in method order, so the output
+     * does not depend on how the work was split.
      *
      * @param context {@code non-null;} the state global to this invocation.
      * @param cf {@code non-null;} class being translated
@@ -276,6 +312,17 @@ public class CfTranslator {
         CstType thisClass = cf.getThisClass();
         MethodList methods = cf.getMethods();
         int sz = methods.size();
+        DalvCode[] codes = new DalvCode[sz];
+
+        if (context.methodPool != null && sz >= PARALLEL_METHODS_THRESHOLD) {
+            context.methodPool.invoke(new MethodCodeTask(context, cf, cfOptions,
+                    dexOptions, codes, 0, sz));
+        } else {
+            for (int i = 0; i < sz; i++) {
+                codes[i] = processMethodCode(context, cf, cfOptions, dexOptions,
+                        methods.get(i));
+            }
+        }
 
         for (int i = 0; i < sz; i++) {
             Method one = methods.get(i);
@@ -285,69 +332,9 @@ public class CfTranslator {
                 boolean isStatic = AccessFlags.isStatic(accessFlags);
                 boolean isPrivate = AccessFlags.isPrivate(accessFlags);
                 boolean isNative = AccessFlags.isNative(accessFlags);
-                boolean isAbstract = AccessFlags.isAbstract(accessFlags);
                 boolean isConstructor = meth.isInstanceInit() ||
                     meth.isClassInit();
-                DalvCode code;
-
-                if (isNative || isAbstract) {
-                    // There's no code for native or abstract methods.
-                    code = null;
-                } else {
-                    ConcreteMethod concrete =
-                        new ConcreteMethod(one, cf,
-                                (cfOptions.positionInfo != PositionList.NONE),
-                                cfOptions.localInfo);
-
-                    TranslationAdvice advice;
-
-                    advice = DexTranslationAdvice.THE_ONE;
-
-                    RopMethod rmeth = Ropper.convert(concrete, advice, methods, dexOptions);
-                    RopMethod nonOptRmeth = null;
-                    int paramSize;
-
-                    paramSize = meth.getParameterWordCount(isStatic);
-
-                    String canonicalName
-                            = thisClass.getClassType().getDescriptor()
-                                + "." + one.getName().getString();
-
-                    if (cfOptions.optimize &&
-                            context.optimizerOptions.shouldOptimize(canonicalName)) {
-                        if (DEBUG) {
-                            System.err.println("Optimizing " + canonicalName);
-                        }
-
-                        nonOptRmeth = rmeth;
-                        rmeth = Optimizer.optimize(rmeth,
-                                paramSize, isStatic, cfOptions.localInfo, advice);
-
-                        if (DEBUG) {
-                            context.optimizerOptions.compareOptimizerStep(nonOptRmeth,
-                                    paramSize, isStatic, cfOptions, advice, rmeth);
-                        }
-
-                        if (cfOptions.statistics) {
-                            context.codeStatistics.updateRopStatistics(
-                                    nonOptRmeth, rmeth);
-                        }
-                    }
-
-                    LocalVariableInfo locals = null;
-
-                    if (cfOptions.localInfo) {
-                        locals = LocalVariableExtractor.extract(rmeth);
-                    }
-
-                    code = RopTranslator.translate(rmeth, cfOptions.positionInfo,
-                            locals, paramSize, dexOptions);
-
-                    if (cfOptions.statistics && nonOptRmeth != null) {
-                        updateDexStatistics(context, cfOptions, dexOptions, rmeth, nonOptRmeth, locals,
-                                paramSize, concrete.getCode().size());
-                    }
-                }
+                DalvCode code = codes[i];
 
                 // Preserve the synchronized flag as its "declared" variant...
                 if (AccessFlags.isSynchronized(accessFlags)) {
@@ -397,6 +384,152 @@ public class CfTranslator {
         }
     }
 
+    /**
+     * Translates the code of a single method, running it through the
+     * {@link Ropper}, the {@link Optimizer} and the {@link RopTranslator}.
+     * This touches neither the output class nor the dex file, so it may run
+     * concurrently for the methods of one class.
+     *
+     * @param context {@code non-null;} the state global to this invocation.
+     * @param cf {@code non-null;} class being translated
+     * @param cfOptions {@code non-null;} options for class translation
+     * @param dexOptions {@code non-null;} options for dex output
+     * @param one {@code non-null;} method to translate
+     * @return {@code null-ok;} the method's code, {@code null} for native
+     * and abstract methods
+     */
+    private static DalvCode processMethodCode(DxContext context, DirectClassFile cf,
+            CfOptions cfOptions, DexOptions dexOptions, Method one) {
+        try {
+            CstType thisClass = cf.getThisClass();
+            CstMethodRef meth = new CstMethodRef(thisClass, one.getNat());
+            int accessFlags = one.getAccessFlags();
+            boolean isStatic = AccessFlags.isStatic(accessFlags);
+            boolean isNative = AccessFlags.isNative(accessFlags);
+            boolean isAbstract = AccessFlags.isAbstract(accessFlags);
+
+            if (isNative || isAbstract) {
+                // There's no code for native or abstract methods.
+                return null;
+            }
+
+            ConcreteMethod concrete =
+                new ConcreteMethod(one, cf,
+                        (cfOptions.positionInfo != PositionList.NONE),
+                        cfOptions.localInfo);
+
+            TranslationAdvice advice;
+
+            advice = DexTranslationAdvice.THE_ONE;
+
+            RopMethod rmeth = Ropper.convert(concrete, advice, cf.getMethods(), dexOptions);
+            RopMethod nonOptRmeth = null;
+            int paramSize;
+
+            paramSize = meth.getParameterWordCount(isStatic);
+
+            String canonicalName
+                    = thisClass.getClassType().getDescriptor()
+                        + "." + one.getName().getString();
+
+            if (cfOptions.optimize &&
+                    context.optimizerOptions.shouldOptimize(canonicalName)) {
+                if (DEBUG) {
+                    System.err.println("Optimizing " + canonicalName);
+                }
+
+                nonOptRmeth = rmeth;
+                rmeth = Optimizer.optimize(rmeth,
+                        paramSize, isStatic, cfOptions.localInfo, advice,
+                        cfOptions.optimizeTier, cfOptions.optimizeBudget,
+                        cfOptions.statistics ? context.passStatistics : null);
+
+                if (DEBUG) {
+                    context.optimizerOptions.compareOptimizerStep(nonOptRmeth,
+                            paramSize, isStatic, cfOptions, advice, rmeth);
+                }
+
+                if (cfOptions.statistics) {
+                    synchronized (context.codeStatistics) {
+                        context.codeStatistics.updateRopStatistics(
+                                nonOptRmeth, rmeth);
+                    }
+                }
+            }
+
+            LocalVariableInfo locals = null;
+
+            if (cfOptions.localInfo) {
+                locals = LocalVariableExtractor.extract(rmeth);
+            }
+
+            DalvCode code = RopTranslator.translate(rmeth, cfOptions.positionInfo,
+                    locals, paramSize, dexOptions);
+
+            if (cfOptions.statistics && nonOptRmeth != null) {
+                updateDexStatistics(context, cfOptions, dexOptions, rmeth, nonOptRmeth, locals,
+                        paramSize, concrete.getCode().size());
+            }
+            return code;
+        } catch (RuntimeException ex) {
+            String msg = "...while processing " + one.getName().toHuman() +
+                " " + one.getDescriptor().toHuman();
+            throw ExceptionWithContext.withContext(ex, msg);
+        }
+    }
+
+    /**
+     * Fork/join task translating the code of a range of methods of one
+     * class into a shared result array, splitting the range in halves
+     * until it is small enough to be done sequentially.
+     */
+    private static final class MethodCodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final DxContext context;
+        private final DirectClassFile cf;
+        private final CfOptions cfOptions;
+        private final DexOptions dexOptions;
+
+        /** {@code non-null;} results, indexed like the class's methods */
+        private final DalvCode[] codes;
+
+        /** first method index to translate */
+        private final int start;
+
+        /** method index one past the last one to translate */
+        private final int end;
+
+        MethodCodeTask(DxContext context, DirectClassFile cf, CfOptions cfOptions,
+                DexOptions dexOptions, DalvCode[] codes, int start, int end) {
+            this.context = context;
+            this.cf = cf;
+            this.cfOptions = cfOptions;
+            this.dexOptions = dexOptions;
+            this.codes = codes;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= METHODS_PER_TASK) {
+                MethodList methods = cf.getMethods();
+                for (int i = start; i < end; i++) {
+                    codes[i] = processMethodCode(context, cf, cfOptions,
+                            dexOptions, methods.get(i));
+                }
+                return;
+            }
+
+            int mid = (start + end) >>> 1;
+            invokeAll(new MethodCodeTask(context, cf, cfOptions, dexOptions,
+                            codes, start, mid),
+                    new MethodCodeTask(context, cf, cfOptions, dexOptions,
+                            codes, mid, end));
+        }
+    }
+
     /**
      * Helper that updates the dex statistics.
      */
@@ -432,7 +565,9 @@ public class CfTranslator {
         optCode.assignIndices(callback);
         nonOptCode.assignIndices(callback);
 
-        context.codeStatistics.updateDexStatistics(nonOptCode, optCode);
-        context.codeStatistics.updateOriginalByteCount(originalByteCount);
+        synchronized (context.codeStatistics) {
+            context.codeStatistics.updateDexStatistics(nonOptCode, optCode);
+            context.codeStatistics.updateOriginalByteCount(originalByteCount);
+        }
     }
 }
@@ -23,6 +23,7 @@ import comm.android.dx.io.instructions.DecodedInstruction;
  * Walks through a block of code and calls visitor call backs.
  */
 public final class CodeReader {
+    private final InstructionCursor cursor = new InstructionCursor();
     private Visitor fallbackVisitor = null;
     private Visitor stringVisitor = null;
     private Visitor typeVisitor = null;
@@ -90,16 +91,32 @@ public final class CodeReader {
         }
     }
 
+    /**
+     * Visits the instructions of {@code encodedInstructions} in order. Only the instructions
+     * that have a visitor are decoded, one at a time, so visitors are passed {@code null} for
+     * the array of all instructions.
+     */
     public void visitAll(short[] encodedInstructions) throws DexException {
-        DecodedInstruction[] decodedInstructions =
-            DecodedInstruction.decodeAll(encodedInstructions);
-        visitAll(decodedInstructions);
+        cursor.reset(encodedInstructions);
+        while (cursor.next()) {
+            Visitor visitor = visitorFor(cursor.getOpcode());
+            if (visitor != null) {
+                visitor.visit(null, cursor.decode());
+            }
+        }
     }
 
     private void callVisit(DecodedInstruction[] all, DecodedInstruction one) {
+        Visitor visitor = visitorFor(one.getOpcode());
+        if (visitor != null) {
+            visitor.visit(all, one);
+        }
+    }
+
+    private Visitor visitorFor(int opcode) {
         Visitor visitor = null;
 
-        switch (OpcodeInfo.getIndexType(one.getOpcode())) {
+        switch (OpcodeInfo.getIndexType(opcode)) {
             case STRING_REF: visitor = stringVisitor; break;
             case TYPE_REF:   visitor = typeVisitor;   break;
             case FIELD_REF:  visitor = fieldVisitor;  break;
@@ -110,12 +127,15 @@ public final class CodeReader {
             visitor = fallbackVisitor;
         }
 
-        if (visitor != null) {
-            visitor.visit(all, one);
-        }
+        return visitor;
     }
 
     public interface Visitor {
+        /**
+         * @param all all instructions of the code, indexed by address, or null if the code
+         *     is visited without being decoded as a whole
+         * @param one the instruction visited
+         */
         void visit(DecodedInstruction[] all, DecodedInstruction one);
     }
 }
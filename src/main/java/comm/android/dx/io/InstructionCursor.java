@@ -0,0 +1,283 @@
+package comm.android.dx.io;
+
+import comm.android.dex.DexException;
+import comm.android.dx.io.instructions.AddressMap;
+import comm.android.dx.io.instructions.CodeInput;
+import comm.android.dx.io.instructions.DecodedInstruction;
+import comm.android.dx.io.instructions.InstructionCodec;
+import comm.android.dx.util.Hex;
+import java.io.EOFException;
+
+/**
+ * Walks the instructions of a method body in place, without decoding them into
+ * {@link DecodedInstruction}s. Operands are read from the code units when asked for, so a walk
+ * allocates nothing and one cursor can be reused for any number of methods. Instructions that
+ * are needed in full can still be {@link #decode decoded} one at a time.
+ *
+ * <pre>
+ * cursor.reset(code.getInstructions());
+ * while (cursor.next()) {
+ *     if (cursor.getIndexType() == IndexType.STRING_REF) {
+ *         ... cursor.getIndex() ...
+ *     }
+ * }
+ * </pre>
+ */
+public final class InstructionCursor {
+    private short[] code;
+    private int address;
+    private int nextAddress;
+    private int opcode;
+    private OpcodeInfo.Info info;
+    private InstructionCodec format;
+    /** base addresses of switch payloads, by payload address; null until a switch is seen */
+    private AddressMap baseAddresses;
+    private final Input input = new Input();
+
+    /**
+     * Starts a walk over {@code code}, positioned before the first instruction.
+     */
+    public void reset(short[] code) {
+        this.code = code;
+        this.address = 0;
+        this.nextAddress = 0;
+        this.format = null;
+        this.baseAddresses = null;
+    }
+
+    /**
+     * Moves to the next instruction.
+     *
+     * @return false at the end of the code
+     */
+    public boolean next() {
+        if (nextAddress >= code.length) {
+            address = nextAddress;
+            format = null;
+            return false;
+        }
+        address = nextAddress;
+        opcode = Opcodes.extractOpcodeFromUnit(code[address] & 0xffff);
+        info = OpcodeInfo.get(opcode);
+        format = info.getFormat();
+        nextAddress = address + size();
+        if (nextAddress > code.length) {
+            throw new DexException("truncated instruction at " + Hex.u2(address));
+        }
+        if (opcode == Opcodes.PACKED_SWITCH || opcode == Opcodes.SPARSE_SWITCH) {
+            // as decoding does, forward the address of the switch to its payload
+            if (baseAddresses == null) {
+                baseAddresses = new AddressMap();
+            }
+            baseAddresses.put(address + (unit(1) | (unit(2) << 16)), address);
+        }
+        return true;
+    }
+
+    /** Returns the address of the current instruction, in code units. */
+    public int getAddress() {
+        return address;
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public InstructionCodec getFormat() {
+        return format;
+    }
+
+    public IndexType getIndexType() {
+        return info.getIndexType();
+    }
+
+    /**
+     * Returns the index operand of the current instruction, or 0 if its format has none. What
+     * the index refers to is given by {@link #getIndexType()}.
+     */
+    public int getIndex() {
+        switch (format) {
+            case FORMAT_20BC:
+            case FORMAT_21C:
+            case FORMAT_22C:
+            case FORMAT_22CS:
+            case FORMAT_35C:
+            case FORMAT_35MS:
+            case FORMAT_35MI:
+            case FORMAT_3RC:
+            case FORMAT_3RMS:
+            case FORMAT_3RMI:
+            case FORMAT_45CC:
+            case FORMAT_4RCC:
+                return unit(1);
+            case FORMAT_31C:
+                return unit(1) | (unit(2) << 16);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns the literal operand of the current instruction, sign-extended as in
+     * {@link DecodedInstruction#getLiteral()}, or 0 if its format has none.
+     */
+    public long getLiteral() {
+        switch (format) {
+            case FORMAT_10X:
+            case FORMAT_20T:
+            case FORMAT_20BC:
+            case FORMAT_30T:
+            case FORMAT_32X:
+                return unit(0) >> 8;
+            case FORMAT_11N:
+                return (unit(0) << 16) >> 28;
+            case FORMAT_21S:
+            case FORMAT_22S:
+                return (short) unit(1);
+            case FORMAT_21H:
+                return (long) (short) unit(1) << ((opcode == Opcodes.CONST_HIGH16) ? 16 : 48);
+            case FORMAT_22B:
+                return (byte) (unit(1) >> 8);
+            case FORMAT_31I:
+                return unit(1) | (unit(2) << 16);
+            case FORMAT_51L:
+                return unit(1) | ((long) unit(2) << 16) | ((long) unit(3) << 32)
+                        | ((long) unit(4) << 48);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Decodes the current instruction.
+     */
+    public DecodedInstruction decode() {
+        input.position = address;
+        try {
+            return DecodedInstruction.decode(input);
+        } catch (EOFException e) {
+            throw new DexException(e);
+        }
+    }
+
+    private int unit(int offset) {
+        return code[address + offset] & 0xffff;
+    }
+
+    /**
+     * Returns the size of the current instruction in code units.
+     */
+    private int size() {
+        switch (format) {
+            case FORMAT_00X:
+            case FORMAT_10X:
+            case FORMAT_12X:
+            case FORMAT_11N:
+            case FORMAT_11X:
+            case FORMAT_10T:
+                return 1;
+            case FORMAT_20T:
+            case FORMAT_20BC:
+            case FORMAT_22X:
+            case FORMAT_21T:
+            case FORMAT_21S:
+            case FORMAT_21H:
+            case FORMAT_21C:
+            case FORMAT_23X:
+            case FORMAT_22B:
+            case FORMAT_22T:
+            case FORMAT_22S:
+            case FORMAT_22C:
+            case FORMAT_22CS:
+                return 2;
+            case FORMAT_30T:
+            case FORMAT_32X:
+            case FORMAT_31I:
+            case FORMAT_31T:
+            case FORMAT_31C:
+            case FORMAT_35C:
+            case FORMAT_35MS:
+            case FORMAT_35MI:
+            case FORMAT_3RC:
+            case FORMAT_3RMS:
+            case FORMAT_3RMI:
+                return 3;
+            case FORMAT_45CC:
+            case FORMAT_4RCC:
+                return 4;
+            case FORMAT_51L:
+                return 5;
+            case FORMAT_PACKED_SWITCH_PAYLOAD:
+                // ident, size, first_key, targets
+                return 4 + payloadUnit(1) * 2;
+            case FORMAT_SPARSE_SWITCH_PAYLOAD:
+                // ident, size, keys, targets
+                return 2 + payloadUnit(1) * 4;
+            case FORMAT_FILL_ARRAY_DATA_PAYLOAD: {
+                // ident, element_width, size, data
+                long elementWidth = payloadUnit(1);
+                long size = payloadUnit(2) | ((long) payloadUnit(3) << 16);
+                long units = 4 + (size * elementWidth + 1) / 2;
+                return units > code.length ? code.length + 1 : (int) units;
+            }
+            default:
+                throw new DexException("unknown format " + format + " at " + Hex.u2(address));
+        }
+    }
+
+    /**
+     * Reads a code unit of a payload whose header may run past the end of the code.
+     */
+    private int payloadUnit(int offset) {
+        int at = address + offset;
+        if (at >= code.length) {
+            throw new DexException("truncated payload at " + Hex.u2(address));
+        }
+        return code[at] & 0xffff;
+    }
+
+    /**
+     * Reads the code units of the current instruction for decoding.
+     */
+    private final class Input implements CodeInput {
+        private int position;
+
+        public int cursor() {
+            return position;
+        }
+
+        public int baseAddressForCursor() {
+            int mapped = (baseAddresses != null) ? baseAddresses.get(position) : -1;
+            return (mapped >= 0) ? mapped : position;
+        }
+
+        public void setBaseAddress(int targetAddress, int baseAddress) {
+            // already recorded by next()
+        }
+
+        public boolean hasMore() {
+            return position < code.length;
+        }
+
+        public int read() throws EOFException {
+            if (position >= code.length) {
+                throw new EOFException();
+            }
+            return code[position++] & 0xffff;
+        }
+
+        public int readInt() throws EOFException {
+            int short0 = read();
+            int short1 = read();
+            return short0 | (short1 << 16);
+        }
+
+        public long readLong() throws EOFException {
+            long short0 = read();
+            long short1 = read();
+            long short2 = read();
+            long short3 = read();
+            return short0 | (short1 << 16) | (short2 << 32) | (short3 << 48);
+        }
+    }
+}
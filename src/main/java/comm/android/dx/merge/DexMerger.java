@@ -84,6 +84,21 @@ public final class DexMerger {
 
     private final TableOfContents contentsOut;
 
+    /**
+     * Output offsets of the annotation sets, set ref lists and directories
+     * written so far, by their transformed contents. Inputs often share these
+     * items, so each distinct one is written only once.
+     */
+    private final Map<List<Integer>, Integer> annotationSetsByContents
+            = new HashMap<>();
+    private final Map<List<Integer>, Integer> annotationSetRefListsByContents
+            = new HashMap<>();
+    private final Map<List<Integer>, Integer> annotationDirectoriesByContents
+            = new HashMap<>();
+
+    /** bytes of annotation sets, set ref lists and directories not written again */
+    private int dedupedAnnotationByteCount;
+
     private final InstructionTransformer instructionTransformer;
     private final String codelibDexName;
 
@@ -281,6 +296,10 @@ public final class DexMerger {
                 result.getTableOfContents().classDefs.size,
                 result.getLength() / 1024f,
                 elapsed / 1000000000f);
+        if (dedupedAnnotationByteCount > 0) {
+            context.out.printf("Shared duplicate annotation sets and directories to save %.1fKiB%n",
+                    dedupedAnnotationByteCount / 1024f);
+        }
 
         return result;
     }
@@ -831,10 +850,11 @@ public final class DexMerger {
     }
 
     /**
-     * Copy annotation sets from each input to the output.
-     *
-     * TODO: this may write multiple copies of the same annotation set.
-     * We should shrink the output by merging rather than unioning
+     * Copy annotation sets, set ref lists and directories from each input to
+     * the output. Annotations are merged already, so items that are equal
+     * after transformation are equal in content, and each is written once.
+     * Sets are transformed before the ref lists and directories that point
+     * to them, so sharing carries through to those.
      */
     private void unionAnnotationSetsAndDirectories() {
         for (int i = 0; i < dexes.length; i++) {
@@ -979,6 +999,21 @@ public final class DexMerger {
             }
         }
         if (classAnnotationsOffset != 0 || newFieldsSize+newMethodsSize+newParameterListSize > 0) {
+            List<Integer> contents = new ArrayList<>(4 + writeBuffer.size());
+            contents.add(classAnnotationsOffset);
+            contents.add(newFieldsSize);
+            contents.add(newMethodsSize);
+            contents.add(newParameterListSize);
+            contents.addAll(writeBuffer);
+            Integer existing = annotationDirectoriesByContents.get(contents);
+            if (existing != null) {
+                // class_defs may share a directory; ones with members only repeat for duplicate classes
+                indexMap.putAnnotationDirectoryOffset(directoryOffset, existing);
+                dedupedAnnotationByteCount += contents.size() * SizeOf.UINT;
+                return;
+            }
+            annotationDirectoriesByContents.put(contents, annotationsDirectoryOut.getPosition());
+
             contentsOut.annotationsDirectories.size++;
             annotationsDirectoryOut.assertFourByteAligned();
             indexMap.putAnnotationDirectoryOffset(
@@ -1015,6 +1050,14 @@ public final class DexMerger {
         }
 
         if (newSize > 0) {
+            Integer existing = annotationSetsByContents.get(out);
+            if (existing != null) {
+                indexMap.putAnnotationSetOffset(annotationSetOffset, existing);
+                dedupedAnnotationByteCount += (1 + newSize) * SizeOf.UINT;
+                return;
+            }
+            annotationSetsByContents.put(out, annotationSetOut.getPosition());
+
             contentsOut.annotationSets.size++;
             annotationSetOut.assertFourByteAligned();
             indexMap.putAnnotationSetOffset(annotationSetOffset, annotationSetOut.getPosition());
@@ -1048,6 +1091,14 @@ public final class DexMerger {
         }
 
         if (newParameterCount > 0) {
+            Integer existing = annotationSetRefListsByContents.get(out);
+            if (existing != null) {
+                indexMap.putAnnotationSetRefListOffset(annotationSetRefListOffset, existing);
+                dedupedAnnotationByteCount += (1 + newParameterCount) * SizeOf.UINT;
+                return;
+            }
+            annotationSetRefListsByContents.put(out, annotationSetRefListOut.getPosition());
+
             contentsOut.annotationSetRefLists.size++;
             annotationSetRefListOut.assertFourByteAligned();
             indexMap.putAnnotationSetRefListOffset(annotationSetRefListOffset
@@ -42,14 +42,12 @@ final class InstructionTransformer {
     }
 
     public short[] transform(IndexMap indexMap, short[] encodedInstructions) throws DexException {
-        DecodedInstruction[] decodedInstructions =
-            DecodedInstruction.decodeAll(encodedInstructions);
-        int size = decodedInstructions.length;
+        int size = encodedInstructions.length;
 
         this.indexMap = indexMap;
         mappedInstructions = new DecodedInstruction[size];
         mappedAt = 0;
-        reader.visitAll(decodedInstructions);
+        reader.visitAll(encodedInstructions);
 
         ShortArrayCodeOutput out = new ShortArrayCodeOutput(size);
         for (DecodedInstruction instruction : mappedInstructions) {
@@ -1,8 +1,12 @@
 package comm.android.dx.merge;
 
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 import comm.android.dex.Annotation;
 import comm.android.dex.Dex;
@@ -10,6 +14,7 @@ import comm.android.dex.EncodedValueReader;
 import comm.android.dex.FieldId;
 import comm.android.dex.MethodId;
 import comm.android.dex.ProtoId;
+import comm.android.dex.SymbolIndex;
 import comm.android.dex.TableOfContents;
 import trikita.log.Log;
 
@@ -19,6 +24,12 @@ public class MethodFilter {
     private final String annotationType;
     protected final Dex dex;
 
+    /**
+     * Annotated methods to keep, as {@code Lpkg/Class;.name} (all overloads) or
+     * {@code Lpkg/Class;.name(Lparam;)Lreturn;}, or null to keep all annotated methods.
+     */
+    private final Set<String> requiredMethods;
+
     private final boolean skip;
 
     public enum Usage {
@@ -144,6 +155,28 @@ public class MethodFilter {
         return getString(stringid);
     }
 
+    /**
+     * Returns whether an annotated method is used, according to {@link #requiredMethods}.
+     */
+    private boolean isRequiredMethod(int methodid) {
+        if (requiredMethods == null) {
+            return true;
+        }
+        MethodId methodId = dex.methodIds().get(methodid);
+        String method = getTypeString(methodId.getDeclaringClassIndex())
+                + "." + getString(methodId.getNameIndex());
+        if (requiredMethods.contains(method)) {
+            return true;
+        }
+        ProtoId protoId = dex.protoIds().get(methodId.getProtoIndex());
+        StringBuilder signature = new StringBuilder(method).append('(');
+        for (short parameterType : dex.readTypeList(protoId.getParametersOffset()).getTypes()) {
+            signature.append(getTypeString(parameterType & 0xffff));
+        }
+        signature.append(')').append(getTypeString(protoId.getReturnTypeIndex()));
+        return requiredMethods.contains(signature.toString());
+    }
+
     protected String getMethodString(int methodid){
         Dex.Section typesSection = dex.open(dex.getTableOfContents().methodIds.off+8*methodid+4);
         int stringid = typesSection.readInt();
@@ -153,16 +186,7 @@ public class MethodFilter {
     protected void initializeWhitelist() throws DexMerger.MergeException {
         if (!skip) {
 
-            int annotationtypeid = -1;
-
-            TableOfContents.Section typeIds = dex.getTableOfContents().typeIds;
-            Dex.Section section = dex.open(typeIds.off);
-            for (int j = 0; j < typeIds.size; j++) {
-                int m = section.readInt();
-                if (getString(m).equals(annotationType)) {
-                    annotationtypeid = j;
-                }
-            }
+            int annotationtypeid = SymbolIndex.findType(dex, annotationType);
 
             Log.i(TAG, "Annotationtype used for whitelisting:" + annotationType);
 
@@ -227,6 +251,10 @@ public class MethodFilter {
                             Dex.Section annotation_off_item = dex.open(annotation_set_item.readInt());
                             Annotation annotation = annotation_off_item.readAnnotation();
                             if (annotation.getTypeIndex() == annotationtypeid) {
+                                if (!isRequiredMethod(methodid)) {
+                                    Log.d("ColdelibWhitelisting", "Method annotated but unused:" + getMethodString(methodid));
+                                    continue;
+                                }
                                 Log.d("ColdelibWhitelisting", "Method annotated:" + getMethodString(methodid));
                                 typeIdWhitelist.put((short) class_idx, Usage.WHITELISTED);
                                 methodIdWhitelist.put((short) methodid, Usage.WHITELISTED);
@@ -375,9 +403,60 @@ public class MethodFilter {
     }
 
 
+    /**
+     * Returns the whitelisted indices of an ID table. These are the IDs which are merged into
+     * the target dex file.
+     */
+    public Set<Integer> getWhitelistedMethodIds() {
+        return whitelisted(methodIdWhitelist);
+    }
+
+    public Set<Integer> getWhitelistedFieldIds() {
+        return whitelisted(fieldIdWhitelist);
+    }
+
+    public Set<Integer> getWhitelistedProtoIds() {
+        return whitelisted(protoIdWhitelist);
+    }
+
+    public Set<Integer> getWhitelistedTypeIds() {
+        return whitelisted(typeIdWhitelist);
+    }
+
+    public Set<Integer> getWhitelistedStringIds() {
+        Set<Integer> ids = new HashSet<>();
+        for (Map.Entry<Integer, Usage> entry : stringIdWhitelist.entrySet()) {
+            if (entry.getValue() == Usage.WHITELISTED) {
+                ids.add(entry.getKey());
+            }
+        }
+        return Collections.unmodifiableSet(ids);
+    }
+
+    private static Set<Integer> whitelisted(HashMap<Short, Usage> whitelist) {
+        Set<Integer> ids = new HashSet<>();
+        for (Map.Entry<Short, Usage> entry : whitelist.entrySet()) {
+            if (entry.getValue() == Usage.WHITELISTED) {
+                // indices are stored as shorts, so undo the sign extension
+                ids.add(entry.getKey() & 0xffff);
+            }
+        }
+        return Collections.unmodifiableSet(ids);
+    }
+
     public MethodFilter(Dex dex, String annotationType) throws DexMerger.MergeException {
+        this(dex, annotationType, null);
+    }
+
+    /**
+     * @param requiredMethods annotated methods which are actually used, see
+     *        {@link #requiredMethods}, or null to keep all annotated methods
+     */
+    public MethodFilter(Dex dex, String annotationType, Set<String> requiredMethods)
+            throws DexMerger.MergeException {
         this.dex = dex;
         this.annotationType = annotationType;
+        this.requiredMethods = requiredMethods;
         reset();
 
         skip = annotationType == null;
@@ -40,6 +40,109 @@ public class Optimizer {
             ESCAPE_ANALYSIS
     }
 
+    /**
+     * Optimization tiers, from cheapest to most thorough. A tier picks the
+     * set of optional steps and whether a method that ends up above
+     * {@link TranslationAdvice#getMaxOptimalRegisterCount} is optimized a
+     * second time with the register-minimizing strategy.
+     */
+    public enum Tier {
+        /**
+         * no SCCP and no constant collection, and no second
+         * register-minimizing run; meant for huge generated methods
+         */
+        FAST(EnumSet.of(OptionalStep.MOVE_PARAM_COMBINER,
+                OptionalStep.LITERAL_UPGRADE), false),
+
+        /** the steps dx has always run */
+        DEFAULT(EnumSet.complementOf(
+                EnumSet.of(OptionalStep.ESCAPE_ANALYSIS)), true),
+
+        /**
+         * all steps, including escape analysis, which impacts
+         * debuggability
+         */
+        MAX(EnumSet.allOf(OptionalStep.class), true);
+
+        /** {@code non-null;} optional steps run at this tier */
+        private final EnumSet<OptionalStep> steps;
+
+        /** whether to rerun to get under the register count bar */
+        private final boolean minimizeRegisters;
+
+        private Tier(EnumSet<OptionalStep> steps, boolean minimizeRegisters) {
+            this.steps = steps;
+            this.minimizeRegisters = minimizeRegisters;
+        }
+
+        /**
+         * @return {@code non-null;} a fresh copy of the optional steps run
+         * at this tier
+         */
+        public EnumSet<OptionalStep> getSteps() {
+            return steps.clone();
+        }
+    }
+
+    /**
+     * Per-method limits beyond which a method is dropped to
+     * {@link Tier#FAST}. Instances are immutable.
+     */
+    public static final class Budget {
+        /** budget that never drops a method to the fast tier */
+        public static final Budget UNLIMITED = new Budget(0, 0);
+
+        /**
+         * {@code >= 0;} maximum effective rop instruction count of a method
+         * optimized above the fast tier, or {@code 0} for no limit
+         */
+        private final int maxInsns;
+
+        /**
+         * {@code >= 0;} maximum milliseconds a method may spend in the
+         * optimizer before the remaining work is done at the fast tier, or
+         * {@code 0} for no limit. Since this depends on machine load, it
+         * makes the output nondeterministic and is off unless requested.
+         */
+        private final long maxMillis;
+
+        /**
+         * Constructs an instance.
+         *
+         * @param maxInsns {@code >= 0;} instruction budget, {@code 0} for none
+         * @param maxMillis {@code >= 0;} time budget, {@code 0} for none
+         */
+        public Budget(int maxInsns, long maxMillis) {
+            if (maxInsns < 0 || maxMillis < 0) {
+                throw new IllegalArgumentException("budget < 0");
+            }
+
+            this.maxInsns = maxInsns;
+            this.maxMillis = maxMillis;
+        }
+
+        /**
+         * @param rmeth {@code non-null;} method about to be optimized
+         * @return true if the method is too large to be optimized above
+         * the fast tier
+         */
+        private boolean exceedsInsns(RopMethod rmeth) {
+            return maxInsns != 0
+                    && rmeth.getBlocks().getEffectiveInstructionCount()
+                            > maxInsns;
+        }
+
+        /**
+         * @param startNanos {@link System#nanoTime} at which the method
+         * entered the optimizer
+         * @return true if the method has used up its time budget
+         */
+        private boolean exceedsTime(long startNanos) {
+            return maxMillis != 0
+                    && (System.nanoTime() - startNanos) / 1000000L > maxMillis;
+        }
+    }
+
     /**
      * @return true if local variable information should be preserved, even
      * at code size/register size cost
@@ -98,8 +201,10 @@ public class Optimizer {
         preserveLocals = inPreserveLocals;
         advice = inAdvice;
 
+        steps = withoutEscapeAnalysis(steps);
+
         ssaMeth = SsaConverter.convertToSsaMethod(rmeth, paramWidth, isStatic);
-        runSsaFormSteps(ssaMeth, steps);
+        runSsaFormSteps(ssaMeth, steps, Budget.UNLIMITED, 0, null);
 
         RopMethod resultMeth = SsaToRop.convertToRopMethod(ssaMeth, false);
 
@@ -107,7 +212,99 @@ public class Optimizer {
                 > advice.getMaxOptimalRegisterCount()) {
             // Try to see if we can squeeze it under the register count bar
             resultMeth = optimizeMinimizeRegisters(rmeth, paramWidth, isStatic,
-                    steps);
+                    steps, Budget.UNLIMITED, 0, null);
+        }
+        return resultMeth;
+    }
+
+    /**
+     * Runs optimization algorthims of the given tier over this method, and
+     * returns a new instance of RopMethod with the changes. Methods above the
+     * budget's instruction limit are optimized at {@link Tier#FAST}, as is
+     * the remaining work of a method that runs out of its time budget. The
+     * time budget is checked between passes, so a method goes over it by at
+     * most the pass that was running.
+     *
+     * @param rmeth method to process
+     * @param paramWidth the total width, in register-units, of this method's
+     * parameters
+     * @param isStatic true if this method has no 'this' pointer argument.
+     * @param inPreserveLocals true if local variable info should be preserved,
+     * at the cost of some registers and insns
+     * @param inAdvice {@code non-null;} translation advice
+     * @param tier {@code non-null;} requested optimization tier
+     * @param budget {@code non-null;} per-method limits
+     * @param stats {@code null-ok;} where to record pass timings, if anywhere
+     * @return optimized method
+     */
+    public static RopMethod optimize(RopMethod rmeth, int paramWidth,
+            boolean isStatic, boolean inPreserveLocals,
+            TranslationAdvice inAdvice, Tier tier, Budget budget,
+            PassStatistics stats) {
+        long startNanos = System.nanoTime();
+
+        preserveLocals = inPreserveLocals;
+        advice = inAdvice;
+
+        /*
+         * Each method counts as downgraded at most once, whichever of its
+         * passes ran out of time.
+         */
+        boolean overInsns = false;
+        boolean overTime = false;
+
+        if (tier != Tier.FAST && budget.exceedsInsns(rmeth)) {
+            tier = Tier.FAST;
+            overInsns = true;
+        }
+
+        long passStart = System.nanoTime();
+        SsaMethod ssaMeth =
+                SsaConverter.convertToSsaMethod(rmeth, paramWidth, isStatic);
+        addPassTime(stats, PassStatistics.Pass.SSA_CONVERTER, passStart);
+
+        if (tier != Tier.FAST && budget.exceedsTime(startNanos)) {
+            tier = Tier.FAST;
+            overTime = true;
+        }
+
+        EnumSet<OptionalStep> steps = tier.getSteps();
+        if (runSsaFormSteps(ssaMeth, steps, budget, startNanos, stats)) {
+            tier = Tier.FAST;
+            overTime = true;
+        }
+
+        passStart = System.nanoTime();
+        RopMethod resultMeth = SsaToRop.convertToRopMethod(ssaMeth, false);
+        addPassTime(stats, PassStatistics.Pass.SSA_TO_ROP, passStart);
+
+        if (resultMeth.getBlocks().getRegCount()
+                > advice.getMaxOptimalRegisterCount()) {
+            /*
+             * The second run repeats the whole SSA conversion, so it is
+             * only worth it if the tier asks for it and there is time left.
+             */
+            if (tier.minimizeRegisters && !budget.exceedsTime(startNanos)) {
+                resultMeth = optimizeMinimizeRegisters(rmeth, paramWidth,
+                        isStatic, steps, budget, startNanos, stats);
+                // The rerun keeps only the fast steps once it is out of time
+                if (Tier.FAST.steps.containsAll(steps)) {
+                    tier = Tier.FAST;
+                    overTime = true;
+                }
+                if (stats != null) {
+                    stats.addMinimizeRerun(false);
+                }
+            } else if (stats != null) {
+                stats.addMinimizeRerun(true);
+            }
+        }
+
+        if (stats != null) {
+            if (overInsns || overTime) {
+                stats.addBudgetDowngrade(overTime);
+            }
+            stats.addMethod(tier);
         }
         return resultMeth;
     }
@@ -124,74 +321,161 @@ public class Optimizer {
      * @param paramWidth the total width, in register-units, of this method's
      * parameters
      * @param isStatic true if this method has no 'this' pointer argument.
-     * @param steps set of optional optimization steps to run
+     * @param steps set of optional optimization steps to run; the steps
+     * that are not run, because they do not minimize registers or because
+     * the time budget ran out, are removed from it
+     * @param budget {@code non-null;} per-method limits
+     * @param startNanos {@link System#nanoTime} at which the method
+     * entered the optimizer
+     * @param stats {@code null-ok;} where to record pass timings, if anywhere
      * @return optimized method
      */
     private static RopMethod optimizeMinimizeRegisters(RopMethod rmeth,
-            int paramWidth, boolean isStatic,
-            EnumSet<OptionalStep> steps) {
+            int paramWidth, boolean isStatic, EnumSet<OptionalStep> steps,
+            Budget budget, long startNanos, PassStatistics stats) {
         SsaMethod ssaMeth;
         RopMethod resultMeth;
 
+        long passStart = System.nanoTime();
         ssaMeth = SsaConverter.convertToSsaMethod(
                 rmeth, paramWidth, isStatic);
-
-        EnumSet<OptionalStep> newSteps = steps.clone();
+        addPassTime(stats, PassStatistics.Pass.SSA_CONVERTER, passStart);
 
         /*
          * CONST_COLLECTOR trades insns for registers, which is not an
          * appropriate strategy here.
          */
-        newSteps.remove(OptionalStep.CONST_COLLECTOR);
+        steps.remove(OptionalStep.CONST_COLLECTOR);
 
-        runSsaFormSteps(ssaMeth, newSteps);
+        runSsaFormSteps(ssaMeth, steps, budget, startNanos, stats);
 
+        passStart = System.nanoTime();
         resultMeth = SsaToRop.convertToRopMethod(ssaMeth, true);
+        addPassTime(stats, PassStatistics.Pass.SSA_TO_ROP, passStart);
         return resultMeth;
     }
 
-    private static void runSsaFormSteps(SsaMethod ssaMeth,
+    /**
+     * ESCAPE_ANALYSIS impacts debuggability, so it is left off unless
+     * explicitly requested through {@link Tier#MAX}.
+     *
+     * @param steps {@code non-null;} requested steps, not modified
+     * @return {@code non-null;} the requested steps minus escape analysis
+     */
+    private static EnumSet<OptionalStep> withoutEscapeAnalysis(
             EnumSet<OptionalStep> steps) {
+        EnumSet<OptionalStep> result = steps.clone();
+        result.remove(OptionalStep.ESCAPE_ANALYSIS);
+        return result;
+    }
+
+    /**
+     * Runs the optional steps and the passes every method needs. Before each
+     * optional step, the time budget is checked; once it is used up, the
+     * steps {@link Tier#FAST} does not run are removed from {@code steps}.
+     *
+     * @param ssaMeth {@code non-null;} method to process
+     * @param steps {@code non-null;} optional steps to run, modified if the
+     * method runs out of time
+     * @param budget {@code non-null;} per-method limits
+     * @param startNanos {@link System#nanoTime} at which the method
+     * entered the optimizer
+     * @param stats {@code null-ok;} where to record pass timings, if anywhere
+     * @return true if steps were dropped because of the time budget
+     */
+    private static boolean runSsaFormSteps(SsaMethod ssaMeth,
+            EnumSet<OptionalStep> steps, Budget budget, long startNanos,
+            PassStatistics stats) {
         boolean needsDeadCodeRemover = true;
+        boolean outOfTime = false;
+        long passStart;
 
         if (steps.contains(OptionalStep.MOVE_PARAM_COMBINER)) {
+            passStart = System.nanoTime();
             MoveParamCombiner.process(ssaMeth);
+            addPassTime(stats, PassStatistics.Pass.MOVE_PARAM_COMBINER,
+                    passStart);
         }
 
+        outOfTime |= dropSlowStepsIfOutOfTime(steps, budget, startNanos);
         if (steps.contains(OptionalStep.SCCP)) {
+            passStart = System.nanoTime();
             SCCP.process(ssaMeth);
-            DeadCodeRemover.process(ssaMeth);
+            addPassTime(stats, PassStatistics.Pass.SCCP, passStart);
+            runDeadCodeRemover(ssaMeth, stats);
             needsDeadCodeRemover = false;
         }
 
+        outOfTime |= dropSlowStepsIfOutOfTime(steps, budget, startNanos);
         if (steps.contains(OptionalStep.LITERAL_UPGRADE)) {
+            passStart = System.nanoTime();
             LiteralOpUpgrader.process(ssaMeth);
-            DeadCodeRemover.process(ssaMeth);
+            addPassTime(stats, PassStatistics.Pass.LITERAL_UPGRADE, passStart);
+            runDeadCodeRemover(ssaMeth, stats);
             needsDeadCodeRemover = false;
         }
 
-        /*
-         * ESCAPE_ANALYSIS impacts debuggability, so left off by default
-         */
-        steps.remove(OptionalStep.ESCAPE_ANALYSIS);
+        outOfTime |= dropSlowStepsIfOutOfTime(steps, budget, startNanos);
         if (steps.contains(OptionalStep.ESCAPE_ANALYSIS)) {
+            passStart = System.nanoTime();
             EscapeAnalysis.process(ssaMeth);
-            DeadCodeRemover.process(ssaMeth);
+            addPassTime(stats, PassStatistics.Pass.ESCAPE_ANALYSIS, passStart);
+            runDeadCodeRemover(ssaMeth, stats);
             needsDeadCodeRemover = false;
         }
 
+        outOfTime |= dropSlowStepsIfOutOfTime(steps, budget, startNanos);
         if (steps.contains(OptionalStep.CONST_COLLECTOR)) {
+            passStart = System.nanoTime();
             ConstCollector.process(ssaMeth);
-            DeadCodeRemover.process(ssaMeth);
+            addPassTime(stats, PassStatistics.Pass.CONST_COLLECTOR, passStart);
+            runDeadCodeRemover(ssaMeth, stats);
             needsDeadCodeRemover = false;
         }
 
         // dead code remover must be run before phi type resolver
         if (needsDeadCodeRemover) {
-            DeadCodeRemover.process(ssaMeth);
+            runDeadCodeRemover(ssaMeth, stats);
         }
 
+        passStart = System.nanoTime();
         PhiTypeResolver.process(ssaMeth);
+        addPassTime(stats, PassStatistics.Pass.PHI_TYPE_RESOLVER, passStart);
+        return outOfTime;
+    }
+
+    /**
+     * Removes the steps {@link Tier#FAST} does not run from {@code steps}
+     * if the method has used up its time budget.
+     *
+     * @param steps {@code non-null;} optional steps still to run
+     * @param budget {@code non-null;} per-method limits
+     * @param startNanos {@link System#nanoTime} at which the method
+     * entered the optimizer
+     * @return true if any steps were removed
+     */
+    private static boolean dropSlowStepsIfOutOfTime(
+            EnumSet<OptionalStep> steps, Budget budget, long startNanos) {
+        if (Tier.FAST.steps.containsAll(steps)
+                || !budget.exceedsTime(startNanos)) {
+            return false;
+        }
+        steps.retainAll(Tier.FAST.steps);
+        return true;
+    }
+
+    private static void runDeadCodeRemover(SsaMethod ssaMeth,
+            PassStatistics stats) {
+        long passStart = System.nanoTime();
+        DeadCodeRemover.process(ssaMeth);
+        addPassTime(stats, PassStatistics.Pass.DEAD_CODE_REMOVER, passStart);
+    }
+
+    private static void addPassTime(PassStatistics stats,
+            PassStatistics.Pass pass, long passStart) {
+        if (stats != null) {
+            stats.addPassTime(pass, System.nanoTime() - passStart);
+        }
     }
 
     public static SsaMethod debugEdgeSplit(RopMethod rmeth, int paramWidth,
@@ -250,7 +534,8 @@ public class Optimizer {
 
         ssaMeth = SsaConverter.convertToSsaMethod(rmeth, paramWidth, isStatic);
 
-        runSsaFormSteps(ssaMeth, steps);
+        runSsaFormSteps(ssaMeth, withoutEscapeAnalysis(steps),
+                Budget.UNLIMITED, 0, null);
 
         LivenessAnalyzer.constructInterferenceGraph(ssaMeth);
 
@@ -0,0 +1,116 @@
+package comm.android.dx.ssa;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Running totals of the time spent in each SSA pass, accumulated across
+ * all methods of a build. Classes are translated on several threads, so
+ * all counters are updated atomically.
+ */
+public final class PassStatistics {
+    /** the individually timed parts of {@link Optimizer#optimize} */
+    public enum Pass {
+        SSA_CONVERTER, MOVE_PARAM_COMBINER, SCCP, LITERAL_UPGRADE,
+            ESCAPE_ANALYSIS, CONST_COLLECTOR, DEAD_CODE_REMOVER,
+            PHI_TYPE_RESOLVER, SSA_TO_ROP
+    }
+
+    /** {@code non-null;} nanoseconds spent per pass, by ordinal */
+    private final AtomicLongArray passNanos =
+            new AtomicLongArray(Pass.values().length);
+
+    /** {@code non-null;} number of runs per pass, by ordinal */
+    private final AtomicLongArray passRuns =
+            new AtomicLongArray(Pass.values().length);
+
+    /** {@code non-null;} number of methods optimized per tier, by ordinal */
+    private final AtomicLongArray tierMethods =
+            new AtomicLongArray(Optimizer.Tier.values().length);
+
+    /** index into {@link #events}: dropped to fast by the insn budget */
+    private static final int DOWNGRADE_INSNS = 0;
+
+    /** index into {@link #events}: dropped to fast by the time budget */
+    private static final int DOWNGRADE_TIME = 1;
+
+    /** index into {@link #events}: register-minimizing rerun done */
+    private static final int RERUN = 2;
+
+    /** index into {@link #events}: register-minimizing rerun skipped */
+    private static final int RERUN_SKIPPED = 3;
+
+    /** {@code non-null;} budget and rerun event counters */
+    private final AtomicLongArray events = new AtomicLongArray(4);
+
+    /**
+     * Adds the time of a single pass run.
+     *
+     * @param pass {@code non-null;} pass that ran
+     * @param nanos {@code >= 0;} wall time of the run
+     */
+    public void addPassTime(Pass pass, long nanos) {
+        passNanos.addAndGet(pass.ordinal(), nanos);
+        passRuns.incrementAndGet(pass.ordinal());
+    }
+
+    /**
+     * Counts a method optimized at the given tier.
+     *
+     * @param tier {@code non-null;} tier the method ended up running at
+     */
+    public void addMethod(Optimizer.Tier tier) {
+        tierMethods.incrementAndGet(tier.ordinal());
+    }
+
+    /**
+     * Counts a method that was dropped to {@link Optimizer.Tier#FAST}.
+     *
+     * @param overTime {@code true} if the time budget was exceeded,
+     * {@code false} if the instruction budget was
+     */
+    public void addBudgetDowngrade(boolean overTime) {
+        events.incrementAndGet(overTime ? DOWNGRADE_TIME : DOWNGRADE_INSNS);
+    }
+
+    /**
+     * Counts a register-minimizing rerun of the optimizer.
+     *
+     * @param skipped {@code true} if the rerun was wanted but skipped
+     * because of the tier or budget
+     */
+    public void addMinimizeRerun(boolean skipped) {
+        events.incrementAndGet(skipped ? RERUN_SKIPPED : RERUN);
+    }
+
+    /**
+     * Prints out the collected statistics.
+     *
+     * @param out {@code non-null;} where to output to
+     */
+    public void dumpStatistics(PrintStream out) {
+        long totalNanos = 0;
+        for (int i = 0; i < passNanos.length(); i++) {
+            totalNanos += passNanos.get(i);
+        }
+
+        out.printf("Optimizer methods: fast: %d default: %d max: %d\n",
+                tierMethods.get(Optimizer.Tier.FAST.ordinal()),
+                tierMethods.get(Optimizer.Tier.DEFAULT.ordinal()),
+                tierMethods.get(Optimizer.Tier.MAX.ordinal()));
+        out.printf("Optimizer budget downgrades: insns: %d time: %d\n",
+                events.get(DOWNGRADE_INSNS), events.get(DOWNGRADE_TIME));
+        out.printf("Optimizer register reruns: %d skipped: %d\n",
+                events.get(RERUN), events.get(RERUN_SKIPPED));
+
+        for (Pass pass : Pass.values()) {
+            long nanos = passNanos.get(pass.ordinal());
+            out.printf("Optimizer pass %-20s runs: %8d time: %8.1f ms "
+                    + "(%.2f%%)\n",
+                    pass.name().toLowerCase(),
+                    passRuns.get(pass.ordinal()),
+                    nanos / 1e6,
+                    (totalNanos == 0) ? 0.0 : (100.0 * nanos / totalNanos));
+        }
+    }
+}
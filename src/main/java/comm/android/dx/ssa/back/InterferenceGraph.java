@@ -16,21 +16,73 @@
 
 package comm.android.dx.ssa.back;
 
-import comm.android.dx.ssa.SetFactory;
-import comm.android.dx.util.IntSet;
+import comm.android.dx.util.Bits;
 import comm.android.dx.util.IntSet;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
- * A register interference graph
+ * A register interference graph.
+ *
+ * Small graphs are kept as a square bit matrix with one row per register,
+ * each pair being stored in both rows so that the interference set of a
+ * register is a contiguous run of bits that is read a word at a time. Large
+ * graphs are
+ * usually very sparse and are kept as per-register adjacency arrays instead;
+ * new neighbors are appended and each array is sorted and deduplicated
+ * lazily, when it fills up or is read. Should a large graph turn out to be
+ * dense, it is converted to the bit matrix once the adjacency arrays would
+ * take more memory than the matrix, and converted back to adjacency arrays
+ * should it grow beyond the register count a matrix is allowed to have.
  */
 public class InterferenceGraph {
     /**
-     * {@code non-null;} interference graph, indexed by register in
-     * both dimensions
+     * Register count up to which the bit matrix is used from the start.
+     * A value of 1024 here is 128kb of matrix.
      */
-    private final ArrayList<IntSet> interference;
+    private static final int MATRIX_THRESHOLD_REGS = 1024;
+
+    /**
+     * Register count above which the bit matrix is never used, however
+     * dense the graph. A value of 8192 here is 8mb of matrix.
+     */
+    private static final int MATRIX_MAX_REGS = 8192;
+
+    /** initial capacity of an adjacency array */
+    private static final int INITIAL_ROW_CAPACITY = 4;
+
+    /** current count of registers in the namespace */
+    private int regCount;
+
+    /**
+     * {@code null-ok;} square bit matrix of {@code matrixStride * 32} rows
+     * of {@code matrixStride} words each. The pair {@code (v, w)} is at bit
+     * {@code w} of row {@code v} and at bit {@code v} of row {@code w}.
+     * {@code null} if adjacency arrays are used.
+     */
+    private int[] matrix;
+
+    /** count of words in each row of the bit matrix */
+    private int matrixStride;
+
+    /**
+     * {@code null-ok;} adjacency arrays, indexed by register. Only the first
+     * {@code rowSizes[reg]} entries of each are valid. {@code null} if the
+     * bit matrix is used.
+     */
+    private int[][] rows;
+
+    /** {@code null-ok;} count of valid entries of each adjacency array */
+    private int[] rowSizes;
+
+    /**
+     * {@code null-ok;} count of leading entries of each adjacency array that
+     * are known to be sorted and free of duplicates
+     */
+    private int[] rowSorted;
+
+    /** total count of valid entries in all adjacency arrays */
+    private long adjacencyEntries;
 
     /**
      * Creates a new graph.
@@ -39,10 +91,14 @@ public class InterferenceGraph {
      * the namespace. New registers can be added subsequently.
      */
     public InterferenceGraph(int countRegs) {
-        interference = new ArrayList<IntSet>(countRegs);
+        regCount = countRegs;
 
-        for (int i = 0; i < countRegs; i++) {
-            interference.add(SetFactory.makeInterferenceSet(countRegs));
+        if (countRegs <= MATRIX_THRESHOLD_REGS) {
+            resizeMatrix(countRegs);
+        } else {
+            rows = new int[countRegs][];
+            rowSizes = new int[countRegs];
+            rowSorted = new int[countRegs];
         }
     }
 
@@ -56,20 +112,43 @@ public class InterferenceGraph {
     public void add(int regV, int regW) {
         ensureCapacity(Math.max(regV, regW) + 1);
 
-        interference.get(regV).add(regW);
-        interference.get(regW).add(regV);
+        if (matrix != null) {
+            Bits.set(matrix, matrixIndex(regV, regW));
+            Bits.set(matrix, matrixIndex(regW, regV));
+            return;
+        }
+
+        addToRow(regV, regW);
+        if (regV != regW) {
+            addToRow(regW, regV);
+        }
+
+        if (regCount <= MATRIX_MAX_REGS
+                && adjacencyEntries * 32 > matrixBits(regCount)) {
+            convertToMatrix();
+        }
     }
 
     /**
      * Dumps interference graph to stdout for debugging.
      */
     public void dumpToStdout() {
-        int oldRegCount = interference.size();
-
-        for (int i = 0; i < oldRegCount; i++) {
+        for (int i = 0; i < regCount; i++) {
             StringBuilder sb = new StringBuilder();
 
-            sb.append("Reg " + i + ":" + interference.get(i).toString());
+            sb.append("Reg " + i + ":{");
+
+            boolean first = true;
+            for (int j = 0; j < regCount; j++) {
+                if (interferes(i, j)) {
+                    if (!first) {
+                        sb.append(", ");
+                    }
+                    first = false;
+                    sb.append(j);
+                }
+            }
+            sb.append('}');
 
             System.out.println(sb.toString());
         }
@@ -83,23 +162,236 @@ public class InterferenceGraph {
      * with set for given register
      */
     public void mergeInterferenceSet(int reg, IntSet set) {
-        if (reg < interference.size()) {
-            set.merge(interference.get(reg));
+        if (reg >= regCount) {
+            return;
+        }
+
+        if (matrix != null) {
+            int rowStart = matrixIndex(reg, 0);
+            int rowEnd = rowStart + regCount;
+            for (int i = findFirst(matrix, rowStart, rowEnd); i >= 0;
+                    i = findFirst(matrix, i + 1, rowEnd)) {
+                set.add(i - rowStart);
+            }
+            return;
+        }
+
+        compactRow(reg);
+        int[] row = rows[reg];
+        int sz = rowSizes[reg];
+        for (int i = 0; i < sz; i++) {
+            set.add(row[i]);
         }
     }
 
+    /**
+     * Checks whether two registers interfere.
+     *
+     * @param regV one register index
+     * @param regW another register index
+     * @return true if the pair was added to this graph
+     */
+    private boolean interferes(int regV, int regW) {
+        if (matrix != null) {
+            return Bits.get(matrix, matrixIndex(regV, regW));
+        }
+
+        compactRow(regV);
+        return rows[regV] != null
+                && Arrays.binarySearch(rows[regV], 0, rowSizes[regV], regW) >= 0;
+    }
+
     /**
      * Ensures that the interference graph is appropriately sized.
      *
      * @param size requested minumum size
      */
     private void ensureCapacity(int size) {
-        int countRegs = interference.size();
+        if (size <= regCount) {
+            return;
+        }
+
+        if (matrix != null && size > MATRIX_MAX_REGS) {
+            convertToRows();
+        }
+
+        if (matrix != null) {
+            if (size > matrixStride << 5) {
+                resizeMatrix(Math.min(MATRIX_MAX_REGS,
+                        Math.max(size, matrixStride << 6)));
+            }
+        } else if (size > rows.length) {
+            int newLength = Math.max(size, rows.length + (rows.length >> 1));
+            rows = Arrays.copyOf(rows, newLength);
+            rowSizes = Arrays.copyOf(rowSizes, newLength);
+            rowSorted = Arrays.copyOf(rowSorted, newLength);
+        }
+
+        regCount = size;
+    }
+
+    /**
+     * Appends a neighbor to a register's adjacency array, compacting or
+     * growing the array when it is full.
+     *
+     * @param reg {@code >= 0;} register
+     * @param neighbor {@code >= 0;} interfering register
+     */
+    private void addToRow(int reg, int neighbor) {
+        int[] row = rows[reg];
+        int sz = rowSizes[reg];
+
+        if (row == null) {
+            row = new int[INITIAL_ROW_CAPACITY];
+            rows[reg] = row;
+        } else if (sz > 0 && row[sz - 1] == neighbor) {
+            // Liveness analysis tends to add the same pair repeatedly.
+            return;
+        } else if (sz == row.length) {
+            compactRow(reg);
+            sz = rowSizes[reg];
+            if (sz > (row.length >> 1)) {
+                row = Arrays.copyOf(row, row.length * 2);
+                rows[reg] = row;
+            }
+        }
+
+        row[sz] = neighbor;
+        rowSizes[reg] = sz + 1;
+        adjacencyEntries++;
+    }
+
+    /**
+     * Sorts a register's adjacency array and removes duplicates from it.
+     *
+     * @param reg {@code >= 0;} register
+     */
+    private void compactRow(int reg) {
+        int sz = rowSizes[reg];
+        if (rowSorted[reg] == sz) {
+            return;
+        }
+
+        int[] row = rows[reg];
+        Arrays.sort(row, 0, sz);
+
+        int out = 0;
+        for (int i = 0; i < sz; i++) {
+            if (out == 0 || row[out - 1] != row[i]) {
+                row[out++] = row[i];
+            }
+        }
+
+        adjacencyEntries -= sz - out;
+        rowSizes[reg] = out;
+        rowSorted[reg] = out;
+    }
+
+    /**
+     * Moves the adjacency arrays into a newly allocated bit matrix.
+     */
+    private void convertToMatrix() {
+        resizeMatrix(regCount);
+
+        for (int v = 0; v < regCount; v++) {
+            int[] row = rows[v];
+            int sz = rowSizes[v];
+            for (int i = 0; i < sz; i++) {
+                Bits.set(matrix, matrixIndex(v, row[i]));
+            }
+        }
+
+        rows = null;
+        rowSizes = null;
+        rowSorted = null;
+        adjacencyEntries = 0;
+    }
+
+    /**
+     * Moves the bit matrix into newly allocated adjacency arrays.
+     */
+    private void convertToRows() {
+        rows = new int[regCount][];
+        rowSizes = new int[regCount];
+        rowSorted = new int[regCount];
+
+        // Each row receives its neighbors in ascending order.
+        for (int v = 0; v < regCount; v++) {
+            int rowStart = matrixIndex(v, 0);
+            int rowEnd = rowStart + regCount;
+            for (int i = findFirst(matrix, rowStart, rowEnd); i >= 0;
+                    i = findFirst(matrix, i + 1, rowEnd)) {
+                addToRow(v, i - rowStart);
+            }
+        }
+        System.arraycopy(rowSizes, 0, rowSorted, 0, regCount);
 
-        interference.ensureCapacity(size);
+        matrix = null;
+        matrixStride = 0;
+    }
 
-        for (int i = countRegs; i < size; i++) {
-            interference.add(SetFactory.makeInterferenceSet(size));
+    /**
+     * Allocates a bit matrix for at least the given number of registers,
+     * copying the rows of the current one, if any, into it.
+     *
+     * @param capacity {@code >= 0;} register count the matrix must hold
+     */
+    private void resizeMatrix(int capacity) {
+        int stride = (capacity + 0x1f) >> 5;
+        int[] resized = new int[stride * (stride << 5)];
+
+        if (matrix != null) {
+            for (int v = 0; v < regCount; v++) {
+                System.arraycopy(matrix, v * matrixStride, resized,
+                        v * stride, matrixStride);
+            }
         }
+
+        matrix = resized;
+        matrixStride = stride;
+    }
+
+    /**
+     * @param countRegs {@code >= 0;} register count
+     * @return number of bits in a square matrix of that many registers
+     */
+    private static long matrixBits(int countRegs) {
+        return (long) countRegs * countRegs;
+    }
+
+    /**
+     * @param regV row register index
+     * @param regW column register index
+     * @return bit index of the pair in row {@code regV} of the matrix
+     */
+    private int matrixIndex(int regV, int regW) {
+        return regV * (matrixStride << 5) + regW;
+    }
+
+    /**
+     * Finds the lowest-order bit set in a range of a bit set.
+     *
+     * @param bits {@code non-null;} bit set to search
+     * @param idx {@code >= 0;} minimum index to return
+     * @param end index one past the maximum index to return
+     * @return lowest-order bit set in {@code [idx, end)}, or {@code -1}
+     */
+    private static int findFirst(int[] bits, int idx, int end) {
+        int minBit = idx & 0x1f;
+        int lastWord = (end - 1) >> 5;
+
+        for (int arrayIdx = idx >> 5; arrayIdx <= lastWord; arrayIdx++) {
+            int word = bits[arrayIdx];
+            if (word != 0) {
+                int bitIdx = Bits.findFirst(word, minBit);
+                if (bitIdx >= 0) {
+                    int result = (arrayIdx << 5) + bitIdx;
+                    return (result < end) ? result : -1;
+                }
+            }
+            minBit = 0;
+        }
+
+        return -1;
     }
 }
@@ -29,23 +29,49 @@ import comm.android.dx.rop.type.TypeList;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 /**
  * Tool to find direct class references to other classes.
+ *
+ * <p>The references of the roots are followed concurrently, one root per task.
  */
 public class ClassReferenceListBuilder {
     private static final String CLASS_EXTENSION = ".class";
 
     private final Path path;
-    private final Set<String> classNames = new HashSet<String>();
+    private final int threadCount;
+    private final Set<String> classNames =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * Classes which have been looked up in the path, found or not, so that each is looked up
+     * only once.
+     */
+    private final Set<String> visited =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     public ClassReferenceListBuilder(Path path) {
+        this(path, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threadCount number of roots whose references are followed concurrently
+     */
+    public ClassReferenceListBuilder(Path path, int threadCount) {
         this.path = path;
+        this.threadCount = Math.max(1, threadCount);
     }
 
     /**
@@ -70,25 +96,55 @@ public class ClassReferenceListBuilder {
             ZipEntry entry = entries.nextElement();
             String name = entry.getName();
             if (name.endsWith(CLASS_EXTENSION)) {
-                classNames.add(name.substring(0, name.length() - CLASS_EXTENSION.length()));
+                String className = name.substring(0, name.length() - CLASS_EXTENSION.length());
+                classNames.add(className);
+                visited.add(className);
             }
         }
 
         // keep direct references of roots (+ direct references hierarchy)
-        for (Enumeration<? extends ZipEntry> entries = jarOfRoots.entries();
-                entries.hasMoreElements();) {
-            ZipEntry entry = entries.nextElement();
-            String name = entry.getName();
-            if (name.endsWith(CLASS_EXTENSION)) {
-                DirectClassFile classFile;
-                try {
-                    classFile = path.getClass(name);
-                } catch (FileNotFoundException e) {
-                    throw new IOException("Class " + name +
-                            " is missing form original class path " + path, e);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+            for (Enumeration<? extends ZipEntry> entries = jarOfRoots.entries();
+                    entries.hasMoreElements();) {
+                ZipEntry entry = entries.nextElement();
+                final String name = entry.getName();
+                if (name.endsWith(CLASS_EXTENSION)) {
+                    tasks.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            DirectClassFile classFile;
+                            try {
+                                classFile = path.getClass(name);
+                            } catch (FileNotFoundException e) {
+                                throw new IOException("Class " + name +
+                                        " is missing form original class path " + path, e);
+                            }
+                            addDependencies(classFile);
+                            return null;
+                        }
+                    }));
                 }
-                addDependencies(classFile);
             }
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while following class references", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            executor.shutdownNow();
         }
     }
 
@@ -143,7 +199,7 @@ public class ClassReferenceListBuilder {
     }
 
     private void addClassWithHierachy(String classBinaryName) {
-        if (classNames.contains(classBinaryName)) {
+        if (!visited.add(classBinaryName)) {
             return;
         }
 
@@ -0,0 +1,439 @@
+package comm.android.multidex;
+
+import comm.android.dex.Annotation;
+import comm.android.dex.ClassData;
+import comm.android.dex.ClassDef;
+import comm.android.dex.Code;
+import comm.android.dex.Dex;
+import comm.android.dex.DexException;
+import comm.android.dex.EncodedValueReader;
+import comm.android.dex.FieldId;
+import comm.android.dex.MethodId;
+import comm.android.dex.ProtoId;
+import comm.android.dx.io.CodeReader;
+import comm.android.dx.io.instructions.DecodedInstruction;
+import comm.android.dx.util.IntList;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes main dex lists and reference closures from dex files, for apps of which only the dex
+ * files are available.
+ *
+ * <p>This is the dex counterpart of {@link MainDexListBuilder}. The classes of all given dex
+ * files are numbered once and their supertypes and references are kept as arrays of class
+ * numbers, so that closures never touch type names. Only classes defined in one of the dex files
+ * are part of the graph; references to other classes, e.g. of the framework, are dropped. A class
+ * defined in several dex files is taken from the first one, as a class path would.
+ *
+ * <p>The references of a class are the types it names: its supertypes, the types of its fields,
+ * the prototypes of its methods and, in its code, the types, field and method references of
+ * instructions, the types of catch handlers and the classes named by system annotations. This
+ * corresponds to the type constants of a class file which {@link ClassReferenceListBuilder} reads.
+ * Dex files do not record the classes of which only compile time constants are used, nor the outer
+ * classes of nested classes used by a class, so these are not part of the lists.
+ *
+ * <p>Class names are taken and returned as class file names, e.g. {@code a/b/C.class}, the format
+ * of dx's {@code --main-dex-list}.
+ */
+public class DexMainDexListBuilder {
+    private static final String CLASS_EXTENSION = ".class";
+
+    private static final byte VISIBILITY_RUNTIME = 1;
+    private static final byte VISIBILITY_SYSTEM = 2;
+
+    private static final int[] NO_CLASSES = new int[0];
+
+    /** Type descriptors of the classes, by class number. */
+    private final String[] descriptors;
+    private final Map<String, Integer> classNumbers;
+    /** Superclass and interfaces of each class. */
+    private final int[][] supertypes;
+    /** Classes referenced by each class. */
+    private final int[][] references;
+    /** Classes annotated with runtime visible annotations, on the class or a member. */
+    private final BitSet runtimeAnnotated = new BitSet();
+
+    /**
+     * Builds the class graph of {@code dexes}, for example all dex files of an APK.
+     */
+    public DexMainDexListBuilder(List<Dex> dexes) {
+        classNumbers = new HashMap<String, Integer>();
+        IntList owners = new IntList();
+        for (int i = 0; i < dexes.size(); i++) {
+            Dex dex = dexes.get(i);
+            for (ClassDef classDef : dex.classDefs()) {
+                String descriptor = dex.typeNames().get(classDef.getTypeIndex());
+                if (!classNumbers.containsKey(descriptor)) {
+                    classNumbers.put(descriptor, classNumbers.size());
+                    owners.add(i);
+                }
+            }
+        }
+
+        int classCount = classNumbers.size();
+        descriptors = new String[classCount];
+        for (Map.Entry<String, Integer> entry : classNumbers.entrySet()) {
+            descriptors[entry.getValue()] = entry.getKey();
+        }
+        supertypes = new int[classCount][];
+        references = new int[classCount][];
+
+        for (int i = 0; i < dexes.size(); i++) {
+            new Shard(dexes.get(i), i, owners).addClasses();
+        }
+    }
+
+    /**
+     * Returns the classes to keep in the main dex: the roots, the classes they reference and the
+     * superclasses and interfaces of those, like {@link MainDexListBuilder}.
+     *
+     * @param roots class file names of the classes used during secondary dex installation
+     * @param keepAnnotated whether to also keep all classes with runtime visible annotations
+     * @throws DexException if a root is not defined in any of the dex files
+     */
+    public Set<String> getMainDexList(Collection<String> roots, boolean keepAnnotated) {
+        BitSet kept = new BitSet(descriptors.length);
+        int[] rootClasses = toClassNumbers(roots);
+        for (int root : rootClasses) {
+            kept.set(root);
+        }
+        IntList stack = new IntList();
+        for (int root : rootClasses) {
+            for (int reference : references[root]) {
+                if (!kept.get(reference)) {
+                    kept.set(reference);
+                    stack.add(reference);
+                }
+            }
+            // keep the hierarchy of the references
+            while (stack.size() > 0) {
+                for (int supertype : supertypes[stack.pop()]) {
+                    if (!kept.get(supertype)) {
+                        kept.set(supertype);
+                        stack.add(supertype);
+                    }
+                }
+            }
+        }
+        if (keepAnnotated) {
+            kept.or(runtimeAnnotated);
+        }
+        return toClassFileNames(kept);
+    }
+
+    /**
+     * Returns every class reachable from the roots through references and supertypes, including
+     * the roots.
+     *
+     * @param roots class file names
+     * @throws DexException if a root is not defined in any of the dex files
+     */
+    public Set<String> getReferenceClosure(Collection<String> roots) {
+        BitSet reached = new BitSet(descriptors.length);
+        IntList stack = new IntList();
+        for (int root : toClassNumbers(roots)) {
+            if (!reached.get(root)) {
+                reached.set(root);
+                stack.add(root);
+            }
+        }
+        while (stack.size() > 0) {
+            int current = stack.pop();
+            for (int supertype : supertypes[current]) {
+                if (!reached.get(supertype)) {
+                    reached.set(supertype);
+                    stack.add(supertype);
+                }
+            }
+            for (int reference : references[current]) {
+                if (!reached.get(reference)) {
+                    reached.set(reference);
+                    stack.add(reference);
+                }
+            }
+        }
+        return toClassFileNames(reached);
+    }
+
+    private int[] toClassNumbers(Collection<String> classFileNames) {
+        int[] result = new int[classFileNames.size()];
+        int i = 0;
+        for (String name : classFileNames) {
+            if (!name.endsWith(CLASS_EXTENSION)) {
+                throw new DexException("Not a class file name: " + name);
+            }
+            String descriptor =
+                    "L" + name.substring(0, name.length() - CLASS_EXTENSION.length()) + ";";
+            Integer classNumber = classNumbers.get(descriptor);
+            if (classNumber == null) {
+                throw new DexException("Class " + name + " is not defined in the dex files");
+            }
+            result[i++] = classNumber;
+        }
+        return result;
+    }
+
+    private Set<String> toClassFileNames(BitSet classes) {
+        Set<String> result = new LinkedHashSet<String>();
+        for (int i = classes.nextSetBit(0); i >= 0; i = classes.nextSetBit(i + 1)) {
+            String descriptor = descriptors[i];
+            result.add(descriptor.substring(1, descriptor.length() - 1) + CLASS_EXTENSION);
+        }
+        return result;
+    }
+
+    /**
+     * Reads the classes of one dex file into the graph. The ID tables of the dex file are
+     * translated to class numbers once, up front.
+     */
+    private final class Shard {
+        private final Dex dex;
+        private final int dexNumber;
+        private final IntList owners;
+        private final CodeReader codeReader = new CodeReader();
+
+        /** Class number of each type, or of the element type of arrays, or -1. */
+        private final int[] typeClasses;
+        private final int[] fieldDeclaringClasses;
+        private final int[] fieldTypeClasses;
+        private final int[] methodDeclaringClasses;
+        private final int[] methodProtos;
+        /** Class numbers of return and parameter types of each proto, read on first use. */
+        private final int[][] protoClasses;
+
+        /** Collects the references of the current class without duplicates. */
+        private final IntList collected = new IntList();
+        private final BitSet seen;
+
+        Shard(Dex dex, int dexNumber, IntList owners) {
+            this.dex = dex;
+            this.dexNumber = dexNumber;
+            this.owners = owners;
+            this.seen = new BitSet(descriptors.length);
+
+            List<String> typeNames = dex.typeNames();
+            typeClasses = new int[typeNames.size()];
+            for (int i = 0; i < typeClasses.length; i++) {
+                String descriptor = typeNames.get(i);
+                int dimensions = 0;
+                while (descriptor.charAt(dimensions) == '[') {
+                    dimensions++;
+                }
+                Integer classNumber = classNumbers.get(
+                        dimensions == 0 ? descriptor : descriptor.substring(dimensions));
+                typeClasses[i] = classNumber != null ? classNumber : -1;
+            }
+
+            List<FieldId> fieldIds = dex.fieldIds();
+            fieldDeclaringClasses = new int[fieldIds.size()];
+            fieldTypeClasses = new int[fieldIds.size()];
+            for (int i = 0; i < fieldDeclaringClasses.length; i++) {
+                FieldId fieldId = fieldIds.get(i);
+                fieldDeclaringClasses[i] = typeClasses[fieldId.getDeclaringClassIndex()];
+                fieldTypeClasses[i] = typeClasses[fieldId.getTypeIndex()];
+            }
+
+            List<MethodId> methodIds = dex.methodIds();
+            methodDeclaringClasses = new int[methodIds.size()];
+            methodProtos = new int[methodIds.size()];
+            for (int i = 0; i < methodDeclaringClasses.length; i++) {
+                MethodId methodId = methodIds.get(i);
+                methodDeclaringClasses[i] = typeClasses[methodId.getDeclaringClassIndex()];
+                methodProtos[i] = methodId.getProtoIndex();
+            }
+            protoClasses = new int[dex.protoIds().size()][];
+
+            codeReader.setTypeVisitor(new CodeReader.Visitor() {
+                @Override
+                public void visit(DecodedInstruction[] all, DecodedInstruction one) {
+                    addType(one.getIndex());
+                }
+            });
+            codeReader.setFieldVisitor(new CodeReader.Visitor() {
+                @Override
+                public void visit(DecodedInstruction[] all, DecodedInstruction one) {
+                    addField(one.getIndex());
+                }
+            });
+            codeReader.setMethodVisitor(new CodeReader.Visitor() {
+                @Override
+                public void visit(DecodedInstruction[] all, DecodedInstruction one) {
+                    addMethod(one.getIndex());
+                }
+            });
+        }
+
+        void addClasses() {
+            for (ClassDef classDef : dex.classDefs()) {
+                int classNumber = typeClasses[classDef.getTypeIndex()];
+                if (owners.get(classNumber) != dexNumber) {
+                    // shadowed by the same class in an earlier dex file
+                    continue;
+                }
+                if (classDef.getSupertypeIndex() != ClassDef.NO_INDEX) {
+                    addType(classDef.getSupertypeIndex());
+                }
+                for (short interfaceIndex : classDef.getInterfaces()) {
+                    addType(interfaceIndex & 0xffff);
+                }
+                supertypes[classNumber] = toArray();
+                for (int supertype : supertypes[classNumber]) {
+                    addClass(supertype);
+                }
+
+                if (classDef.getClassDataOffset() != 0) {
+                    ClassData classData = dex.readClassData(classDef);
+                    for (ClassData.Field field : classData.allFields()) {
+                        addClass(fieldTypeClasses[field.getFieldIndex()]);
+                    }
+                    for (ClassData.Method method : classData.allMethods()) {
+                        addProto(methodProtos[method.getMethodIndex()]);
+                        if (method.getCodeOffset() != 0) {
+                            addCode(dex.readCode(method));
+                        }
+                    }
+                }
+                if (classDef.getAnnotationsOffset() != 0
+                        && readAnnotations(classDef.getAnnotationsOffset())) {
+                    runtimeAnnotated.set(classNumber);
+                }
+                references[classNumber] = toArray();
+            }
+        }
+
+        private void addCode(Code code) {
+            codeReader.visitAll(code.getInstructions());
+            for (Code.CatchHandler handler : code.getCatchHandlers()) {
+                for (int typeIndex : handler.getTypeIndexes()) {
+                    addType(typeIndex);
+                }
+            }
+        }
+
+        private void addType(int typeIndex) {
+            addClass(typeClasses[typeIndex]);
+        }
+
+        private void addField(int fieldIndex) {
+            addClass(fieldDeclaringClasses[fieldIndex]);
+            addClass(fieldTypeClasses[fieldIndex]);
+        }
+
+        private void addMethod(int methodIndex) {
+            addClass(methodDeclaringClasses[methodIndex]);
+            addProto(methodProtos[methodIndex]);
+        }
+
+        private void addProto(int protoIndex) {
+            int[] classes = protoClasses[protoIndex];
+            if (classes == null) {
+                ProtoId protoId = dex.protoIds().get(protoIndex);
+                short[] parameters = dex.readTypeList(protoId.getParametersOffset()).getTypes();
+                classes = new int[parameters.length + 1];
+                classes[0] = typeClasses[protoId.getReturnTypeIndex()];
+                for (int i = 0; i < parameters.length; i++) {
+                    classes[i + 1] = typeClasses[parameters[i] & 0xffff];
+                }
+                protoClasses[protoIndex] = classes;
+            }
+            for (int classNumber : classes) {
+                addClass(classNumber);
+            }
+        }
+
+        private void addClass(int classNumber) {
+            if (classNumber >= 0 && !seen.get(classNumber)) {
+                seen.set(classNumber);
+                collected.add(classNumber);
+            }
+        }
+
+        /**
+         * Returns the collected classes and starts a new collection.
+         */
+        private int[] toArray() {
+            if (collected.size() == 0) {
+                return NO_CLASSES;
+            }
+            int[] result = new int[collected.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = collected.get(i);
+            }
+            collected.shrink(0);
+            seen.clear();
+            return result;
+        }
+
+        /**
+         * Reads the annotations of the class, its fields and its methods. The types named by
+         * system annotations, i.e. enclosing and member classes and thrown exceptions, are added
+         * to the references, as they are type constants of a class file.
+         *
+         * @return whether there is a runtime visible annotation. Parameter annotations are not
+         *     considered, as in {@link MainDexListBuilder}.
+         */
+        private boolean readAnnotations(int annotationsDirectoryOffset) {
+            Dex.Section directory = dex.open(annotationsDirectoryOffset);
+            int classAnnotationsOffset = directory.readInt();
+            int fieldsSize = directory.readInt();
+            int methodsSize = directory.readInt();
+            directory.readInt(); // parameters_size
+
+            boolean runtimeVisible = readAnnotationSet(classAnnotationsOffset);
+            for (int i = 0; i < fieldsSize + methodsSize; i++) {
+                directory.readInt(); // field_idx or method_idx
+                runtimeVisible |= readAnnotationSet(directory.readInt());
+            }
+            return runtimeVisible;
+        }
+
+        private boolean readAnnotationSet(int annotationSetOffset) {
+            if (annotationSetOffset == 0) {
+                return false;
+            }
+            boolean runtimeVisible = false;
+            Dex.Section annotationSet = dex.open(annotationSetOffset);
+            int size = annotationSet.readInt();
+            for (int i = 0; i < size; i++) {
+                Annotation annotation = dex.open(annotationSet.readInt()).readAnnotation();
+                if (annotation.getVisibility() == VISIBILITY_RUNTIME) {
+                    runtimeVisible = true;
+                } else if (annotation.getVisibility() == VISIBILITY_SYSTEM) {
+                    EncodedValueReader reader = annotation.getReader();
+                    int fieldCount = reader.readAnnotation();
+                    for (int j = 0; j < fieldCount; j++) {
+                        reader.readAnnotationName();
+                        addValue(reader);
+                    }
+                }
+            }
+            return runtimeVisible;
+        }
+
+        private void addValue(EncodedValueReader reader) {
+            switch (reader.peek()) {
+                case EncodedValueReader.ENCODED_TYPE:
+                    addType(reader.readType());
+                    break;
+                case EncodedValueReader.ENCODED_METHOD:
+                    addClass(methodDeclaringClasses[reader.readMethod()]);
+                    break;
+                case EncodedValueReader.ENCODED_ARRAY:
+                    int size = reader.readArray();
+                    for (int i = 0; i < size; i++) {
+                        addValue(reader);
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+    }
+}
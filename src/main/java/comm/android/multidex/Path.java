@@ -18,7 +18,6 @@ package comm.android.multidex;
 
 import comm.android.dx.cf.direct.DirectClassFile;
 import comm.android.dx.cf.direct.StdAttributeFactory;
-import comm.android.dx.cf.direct.DirectClassFile;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -26,13 +25,26 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
+/**
+ * A class path, searched in order for class files.
+ *
+ * <p>The entries of all elements are indexed once when the path is created, so that a lookup
+ * opens only the element which holds the class. Recently parsed classes are kept in a bounded
+ * cache. {@link #getClass} may be called concurrently.
+ */
 class Path {
 
+    /** Maximum number of parsed classes kept in the cache. */
+    private static final int CLASS_CACHE_SIZE = 4096;
+
     static ClassPathElement getClassPathElement(File file)
             throws ZipException, IOException {
         if (file.isDirectory()) {
@@ -49,8 +61,18 @@ class Path {
 
     List<ClassPathElement> elements = new ArrayList<ClassPathElement>();
     private final String definition;
-    private final ByteArrayOutputStream baos = new ByteArrayOutputStream(40 * 1024);
-    private final byte[] readBuffer = new byte[20 * 1024];
+
+    /** First element of the path holding each entry, keyed by '/' separated relative path. */
+    private final Map<String, ClassPathElement> index = new HashMap<String, ClassPathElement>();
+
+    /** Parsed classes, least recently used first. Guarded by itself. */
+    private final Map<String, DirectClassFile> classCache =
+            new LinkedHashMap<String, DirectClassFile>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, DirectClassFile> eldest) {
+                    return size() > CLASS_CACHE_SIZE;
+                }
+            };
 
     Path(String definition) throws IOException {
         this.definition = definition;
@@ -63,8 +85,9 @@ class Path {
         }
     }
 
-    private static byte[] readStream(InputStream in, ByteArrayOutputStream baos, byte[] readBuffer)
-            throws IOException {
+    private static byte[] readStream(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(40 * 1024);
+        byte[] readBuffer = new byte[20 * 1024];
         try {
             for (;;) {
                 int amt = in.read(readBuffer);
@@ -92,29 +115,57 @@ class Path {
     private void addElement(ClassPathElement element) {
         assert element != null;
         elements.add(element);
+        for (String name : element.list()) {
+            String key = normalize(name);
+            if (!index.containsKey(key)) {
+                index.put(key, element);
+            }
+        }
     }
 
-    synchronized DirectClassFile getClass(String path) throws FileNotFoundException {
-        DirectClassFile classFile = null;
-        for (ClassPathElement element : elements) {
-            try {
-                InputStream in = element.open(path);
-                try {
-                    byte[] bytes = readStream(in, baos, readBuffer);
-                    baos.reset();
-                    classFile = new DirectClassFile(bytes, path, false);
-                    classFile.setAttributeFactory(StdAttributeFactory.THE_ONE);
-                    break;
-                } finally {
-                    in.close();
-                }
-            } catch (IOException e) {
-                // search next element
+    /**
+     * Strips the leading separator of the names listed by {@link FolderPathElement}.
+     */
+    private static String normalize(String path) {
+        int start = 0;
+        while (start < path.length() && path.charAt(start) == ClassPathElement.SEPARATOR_CHAR) {
+            start++;
+        }
+        return path.substring(start);
+    }
+
+    DirectClassFile getClass(String path) throws FileNotFoundException {
+        String key = normalize(path);
+        synchronized (classCache) {
+            DirectClassFile cached = classCache.get(key);
+            if (cached != null) {
+                return cached;
             }
         }
-        if (classFile == null) {
+
+        ClassPathElement element = index.get(key);
+        if (element == null) {
             throw new FileNotFoundException("File \"" + path + "\" not found");
         }
+        DirectClassFile classFile;
+        try {
+            byte[] bytes = readStream(element.open(key));
+            classFile = new DirectClassFile(bytes, key, false);
+            classFile.setAttributeFactory(StdAttributeFactory.THE_ONE);
+            // Parse now, the class file parses lazily and is not safe to share before that
+            classFile.getAttributes();
+        } catch (IOException e) {
+            throw new FileNotFoundException("File \"" + path + "\" can not be read: "
+                    + e.getMessage());
+        }
+
+        synchronized (classCache) {
+            DirectClassFile cached = classCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            classCache.put(key, classFile);
+        }
         return classFile;
     }
-}
\ No newline at end of file
+}
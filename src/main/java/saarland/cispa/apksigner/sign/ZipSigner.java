@@ -62,6 +62,7 @@ import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
@@ -103,7 +104,9 @@ public class ZipSigner {
     private static Pattern stripPattern =
             Pattern.compile("^META-INF/(.*)[.](SF|RSA|DSA)$");
 
-    Map<String, KeySet> loadedKeys = new HashMap<String, KeySet>();
+    // Built-in keys are read-only once loaded, so they are shared by all signers
+    static final ConcurrentHashMap<String, KeySet> loadedKeys =
+            new ConcurrentHashMap<String, KeySet>();
     KeySet keySet = null;
 
     public static final String MODE_AUTO_TESTKEY = "auto-testkey";
@@ -228,27 +231,30 @@ public class ZipSigner {
         keySet = loadedKeys.get(name);
         if (keySet != null) return;
 
-        keySet = new KeySet();
-        keySet.setName(name);
-        loadedKeys.put(name, keySet);
+        KeySet loaded = new KeySet();
+        loaded.setName(name);
 
-        if (KEY_NONE.equals(name)) return;
+        if (!KEY_NONE.equals(name)) {
+            issueLoadingCertAndKeysProgressEvent();
 
-        issueLoadingCertAndKeysProgressEvent();
+            // load the private key
+            URL privateKeyUrl = getClass().getResource("/keys/" + name + ".pk8");
+            loaded.setPrivateKey(readPrivateKey(privateKeyUrl, null));
 
-        // load the private key
-        URL privateKeyUrl = getClass().getResource("/keys/" + name + ".pk8");
-        keySet.setPrivateKey(readPrivateKey(privateKeyUrl, null));
+            // load the certificate
+            URL publicKeyUrl = getClass().getResource("/keys/" + name + ".x509.pem");
+            loaded.setPublicKey(readPublicKey(publicKeyUrl));
 
-        // load the certificate
-        URL publicKeyUrl = getClass().getResource("/keys/" + name + ".x509.pem");
-        keySet.setPublicKey(readPublicKey(publicKeyUrl));
-
-        // load the signature block template
-        URL sigBlockTemplateUrl = getClass().getResource("/keys/" + name + ".sbt");
-        if (sigBlockTemplateUrl != null) {
-            keySet.setSigBlockTemplate(readContentAsBytes(sigBlockTemplateUrl));
+            // load the signature block template
+            URL sigBlockTemplateUrl = getClass().getResource("/keys/" + name + ".sbt");
+            if (sigBlockTemplateUrl != null) {
+                loaded.setSigBlockTemplate(readContentAsBytes(sigBlockTemplateUrl));
+            }
         }
+
+        // Only cache fully loaded keys. If another signer won the race, use its copy.
+        KeySet existing = loadedKeys.putIfAbsent(name, loaded);
+        keySet = (existing != null) ? existing : loaded;
     }
 
     public void setKeys(String name, X509Certificate publicKey, PrivateKey privateKey, byte[] signatureBlockTemplate) {
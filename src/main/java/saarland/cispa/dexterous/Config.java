@@ -25,6 +25,7 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 
 public class Config {
 
@@ -37,6 +38,39 @@ public class Config {
 
     public File codelib = null;
 
+    /**
+     * Codelib methods used by the ARTist modules, see {@link MergeConfig#codelibMethods}. Only
+     * these are injected; null injects all methods annotated with {@code @Inject}.
+     */
+    public Set<String> codelib_methods = null;
+
+    /** Write merged dex files to the working directory, as {@code <apk>_<entry>}. */
+    public boolean save_dex = true;
+
+    /**
+     * Save merged dex files to the directory {@code <apk>_merged} next to their APK instead, so
+     * that concurrent jobs never write to the same file.
+     */
+    public boolean save_dex_per_apk = false;
+
+    /** Directory of APKs, or file listing one APK per line, to instrument in batch mode. */
+    public File batch = null;
+
+    /** Number of APKs instrumented concurrently in batch mode. */
+    public int threads = Runtime.getRuntime().availableProcessors();
+
+    /** File receiving one JSON result line per APK in batch mode, or null for stdout. */
+    public File batch_results = null;
+
+    /** Localhost port to run the daemon on, or -1 to not run as daemon. */
+    public int daemon_port = -1;
+
+    /** Localhost port of the daemon to hand jobs to, or -1 to run them in-process. */
+    public int connect_port = -1;
+
+    /** Keep the symbol index of an analyzed APK next to it, in {@code <apk>.symbols}. */
+    public boolean symbol_index = false;
+
     public List<File> dexFiles = new ArrayList<>();
 
     final static List<String> NO_COMPRESS_EXTENSIONS = Arrays.asList(
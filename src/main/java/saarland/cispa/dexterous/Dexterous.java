@@ -34,8 +34,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
@@ -44,6 +47,7 @@ import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 import comm.android.dex.Dex;
+import comm.android.dex.DexIndexOverflowException;
 import comm.android.dx.merge.CollisionPolicy;
 import comm.android.dx.merge.DexMerger;
 import trikita.log.Log;
@@ -64,6 +68,8 @@ public class Dexterous {
     private Set<String> dexSourceFiles = null;
     private DxContext context;
 
+    private final List<String> skippedDexes = new ArrayList<>();
+
     public Dexterous(final MergeConfig config) {
         this.context = new DxContext();
         this.config = config;
@@ -96,15 +102,35 @@ public class Dexterous {
         return dexBuffers.size() > 1;
     }
 
-    private void mergeMethodIds(final String DEX_NAME, Dex dexFile) throws DexMerger.MergeException {
+    private void mergeMethodIds(final String DEX_NAME, Dex dexFile, final InjectionPlanner planner)
+            throws DexMerger.MergeException {
         if (!hasMultipleDexes()) {
             Log.e(TAG, String.format("mergeMethodIds: NO Multiple DexFiles Found: Singular DexFile only."));
             return;
         }
 
         if (!DEX_NAME.equals(CODE_LIB_DEX_NAME)) {
+            final InjectionPlanner.Plan plan = planner.plan(DEX_NAME, dexFile);
+            Log.d(TAG, "> " + plan);
+            if (!plan.fits()) {
+                // Leave this dex as it is, the others can still be instrumented
+                Log.w(TAG, String.format("MERGING DEX %s into %s SKIPPED: %s", CODE_LIB_DEX_NAME, DEX_NAME, plan));
+                skippedDexes.add(DEX_NAME);
+                return;
+            }
             Log.i(TAG, String.format("MERGING DEX %s into %s", CODE_LIB_DEX_NAME, DEX_NAME));
-            final Dex mergedDex = mergeCodeLibReference(DEX_NAME, dexFile);
+            final Dex mergedDex;
+            try {
+                mergedDex = mergeCodeLibReference(DEX_NAME, dexFile);
+            } catch (final DexMerger.MergeException e) {
+                if (!(e.getValue() instanceof DexIndexOverflowException)) {
+                    throw e;
+                }
+                Log.w(TAG, String.format("MERGING DEX %s into %s SKIPPED: %s", CODE_LIB_DEX_NAME, DEX_NAME,
+                        e.getValue().getMessage()));
+                skippedDexes.add(DEX_NAME);
+                return;
+            }
             this.dexBuffers.put(DEX_NAME, mergedDex);
             Log.i(TAG, String.format("MERGING DEX %s into %s DONE", CODE_LIB_DEX_NAME, DEX_NAME));
         } else {
@@ -112,19 +138,40 @@ public class Dexterous {
         }
     }
 
+    /**
+     * Injects the codelib into every dex file of the app. Fails if the ID tables of a dex file
+     * would overflow, unless {@link MergeConfig#allowSkippedDexes} is set, in which case such dex
+     * files are left unchanged and reported by {@link #getSkippedDexes()}. Restricting
+     * {@link MergeConfig#codelibMethods} to the methods actually used makes the codelib smaller.
+     */
     public void mergeCodeLib() throws DexMerger.MergeException {
         try {
-            dexBuffers.get(CODE_LIB_DEX_NAME).setWhitelistedAnnotation("Lsaarland/cispa/artist/codelib/CodeLib$Inject;");
+            final Dex codeLibDex = dexBuffers.get(CODE_LIB_DEX_NAME);
+            codeLibDex.setWhitelistedAnnotation("Lsaarland/cispa/artist/codelib/CodeLib$Inject;",
+                    config.codelibMethods);
+            final InjectionPlanner planner = new InjectionPlanner(codeLibDex);
+            skippedDexes.clear();
             for (Map.Entry<String, Dex> dexfile : dexBuffers.entrySet()) {
                 final String DEX_NAME = dexfile.getKey();
                 Dex dexFile = dexfile.getValue();
-                mergeMethodIds(DEX_NAME, dexFile);
+                mergeMethodIds(DEX_NAME, dexFile, planner);
+            }
+            if (!skippedDexes.isEmpty() && !config.allowSkippedDexes) {
+                throw new DexIndexOverflowException("CodeLib does not fit into " + skippedDexes);
             }
         } catch (RuntimeException e) {
             throw new DexMerger.MergeException(e);
         }
     }
 
+    /**
+     * Returns the dex files which {@link #mergeCodeLib()} left unchanged because the codelib
+     * did not fit into them.
+     */
+    public List<String> getSkippedDexes() {
+        return Collections.unmodifiableList(skippedDexes);
+    }
+
     public String buildApk() {
         Log.i(TAG, "");
         Log.i(TAG, "# Building APK");
@@ -0,0 +1,187 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2017 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package saarland.cispa.dexterous;
+
+import comm.android.dex.Dex;
+import comm.android.dex.FieldId;
+import comm.android.dex.MethodId;
+import comm.android.dex.ProtoId;
+import comm.android.dex.TableOfContents;
+import comm.android.dx.merge.MethodFilter;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Checks, before merging, whether the whitelisted IDs of the codelib fit into a target dex file.
+ *
+ * Method, field, proto and type IDs are addressed with 16 bits, so a dex file holds at most
+ * {@link #MAX_IDS} of each. Strings may exceed that, but only through jumbo instructions, which
+ * the merger does not create: a dex file whose strings all fit 16 bits must keep them so. The
+ * planner counts the codelib IDs that are new to the target, comparing them by value, and adds
+ * them to the sizes in the target's {@link TableOfContents}.
+ */
+public final class InjectionPlanner {
+
+    public static final int MAX_IDS = 0x10000;
+
+    private final Set<String> codeLibStrings;
+    private final Set<String> codeLibTypes;
+    private final Set<String> codeLibProtos;
+    private final Set<String> codeLibFields;
+    private final Set<String> codeLibMethods;
+
+    /**
+     * @param codeLib the codelib dex, on which a whitelist must already have been set
+     */
+    public InjectionPlanner(final Dex codeLib) {
+        final MethodFilter filter = codeLib.getMethodFilter();
+        if (filter == null) {
+            throw new IllegalStateException("CodeLib has no whitelist: " + codeLib.getName());
+        }
+        this.codeLibStrings = new HashSet<>();
+        for (final int id : filter.getWhitelistedStringIds()) {
+            codeLibStrings.add(codeLib.strings().get(id));
+        }
+        this.codeLibTypes = new HashSet<>();
+        for (final int id : filter.getWhitelistedTypeIds()) {
+            codeLibTypes.add(codeLib.typeNames().get(id));
+        }
+        this.codeLibProtos = new HashSet<>();
+        for (final int id : filter.getWhitelistedProtoIds()) {
+            codeLibProtos.add(protoKey(codeLib, codeLib.protoIds().get(id)));
+        }
+        this.codeLibFields = new HashSet<>();
+        for (final int id : filter.getWhitelistedFieldIds()) {
+            codeLibFields.add(fieldKey(codeLib, codeLib.fieldIds().get(id)));
+        }
+        this.codeLibMethods = new HashSet<>();
+        for (final int id : filter.getWhitelistedMethodIds()) {
+            codeLibMethods.add(methodKey(codeLib, codeLib.methodIds().get(id)));
+        }
+    }
+
+    /**
+     * Computes the ID counts of {@code target} after injecting the codelib.
+     */
+    public Plan plan(final String targetName, final Dex target) {
+        final TableOfContents toc = target.getTableOfContents();
+        final Plan plan = new Plan(targetName);
+
+        plan.strings = toc.stringIds.size
+                + countNew(codeLibStrings, new HashSet<>(target.strings()));
+        plan.stringLimit = (toc.stringIds.size <= MAX_IDS) ? MAX_IDS : Integer.MAX_VALUE;
+        plan.types = toc.typeIds.size
+                + countNew(codeLibTypes, new HashSet<>(target.typeNames()));
+
+        final Set<String> protos = new HashSet<>();
+        for (final ProtoId protoId : target.protoIds()) {
+            protos.add(protoKey(target, protoId));
+        }
+        plan.protos = toc.protoIds.size + countNew(codeLibProtos, protos);
+
+        final Set<String> fields = new HashSet<>();
+        for (final FieldId fieldId : target.fieldIds()) {
+            fields.add(fieldKey(target, fieldId));
+        }
+        plan.fields = toc.fieldIds.size + countNew(codeLibFields, fields);
+
+        final Set<String> methods = new HashSet<>();
+        for (final MethodId methodId : target.methodIds()) {
+            methods.add(methodKey(target, methodId));
+        }
+        plan.methods = toc.methodIds.size + countNew(codeLibMethods, methods);
+
+        return plan;
+    }
+
+    private static int countNew(final Set<String> codeLibIds, final Set<String> targetIds) {
+        int count = 0;
+        for (final String id : codeLibIds) {
+            if (!targetIds.contains(id)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String protoKey(final Dex dex, final ProtoId protoId) {
+        final StringBuilder key = new StringBuilder("(");
+        for (final short type : dex.readTypeList(protoId.getParametersOffset()).getTypes()) {
+            key.append(dex.typeNames().get(type & 0xffff));
+        }
+        return key.append(')').append(dex.typeNames().get(protoId.getReturnTypeIndex())).toString();
+    }
+
+    private static String fieldKey(final Dex dex, final FieldId fieldId) {
+        return dex.typeNames().get(fieldId.getDeclaringClassIndex())
+                + "." + dex.strings().get(fieldId.getNameIndex())
+                + ":" + dex.typeNames().get(fieldId.getTypeIndex());
+    }
+
+    private static String methodKey(final Dex dex, final MethodId methodId) {
+        return dex.typeNames().get(methodId.getDeclaringClassIndex())
+                + "." + dex.strings().get(methodId.getNameIndex())
+                + protoKey(dex, dex.protoIds().get(methodId.getProtoIndex()));
+    }
+
+    /**
+     * ID counts of a target dex file after injection.
+     */
+    public static final class Plan {
+        private final String targetName;
+        private int strings;
+        private int stringLimit;
+        private int types;
+        private int protos;
+        private int fields;
+        private int methods;
+
+        private Plan(final String targetName) {
+            this.targetName = targetName;
+        }
+
+        /** Returns whether the codelib can be injected without overflowing an ID table. */
+        public boolean fits() {
+            return strings <= stringLimit
+                    && types <= MAX_IDS
+                    && protos <= MAX_IDS
+                    && fields <= MAX_IDS
+                    && methods <= MAX_IDS;
+        }
+
+        public int getMethods() {
+            return methods;
+        }
+
+        public int getFields() {
+            return fields;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%s after injection: strings %d, types %d/%d, protos %d/%d, fields %d/%d, "
+                            + "methods %d/%d%s",
+                    targetName, strings, types, MAX_IDS, protos, MAX_IDS, fields, MAX_IDS,
+                    methods, MAX_IDS, fits() ? "" : " (OVERFLOW)");
+        }
+    }
+}
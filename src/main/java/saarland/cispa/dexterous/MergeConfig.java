@@ -20,11 +20,27 @@
  */
 package saarland.cispa.dexterous;
 
+import java.util.Set;
+
 public class MergeConfig {
     public String codelibName;
     public String mergedApkPath;
     public String apkPath;
 
+    /**
+     * Codelib methods used by the ARTist modules, as {@code Lpkg/Class;.name} or with signature
+     * {@code Lpkg/Class;.name(Lparam;)Lreturn;}. Only these are injected; null injects all
+     * methods annotated with {@code @Inject}.
+     */
+    public Set<String> codelibMethods = null;
+
+    /**
+     * Let {@link Dexterous#mergeCodeLib()} leave dex files the codelib does not fit into
+     * unchanged, instead of failing. The result then lacks the codelib in those dex files, see
+     * {@link Dexterous#getSkippedDexes()}.
+     */
+    public boolean allowSkippedDexes = false;
+
     public MergeConfig(String codelibName, String mergedApkPath, String apkPath) {
         this.codelibName = codelibName;
         this.mergedApkPath = mergedApkPath;
@@ -20,6 +20,7 @@
  */
 package saarland.cispa.dexterous.cli;
 
+import com.android.apksig.ApkAligner;
 import com.android.apksig.ApkSigner;
 import com.android.apksig.apk.ApkFormatException;
 import com.android.apksig.apk.MinSdkVersionException;
@@ -336,11 +337,17 @@ public class ApkSir {
         }
     }
 
-    private File inputApk;
-    private File tmpOutputApk;
-    private File outputApk;
+    private final SigningContext signingContext;
 
-    public ApkSir() {
+    /**
+     * Signs with the bundled ARTist debug key, which is loaded only once per process.
+     */
+    public ApkSir() throws SigningContext.LoadException {
+        this(SigningContext.getDefault());
+    }
+
+    public ApkSir(final SigningContext signingContext) {
+        this.signingContext = signingContext;
     }
 
     private static byte[] readFully(File file) throws IOException {
@@ -360,7 +367,7 @@ public class ApkSir {
     }
 
 
-    public void signApk(final String apkPath)
+    public File signApk(final String apkPath)
             throws ApkFormatException, IOException, NoSuchAlgorithmException, InvalidKeyException, SignatureException {
 
         boolean v1SigningEnabled = true;
@@ -369,20 +376,12 @@ public class ApkSir {
         final String signedApkPath = apkPath.replace(".apk", "-signed.apk");
         final String tmpApkPath = apkPath.replace(".apk", "-temp.apk");
 
-        this.outputApk = new File(signedApkPath);
-        this.tmpOutputApk = new File(tmpApkPath);
-        this.inputApk = new File(apkPath);
-
-        final List<SignerParams> signers = buildDefaultSignerParams();
-        final List<ApkSigner.SignerConfig> signerConfigs = buildSignerConfigs(signers);
-
-        if (signerConfigs == null) {
-            Log.e("No SignerConfig found.");
-            return;
-        }
+        final File outputApk = new File(signedApkPath);
+        final File tmpOutputApk = new File(tmpApkPath);
+        final File inputApk = new File(apkPath);
 
         ApkSigner.Builder apkSignerBuilder =
-                new ApkSigner.Builder(signerConfigs)
+                signingContext.newApkSignerBuilder()
                         .setInputApk(inputApk)
                         .setOutputApk(tmpOutputApk)
                         .setOtherSignersSignaturesPreserved(false)
@@ -400,12 +399,47 @@ public class ApkSir {
                     e);
         }
         if (!tmpOutputApk.getCanonicalPath().equals(outputApk.getCanonicalPath())) {
-            renameOutputApk();
+            renameOutputApk(tmpOutputApk, outputApk);
         }
         Log.i("Signed: " + outputApk.getName());
+        return outputApk;
+    }
+
+    /**
+     * Aligns the uncompressed entries of the given APK, replacing it.
+     * {@link java.util.zip.ZipOutputStream} cannot align entries, so APKs written with it
+     * need this before they are signed.
+     */
+    public static void alignApk(final File apk) throws IOException, ApkFormatException {
+        final File aligned = new File(apk.getPath() + ".aligned");
+        try {
+            new ApkAligner.Builder(apk, aligned).build().align();
+            replaceFile(aligned, apk);
+        } finally {
+            if (aligned.exists() && !aligned.delete()) {
+                Log.w("Could not delete " + aligned.getPath());
+            }
+        }
+    }
+
+    /**
+     * Replaces {@code target} with {@code source}. {@link File#renameTo(File)} does not replace
+     * existing files on every platform, so the contents are copied over if renaming fails.
+     */
+    private static void replaceFile(final File source, final File target) throws IOException {
+        if (source.renameTo(target)) {
+            return;
+        }
+        try (InputStream in = new FileInputStream(source);
+             OutputStream out = new FileOutputStream(target)) {
+            drain(in, out);
+        }
+        if (!source.delete()) {
+            Log.w("Could not delete " + source.getPath());
+        }
     }
 
-    private List<SignerParams> buildDefaultSignerParams() {
+    static List<SignerParams> buildDefaultSignerParams() {
         final List<SignerParams> signers = new ArrayList<>(1);
         final SignerParams signerParams = new SignerParams();
 
@@ -426,7 +460,8 @@ public class ApkSir {
         return signers;
     }
 
-    private List<ApkSigner.SignerConfig> buildSignerConfigs(final List<SignerParams> signers) {
+    static List<ApkSigner.SignerConfig> buildSignerConfigs(final List<SignerParams> signers)
+            throws SigningContext.LoadException {
         List<ApkSigner.SignerConfig> signerConfigs = new ArrayList<>(signers.size());
 
         int signerNumber = 0;
@@ -437,14 +472,11 @@ public class ApkSir {
                 try {
                     signer.loadPrivateKeyAndCerts(passwordRetriever);
                 } catch (ParameterException e) {
-                    System.err.println("Failed to load signer \"" + signer.name + "\": " + e.getMessage());
-                    System.exit(2);
-                    return null;
+                    throw new SigningContext.LoadException(
+                            "Failed to load signer \"" + signer.name + "\": " + e.getMessage());
                 } catch (Exception e) {
-                    System.err.println("Failed to load signer \"" + signer.name + "\"");
-                    e.printStackTrace();
-                    System.exit(2);
-                    return null;
+                    throw new SigningContext.LoadException(
+                            "Failed to load signer \"" + signer.name + "\"", e);
                 }
                 String v1SigBasename;
                 if (signer.v1SigFileBasename != null) {
@@ -460,7 +492,8 @@ public class ApkSir {
                         v1SigBasename = keyFileName.substring(0, delimiterIndex);
                     }
                 } else {
-                    throw new RuntimeException("Neither KeyStore key alias nor private key file available");
+                    throw new SigningContext.LoadException(
+                            "Neither KeyStore key alias nor private key file available");
                 }
                 ApkSigner.SignerConfig signerConfig =
                         new ApkSigner.SignerConfig.Builder(
@@ -474,7 +507,8 @@ public class ApkSir {
         return signerConfigs;
     }
 
-    private void renameOutputApk() throws IOException {
+    private static void renameOutputApk(final File tmpOutputApk, final File outputApk)
+            throws IOException {
         FileSystem fs = FileSystems.getDefault();
         Files.move(
                 fs.getPath(tmpOutputApk.getPath()),
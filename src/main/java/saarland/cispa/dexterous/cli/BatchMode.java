@@ -0,0 +1,128 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2017 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package saarland.cispa.dexterous.cli;
+
+import comm.android.dx.merge.DexMerger;
+import saarland.cispa.dexterous.Config;
+import trikita.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Instruments many APKs with one codelib in a single JVM.
+ *
+ * The codelib is parsed and the signing keys are loaded once, and shared by all APKs. APKs are
+ * processed concurrently by a fixed number of workers. The queue of pending APKs is bounded, so
+ * large batches are fed to the workers as they become free rather than queued all at once. For
+ * every APK, one JSON line with its status, the dex files left without the codelib and timings
+ * is written to the result stream.
+ */
+public class BatchMode {
+
+    private static final String TAG = "BatchMode";
+
+    private final Config runConfig;
+    private final PrintStream results;
+
+    public BatchMode(final Config runConfig, final PrintStream results) {
+        this.runConfig = runConfig;
+        this.results = results;
+    }
+
+    /**
+     * Returns the APKs of a batch: the {@code .apk} files of a directory, or the paths listed in a
+     * manifest file, one per line. Blank lines and lines starting with {@code #} are ignored.
+     */
+    public static List<File> listApks(final File batch) throws IOException {
+        final List<File> apks = new ArrayList<>();
+        if (batch.isDirectory()) {
+            final File[] files = batch.listFiles((dir, name) ->
+                    name.endsWith(".apk")
+                            && !name.endsWith("_injected.apk")
+                            && !name.endsWith("-signed.apk"));
+            if (files != null) {
+                Arrays.sort(files);
+                apks.addAll(Arrays.asList(files));
+            }
+        } else {
+            for (final String line : Files.readAllLines(batch.toPath(), StandardCharsets.UTF_8)) {
+                final String path = line.trim();
+                if (!path.isEmpty() && !path.startsWith("#")) {
+                    apks.add(new File(path));
+                }
+            }
+        }
+        return apks;
+    }
+
+    /**
+     * Instruments all APKs and returns the number of APKs which failed.
+     */
+    public int run(final List<File> apks)
+            throws DexMerger.MergeException, SigningContext.LoadException, InterruptedException {
+        final Instrumenter instrumenter = new Instrumenter(
+                CodeLib.load(runConfig.codelib, runConfig.codelib_methods),
+                runConfig.sign_apk ? SigningContext.getDefault() : null);
+        final Instrumenter.Operation operation =
+                runConfig.sign_apk ? Instrumenter.Operation.SIGN : Instrumenter.Operation.BUILD;
+
+        final int threads = Math.max(1, Math.min(runConfig.threads, apks.size()));
+        Log.i(TAG, String.format("# BATCH: %d APKs, %d threads", apks.size(), threads));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // At most one running and one queued APK per worker, so submission blocks while the pool is saturated
+        final Semaphore pending = new Semaphore(2 * threads);
+        final AtomicInteger failures = new AtomicInteger();
+        try {
+            for (final File apk : apks) {
+                pending.acquire();
+                executor.execute(() -> {
+                    try {
+                        final Instrumenter.Result result = instrumenter.instrument(apk, operation);
+                        if (!result.isOk()) {
+                            failures.incrementAndGet();
+                        }
+                        synchronized (results) {
+                            results.println(result.toJson());
+                            results.flush();
+                        }
+                    } finally {
+                        pending.release();
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return failures.get();
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2017 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package saarland.cispa.dexterous.cli;
+
+import comm.android.dex.Dex;
+import comm.android.dx.merge.DexMerger;
+import saarland.cispa.dexterous.InjectionPlanner;
+import saarland.cispa.dexterous.MultiDex;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A parsed codelib, shared by every {@link Dexterously} run that injects it.
+ *
+ * The codelib is only read by the merger, so one instance can be used by concurrent runs once
+ * its whitelist of injected methods has been computed.
+ */
+public final class CodeLib {
+
+    public static final String INJECT_ANNOTATION = "Lsaarland/cispa/artist/codelib/CodeLib$Inject;";
+
+    private final String name;
+    private final String dexName;
+    private final Map<String, Dex> dexes;
+    private final Set<String> requiredMethods;
+    private boolean whitelisted;
+    private InjectionPlanner planner;
+
+    private CodeLib(final String name, final Map<String, Dex> dexes,
+                    final Set<String> requiredMethods) {
+        this.name = name;
+        this.dexName = name + ":classes.dex";
+        this.dexes = Collections.unmodifiableMap(dexes);
+        this.requiredMethods = requiredMethods;
+    }
+
+    public static CodeLib load(final File codelib) {
+        return load(codelib, null);
+    }
+
+    /**
+     * @param requiredMethods the annotated methods to inject, see
+     *        {@link saarland.cispa.dexterous.MergeConfig#codelibMethods}, or null for all
+     */
+    public static CodeLib load(final File codelib, final Set<String> requiredMethods) {
+        return new CodeLib(codelib.getName(), MultiDex.loadDexfiles(codelib), requiredMethods);
+    }
+
+    /** File name of the codelib, e.g. {@code codelib.apk}. */
+    public String getName() {
+        return name;
+    }
+
+    /** Name of the codelib's primary dex file, e.g. {@code codelib.apk:classes.dex}. */
+    public String getDexName() {
+        return dexName;
+    }
+
+    /** All dex files of the codelib, by name. */
+    public Map<String, Dex> getDexes() {
+        return dexes;
+    }
+
+    /**
+     * Computes the whitelist of methods annotated for injection, restricted to the required
+     * methods if there are any, unless that has already been done. Must be called before the
+     * codelib is merged.
+     */
+    public synchronized void whitelistInjectedMethods() throws DexMerger.MergeException {
+        final Dex dex = dexes.get(dexName);
+        if (dex == null) {
+            throw new DexMerger.MergeException(
+                    new IllegalStateException("CodeLib dex not found: " + dexName));
+        }
+        // Every Dex starts out with a pass-through filter, so track this here
+        if (!whitelisted) {
+            dex.setWhitelistedAnnotation(INJECT_ANNOTATION, requiredMethods);
+            whitelisted = true;
+            planner = new InjectionPlanner(dex);
+        }
+    }
+
+    /**
+     * Returns the planner for the whitelisted codelib IDs, or null before
+     * {@link #whitelistInjectedMethods()}.
+     */
+    public synchronized InjectionPlanner getPlanner() {
+        return planner;
+    }
+}
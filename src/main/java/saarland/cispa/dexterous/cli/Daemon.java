@@ -0,0 +1,314 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2017 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package saarland.cispa.dexterous.cli;
+
+import comm.android.dx.merge.DexMerger;
+import saarland.cispa.dexterous.Config;
+import trikita.log.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long running server which keeps one parsed codelib (its dex files and {@code @Inject}
+ * whitelist) and, once the first APK was signed, the signing keys warm, and instruments APKs on
+ * request.
+ *
+ * The daemon listens on a loopback TCP port. Since any local user can connect to it, it writes
+ * its port and a random token to {@link #getTokenFile(int)}, which only the user running the
+ * daemon can read, and answers only requests which carry that token. Clients send one JSON object
+ * per line and get one JSON line back per request, in order:
+ * <pre>
+ * {"op":"ping","token":"..."}
+ *     {"status":"ok","codelib":"/path/codelib.apk"}
+ * {"op":"merge|build|sign","token":"...","apk":"/path/app.apk","codelib":"/path/codelib.apk"}
+ *     the result line of {@link Instrumenter.Result#toJson()}
+ * </pre>
+ * The {@code codelib} of a job is optional; if present it must be the daemon's codelib. Jobs run
+ * on a fixed number of workers. When all workers are busy and the queue of pending jobs is full,
+ * a job is answered with {@code {"status":"busy"}} right away, so that the client can run it
+ * itself. Malformed requests are answered with {@code {"status":"error","error":"..."}}.
+ *
+ * At most {@link #MAX_CONNECTIONS} connections are served at once; further ones get a single
+ * {@code {"status":"busy"}} line and are closed. Connections are also closed after
+ * {@link #IDLE_TIMEOUT_MILLIS} without a request, and after a request line longer than
+ * {@link #MAX_REQUEST_LENGTH} characters.
+ */
+public class Daemon {
+
+    private static final String TAG = "Daemon";
+
+    private static final int TOKEN_BYTES = 32;
+
+    static final int MAX_CONNECTIONS = 64;
+
+    static final int IDLE_TIMEOUT_MILLIS = 60 * 1000;
+
+    static final int MAX_REQUEST_LENGTH = 64 * 1024;
+
+    private final Instrumenter instrumenter;
+    private final File codelib;
+    private final ThreadPoolExecutor workers;
+    private final ExecutorService connections;
+    private final String token;
+
+    public Daemon(final Config runConfig) throws DexMerger.MergeException, IOException {
+        this.codelib = runConfig.codelib.getCanonicalFile();
+        // The default keys are only loaded once a sign job needs them
+        this.instrumenter = new Instrumenter(CodeLib.load(codelib, runConfig.codelib_methods), null);
+        this.workers = new ThreadPoolExecutor(
+                runConfig.threads, runConfig.threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(runConfig.threads),
+                new ThreadPoolExecutor.AbortPolicy());
+        final ThreadPoolExecutor connectionPool = new ThreadPoolExecutor(
+                MAX_CONNECTIONS, MAX_CONNECTIONS, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), runnable -> {
+                    final Thread thread = new Thread(runnable, "dexterous-connection");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        connectionPool.allowCoreThreadTimeOut(true);
+        this.connections = connectionPool;
+        final byte[] tokenBytes = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(tokenBytes);
+        final StringBuilder hex = new StringBuilder(2 * TOKEN_BYTES);
+        for (final byte b : tokenBytes) {
+            hex.append(String.format("%02x", b));
+        }
+        this.token = hex.toString();
+    }
+
+    /**
+     * Returns the file in which the daemon on {@code port} publishes its port and token, one per
+     * line.
+     */
+    static File getTokenFile(final int port) {
+        return new File(new File(System.getProperty("user.home"), ".dexterously"),
+                "daemon-" + port + ".token");
+    }
+
+    /**
+     * Writes the port and token to the token file, readable and writable by the owner only.
+     */
+    private static void writeTokenFile(final File file, final int port, final String token)
+            throws IOException {
+        final Path path = file.toPath();
+        final boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        if (posix) {
+            Files.createDirectories(path.getParent(),
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } else {
+            Files.createDirectories(path.getParent());
+        }
+        // Created anew, so that the permissions are in place before the token is written
+        Files.deleteIfExists(path);
+        if (posix) {
+            Files.createFile(path,
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(path);
+            final File f = path.toFile();
+            if (!(f.setReadable(false, false) && f.setReadable(true, true)
+                    && f.setWritable(false, false) && f.setWritable(true, true))) {
+                throw new IOException("Could not restrict access to " + file);
+            }
+        }
+        Files.write(path, (port + "\n" + token + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Accepts connections on the loopback interface until the process ends.
+     */
+    public void serve(final int port) throws IOException {
+        File tokenFile = null;
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            tokenFile = getTokenFile(server.getLocalPort());
+            writeTokenFile(tokenFile, server.getLocalPort(), token);
+            // The daemon usually ends with a signal, which skips the finally block below.
+            tokenFile.deleteOnExit();
+            Log.i(TAG, String.format("# DAEMON: listening on %s:%d with %d workers (codelib: %s, token: %s)",
+                    server.getInetAddress().getHostAddress(), server.getLocalPort(),
+                    workers.getMaximumPoolSize(), codelib, tokenFile));
+            while (true) {
+                final Socket socket = server.accept();
+                try {
+                    connections.execute(() -> handle(socket));
+                } catch (final RejectedExecutionException e) {
+                    refuse(socket);
+                }
+            }
+        } finally {
+            if (tokenFile != null && !tokenFile.delete()) {
+                Log.w(TAG, "Could not delete " + tokenFile);
+            }
+            workers.shutdown();
+            connections.shutdownNow();
+        }
+    }
+
+    private static void refuse(final Socket socket) {
+        Log.w(TAG, "Refusing connection, " + MAX_CONNECTIONS + " connections are open");
+        try (Socket s = socket;
+             Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)) {
+            out.write("{\"status\":\"busy\"}\n");
+        } catch (final IOException e) {
+            Log.w(TAG, "Connection failed: " + e);
+        }
+    }
+
+    private void handle(final Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)) {
+            s.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+            String line;
+            while ((line = readRequest(in)) != null) {
+                if (line.length() > MAX_REQUEST_LENGTH) {
+                    out.write(error("Request longer than " + MAX_REQUEST_LENGTH + " characters"));
+                    out.write('\n');
+                    out.flush();
+                    break;
+                }
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                out.write(respond(line));
+                out.write('\n');
+                out.flush();
+            }
+        } catch (final IOException e) {
+            Log.w(TAG, "Connection failed: " + e);
+        }
+    }
+
+    /**
+     * Reads a request line without its terminator, or returns null at the end of the stream. At
+     * most {@link #MAX_REQUEST_LENGTH} + 1 characters are read, so that an overlong line is
+     * recognized by its length without buffering all of it.
+     */
+    private static String readRequest(final BufferedReader in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            line.append((char) c);
+            if (line.length() > MAX_REQUEST_LENGTH) {
+                return line.toString();
+            }
+        }
+        if (c == -1 && line.length() == 0) {
+            return null;
+        }
+        final int end = line.length() - 1;
+        if (end >= 0 && line.charAt(end) == '\r') {
+            line.setLength(end);
+        }
+        return line.toString();
+    }
+
+    private String respond(final String line) {
+        final Map<String, Object> request;
+        try {
+            request = Json.parseObject(line);
+        } catch (final IllegalArgumentException e) {
+            return error("Malformed request: " + e.getMessage());
+        }
+
+        final Object requestToken = request.get("token");
+        if (!(requestToken instanceof String) || !MessageDigest.isEqual(
+                token.getBytes(StandardCharsets.UTF_8),
+                ((String) requestToken).getBytes(StandardCharsets.UTF_8))) {
+            return error("Unauthorized");
+        }
+
+        final Object op = request.get("op");
+        if ("ping".equals(op)) {
+            return "{\"status\":\"ok\",\"codelib\":" + Json.quote(codelib.getPath()) + "}";
+        }
+        final Instrumenter.Operation operation;
+        if ("merge".equals(op)) {
+            operation = Instrumenter.Operation.MERGE;
+        } else if ("build".equals(op)) {
+            operation = Instrumenter.Operation.BUILD;
+        } else if ("sign".equals(op)) {
+            operation = Instrumenter.Operation.SIGN;
+        } else {
+            return error("Unknown op: " + op);
+        }
+
+        final Object apk = request.get("apk");
+        if (!(apk instanceof String)) {
+            return error("Missing apk");
+        }
+        final Object requestedCodelib = request.get("codelib");
+        if (requestedCodelib != null) {
+            try {
+                if (!(requestedCodelib instanceof String)
+                        || !new File((String) requestedCodelib).getCanonicalFile().equals(codelib)) {
+                    return error("Daemon serves codelib " + codelib + ", not " + requestedCodelib);
+                }
+            } catch (final IOException e) {
+                return error("Invalid codelib: " + e.getMessage());
+            }
+        }
+
+        final Future<Instrumenter.Result> result;
+        try {
+            result = workers.submit(() -> instrumenter.instrument(new File((String) apk), operation));
+        } catch (final RejectedExecutionException e) {
+            return "{\"status\":\"busy\"}";
+        }
+        try {
+            return result.get().toJson();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.cancel(true);
+            return error("Interrupted");
+        } catch (final ExecutionException e) {
+            return error(String.valueOf(e.getCause()));
+        }
+    }
+
+    private static String error(final String message) {
+        return "{\"status\":\"error\",\"error\":" + Json.quote(message) + "}";
+    }
+}
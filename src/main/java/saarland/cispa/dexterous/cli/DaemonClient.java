@@ -0,0 +1,132 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2017 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package saarland.cispa.dexterous.cli;
+
+import trikita.log.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Thin client of {@link Daemon}. Jobs which the daemon cannot take, because it is not running,
+ * is busy or serves another codelib, are left to the caller to run in-process. Jobs the daemon
+ * does not finish within {@link #READ_TIMEOUT_MILLIS} are reported as failed.
+ */
+final class DaemonClient {
+
+    private static final String TAG = "DaemonClient";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    /** How long to wait for the result of one job, which includes the time it spends queued. */
+    private static final int READ_TIMEOUT_MILLIS = 30 * 60 * 1000;
+
+    private final int port;
+
+    DaemonClient(final int port) {
+        this.port = port;
+    }
+
+    /**
+     * Sends one job to the daemon and returns its result line, or null if the daemon did not
+     * take the job.
+     *
+     * @param operation one of {@code merge}, {@code build} or {@code sign}
+     */
+    String submit(final String operation, final File apk, final File codelib) {
+        final String token = readToken();
+        if (token == null) {
+            return null;
+        }
+        final String request = "{\"op\":" + Json.quote(operation)
+                + ",\"token\":" + Json.quote(token)
+                + ",\"apk\":" + Json.quote(apk.getAbsolutePath())
+                + ",\"codelib\":" + Json.quote(codelib.getAbsolutePath())
+                + "}";
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                    CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            final Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            out.write(request);
+            out.write('\n');
+            out.flush();
+            final BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            final String response = in.readLine();
+            if (response == null) {
+                Log.w(TAG, "> Daemon closed the connection, running in-process");
+                return null;
+            }
+            final Map<String, Object> result = Json.parseObject(response);
+            final Object status = result.get("status");
+            if ("ok".equals(status) || "failed".equals(status)) {
+                return response;
+            }
+            Log.w(TAG, String.format("> Daemon did not take %s (%s), running in-process",
+                    apk.getName(), "busy".equals(status) ? status : result.get("error")));
+        } catch (final SocketTimeoutException e) {
+            // The daemon may still be working on the job, so running it in-process as well could
+            // clash with it on the output files
+            Log.w(TAG, "> Daemon did not answer for " + apk.getName() + " in time");
+            return "{\"apk\":" + Json.quote(apk.getPath())
+                    + ",\"status\":\"failed\",\"output\":null"
+                    + ",\"error\":\"Timed out waiting for the daemon\"}";
+        } catch (final IOException | IllegalArgumentException e) {
+            Log.w(TAG, "> No daemon on port " + port + " (" + e.getMessage() + "), running in-process");
+        }
+        return null;
+    }
+
+    /**
+     * Returns the token of the daemon on this client's port, or null if it cannot be read.
+     */
+    private String readToken() {
+        final File tokenFile = Daemon.getTokenFile(port);
+        try {
+            final List<String> lines = Files.readAllLines(tokenFile.toPath(), StandardCharsets.UTF_8);
+            if (lines.size() >= 2 && lines.get(0).equals(Integer.toString(port))) {
+                return lines.get(1);
+            }
+            Log.w(TAG, "> Malformed daemon token file " + tokenFile + ", running in-process");
+        } catch (final IOException e) {
+            Log.w(TAG, "> No daemon token in " + tokenFile + " (" + e + "), running in-process");
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether a result line returned by {@link #submit} reports success.
+     */
+    static boolean isOk(final String result) {
+        return "ok".equals(Json.parseObject(result).get("status"));
+    }
+}
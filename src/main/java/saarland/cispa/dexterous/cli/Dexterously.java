@@ -20,6 +20,7 @@
  */
 package saarland.cispa.dexterous.cli;
 
+import com.android.apksig.apk.ApkFormatException;
 import comm.android.dex.*;
 import comm.android.dex.util.FileUtils;
 import comm.android.dx.command.dexer.DxContext;
@@ -27,14 +28,18 @@ import comm.android.dx.merge.CollisionPolicy;
 import comm.android.dx.merge.DexMerger;
 import saarland.cispa.dexterous.Config;
 import saarland.cispa.dexterous.DxUtils;
+import saarland.cispa.dexterous.InjectionPlanner;
 import saarland.cispa.dexterous.MultiDex;
 import saarland.cispa.dexterous.stats.ClassDefStats;
 import saarland.cispa.dexterous.stats.MethodIdStats;
 import trikita.log.Log;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.zip.ZipEntry;
@@ -47,21 +52,31 @@ public class Dexterously {
 
     private static final String TAG = TOOLNAME;
 
-    public static String CODE_LIB_NAME = "";
-    public static String CODE_LIB_DEX_NAME = "";
-//    public final static String CODE_LIB_NAME = "codelib.apk";
-//    public final static String CODE_LIB_DEX_NAME = "codelib.apk:classes.dex";
+    private final String CODE_LIB_NAME; // e.g. = "codelib.apk"
+    private final String CODE_LIB_DEX_NAME; // e.g. = "codelib.apk:classes.dex"
 
     private DxContext context;
 
     private final Config runConfig;
 
+    private final CodeLib codeLib;
+
+    private final SigningContext signingContext;
+
     Map<String, Dex> dexBuffers = null;
 
     Set<String> dexSourceFiles = null;
 
+    private final List<String> skippedDexes = new ArrayList<>();
+
+    private final List<String> savedDexes = new ArrayList<>();
+
+    private SymbolIndex symbolIndex;
+
     private String apk_injected_name;
 
+    private String apk_signed_name;
+
     Map<String, HashSet<String>> javaSourceFiles = null;
 
     Map<String, HashSet<String>> methodIdsTotal = null;
@@ -77,14 +92,31 @@ public class Dexterously {
     Map<String, HashSet<ClassDefStats>> classDefStats = null;
 
     public Dexterously(final Config dexterousRunConfig) {
+        this(dexterousRunConfig,
+                (dexterousRunConfig.codelib != null)
+                        ? CodeLib.load(dexterousRunConfig.codelib, dexterousRunConfig.codelib_methods)
+                        : null,
+                null);
+    }
+
+    /**
+     * @param codeLib the parsed codelib, which may be shared with other runs, or null
+     * @param signingContext keys to sign with, or null for the default debug key
+     */
+    public Dexterously(final Config dexterousRunConfig, final CodeLib codeLib, final SigningContext signingContext) {
         this.context = new DxContext();
         this.dexBuffers = new LinkedHashMap<>();
         this.dexSourceFiles = new HashSet<>();
 
         this.runConfig = dexterousRunConfig;
-        if (dexterousRunConfig.codelib != null) {
-            this.CODE_LIB_NAME = dexterousRunConfig.codelib.getName();
-            this.CODE_LIB_DEX_NAME = this.CODE_LIB_NAME + ":classes.dex";
+        this.codeLib = codeLib;
+        this.signingContext = signingContext;
+        if (codeLib != null) {
+            this.CODE_LIB_NAME = codeLib.getName();
+            this.CODE_LIB_DEX_NAME = codeLib.getDexName();
+        } else {
+            this.CODE_LIB_NAME = "";
+            this.CODE_LIB_DEX_NAME = "";
         }
 
         this.javaSourceFiles = new LinkedHashMap<>();
@@ -148,6 +180,24 @@ public class Dexterously {
         analyzeClassDefDuplicatesAdvanced();
     }
 
+    /**
+     * Returns the index of the classes of all loaded dex files, built on first use. With
+     * {@link Config#symbol_index}, a single input APK keeps its index in {@code <apk>.symbols}.
+     */
+    public SymbolIndex getSymbolIndex() {
+        if (symbolIndex == null) {
+            if (runConfig.symbol_index && runConfig.dexFiles.size() == 1
+                    && FileUtils.hasArchiveSuffix(runConfig.dexFiles.get(0).getName())) {
+                final File indexFile = SymbolIndex.indexFileFor(runConfig.dexFiles.get(0));
+                symbolIndex = SymbolIndex.loadOrBuild(indexFile, dexBuffers);
+                Log.d(TAG, "> Symbol index: " + indexFile);
+            } else {
+                symbolIndex = SymbolIndex.build(dexBuffers);
+            }
+        }
+        return symbolIndex;
+    }
+
     private void loadDexFiles() {
         for (final File dexFile : runConfig.dexFiles) {
             final String dexFileName = dexFile.getAbsolutePath();
@@ -155,8 +205,8 @@ public class Dexterously {
             //if apk file
             addApkFile(dexFile, dexFileName);
         }
-        if (runConfig.codelib != null) {
-            addApkFile(runConfig.codelib, runConfig.codelib.getName());
+        if (codeLib != null) {
+            dexBuffers.putAll(codeLib.getDexes());
         } else {
             Log.i(TAG, "> No Codelib present");
         }
@@ -279,15 +329,35 @@ public class Dexterously {
         return this.classDefDuplicates.size() > 0;
     }
 
-    private void mergeMethodIds(final String DEX_NAME, Dex dexFile) throws DexMerger.MergeException {
+    private void mergeMethodIds(final String DEX_NAME, Dex dexFile, final InjectionPlanner planner)
+            throws DexMerger.MergeException {
         if (!hasMultipleDexes()) {
             Log.e(TAG, String.format("## mergeMethodIds: NO Multiple DexFiles Found: Singular DexFile only."));
             return;
         }
 
         if (!isCodeLib(DEX_NAME)) {
+            final InjectionPlanner.Plan plan = planner.plan(DEX_NAME, dexFile);
+            Log.d(TAG, "> " + plan);
+            if (!plan.fits()) {
+                // Leave this dex as it is, the others can still be instrumented
+                Log.w(TAG, String.format("MERGING DEX %s into %s SKIPPED: %s", CODE_LIB_DEX_NAME, DEX_NAME, plan));
+                skippedDexes.add(DEX_NAME);
+                return;
+            }
             Log.i(TAG, String.format("MERGING DEX %s into %s", CODE_LIB_DEX_NAME, DEX_NAME));
-            final Dex mergedDex = mergeCodeLibReference(DEX_NAME, dexFile);
+            final Dex mergedDex;
+            try {
+                mergedDex = mergeCodeLibReference(DEX_NAME, dexFile, runConfig.save_dex);
+            } catch (final DexMerger.MergeException e) {
+                if (!(e.getValue() instanceof DexIndexOverflowException)) {
+                    throw e;
+                }
+                Log.w(TAG, String.format("MERGING DEX %s into %s SKIPPED: %s", CODE_LIB_DEX_NAME, DEX_NAME,
+                        e.getValue().getMessage()));
+                skippedDexes.add(DEX_NAME);
+                return;
+            }
             this.dexBuffers.put(DEX_NAME, mergedDex);
             Log.i(TAG, String.format("MERGING DEX %s into %s DONE", CODE_LIB_DEX_NAME, DEX_NAME));
         } else {
@@ -522,21 +592,7 @@ public class Dexterously {
             Log.i(TAG, String.format("## ClassDefs: NO ClassDefStats Duplicates Found: Singular DexFile only."));
             return;
         }
-        final Set<String> DEX_FILE_NAMES = this.classDefsTotal.keySet();
-
-        final Set<String> knownClasses = new HashSet<>();
-
-        for (final String DEX_NAME : DEX_FILE_NAMES) {
-            this.classDefsTotal.get(DEX_NAME).stream().forEach(
-                    className -> {
-                        if (knownClasses.contains(className)) {
-                            this.classDefDuplicates.add(className);
-                        } else {
-                            knownClasses.add(className);
-                        }
-                    }
-            );
-        }
+        this.classDefDuplicates.addAll(getSymbolIndex().getDuplicateClasses());
 
         if (hasClassDefDuplicates()) {
             Log.i(TAG, "");
@@ -562,23 +618,16 @@ public class Dexterously {
         Log.i(TAG, "## analyzeClassDefDuplicatesAdvanced");
 
 
-        Set<String> dexFileNames = classDefsTotal.keySet();
+        final SymbolIndex index = getSymbolIndex();
 
         Log.i(TAG, "## analyzeClassDefDuplicatesAdvanced Classes: " + this.classDefDuplicates.size());
         this.classDefDuplicates.stream().forEach(
                 className -> {
                     Log.i(TAG, "### Class: " + className);
-                    dexFileNames.stream().forEach(
-                            DEX_NAME -> {
-                                Set<ClassDefStats> classDefStats = this.classDefStats.get(DEX_NAME);
-                                classDefStats.stream().forEach(
-                                        classStat -> {
-                                            if (classStat.NAME.equals(className)) {
-                                                Log.i(TAG, classStat.toString());
-                                            }
-                                        });
-                            }
-                    );
+                    for (final SymbolIndex.Location location : index.findClassDefs(className)) {
+                        Log.i(TAG, new ClassDefStats(location.getDexName(), index.getDex(location.getDex()),
+                                index.readClassDef(location)).toString());
+                    }
                     Log.i(TAG, "");
                 }
         );
@@ -613,15 +662,33 @@ public class Dexterously {
                 );
     }
 
+    /**
+     * Injects the codelib into every dex file which has room for it. Dex files whose ID tables
+     * would overflow are left unchanged and reported by {@link #getSkippedDexes()}.
+     */
     public void mergeCodeLib() throws DexMerger.MergeException {
-        dexBuffers.get(CODE_LIB_DEX_NAME).setWhitelistedAnnotation("Lsaarland/cispa/artist/codelib/CodeLib$Inject;");
+        if (codeLib == null) {
+            throw new DexMerger.MergeException(new IllegalStateException("No CodeLib present"));
+        }
+        codeLib.whitelistInjectedMethods();
+        final InjectionPlanner planner = codeLib.getPlanner();
+        skippedDexes.clear();
+        savedDexes.clear();
         for (Map.Entry<String, Dex> dexfile : dexBuffers.entrySet()) {
             final String DEX_NAME = dexfile.getKey();
             Dex dexFile = dexfile.getValue();
-            mergeMethodIds(DEX_NAME, dexFile);
+            mergeMethodIds(DEX_NAME, dexFile, planner);
         }
     }
 
+    /**
+     * Returns the dex files which {@link #mergeCodeLib()} left unchanged because the codelib
+     * did not fit into them.
+     */
+    public List<String> getSkippedDexes() {
+        return Collections.unmodifiableList(skippedDexes);
+    }
+
     public void buildApk() {
         Log.i(TAG, "");
         Log.i(TAG, "# Building APK");
@@ -702,31 +769,54 @@ public class Dexterously {
                 Log.e(TAG, e);
             }
 
+            try {
+                ApkSir.alignApk(new File(apk_injected_name));
+            } catch (final IOException | ApkFormatException e) {
+                Log.e(TAG, "> Could not align APK: " + apk_injected_name);
+                Log.e(TAG, e);
+            }
         }
     }
 
-    public void signApk() {
+    public boolean signApk() {
         Log.i(TAG, "");
         Log.i(TAG, "# Signing APK");
         if (this.apk_injected_name != null
                 && new File(this.apk_injected_name).exists()) {
-            signApk(this.apk_injected_name);
+            return signApk(this.apk_injected_name);
         } else {
             Log.e(TAG, "> Could not sign APK: " + this.apk_injected_name);
+            return false;
         }
     }
 
-    private void signApk(final String apkPath) {
-
-        ApkSir apkSir = new ApkSir();
+    private boolean signApk(final String apkPath) {
 
         try {
-            apkSir.signApk(apkPath);
+            ApkSir apkSir = (signingContext != null) ? new ApkSir(signingContext) : new ApkSir();
+            this.apk_signed_name = apkSir.signApk(apkPath).getPath();
+            return true;
         } catch (final Exception e) {
             Log.e(TAG, "> Signing of APK Failed");
             Log.e(TAG, e);
+            return false;
         }
     }
+
+    /**
+     * Returns the path of the APK built by {@link #buildApk()}, or null if none was built.
+     */
+    public String getInjectedApk() {
+        return this.apk_injected_name;
+    }
+
+    /**
+     * Returns the path of the APK signed by {@link #signApk()}, or null if none was signed.
+     */
+    public String getSignedApk() {
+        return this.apk_signed_name;
+    }
+
     public Dex mergeCodeLibReference(final String dexName, final Dex dexFile) throws DexMerger.MergeException {
         return mergeCodeLibReference(dexName, dexFile, true);
     }
@@ -747,19 +837,51 @@ public class Dexterously {
         mergedDexContent = dexMerger.mergeMethodsOnly();
 
         if (saveDexFile) {
-            try {
-                final String outputDexName = dexName.replace(":", "_");
-                OutputStream os = new FileOutputStream(new File(outputDexName));
+            final File outputDex = getMergedDexFile(dexName);
+            final File outputDir = outputDex.getParentFile();
+            if (outputDir != null && !outputDir.isDirectory() && !outputDir.mkdirs()) {
+                throw new DexMerger.MergeException(new IOException("Could not create " + outputDir));
+            }
+            try (OutputStream os = new FileOutputStream(outputDex)) {
                 os.write(mergedDexContent.getBytes());
-            } catch (final FileNotFoundException e) {
-                Log.e(TAG, e);
             } catch (final IOException e) {
-                Log.e(TAG, e);
+                throw new DexMerger.MergeException(e);
             }
+            savedDexes.add(outputDex.getPath());
         }
         return mergedDexContent;
     }
 
+    /**
+     * Returns where the merged dex {@code dexName} ({@code <apk>:<entry>}, or the path of a plain
+     * dex file) is saved: the working directory, or the directory {@code <apk>_merged} next to
+     * its source file if {@link Config#save_dex_per_apk} is set.
+     */
+    private File getMergedDexFile(final String dexName) {
+        if (!runConfig.save_dex_per_apk) {
+            return new File(dexName.replace(":", "_"));
+        }
+        final int separator = dexName.lastIndexOf(':');
+        final String sourceName = (separator < 0) ? dexName : dexName.substring(0, separator);
+        final String entryName = (separator < 0) ? "classes.dex" : dexName.substring(separator + 1);
+        File source = new File(sourceName).getAbsoluteFile();
+        for (final String dexSourceFile : this.dexSourceFiles) {
+            if (new File(dexSourceFile).getName().equals(source.getName())) {
+                source = new File(dexSourceFile);
+                break;
+            }
+        }
+        final String baseName = source.getName().replaceFirst("\\.[^.]*$", "");
+        return new File(new File(source.getParentFile(), baseName + "_merged"), entryName);
+    }
+
+    /**
+     * Returns the merged dex files which were saved, see {@link Config#save_dex}.
+     */
+    public List<String> getSavedDexes() {
+        return Collections.unmodifiableList(savedDexes);
+    }
+
     public void info() {
         dexBuffers.keySet().stream().forEach(
                 DEX_NAME -> {
@@ -0,0 +1,184 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2017 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package saarland.cispa.dexterous.cli;
+
+import comm.android.dx.merge.DexMerger;
+import saarland.cispa.dexterous.Config;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Injects one codelib into APKs, one APK per call.
+ *
+ * The codelib and signing keys are shared by all calls, which may run concurrently. Each call
+ * uses its own {@link Dexterously} for the APK itself.
+ */
+public class Instrumenter {
+
+    /** What to do with an APK. */
+    public enum Operation {
+        /** Merge the codelib into the APK's dex files and write them to {@code <apk>_merged}. */
+        MERGE,
+        /** Merge and build the instrumented APK. */
+        BUILD,
+        /** Merge, build and sign the instrumented APK. */
+        SIGN
+    }
+
+    private final CodeLib codeLib;
+    private final SigningContext signingContext;
+
+    /**
+     * @param signingContext keys to sign with, or null for the default debug key
+     */
+    public Instrumenter(final CodeLib codeLib, final SigningContext signingContext)
+            throws DexMerger.MergeException {
+        this.codeLib = codeLib;
+        this.signingContext = signingContext;
+        // Computed once up front, so that concurrent calls only ever read the codelib
+        codeLib.whitelistInjectedMethods();
+    }
+
+    public CodeLib getCodeLib() {
+        return codeLib;
+    }
+
+    public Result instrument(final File apk, final Operation operation) {
+        final Result result = new Result(apk);
+        final long start = System.nanoTime();
+
+        try {
+            final Config apkConfig = new Config();
+            apkConfig.build_apk = operation != Operation.MERGE;
+            apkConfig.sign_apk = operation == Operation.SIGN;
+            // Intermediate dex files are only kept if they are the result
+            apkConfig.save_dex = operation == Operation.MERGE;
+            apkConfig.save_dex_per_apk = true;
+            apkConfig.dexFiles.add(apk);
+
+            long t = System.nanoTime();
+            final Dexterously dexterously = new Dexterously(apkConfig, codeLib, signingContext);
+            result.loadMillis = millisSince(t);
+
+            t = System.nanoTime();
+            dexterously.mergeCodeLib();
+            result.mergeMillis = millisSince(t);
+            result.skipped = dexterously.getSkippedDexes();
+
+            if (apkConfig.save_dex) {
+                // All merged dex files of the APK are saved into the same directory
+                final List<String> savedDexes = dexterously.getSavedDexes();
+                if (savedDexes.isEmpty()) {
+                    result.error = "No dex file was merged";
+                } else {
+                    result.output = new File(savedDexes.get(0)).getParent();
+                }
+            }
+            if (apkConfig.build_apk) {
+                t = System.nanoTime();
+                dexterously.buildApk();
+                result.buildMillis = millisSince(t);
+                result.output = dexterously.getInjectedApk();
+                if (result.output == null || !new File(result.output).exists()) {
+                    result.output = null;
+                    result.error = "APK was not built";
+                } else if (apkConfig.sign_apk) {
+                    t = System.nanoTime();
+                    if (dexterously.signApk()) {
+                        result.output = dexterously.getSignedApk();
+                    } else {
+                        result.error = "APK was not signed";
+                    }
+                    result.signMillis = millisSince(t);
+                }
+            }
+            if (result.error == null && !result.skipped.isEmpty()) {
+                // The output exists, but lacks the codelib in the skipped dex files
+                result.error = "CodeLib does not fit into " + String.join(", ", result.skipped);
+            }
+        } catch (final DexMerger.MergeException e) {
+            result.error = "Merge failed: " + e.getValue();
+        } catch (final RuntimeException e) {
+            result.error = e.toString();
+        }
+
+        result.totalMillis = millisSince(start);
+        return result;
+    }
+
+    private static long millisSince(final long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Outcome and timings of instrumenting one APK.
+     */
+    public static class Result {
+        private final File apk;
+        private String output;
+        private String error;
+        private List<String> skipped = Collections.emptyList();
+        private long loadMillis;
+        private long mergeMillis;
+        private long buildMillis;
+        private long signMillis;
+        private long totalMillis;
+
+        private Result(final File apk) {
+            this.apk = apk;
+        }
+
+        public boolean isOk() {
+            return error == null;
+        }
+
+        /** Path of the built or signed APK, or of the directory of merged dex files, or null. */
+        public String getOutput() {
+            return output;
+        }
+
+        /** Reason of the failure, or null. */
+        public String getError() {
+            return error;
+        }
+
+        /** Dex files which were left without the codelib because it did not fit into them. */
+        public List<String> getSkipped() {
+            return skipped;
+        }
+
+        /** Returns this result as a single line JSON object. */
+        public String toJson() {
+            return "{\"apk\":" + Json.quote(apk.getPath())
+                    + ",\"status\":" + Json.quote(isOk() ? "ok" : "failed")
+                    + ",\"output\":" + Json.quote(output)
+                    + ",\"error\":" + Json.quote(error)
+                    + ",\"skipped\":" + Json.quoteAll(skipped)
+                    + ",\"millis\":{\"load\":" + loadMillis
+                    + ",\"merge\":" + mergeMillis
+                    + ",\"build\":" + buildMillis
+                    + ",\"sign\":" + signMillis
+                    + ",\"total\":" + totalMillis
+                    + "}}";
+        }
+    }
+}
@@ -27,6 +27,15 @@ import saarland.cispa.dexterous.Config;
 import trikita.log.Log;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 public class Main {
 
@@ -35,6 +44,20 @@ public class Main {
     public static void main(final String[] args) {
         final Config runConfig = parseCommandLineArguments(args);
 
+        if (runConfig.batch != null) {
+            System.exit(runBatch(runConfig));
+        }
+        if (runConfig.daemon_port >= 0) {
+            System.exit(runDaemon(runConfig));
+        }
+        int daemonFailures = 0;
+        if (runConfig.connect_port >= 0) {
+            daemonFailures = submitToDaemon(runConfig);
+            if (runConfig.dexFiles.isEmpty()) {
+                System.exit((daemonFailures == 0) ? 0 : 3);
+            }
+        }
+
         Dexterously dexterously = new Dexterously(runConfig);
 
         // Analyzer Test
@@ -44,9 +67,16 @@ public class Main {
         } else {
             dexterously.info();
         }
+        boolean skippedDexes = false;
         try {
             if (runConfig.build_apk) {
                     dexterously.mergeCodeLib();
+                if (!dexterously.getSkippedDexes().isEmpty()) {
+                    // The APK is still built, but these dex files lack the codelib
+                    Log.e(String.format("CodeLib does not fit into %s",
+                            String.join(", ", dexterously.getSkippedDexes())));
+                    skippedDexes = true;
+                }
                 dexterously.buildApk();
                 if (runConfig.sign_apk) {
                     dexterously.signApk();
@@ -58,6 +88,76 @@ public class Main {
         } catch (DexMerger.MergeException e) {
             e.getValue().printStackTrace();
         }
+        if (daemonFailures > 0 || skippedDexes) {
+            // The daemon failed on some APKs, or the codelib is missing from some dex files
+            System.exit(3);
+        }
+    }
+
+    private static int runBatch(final Config runConfig) {
+        PrintStream results = System.out;
+        try {
+            final List<File> apks = BatchMode.listApks(runConfig.batch);
+            if (runConfig.batch_results != null) {
+                results = new PrintStream(new FileOutputStream(runConfig.batch_results), true, "UTF-8");
+            }
+            final int failures = new BatchMode(runConfig, results).run(apks);
+            Log.i(String.format("# BATCH DONE: %d APKs, %d failed", apks.size(), failures));
+            return (failures == 0) ? 0 : 3;
+        } catch (final IOException e) {
+            Log.e("Could not read batch: " + runConfig.batch, e);
+            return 1;
+        } catch (final DexMerger.MergeException e) {
+            e.getValue().printStackTrace();
+            return 1;
+        } catch (final SigningContext.LoadException e) {
+            Log.e("Could not load the signing keys", e);
+            return 1;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        } finally {
+            if (results != System.out) {
+                results.close();
+            }
+        }
+    }
+
+    private static int runDaemon(final Config runConfig) {
+        try {
+            new Daemon(runConfig).serve(runConfig.daemon_port);
+            return 0;
+        } catch (final IOException e) {
+            Log.e("Daemon failed", e);
+            return 1;
+        } catch (final DexMerger.MergeException e) {
+            e.getValue().printStackTrace();
+            return 1;
+        }
+    }
+
+    /**
+     * Hands the APKs to a running daemon. APKs which the daemon did not take are left in the
+     * config, to be processed in-process. Returns the number of APKs the daemon failed on.
+     */
+    private static int submitToDaemon(final Config runConfig) {
+        final DaemonClient client = new DaemonClient(runConfig.connect_port);
+        final String operation = runConfig.sign_apk ? "sign" : "build";
+        final List<File> remaining = new ArrayList<>();
+        int failures = 0;
+        for (final File apk : runConfig.dexFiles) {
+            final String result = client.submit(operation, apk, runConfig.codelib);
+            if (result == null) {
+                remaining.add(apk);
+            } else {
+                System.out.println(result);
+                if (!DaemonClient.isOk(result)) {
+                    failures++;
+                }
+            }
+        }
+        runConfig.dexFiles = remaining;
+        return failures;
     }
 
     private static Options setupOptions() {
@@ -82,6 +182,18 @@ public class Main {
                         .build()
         );
 
+        options.addOption(
+                Option.builder("u")
+                        .argName("file")
+                        .longOpt("codelib-methods")
+                        .desc("Inject only the @Inject codelib methods listed in this file, one per line, as "
+                                + "Lpkg/Class;.name or Lpkg/Class;.name(Lparam;)Lreturn;. Shrinks the codelib "
+                                + "so that it fits into large dex files. A daemon uses the list it was "
+                                + "started with.")
+                        .hasArg()
+                        .build()
+        );
+
         options.addOption(
                 Option.builder("m")
                         .argName("flag")
@@ -117,6 +229,64 @@ public class Main {
                         .hasArg(false)
                         .build()
         );
+
+        options.addOption(
+                Option.builder("x")
+                        .argName("flag")
+                        .longOpt("symbol-index")
+                        .desc("With --analyze, keep the index of the APK's classes in <apk>.symbols "
+                                + "so that repeated analyses start faster")
+                        .hasArg(false)
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder("B")
+                        .argName("dir|file")
+                        .longOpt("batch")
+                        .desc("Build (and with --sign-apk sign) all APKs of a directory, or listed in a file, "
+                                + "with one codelib. Prints one JSON result line per APK.")
+                        .hasArg()
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder("j")
+                        .argName("count")
+                        .longOpt("threads")
+                        .desc("Number of APKs processed concurrently in batch and daemon mode (default: number of CPUs).")
+                        .hasArg()
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder("D")
+                        .argName("port")
+                        .longOpt("daemon")
+                        .desc("Run as daemon on this localhost port, keeping the codelib and keys loaded. "
+                                + "Port 0 picks a free port.")
+                        .hasArg()
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder("C")
+                        .argName("port")
+                        .longOpt("connect")
+                        .desc("Hand --build-apk/--sign-apk jobs to the daemon on this localhost port. "
+                                + "Jobs it does not take run in-process.")
+                        .hasArg()
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder("r")
+                        .argName("file")
+                        .longOpt("batch-results")
+                        .desc("Write the JSON result lines of batch mode to this file instead of stdout.")
+                        .hasArg()
+                        .build()
+        );
         return options;
     }
 
@@ -144,6 +314,9 @@ public class Main {
             if (arguments.hasOption("analyze")) {
                 runConfig.analyze_apk = true;
             }
+            if (arguments.hasOption("symbol-index")) {
+                runConfig.symbol_index = true;
+            }
             if (arguments.hasOption("codelib")) {
                 runConfig.codelib = new File(arguments.getOptionValue("codelib"));
                 if (!isValidDexfile(runConfig.codelib)) {
@@ -151,9 +324,57 @@ public class Main {
                             runConfig.codelib.getAbsolutePath()));
                 }
             }
+            if (arguments.hasOption("codelib-methods")) {
+                runConfig.codelib_methods = parseCodelibMethods(
+                        new File(arguments.getOptionValue("codelib-methods")));
+            }
             if (runConfig.merge_dex && (runConfig.build_apk || runConfig.sign_apk)) {
                 throw new ParseException(String.format("Either user --merge OR --build-apk/--sign-apk"));
             }
+            if (arguments.hasOption("batch")) {
+                runConfig.batch = new File(arguments.getOptionValue("batch"));
+                if (!runConfig.batch.exists()) {
+                    throw new ParseException(String.format("Batch is invalid: %s",
+                            runConfig.batch.getAbsolutePath()));
+                }
+                if (runConfig.codelib == null) {
+                    throw new ParseException("--batch requires --codelib");
+                }
+                if (runConfig.merge_dex || runConfig.analyze_apk || !arguments.getArgList().isEmpty()) {
+                    throw new ParseException("--batch only supports --build-apk/--sign-apk");
+                }
+                runConfig.build_apk = true;
+            }
+            if (arguments.hasOption("threads")) {
+                try {
+                    runConfig.threads = Integer.parseInt(arguments.getOptionValue("threads"));
+                } catch (final NumberFormatException e) {
+                    runConfig.threads = 0;
+                }
+                if (runConfig.threads < 1) {
+                    throw new ParseException(String.format("Thread count is invalid: %s",
+                            arguments.getOptionValue("threads")));
+                }
+            }
+            if (arguments.hasOption("daemon")) {
+                runConfig.daemon_port = parsePort(arguments.getOptionValue("daemon"));
+                if (runConfig.codelib == null) {
+                    throw new ParseException("--daemon requires --codelib");
+                }
+                if (runConfig.batch != null || runConfig.merge_dex || runConfig.analyze_apk
+                        || !arguments.getArgList().isEmpty()) {
+                    throw new ParseException("--daemon takes no other mode of operation");
+                }
+            }
+            if (arguments.hasOption("connect")) {
+                runConfig.connect_port = parsePort(arguments.getOptionValue("connect"));
+                if (runConfig.codelib == null || !runConfig.build_apk || runConfig.batch != null) {
+                    throw new ParseException("--connect requires --codelib and --build-apk/--sign-apk");
+                }
+            }
+            if (arguments.hasOption("batch-results")) {
+                runConfig.batch_results = new File(arguments.getOptionValue("batch-results"));
+            }
             for (final String argument : arguments.getArgList()) {
                 final File dexFile = new File(argument);
                 if (isValidDexfile(dexFile)) {
@@ -169,6 +390,42 @@ public class Main {
         return runConfig;
     }
 
+    /**
+     * Reads one method per line, ignoring blank lines and lines starting with {@code #}.
+     */
+    private static Set<String> parseCodelibMethods(final File file) throws ParseException {
+        final List<String> lines;
+        try {
+            lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            throw new ParseException(String.format("CodeLib methods are invalid: %s (%s)",
+                    file.getAbsolutePath(), e.getMessage()));
+        }
+        final Set<String> methods = new LinkedHashSet<>();
+        for (final String line : lines) {
+            final String method = line.trim();
+            if (!method.isEmpty() && !method.startsWith("#")) {
+                methods.add(method);
+            }
+        }
+        if (methods.isEmpty()) {
+            throw new ParseException(String.format("CodeLib methods are empty: %s", file.getAbsolutePath()));
+        }
+        return methods;
+    }
+
+    private static int parsePort(final String value) throws ParseException {
+        try {
+            final int port = Integer.parseInt(value);
+            if (port >= 0 && port <= 0xffff) {
+                return port;
+            }
+        } catch (final NumberFormatException e) {
+            // reported below
+        }
+        throw new ParseException(String.format("Port is invalid: %s", value));
+    }
+
     private static boolean isValidDexfile(File dexFile) {
         return dexFile.exists() && ! dexFile.isDirectory();
     }
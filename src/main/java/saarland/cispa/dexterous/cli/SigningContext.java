@@ -0,0 +1,87 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2017 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package saarland.cispa.dexterous.cli;
+
+import com.android.apksig.ApkSigner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Signing keys and certificates loaded once and shared by any number of sign operations.
+ *
+ * The keystore is read, the certificates are decoded and their APK Signature Scheme v2
+ * encodings are computed when the context is created. Instances are immutable and may be
+ * used by concurrent sign operations of a batch job.
+ */
+public final class SigningContext {
+
+    private static SigningContext defaultContext;
+
+    private final List<ApkSigner.SignerConfig> signerConfigs;
+
+    public SigningContext(final List<ApkSigner.SignerConfig> signerConfigs) {
+        if (signerConfigs.isEmpty()) {
+            throw new IllegalArgumentException("No signer configs");
+        }
+        this.signerConfigs = Collections.unmodifiableList(new ArrayList<>(signerConfigs));
+    }
+
+    /**
+     * Returns the context of the bundled ARTist debug keystore, loading it on first use. A load
+     * which failed is attempted again on the next call.
+     *
+     * @throws LoadException if the keystore cannot be loaded
+     */
+    public static synchronized SigningContext getDefault() throws LoadException {
+        if (defaultContext == null) {
+            defaultContext = new SigningContext(
+                    ApkSir.buildSignerConfigs(ApkSir.buildDefaultSignerParams()));
+        }
+        return defaultContext;
+    }
+
+    public List<ApkSigner.SignerConfig> getSignerConfigs() {
+        return signerConfigs;
+    }
+
+    /**
+     * Returns a new builder signing with the keys of this context. Builders are not shared, so
+     * each sign operation should obtain its own.
+     */
+    public ApkSigner.Builder newApkSignerBuilder() {
+        return new ApkSigner.Builder(signerConfigs);
+    }
+
+    /**
+     * Indicates that the keys or certificates of a signer could not be loaded.
+     */
+    public static class LoadException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        LoadException(final String message) {
+            super(message);
+        }
+
+        LoadException(final String message, final Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
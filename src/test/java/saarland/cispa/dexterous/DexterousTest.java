@@ -0,0 +1,95 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2017 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package saarland.cispa.dexterous;
+
+import comm.android.dex.DexIndexOverflowException;
+import comm.android.dx.merge.DexMerger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static saarland.cispa.dexterous.TestDexes.CODELIB_CLASS;
+import static saarland.cispa.dexterous.TestDexes.apk;
+import static saarland.cispa.dexterous.TestDexes.appDex;
+import static saarland.cispa.dexterous.TestDexes.codeLibDex;
+
+public class DexterousTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMergeFits() throws Exception {
+        final Dexterous dexterous = dexterous(appDex(1), new MergeConfig("codelib.apk", null, null));
+
+        dexterous.mergeCodeLib();
+
+        assertTrue(dexterous.getSkippedDexes().isEmpty());
+    }
+
+    @Test
+    public void testMergeOverflowFails() throws Exception {
+        final Dexterous dexterous = dexterous(appDex(InjectionPlanner.MAX_IDS),
+                new MergeConfig("codelib.apk", null, null));
+
+        try {
+            dexterous.mergeCodeLib();
+            fail("Merged a codelib which does not fit");
+        } catch (final DexMerger.MergeException e) {
+            assertTrue(e.getValue() instanceof DexIndexOverflowException);
+        }
+    }
+
+    @Test
+    public void testMergeOverflowIsSkippedIfAllowed() throws Exception {
+        final MergeConfig config = new MergeConfig("codelib.apk", null, null);
+        config.allowSkippedDexes = true;
+        final Dexterous dexterous = dexterous(appDex(InjectionPlanner.MAX_IDS), config);
+
+        dexterous.mergeCodeLib();
+
+        assertEquals(Collections.singletonList("app.apk:classes.dex"), dexterous.getSkippedDexes());
+    }
+
+    @Test
+    public void testRequiredMethodsMakeCodeLibFit() throws Exception {
+        // Room for one more method ID, but the codelib has two
+        final MergeConfig config = new MergeConfig("codelib.apk", null, null);
+        config.codelibMethods = Collections.singleton(CODELIB_CLASS + ".inject");
+        final Dexterous dexterous = dexterous(appDex(InjectionPlanner.MAX_IDS - 1), config);
+
+        dexterous.mergeCodeLib();
+
+        assertTrue(dexterous.getSkippedDexes().isEmpty());
+    }
+
+    private Dexterous dexterous(final byte[] appDex, final MergeConfig config) throws Exception {
+        final File dir = folder.newFolder();
+        final Dexterous dexterous = new Dexterous(config);
+        dexterous.init(apk(dir, "app.apk", appDex),
+                apk(dir, "codelib.apk", codeLibDex("inject", "unused")));
+        return dexterous;
+    }
+}
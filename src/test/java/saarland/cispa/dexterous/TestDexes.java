@@ -0,0 +1,117 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2017 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package saarland.cispa.dexterous;
+
+import comm.android.dx.dex.DexOptions;
+import comm.android.dx.dex.file.ClassDefItem;
+import comm.android.dx.dex.file.DexFile;
+import comm.android.dx.dex.file.EncodedMethod;
+import comm.android.dx.rop.annotation.Annotation;
+import comm.android.dx.rop.annotation.AnnotationVisibility;
+import comm.android.dx.rop.annotation.Annotations;
+import comm.android.dx.rop.code.AccessFlags;
+import comm.android.dx.rop.cst.CstMethodRef;
+import comm.android.dx.rop.cst.CstNat;
+import comm.android.dx.rop.cst.CstString;
+import comm.android.dx.rop.cst.CstType;
+import comm.android.dx.rop.type.StdTypeList;
+import comm.android.dx.rop.type.Type;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Codelib and app dex files built with the dx API, for tests of the injection.
+ */
+public final class TestDexes {
+
+    public static final String CODELIB_CLASS = "Lsaarland/cispa/artist/codelib/CodeLib;";
+
+    public static final String INJECT_ANNOTATION = "Lsaarland/cispa/artist/codelib/CodeLib$Inject;";
+
+    private TestDexes() {
+    }
+
+    /**
+     * A codelib with one static native {@code ()V} method annotated for injection per name.
+     */
+    public static byte[] codeLibDex(final String... injectedMethods) throws IOException {
+        final DexFile dex = new DexFile(new DexOptions());
+        final CstType codeLib = type(CODELIB_CLASS);
+        final ClassDefItem clazz = new ClassDefItem(codeLib, AccessFlags.ACC_PUBLIC,
+                type("Ljava/lang/Object;"), StdTypeList.EMPTY, null);
+
+        final Annotation annotation = new Annotation(type(INJECT_ANNOTATION),
+                AnnotationVisibility.RUNTIME);
+        annotation.setImmutable();
+        final Annotations annotations = new Annotations();
+        annotations.add(annotation);
+        annotations.setImmutable();
+
+        for (final String name : injectedMethods) {
+            final CstMethodRef inject = method(codeLib, name);
+            clazz.addDirectMethod(new EncodedMethod(inject,
+                    AccessFlags.ACC_PUBLIC | AccessFlags.ACC_STATIC | AccessFlags.ACC_NATIVE,
+                    null, StdTypeList.EMPTY));
+            clazz.addMethodAnnotations(inject, annotations, dex);
+        }
+
+        dex.add(clazz);
+        return dex.toDex(null, false);
+    }
+
+    /**
+     * An app dex which references {@code methods} methods.
+     */
+    public static byte[] appDex(final int methods) throws IOException {
+        final DexFile dex = new DexFile(new DexOptions());
+        final CstType app = type("Lapp/App;");
+        dex.add(new ClassDefItem(app, AccessFlags.ACC_PUBLIC, type("Ljava/lang/Object;"),
+                StdTypeList.EMPTY, null));
+        for (int i = 0; i < methods; i++) {
+            dex.getMethodIds().intern(method(app, "m" + i));
+        }
+        return dex.toDex(null, false);
+    }
+
+    /**
+     * Writes an APK with the given dex as its {@code classes.dex}.
+     */
+    public static File apk(final File dir, final String name, final byte[] dex)
+            throws IOException {
+        final File apk = new File(dir, name);
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(apk))) {
+            zip.putNextEntry(new ZipEntry("classes.dex"));
+            zip.write(dex);
+            zip.closeEntry();
+        }
+        return apk;
+    }
+
+    private static CstType type(final String descriptor) {
+        return CstType.intern(Type.intern(descriptor));
+    }
+
+    private static CstMethodRef method(final CstType owner, final String name) {
+        return new CstMethodRef(owner, new CstNat(new CstString(name), new CstString("()V")));
+    }
+}
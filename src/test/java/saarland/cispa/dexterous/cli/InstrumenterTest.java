@@ -0,0 +1,90 @@
+/**
+ * The ARTist Project (https://artist.cispa.saarland)
+ *
+ * Copyright (C) 2017 CISPA (https://cispa.saarland), Saarland University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package saarland.cispa.dexterous.cli;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import saarland.cispa.dexterous.InjectionPlanner;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static saarland.cispa.dexterous.TestDexes.CODELIB_CLASS;
+import static saarland.cispa.dexterous.TestDexes.apk;
+import static saarland.cispa.dexterous.TestDexes.appDex;
+import static saarland.cispa.dexterous.TestDexes.codeLibDex;
+
+public class InstrumenterTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMergeFits() throws Exception {
+        final Instrumenter.Result result = instrument(appDex(1), null, "inject");
+
+        assertTrue(result.getError(), result.isOk());
+        assertTrue(result.getSkipped().isEmpty());
+        assertTrue(result.toJson().contains("\"status\":\"ok\""));
+        assertTrue(result.toJson().contains("\"skipped\":[]"));
+    }
+
+    @Test
+    public void testMergeOverflowIsReported() throws Exception {
+        // A full method ID table leaves no room for the injected codelib method
+        final Instrumenter.Result result = instrument(appDex(InjectionPlanner.MAX_IDS), null, "inject");
+
+        assertFalse(result.isOk());
+        assertEquals(Collections.singletonList("app.apk:classes.dex"), result.getSkipped());
+
+        final Map<String, Object> json = Json.parseObject(result.toJson());
+        assertEquals("failed", json.get("status"));
+        assertEquals(Collections.singletonList("app.apk:classes.dex"), json.get("skipped"));
+        assertFalse(DaemonClient.isOk(result.toJson()));
+    }
+
+    @Test
+    public void testRequiredMethodsMakeCodeLibFit() throws Exception {
+        // Room for one more method ID, but the codelib has two
+        final byte[] appDex = appDex(InjectionPlanner.MAX_IDS - 1);
+
+        assertFalse(instrument(appDex, null, "inject", "unused").isOk());
+
+        final Instrumenter.Result result = instrument(appDex,
+                Collections.singleton(CODELIB_CLASS + ".inject"), "inject", "unused");
+        assertTrue(result.getError(), result.isOk());
+        assertTrue(result.getSkipped().isEmpty());
+    }
+
+    private Instrumenter.Result instrument(final byte[] appDex, final Set<String> requiredMethods,
+                                           final String... injectedMethods) throws Exception {
+        final File dir = folder.newFolder();
+        final File codelib = apk(dir, "codelib.apk", codeLibDex(injectedMethods));
+        final File app = apk(dir, "app.apk", appDex);
+        final Instrumenter instrumenter =
+                new Instrumenter(CodeLib.load(codelib, requiredMethods), null);
+        return instrumenter.instrument(app, Instrumenter.Operation.MERGE);
+    }
+}